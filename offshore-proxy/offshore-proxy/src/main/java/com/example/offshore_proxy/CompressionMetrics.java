@@ -0,0 +1,48 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.CompressionStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes the tunnel compression counters of each codec, tagged by codec.
+ */
+@Component
+public class CompressionMetrics implements MeterBinder {
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            if (codec == CompressionCodec.NONE) {
+                continue;
+            }
+            CompressionStats stats = CompressionStats.of(codec);
+            String name = codec.getPropertyName();
+            FunctionCounter.builder("offshore.tunnel.compression.frames", stats, CompressionStats::getCompressedFrames)
+                    .tag("codec", name).tag("result", "compressed")
+                    .description("Frames sent through the compressor").register(registry);
+            FunctionCounter.builder("offshore.tunnel.compression.frames", stats, CompressionStats::getSkippedFrames)
+                    .tag("codec", name).tag("result", "skipped")
+                    .description("Frames sent raw because they were small or already compressed").register(registry);
+            FunctionCounter.builder("offshore.tunnel.compression.bytes.in", stats, CompressionStats::getBytesIn)
+                    .tag("codec", name).baseUnit("bytes")
+                    .description("Payload bytes offered to the compressor").register(registry);
+            FunctionCounter.builder("offshore.tunnel.compression.bytes.out", stats, CompressionStats::getBytesOut)
+                    .tag("codec", name).baseUnit("bytes")
+                    .description("Payload bytes put on the wire for those frames").register(registry);
+            Gauge.builder("offshore.tunnel.compression.ratio", stats, CompressionStats::getRatio)
+                    .tag("codec", name)
+                    .description("Uncompressed over compressed bytes").register(registry);
+            FunctionCounter.builder("offshore.tunnel.compression.time", stats, s -> s.getCompressNanos() / 1e9)
+                    .tag("codec", name).tag("operation", "compress").baseUnit("seconds")
+                    .description("Time spent compressing frames").register(registry);
+            FunctionCounter.builder("offshore.tunnel.compression.time", stats, s -> s.getDecompressNanos() / 1e9)
+                    .tag("codec", name).tag("operation", "decompress").baseUnit("seconds")
+                    .description("Time spent decompressing frames").register(registry);
+        }
+    }
+}
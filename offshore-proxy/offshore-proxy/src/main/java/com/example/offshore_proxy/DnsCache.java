@@ -0,0 +1,76 @@
+package com.example.offshore_proxy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves origin host names, caching answers for a fixed TTL so repeated
+ * fetches to the same host do not each wait on a lookup. Failed lookups are
+ * cached for a shorter time. Expired answers are dropped once many hosts
+ * have been looked up.
+ */
+@Component
+public class DnsCache {
+    //hosts kept before expired answers are dropped
+    static final int MAX_TRACKED_HOSTS = 1024;
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DnsCache(@Value("${offshore.origin.dns-ttl-seconds:60}") long ttlSeconds,
+                    @Value("${offshore.origin.dns-negative-ttl-seconds:5}") long negativeTtlSeconds) {
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.negativeTtlNanos = negativeTtlSeconds * 1_000_000_000L;
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(host);
+        if (entry != null && isFresh(entry, now)) {
+            hits.incrementAndGet();
+            if (entry.addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return entry.addresses;
+        }
+        misses.incrementAndGet();
+        if (entries.size() > MAX_TRACKED_HOSTS) {
+            entries.values().removeIf(expired -> !isFresh(expired, now));
+        }
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            entries.put(host, new Entry(addresses, now));
+            return addresses;
+        } catch (UnknownHostException e) {
+            entries.put(host, new Entry(null, now));
+            throw e;
+        }
+    }
+
+    private boolean isFresh(Entry entry, long now) {
+        return now - entry.resolvedAt < (entry.addresses != null ? ttlNanos : negativeTtlNanos);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private record Entry(InetAddress[] addresses, long resolvedAt) {
+    }
+}
@@ -1,137 +1,492 @@
 package com.example.offshore_proxy;
 
+import com.example.proxy_common.FrameCompressor;
+import com.example.proxy_common.StreamOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 @Component
 public class HTTPClient {
     private static final Logger logger = LoggerFactory.getLogger(HTTPClient.class);
-    private static final Pattern REQUEST_LINE_PATTERN = Pattern.compile("(GET|POST|PUT|DELETE|HEAD|OPTIONS) (http://[^\\s]+|/[^\\s]*) HTTP/\\d\\.\\d");
-    private static final Pattern HOST_PATTERN = Pattern.compile("Host: ([^\\r\\n]+)");
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEAD_LENGTH = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
 
-    public byte[] executeRequest(byte[] requestData) throws IOException {
-        String requestStr = new String(requestData);
-        String method = extractMethod(requestStr);
-        URL url = extractURL(requestStr);
+    @Autowired
+    private OriginConnectionPool connectionPool;
+
+    @Autowired
+    private RequestCoalescer coalescer;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private OriginLimiter limiter;
+
+    @Autowired
+    private MediaTranscoder transcoder;
+
+    //parsed request heads keep their buffers; pooled rather than per thread since workers may be virtual threads
+    private final ConcurrentLinkedQueue<RequestHead> heads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Forwards the request read from {@code request} to the origin over a pooled
+     * keep-alive connection and streams the origin's response into
+     * {@code response} as it arrives. Concurrent identical GETs share one origin
+     * fetch. Each origin only gets as many requests at once as its
+     * {@link OriginLimiter} allows; one that is shed is answered with a 503.
+     * A malformed request head is answered with a 400 and goes nowhere.
+     * Other failures before any response byte has been written are answered
+     * with a 502; later failures are thrown.
+     */
+    public void executeRequest(InputStream request, OutputStream response) throws IOException {
+        executeRequest(request, response, null);
+    }
+
+    /**
+     * As {@link #executeRequest(InputStream, OutputStream)}, telling the
+     * observer about the origin's response head; it may ask for a copy of the
+     * body without its transfer framing.
+     */
+    void executeRequest(InputStream request, OutputStream response, ResponseObserver observer) throws IOException {
+        RequestHead head = acquireHead();
+        try {
+            try {
+                head.read(request);
+            } catch (RequestHead.MalformedRequestException e) {
+                logger.warn("Rejecting malformed request: {}", e.getMessage());
+                String errorMessage = "Error: " + e.getMessage();
+                String errorResponse = "HTTP/1.1 400 Bad Request\r\n" + "Content-Type: text/plain\r\n"
+                        + "Content-Length: " + errorMessage.length() + "\r\n" + "\r\n" + errorMessage;
+                response.write(errorResponse.getBytes());
+                return;
+            }
+            executeRequest(head, request, response, observer);
+        } finally {
+            releaseHead(head);
+        }
+    }
+
+    private void executeRequest(RequestHead request, InputStream requestBody, OutputStream response,
+                                ResponseObserver observer) throws IOException {
+        URL url = request.getUrl();
         if (url == null) {
             throw new IOException("Failed to parse URL from request");
         }
+        String method = request.getMethod();
         logger.info("Executing {} request to {}", method, url);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(method);
-        Map<String, String> headers = extractHeaders(requestStr);
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            if (!header.getKey().equalsIgnoreCase("host") && !header.getKey().equalsIgnoreCase("connection") && !header.getKey().equalsIgnoreCase("proxy-connection")) {
-                connection.setRequestProperty(header.getKey(), header.getValue());
-            }
-        }
-        connection.setDoInput(true);
-        if (method.equals("POST") || method.equals("PUT")) {
-            connection.setDoOutput(true);
-            byte[] body = extractBody(requestData);
-            if (body.length > 0) {
-                try (OutputStream os = connection.getOutputStream()) {
-                    os.write(body);
-                    os.flush();
-                }
+        boolean hasBody = request.hasBody();
+        OriginConnectionPool.OriginKey key = new OriginConnectionPool.OriginKey(url.getProtocol(), url.getHost(),
+                url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+
+        RequestCoalescer.Flight flight = null;
+        String coalesceKey = coalescer == null ? null : coalescer.key(request, url);
+        if (coalesceKey != null) {
+            RequestCoalescer.Follower follower = coalescer.follow(coalesceKey);
+            if (follower == null) {
+                flight = coalescer.lead(coalesceKey);
+            } else if (follower.relayTo(response, (head, compressible) -> writeHead(response, head, compressible))) {
+                logger.info("Answered {} from a coalesced origin fetch", url);
+                return;
             }
         }
-        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        boolean headersWritten = false;
+        boolean relayed = false;
+        OriginLimiter.Permit permit = OriginLimiter.Permit.NONE;
         try {
-            int statusCode = connection.getResponseCode();
-            String statusLine = "HTTP/1.1 " + statusCode + " " + connection.getResponseMessage() + "\r\n";
-            response.write(statusLine.getBytes());
-            for (Map.Entry<String, java.util.List<String>> header : connection.getHeaderFields().entrySet()) {
-                if (header.getKey() != null) {
-                    for (String value : header.getValue()) {
-                        String headerLine = header.getKey() + ": " + value + "\r\n";
-                        response.write(headerLine.getBytes());
+            //followers of a coalesced fetch never get here, so they take no slot at the origin
+            if (limiter != null) {
+                permit = limiter.acquire(key);
+            }
+            for (int attempt = 1; ; attempt++) {
+                long fetchStartedAt = System.nanoTime();
+                OriginConnection connection = connectionPool.acquire(key);
+                ResponseHead head;
+                try {
+                    long sentAt = System.nanoTime();
+                    head = exchange(connection, request, url, hasBody ? requestBody : null);
+                    metrics.originFetch(fetchStartedAt);
+                    permit.onResponse(System.nanoTime() - sentAt, head.statusCode);
+                } catch (RuntimeException e) {
+                    connectionPool.release(connection, false);
+                    permit.onFailure();
+                    throw e;
+                } catch (IOException e) {
+                    //asked before the release, which counts the request just failed
+                    boolean reused = connection.isReused();
+                    connectionPool.release(connection, false);
+                    //an idle keep-alive connection the origin already closed: safe to retry while no body was
+                    //consumed, and only for methods that mean the same when sent twice (RFC 9110, section 9.2.2)
+                    if (hasBody || !isIdempotent(request) || !reused || attempt == MAX_ATTEMPTS) {
+                        permit.onFailure();
+                        throw e;
                     }
+                    logger.debug("Stale pooled connection to {}, retrying", key);
+                    continue;
                 }
-            }
-            response.write("\r\n".getBytes());
-            try (InputStream is = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
-                if (is != null) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        response.write(buffer, 0, bytesRead);
+                boolean reusable = false;
+                try {
+                    boolean bodyless = request.isMethod("HEAD") || head.statusCode == 204 || head.statusCode == 304;
+                    InputStream in = connection.getInputStream();
+                    MediaTranscoder.Policy policy = transcoder == null || bodyless ? null : transcoder.policyFor(request,
+                            head.statusCode, head.contentType, head.contentEncoding, head.cacheControl, head.contentLength);
+                    //an image to shrink is read whole first, as its head has to say how long it ends up
+                    byte[] image = policy == null ? null : readBody(in, (int) head.contentLength);
+                    MediaTranscoder.Result transcoded = image == null ? null : transcoder.transcode(url, image, policy);
+                    if (transcoded != null) {
+                        head = head.transformed(transcoded.contentType(), transcoded.body().length);
+                        image = transcoded.body();
                     }
+                    boolean delimited = bodyless || head.chunked || head.contentLength >= 0;
+                    byte[] headBytes = head.toBytes(!delimited);
+                    metrics.originBytesRead(headBytes.length);
+                    boolean compressible = FrameCompressor.isCompressible(head.contentType, head.contentEncoding);
+                    //requests that joined this fetch get the same bytes, if the response may be shared
+                    OutputStream body = flight == null ? response : flight.start(headBytes, compressible,
+                            RequestCoalescer.isShareable(head.cacheControl, head.vary, head.setsCookie), response);
+                    writeHead(response, headBytes, compressible);
+                    headersWritten = true;
+                    OutputStream copy = observer == null ? null : observer.onResponseHead(request, url, head);
+                    if (bodyless) {
+                        response.flush();
+                    } else if (image != null) {
+                        body.write(image);
+                        if (copy != null) {
+                            copy.write(image);
+                        }
+                        body.flush();
+                    } else if (head.chunked) {
+                        relayChunked(in, body, copy);
+                    } else if (head.contentLength >= 0) {
+                        relay(in, body, head.contentLength, copy);
+                    } else {
+                        relay(in, body, Long.MAX_VALUE, copy);
+                    }
+                    reusable = delimited && head.keepAlive;
+                    relayed = true;
+                    logger.info("Received response with status code: {}", head.statusCode);
+                    return;
+                } finally {
+                    connectionPool.release(connection, reusable);
                 }
             }
-            logger.info("Received response with status code: {}", statusCode);
         } catch (IOException e) {
+            if (headersWritten) {
+                throw e;
+            }
+            if (e instanceof OriginLimiter.LimitExceededException) {
+                String errorMessage = "Error: " + e.getMessage();
+                String errorResponse = "HTTP/1.1 503 Service Unavailable\r\n" + "Content-Type: text/plain\r\n" + "Retry-After: 1\r\n"
+                        + "Content-Length: " + errorMessage.length() + "\r\n" + "\r\n" + errorMessage;
+                response.write(errorResponse.getBytes());
+                return;
+            }
             logger.error("Error executing HTTP request", e);
+            metrics.originError();
             String errorMessage = "Error: " + e.getMessage();
             String errorResponse = "HTTP/1.1 502 Bad Gateway\r\n" + "Content-Type: text/plain\r\n" + "Content-Length: " + errorMessage.length() + "\r\n" + "\r\n" + errorMessage;
-            return errorResponse.getBytes();
+            response.write(errorResponse.getBytes());
         } finally {
-            connection.disconnect();
+            permit.close();
+            if (flight != null) {
+                if (relayed) {
+                    flight.finish();
+                } else {
+                    flight.fail();
+                }
+            }
         }
-        return response.toByteArray();
     }
 
-    private String extractMethod(String request) {
-        Matcher matcher = REQUEST_LINE_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
+    private static boolean isIdempotent(RequestHead request) {
+        return request.isMethod("GET") || request.isMethod("HEAD") || request.isMethod("OPTIONS")
+                || request.isMethod("TRACE") || request.isMethod("PUT") || request.isMethod("DELETE");
+    }
+
+    private RequestHead acquireHead() {
+        RequestHead head = heads.poll();
+        return head != null ? head : new RequestHead();
+    }
+
+    private void releaseHead(RequestHead head) {
+        heads.offer(head);
+    }
+
+    private static void writeHead(OutputStream response, byte[] head, boolean compressible) throws IOException {
+        response.write(head);
+        if (response instanceof StreamOutputStream stream && !compressible) {
+            //the head goes out in its own frame so it is still compressed
+            stream.flush();
+            stream.setCompressible(false);
         }
-        return "GET";
     }
 
-    private URL extractURL(String request) throws MalformedURLException {
-        Matcher requestMatcher = REQUEST_LINE_PATTERN.matcher(request);
-        if (requestMatcher.find()) {
-            String urlStr = requestMatcher.group(2);
-            if (urlStr.startsWith("http://") || urlStr.startsWith("https://")) {
-                return new URL(urlStr);
-            } else {
-                Matcher hostMatcher = HOST_PATTERN.matcher(request);
-                if (hostMatcher.find()) {
-                    String host = hostMatcher.group(1);
-                    String schema = request.toLowerCase().contains("https://") ? "https" : "http";
-                    return new URL(schema + "://" + host + urlStr);
+    //sends the request (body copied raw, framing included) and reads the final response head
+    private ResponseHead exchange(OriginConnection connection, RequestHead request, URL url, InputStream body)
+            throws IOException {
+        OutputStream out = connection.getOutputStream();
+        long written = request.writeOriginRequest(out, url);
+        if (body != null) {
+            written += body.transferTo(out);
+        }
+        metrics.originBytesWritten(written);
+        out.flush();
+        InputStream in = connection.getInputStream();
+        while (true) {
+            ResponseHead head = ResponseHead.read(in);
+            //skip interim responses such as 100 Continue
+            if (head.statusCode >= 200 || head.statusCode == 101) {
+                return head;
+            }
+        }
+    }
+
+    //a body of known length, whole
+    private byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = in.readNBytes(length);
+        metrics.originBytesRead(body.length);
+        if (body.length < length) {
+            throw new EOFException("Origin closed the connection before the end of the response body");
+        }
+        return body;
+    }
+
+    //copy, if not null, gets the body bytes too
+    private void relay(InputStream in, OutputStream out, long length, OutputStream copy) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                if (length == Long.MAX_VALUE) {
+                    break;
                 }
+                throw new EOFException("Origin closed the connection before the end of the response body");
+            }
+            out.write(buffer, 0, bytesRead);
+            if (copy != null) {
+                copy.write(buffer, 0, bytesRead);
+            }
+            metrics.originBytesRead(bytesRead);
+            remaining -= bytesRead;
+            if (in.available() == 0) {
+                //nothing more buffered from the origin: pass on what we have instead of waiting for a full chunk
+                out.flush();
             }
         }
-        return null;
     }
 
-    private Map<String, String> extractHeaders(String request) {
-        Map<String, String> headers = new HashMap<>();
-        String[] lines = request.split("\r\n");
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            if (line.isEmpty()) {
-                break;
+    //copies a chunked body unchanged, following its framing to find where it ends
+    private void relayChunked(InputStream in, OutputStream out, OutputStream copy) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            out.write((sizeLine + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            int extension = sizeLine.indexOf(';');
+            long size = parseLength((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16,
+                    "chunk size");
+            if (size == 0) {
+                String trailer;
+                do {
+                    trailer = readLine(in);
+                    out.write((trailer + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                } while (!trailer.isEmpty());
+                out.flush();
+                return;
             }
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String name = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(name, value);
+            relay(in, out, size, copy);
+            readLine(in);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Origin closed the connection mid-response");
+            }
+            if (line.length() > MAX_HEAD_LENGTH) {
+                throw new IOException("Response line too long");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    //a malformed number from the origin is a protocol error like any other, so the connection is dropped, not leaked
+    private static long parseLength(String value, int radix, String what) throws ProtocolException {
+        try {
+            long length = Long.parseLong(value, radix);
+            if (length < 0) {
+                throw new ProtocolException("Negative " + what + " from origin: " + value);
             }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed " + what + " from origin: " + value);
         }
-        return headers;
     }
 
-    private byte[] extractBody(byte[] requestData) {
-        String requestStr = new String(requestData);
-        int bodyStart = requestStr.indexOf("\r\n\r\n");
-        if (bodyStart > 0 && bodyStart + 4 < requestData.length) {
-            int bodyLength = requestData.length - (bodyStart + 4);
-            byte[] body = new byte[bodyLength];
-            System.arraycopy(requestData, bodyStart + 4, body, 0, bodyLength);
-            return body;
+    private static boolean isHopByHop(String name) {
+        return name.equalsIgnoreCase("host") || name.equalsIgnoreCase("connection") || name.equalsIgnoreCase("proxy-connection")
+                || name.equalsIgnoreCase("keep-alive") || name.equalsIgnoreCase("te") || name.equalsIgnoreCase("upgrade")
+                || name.equalsIgnoreCase("proxy-authorization");
+    }
+
+    /**
+     * Told about the response to a request as it starts. Followers of a
+     * coalesced fetch and error responses made up here are not observed.
+     */
+    interface ResponseObserver {
+        //where to copy the response body, decoded from its transfer framing but not its content coding; null for nowhere
+        OutputStream onResponseHead(RequestHead request, URL url, ResponseHead head) throws IOException;
+    }
+
+    //status line and headers of an origin response, with the details needed to relay and reuse the connection
+    static class ResponseHead {
+        private final String statusLine;
+        private final List<String> headerLines = new ArrayList<>();
+        private int statusCode;
+        private long contentLength = -1;
+        private boolean chunked;
+        private boolean keepAlive;
+        private String contentType;
+        private String contentEncoding;
+        private String cacheControl;
+        private String vary;
+        private boolean setsCookie;
+        //whether it says how long it may be cached, by Cache-Control, Expires or Last-Modified
+        private boolean hasFreshness;
+
+        private ResponseHead(String statusLine) {
+            this.statusLine = statusLine;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        //whether a shared cache could store it, as far as the headers tell without the request
+        boolean isCacheable() {
+            return statusCode == 200 && hasFreshness && RequestCoalescer.isShareable(cacheControl, vary, setsCookie)
+                    && (cacheControl == null || !cacheControl.toLowerCase(Locale.ROOT).contains("no-cache"));
+        }
+
+        /**
+         * The head for a body the proxy changed: new type and length, and a
+         * weak ETag, as the bytes are no longer the origin's.
+         */
+        ResponseHead transformed(String newContentType, int newContentLength) {
+            ResponseHead head = new ResponseHead(statusLine);
+            head.statusCode = statusCode;
+            head.keepAlive = keepAlive;
+            head.contentType = newContentType;
+            head.contentLength = newContentLength;
+            head.cacheControl = cacheControl;
+            head.vary = vary;
+            head.setsCookie = setsCookie;
+            head.hasFreshness = hasFreshness;
+            for (String line : headerLines) {
+                String name = line.substring(0, line.indexOf(':')).trim();
+                String value = line.substring(line.indexOf(':') + 1).trim();
+                if (name.equalsIgnoreCase("etag") && !value.startsWith("W/")) {
+                    head.headerLines.add(name + ": W/" + value);
+                } else if (!name.equalsIgnoreCase("content-type") && !name.equalsIgnoreCase("content-length")
+                        && !name.equalsIgnoreCase("transfer-encoding") && !name.equalsIgnoreCase("content-md5")
+                        && !name.equalsIgnoreCase("accept-ranges")) {
+                    head.headerLines.add(line);
+                }
+            }
+            head.headerLines.add("Content-Type: " + newContentType);
+            head.headerLines.add("Content-Length: " + newContentLength);
+            return head;
+        }
+
+        static ResponseHead read(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/") || parts[1].length() != 3) {
+                throw new ProtocolException("Malformed status line from origin: " + statusLine);
+            }
+            ResponseHead head = new ResponseHead(statusLine);
+            head.statusCode = (int) parseLength(parts[1], 10, "status code");
+            head.keepAlive = !parts[0].equals("HTTP/1.0");
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("content-length")) {
+                    head.contentLength = parseLength(value, 10, "Content-Length");
+                } else if (name.equalsIgnoreCase("transfer-encoding")) {
+                    head.chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+                } else if (name.equalsIgnoreCase("content-type")) {
+                    head.contentType = value;
+                } else if (name.equalsIgnoreCase("content-encoding")) {
+                    head.contentEncoding = value;
+                } else if (name.equalsIgnoreCase("cache-control")) {
+                    head.cacheControl = head.cacheControl == null ? value : head.cacheControl + ", " + value;
+                    head.hasFreshness |= value.contains("max-age");
+                } else if (name.equalsIgnoreCase("vary")) {
+                    head.vary = head.vary == null ? value : head.vary + ", " + value;
+                } else if (name.equalsIgnoreCase("set-cookie")) {
+                    head.setsCookie = true;
+                } else if (name.equalsIgnoreCase("expires") || name.equalsIgnoreCase("last-modified")) {
+                    head.hasFreshness = true;
+                } else if (name.equalsIgnoreCase("connection")) {
+                    head.keepAlive = value.equalsIgnoreCase("keep-alive") || (head.keepAlive && !value.equalsIgnoreCase("close"));
+                }
+                if (!isHopByHop(name)) {
+                    head.headerLines.add(line);
+                }
+            }
+            //chunked framing wins over the length (RFC 9112, section 6.3), which is not passed on to the ship;
+            //an origin that sent both is not trusted with another request on the connection
+            if (head.chunked && head.contentLength >= 0) {
+                head.contentLength = -1;
+                head.keepAlive = false;
+                head.headerLines.removeIf(header ->
+                        header.substring(0, header.indexOf(':')).trim().equalsIgnoreCase("content-length"));
+            }
+            return head;
+        }
+
+        //the head as relayed to the ship; a body delimited by close must be marked as such for the client
+        byte[] toBytes(boolean closeDelimited) {
+            StringBuilder head = new StringBuilder(statusLine).append("\r\n");
+            for (String line : headerLines) {
+                head.append(line).append("\r\n");
+            }
+            if (closeDelimited) {
+                head.append("Connection: close\r\n");
+            }
+            head.append("\r\n");
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
         }
-        return new byte[0];
     }
 }
@@ -0,0 +1,192 @@
+package com.example.offshore_proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Picks the subresources a browser will ask for next out of an HTML page or a
+ * stylesheet as its body streams past: script and image sources, stylesheet,
+ * icon and preload links, CSS {@code url()} and {@code @import}. Text is read
+ * as ISO-8859-1, which keeps the ASCII of markup and URLs intact whatever the
+ * real charset. A gzip or deflate body is held, up to the scan limit, and
+ * decoded at the end; other content codings are not scanned.
+ */
+class LinkScanner extends OutputStream {
+    //tags with a link in them, then CSS url() and @import; no match is longer than the carried text
+    private static final Pattern LINKS = Pattern.compile(
+            "<(script|img|link)\\b([^>]{0,2048})>"
+                    + "|url\\(\\s*(?:\"([^\"]{1,2048})\"|'([^']{1,2048})'|([^)\\s\"']{1,2048}))\\s*\\)"
+                    + "|@import\\s+(?:\"([^\"]{1,2048})\"|'([^']{1,2048})')",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "\\b(src|href|rel)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> LINK_RELS = Set.of("stylesheet", "icon", "preload", "modulepreload");
+    //text kept between writes so a link split across them is still found
+    private static final int CARRY = 2200;
+
+    private final URL base;
+    private final long maxScanBytes;
+    private final int maxLinks;
+    //as strings, URL.equals resolves host names
+    private final Set<String> links = new LinkedHashSet<>();
+    private final StringBuilder text = new StringBuilder();
+    //the compressed body, if it has to be decoded first
+    private final ByteArrayOutputStream encoded;
+    private final boolean gzip;
+    private long scanned;
+
+    private LinkScanner(URL base, long maxScanBytes, int maxLinks, String contentEncoding) {
+        this.base = base;
+        this.maxScanBytes = maxScanBytes;
+        this.maxLinks = maxLinks;
+        this.gzip = "gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding);
+        this.encoded = contentEncoding == null ? null : new ByteArrayOutputStream();
+    }
+
+    /**
+     * A scanner for a body in this content coding, or null if it is one we
+     * do not decode.
+     */
+    static LinkScanner forEncoding(URL base, String contentEncoding, long maxScanBytes, int maxLinks) {
+        String encoding = contentEncoding == null ? "identity" : contentEncoding.trim().toLowerCase(Locale.ROOT);
+        return switch (encoding) {
+            case "", "identity" -> new LinkScanner(base, maxScanBytes, maxLinks, null);
+            case "gzip", "x-gzip", "deflate" -> new LinkScanner(base, maxScanBytes, maxLinks, encoding);
+            default -> null;
+        };
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (encoded != null) {
+            //a body that compresses this far is not worth decoding
+            if (encoded.size() < maxScanBytes) {
+                encoded.write(b, off, (int) Math.min(len, maxScanBytes - encoded.size()));
+            }
+            return;
+        }
+        scan(b, off, len);
+    }
+
+    //decodes a compressed body; what does not decode is left unscanned
+    @Override
+    public void close() {
+        if (encoded == null || encoded.size() == 0) {
+            return;
+        }
+        byte[] buffer = new byte[8192];
+        InputStream body = new ByteArrayInputStream(encoded.toByteArray());
+        try (InputStream in = gzip ? new GZIPInputStream(body) : new InflaterInputStream(body)) {
+            int read;
+            while (!isFull() && (read = in.read(buffer)) != -1) {
+                scan(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            //a body cut off at the scan limit ends early, the links before that still count
+        }
+        encoded.reset();
+    }
+
+    //the links found, in the order they appear
+    List<URL> getLinks() {
+        List<URL> urls = new ArrayList<>(links.size());
+        for (String link : links) {
+            try {
+                urls.add(new URL(link));
+            } catch (MalformedURLException e) {
+                //it parsed when it was found
+            }
+        }
+        return urls;
+    }
+
+    private boolean isFull() {
+        return scanned >= maxScanBytes || links.size() >= maxLinks;
+    }
+
+    private void scan(byte[] b, int off, int len) {
+        if (isFull()) {
+            return;
+        }
+        int length = (int) Math.min(len, maxScanBytes - scanned);
+        scanned += length;
+        text.append(new String(b, off, length, StandardCharsets.ISO_8859_1));
+        Matcher matcher = LINKS.matcher(text);
+        int end = 0;
+        while (matcher.find() && links.size() < maxLinks) {
+            end = matcher.end();
+            if (matcher.group(1) != null) {
+                tag(matcher.group(1).toLowerCase(Locale.ROOT), matcher.group(2));
+            } else {
+                for (int group = 3; group <= 7; group++) {
+                    if (matcher.group(group) != null) {
+                        add(matcher.group(group));
+                    }
+                }
+            }
+        }
+        text.delete(0, Math.max(end, text.length() - CARRY));
+    }
+
+    private void tag(String name, String attributes) {
+        String src = null;
+        String href = null;
+        String rel = null;
+        Matcher matcher = ATTRIBUTE.matcher(attributes);
+        while (matcher.find()) {
+            String value = matcher.group(2) != null ? matcher.group(2)
+                    : matcher.group(3) != null ? matcher.group(3) : matcher.group(4);
+            switch (matcher.group(1).toLowerCase(Locale.ROOT)) {
+                case "src" -> src = value;
+                case "href" -> href = value;
+                default -> rel = value.toLowerCase(Locale.ROOT);
+            }
+        }
+        if (name.equals("link")) {
+            if (href != null && rel != null && Arrays.stream(rel.split("\\s+")).anyMatch(LINK_RELS::contains)) {
+                add(href);
+            }
+        } else if (src != null) {
+            add(src);
+        }
+    }
+
+    private void add(String reference) {
+        String trimmed = reference.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("data:") || trimmed.startsWith("#")) {
+            return;
+        }
+        try {
+            URL url = new URL(base, trimmed.replace("&amp;", "&"));
+            if (!url.getProtocol().equals("http") || url.getHost().isEmpty()) {
+                return;
+            }
+            //the fragment never reaches the origin
+            links.add(url.getRef() == null ? url.toString()
+                    : new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile()).toString());
+        } catch (MalformedURLException e) {
+            //not a link we can follow
+        }
+    }
+}
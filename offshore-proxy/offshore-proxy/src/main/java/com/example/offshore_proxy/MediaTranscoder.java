@@ -0,0 +1,372 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shrinks large JPEG and PNG responses before they cross the link: images
+ * wider or taller than their content type's policy allows are scaled down,
+ * and re-encoded at the policy's quality. Responses marked
+ * {@code no-transform}, by the origin or the client, partial and encoded
+ * responses, and images outside the size limits go through untouched, as does
+ * any image the result would not be smaller than. Configured as
+ * <pre>
+ * offshore.transcode.policies=jpeg,png
+ * offshore.transcode.policy.jpeg.content-types=image/jpeg,image/pjpeg
+ * offshore.transcode.policy.jpeg.max-width=1280
+ * offshore.transcode.policy.jpeg.max-height=1280
+ * offshore.transcode.policy.jpeg.quality=0.7
+ * offshore.transcode.policy.png.content-types=image/png
+ * offshore.transcode.policy.png.format=png
+ * </pre>
+ * Images are decoded and encoded on a fixed pool with a bounded queue, so
+ * their CPU use does not grow with the number of workers; an image that finds
+ * the queue full or is not done within the timeout is sent as it came.
+ */
+@Component
+public class MediaTranscoder implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(MediaTranscoder.class);
+    //images are not decoded past this many pixels, a small file can decode to gigabytes
+    private static final long MAX_PIXELS = 40_000_000L;
+
+    private final boolean enabled;
+    private final int minBytes;
+    private final int maxBytes;
+    private final long timeoutMillis;
+    private final List<Policy> policies;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong transcoded = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile Timer duration;
+    private volatile DistributionSummary saved;
+
+    /**
+     * @param minBytes smaller images are not worth the time
+     * @param maxBytes larger ones are relayed as they stream rather than held whole
+     */
+    @Autowired
+    public MediaTranscoder(@Value("${offshore.transcode.enabled:false}") boolean enabled,
+                           @Value("${offshore.transcode.threads:2}") int threads,
+                           @Value("${offshore.transcode.max-queued:16}") int maxQueued,
+                           @Value("${offshore.transcode.timeout-millis:2000}") long timeoutMillis,
+                           @Value("${offshore.transcode.min-bytes:32768}") int minBytes,
+                           @Value("${offshore.transcode.max-bytes:16777216}") int maxBytes,
+                           Environment environment) {
+        this(enabled, threads, maxQueued, timeoutMillis, minBytes, maxBytes, Policy.from(environment));
+    }
+
+    MediaTranscoder(boolean enabled, int threads, int maxQueued, long timeoutMillis, int minBytes, int maxBytes,
+                    List<Policy> policies) {
+        this.enabled = enabled;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.policies = List.copyOf(policies);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+            Thread thread = new Thread(runnable, "transcoder-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The policy for a response, or null if it has to go through as it is.
+     *
+     * @param cacheControl   the response's Cache-Control, or null
+     * @param contentLength  -1 if the response does not say
+     */
+    Policy policyFor(RequestHead request, int statusCode, String contentType, String contentEncoding,
+                     String cacheControl, long contentLength) {
+        if (!enabled || statusCode != 200 || !request.isMethod("GET") || contentType == null
+                || contentLength < minBytes || contentLength > maxBytes
+                || (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity"))
+                || request.header("range") != null
+                || noTransform(cacheControl) || noTransform(request.header("cache-control"))) {
+            return null;
+        }
+        String type = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        for (Policy policy : policies) {
+            if (policy.contentTypes().contains(type)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    private static boolean noTransform(String cacheControl) {
+        return cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-transform");
+    }
+
+    /**
+     * The image made smaller by the policy, on the transcoding pool; the
+     * calling worker waits for it.
+     *
+     * @return null if it is to be sent as it is
+     */
+    Result transcode(URL url, byte[] image, Policy policy) throws InterruptedIOException {
+        long startedAt = System.nanoTime();
+        Future<Result> result;
+        try {
+            result = pool.submit(() -> transcode(image, policy));
+        } catch (RejectedExecutionException e) {
+            return skip(url, "transcoding queue is full");
+        }
+        try {
+            Result transcodedImage = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (transcodedImage == null) {
+                return skip(url, "no smaller");
+            }
+            long nanos = System.nanoTime() - startedAt;
+            transcoded.incrementAndGet();
+            bytesIn.addAndGet(image.length);
+            bytesOut.addAndGet(transcodedImage.body().length);
+            Timer timer = duration;
+            DistributionSummary summary = saved;
+            if (timer != null) {
+                timer.record(nanos, TimeUnit.NANOSECONDS);
+                summary.record(image.length - transcodedImage.body().length);
+            }
+            logger.info("Transcoded {} from {} to {} bytes as {} in {} ms", url, image.length,
+                    transcodedImage.body().length, transcodedImage.contentType(), TimeUnit.NANOSECONDS.toMillis(nanos));
+            return transcodedImage;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            return skip(url, "not done within " + timeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            return skip(url, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transcoding " + url);
+        }
+    }
+
+    private Result skip(URL url, String reason) {
+        skipped.incrementAndGet();
+        logger.debug("Sending {} untranscoded: {}", url, reason);
+        return null;
+    }
+
+    //on the pool
+    static Result transcode(byte[] image, Policy policy) throws IOException {
+        BufferedImage decoded;
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Not an image ImageIO reads");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                    throw new IOException("Image of " + reader.getWidth(0) + "x" + reader.getHeight(0) + " pixels");
+                }
+                if (reader.getFormatName().equalsIgnoreCase("jpeg") && rotated(image)) {
+                    //the orientation would be lost with the metadata
+                    return null;
+                }
+                decoded = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        boolean alpha = decoded.getColorModel().hasAlpha();
+        //a PNG with transparency stays a PNG
+        String format = alpha ? "png" : policy.format();
+        double scale = Math.min(1, Math.min((double) policy.maxWidth() / decoded.getWidth(),
+                (double) policy.maxHeight() / decoded.getHeight()));
+        int width = Math.max(1, (int) Math.round(decoded.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(decoded.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(decoded, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        byte[] encoded = encode(scaled, format, policy.quality());
+        if (encoded.length >= image.length) {
+            return null;
+        }
+        return new Result(encoded, "image/" + format);
+    }
+
+    private static byte[] encode(BufferedImage image, String format, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpeg") && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    //whether a JPEG's EXIF orientation asks viewers to turn or mirror it
+    static boolean rotated(byte[] jpeg) {
+        int at = 2;
+        while (at + 4 <= jpeg.length && (jpeg[at] & 0xff) == 0xff) {
+            int marker = jpeg[at + 1] & 0xff;
+            int length = ((jpeg[at + 2] & 0xff) << 8) | (jpeg[at + 3] & 0xff);
+            if (marker == 0xda || length < 2) {
+                return false;
+            }
+            if (marker == 0xe1 && length >= 16 && at + 2 + length <= jpeg.length
+                    && new String(jpeg, at + 4, 4, StandardCharsets.ISO_8859_1).equals("Exif")) {
+                return exifOrientation(jpeg, at + 10, at + 2 + length) > 1;
+            }
+            at += 2 + length;
+        }
+        return false;
+    }
+
+    //the orientation tag of the TIFF structure from start to end, 0 if there is none
+    private static int exifOrientation(byte[] bytes, int start, int end) {
+        boolean little = bytes[start] == 'I';
+        int ifd = start + readInt(bytes, start + 4, little);
+        if (ifd < start || ifd + 2 > end) {
+            return 0;
+        }
+        int entries = readShort(bytes, ifd, little);
+        for (int i = 0; i < entries && ifd + 2 + 12 * (i + 1) <= end; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if (readShort(bytes, entry, little) == 0x0112) {
+                return readShort(bytes, entry + 8, little);
+            }
+        }
+        return 0;
+    }
+
+    private static int readShort(byte[] bytes, int at, boolean little) {
+        int a = bytes[at] & 0xff;
+        int b = bytes[at + 1] & 0xff;
+        return little ? a | b << 8 : a << 8 | b;
+    }
+
+    private static int readInt(byte[] bytes, int at, boolean little) {
+        int high = readShort(bytes, little ? at + 2 : at, little);
+        int low = readShort(bytes, little ? at : at + 2, little);
+        return high << 16 | low;
+    }
+
+    /**
+     * How images of some content types are shrunk: the largest width and
+     * height they are sent at, the format they are encoded in and, for JPEG,
+     * the quality from 0 to 1.
+     */
+    record Policy(String name, List<String> contentTypes, int maxWidth, int maxHeight, String format, float quality) {
+        //the defaults when offshore.transcode.policies is not set
+        static final List<Policy> DEFAULTS = List.of(
+                new Policy("jpeg", List.of("image/jpeg", "image/pjpeg"), 1280, 1280, "jpeg", 0.7f),
+                new Policy("png", List.of("image/png"), 1280, 1280, "png", 0.7f));
+
+        static List<Policy> from(Environment environment) {
+            String names = environment.getProperty("offshore.transcode.policies", "");
+            if (names.isBlank()) {
+                return DEFAULTS;
+            }
+            List<Policy> policies = new ArrayList<>();
+            for (String name : split(names)) {
+                String prefix = "offshore.transcode.policy." + name + ".";
+                String format = environment.getProperty(prefix + "format", "jpeg").trim().toLowerCase(Locale.ROOT);
+                if (!format.equals("jpeg") && !format.equals("png")) {
+                    throw new IllegalArgumentException("Transcoding policy " + name + " has unknown format " + format);
+                }
+                policies.add(new Policy(name,
+                        split(environment.getProperty(prefix + "content-types", "")).stream()
+                                .map(type -> type.toLowerCase(Locale.ROOT)).toList(),
+                        environment.getProperty(prefix + "max-width", Integer.class, 1280),
+                        environment.getProperty(prefix + "max-height", Integer.class, 1280), format,
+                        Float.parseFloat(environment.getProperty(prefix + "quality", "0.7"))));
+            }
+            return policies;
+        }
+
+        private static List<String> split(String list) {
+            return Arrays.stream(list.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toList();
+        }
+    }
+
+    //a transcoded body and the content type it now has
+    record Result(byte[] body, String contentType) {
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("offshore.transcode.images", transcoded, AtomicLong::get)
+                .description("Images sent smaller than the origin sent them").register(registry);
+        FunctionCounter.builder("offshore.transcode.bytes.in", bytesIn, AtomicLong::get)
+                .baseUnit("bytes").description("Bytes of those images as the origin sent them").register(registry);
+        FunctionCounter.builder("offshore.transcode.bytes.out", bytesOut, AtomicLong::get)
+                .baseUnit("bytes").description("Bytes of those images as sent to ships").register(registry);
+        FunctionCounter.builder("offshore.transcode.skipped", skipped, AtomicLong::get)
+                .description("Images a policy applied to sent as they came: busy, too slow, no smaller or unreadable")
+                .register(registry);
+        saved = DistributionSummary.builder("offshore.transcode.saved").baseUnit("bytes")
+                .description("Bytes saved per transcoded image").register(registry);
+        duration = Timer.builder("offshore.transcode.duration")
+                .description("Latency transcoding added per image, waiting for the pool included")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+    }
+}
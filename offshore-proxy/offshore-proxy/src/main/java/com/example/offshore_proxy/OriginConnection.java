@@ -0,0 +1,71 @@
+package com.example.offshore_proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A plain or TLS socket to an origin server that can carry several requests in
+ * turn. Leased from and returned to the {@link OriginConnectionPool}.
+ */
+class OriginConnection {
+    private final OriginConnectionPool.OriginKey key;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile long lastUsedNanos;
+    private int requestCount;
+
+    OriginConnection(OriginConnectionPool.OriginKey key, Socket socket) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    OriginConnectionPool.OriginKey getKey() {
+        return key;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    //true once the connection has carried a request, i.e. it came out of the idle pool
+    boolean isReused() {
+        return requestCount > 0;
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void markReleased() {
+        lastUsedNanos = System.nanoTime();
+        requestCount++;
+    }
+
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //nothing left to do with a broken origin socket
+        }
+    }
+}
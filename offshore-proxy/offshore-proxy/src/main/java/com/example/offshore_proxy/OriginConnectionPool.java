@@ -0,0 +1,277 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections to origin servers, pooled per scheme, host and port.
+ * Each host gets at most {@code maxConnectionsPerHost} connections in use at a
+ * time and keeps up to {@code maxIdlePerHost} idle ones, most recently used
+ * first. Connections idle for longer than the idle timeout are closed by a
+ * background evictor, and hosts with nothing open are forgotten once many
+ * have been seen.
+ */
+@Component
+public class OriginConnectionPool implements MeterBinder, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(OriginConnectionPool.class);
+    //hosts kept track of before those with no connections are forgotten
+    static final int MAX_TRACKED_ORIGINS = 1024;
+
+    private final DnsCache dnsCache;
+    private final int maxConnectionsPerHost;
+    private final int maxIdlePerHost;
+    private final long idleTimeoutNanos;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long acquireTimeoutMillis;
+    private final ConcurrentHashMap<OriginKey, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OriginConnectionPool(DnsCache dnsCache,
+                                @Value("${offshore.origin.max-connections-per-host:64}") int maxConnectionsPerHost,
+                                @Value("${offshore.origin.max-idle-per-host:16}") int maxIdlePerHost,
+                                @Value("${offshore.origin.idle-timeout-seconds:30}") long idleTimeoutSeconds,
+                                @Value("${offshore.origin.connect-timeout-millis:10000}") int connectTimeoutMillis,
+                                @Value("${offshore.origin.read-timeout-millis:60000}") int readTimeoutMillis,
+                                @Value("${offshore.origin.acquire-timeout-millis:10000}") long acquireTimeoutMillis) {
+        this.dnsCache = dnsCache;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "origin-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutSeconds / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Leases a connection to the origin, reusing an idle one when possible. The
+     * caller must hand it back through {@link #release}.
+     */
+    public OriginConnection acquire(OriginKey key) throws IOException {
+        if (pools.size() > MAX_TRACKED_ORIGINS) {
+            forgetIdle();
+        }
+        HostPool pool;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        while (true) {
+            pool = pools.computeIfAbsent(key, k -> new HostPool(maxConnectionsPerHost));
+            try {
+                if (!pool.permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw new IOException("Connection limit of " + maxConnectionsPerHost + " reached for " + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + key, e);
+            }
+            //a permit of a pool forgotten meanwhile is no use; the host gets a fresh one
+            if (pools.get(key) == pool) {
+                break;
+            }
+            pool.permits.release();
+        }
+        try {
+            OriginConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                if (connection.isOpen() && System.nanoTime() - connection.getLastUsedNanos() < idleTimeoutNanos) {
+                    hits.incrementAndGet();
+                    return connection;
+                }
+                evictions.incrementAndGet();
+                connection.close();
+            }
+            misses.incrementAndGet();
+            return connect(key);
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a leased connection. Connections that can't carry another request
+     * (origin asked to close, body not fully read, errors) are closed instead of
+     * pooled.
+     */
+    public void release(OriginConnection connection, boolean reusable) {
+        HostPool pool = pools.get(connection.getKey());
+        connection.markReleased();
+        if (reusable && connection.isOpen() && pool.idle.size() < maxIdlePerHost) {
+            pool.idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        pool.permits.release();
+    }
+
+    private OriginConnection connect(OriginKey key) throws IOException {
+        IOException lastFailure = null;
+        for (InetAddress address : dnsCache.resolve(key.host())) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address, key.port()), connectTimeoutMillis);
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                if (key.isTls()) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                            .createSocket(socket, key.host(), key.port(), true);
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(parameters);
+                    sslSocket.startHandshake();
+                    socket = sslSocket;
+                }
+                logger.debug("Opened connection to {} via {}", key, address);
+                return new OriginConnection(key, socket);
+            } catch (IOException e) {
+                lastFailure = e;
+                socket.close();
+            }
+        }
+        throw lastFailure != null ? lastFailure : new IOException("No addresses for " + key.host());
+    }
+
+    void evictIdle() {
+        long now = System.nanoTime();
+        for (HostPool pool : pools.values()) {
+            Iterator<OriginConnection> idle = pool.idle.descendingIterator();
+            while (idle.hasNext()) {
+                OriginConnection connection = idle.next();
+                if (now - connection.getLastUsedNanos() >= idleTimeoutNanos || !connection.isOpen()) {
+                    if (pool.idle.removeLastOccurrence(connection)) {
+                        evictions.incrementAndGet();
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    //drops hosts with no connection leased or idle
+    void forgetIdle() {
+        for (Map.Entry<OriginKey, HostPool> entry : pools.entrySet()) {
+            HostPool pool = entry.getValue();
+            //holding every permit keeps connections from being leased or pooled while it looks
+            if (pool.permits.tryAcquire(maxConnectionsPerHost)) {
+                if (pool.idle.isEmpty()) {
+                    pools.remove(entry.getKey(), pool);
+                }
+                pool.permits.release(maxConnectionsPerHost);
+            }
+        }
+    }
+
+    int getTrackedOrigins() {
+        return pools.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getIdleConnections() {
+        int idle = 0;
+        for (HostPool pool : pools.values()) {
+            idle += pool.idle.size();
+        }
+        return idle;
+    }
+
+    public int getLeasedConnections() {
+        int leased = 0;
+        for (HostPool pool : pools.values()) {
+            leased += maxConnectionsPerHost - pool.permits.availablePermits();
+        }
+        return leased;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("offshore.origin.pool.hits", this, OriginConnectionPool::getHits)
+                .description("Origin requests served on a reused keep-alive connection").register(registry);
+        FunctionCounter.builder("offshore.origin.pool.misses", this, OriginConnectionPool::getMisses)
+                .description("Origin requests that had to open a new connection").register(registry);
+        FunctionCounter.builder("offshore.origin.pool.evictions", this, OriginConnectionPool::getEvictions)
+                .description("Idle origin connections closed for age or because they went stale").register(registry);
+        Gauge.builder("offshore.origin.pool.idle", this, OriginConnectionPool::getIdleConnections)
+                .description("Idle origin connections").register(registry);
+        Gauge.builder("offshore.origin.pool.leased", this, OriginConnectionPool::getLeasedConnections)
+                .description("Origin connections currently carrying a request").register(registry);
+        FunctionCounter.builder("offshore.origin.dns.hits", dnsCache, DnsCache::getHits)
+                .description("Host lookups answered from the DNS cache").register(registry);
+        FunctionCounter.builder("offshore.origin.dns.misses", dnsCache, DnsCache::getMisses)
+                .description("Host lookups that went to the resolver").register(registry);
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        for (HostPool pool : pools.values()) {
+            OriginConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    public record OriginKey(String scheme, String host, int port) {
+        boolean isTls() {
+            return "https".equals(scheme);
+        }
+
+        @Override
+        public String toString() {
+            return scheme + "://" + host + ":" + port;
+        }
+    }
+
+    private static class HostPool {
+        final ConcurrentLinkedDeque<OriginConnection> idle = new ConcurrentLinkedDeque<>();
+        final Semaphore permits;
+
+        HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adapts how many requests each origin gets at once to how it is coping,
+ * additive increase, multiplicative decrease. The time to an origin's response
+ * head is compared with the lowest it has recently shown: while it stays
+ * within {@code tolerance} times that and the limit is in use, the limit grows
+ * by one per response; a slower response, a failure or a 429/503 cuts it by
+ * {@code backoff}. Requests over the limit wait for a slot, up to
+ * {@code maxQueued} per origin and for at most the queue timeout; the rest are
+ * shed, so a struggling origin holds few workers and the others keep theirs.
+ */
+@Component
+public class OriginLimiter implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(OriginLimiter.class);
+    //origins tracked before idle ones are forgotten, with their meters
+    private static final int MAX_TRACKED_ORIGINS = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    //how fast the baseline follows latency that has gone up for good, as a fraction per response
+    private static final int BASELINE_DRIFT = 64;
+
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+    private final ConcurrentHashMap<OriginConnectionPool.OriginKey, HostLimit> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile MeterRegistry registry;
+
+    public OriginLimiter(@Value("${offshore.origin.limit.enabled:true}") boolean enabled,
+                         @Value("${offshore.origin.limit.initial:16}") int initialLimit,
+                         @Value("${offshore.origin.limit.min:2}") int minLimit,
+                         @Value("${offshore.origin.limit.max:64}") int maxLimit,
+                         @Value("${offshore.origin.limit.latency-tolerance:2.0}") double tolerance,
+                         @Value("${offshore.origin.limit.backoff:0.9}") double backoff,
+                         @Value("${offshore.origin.limit.max-queued:64}") int maxQueued,
+                         @Value("${offshore.origin.limit.queue-timeout-millis:5000}") long queueTimeoutMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || tolerance <= 1 || backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("Invalid origin limit settings");
+        }
+        this.enabled = enabled;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.initialLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Takes a slot for a request to the origin, waiting for one if the origin
+     * is at its limit. The permit must be closed when the request is done.
+     *
+     * @throws LimitExceededException if the request is shed
+     */
+    Permit acquire(OriginConnectionPool.OriginKey key) throws IOException {
+        if (!enabled) {
+            return Permit.NONE;
+        }
+        if (hosts.size() > MAX_TRACKED_ORIGINS) {
+            forgetIdle();
+        }
+        HostLimit host;
+        while (true) {
+            host = hosts.computeIfAbsent(key, this::newHost);
+            host.lock.lock();
+            if (!host.forgotten) {
+                break;
+            }
+            //forgotten between the lookup and the lock; the origin has a new entry by now
+            host.lock.unlock();
+        }
+        try {
+            host.lastUsedNanos = System.nanoTime();
+            if (host.inFlight >= (int) host.limit) {
+                if (host.waiting >= maxQueued) {
+                    throw reject(host, "queue is full");
+                }
+                host.waiting++;
+                try {
+                    long remaining = queueTimeoutNanos;
+                    while (host.inFlight >= (int) host.limit) {
+                        if (remaining <= 0) {
+                            throw reject(host, "no slot within the queue timeout");
+                        }
+                        remaining = host.released.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a slot at " + key);
+                } finally {
+                    host.waiting--;
+                }
+            }
+            host.inFlight++;
+            return new Permit(this, host);
+        } finally {
+            host.lock.unlock();
+        }
+    }
+
+    private LimitExceededException reject(HostLimit host, String reason) {
+        host.rejected++;
+        rejected.incrementAndGet();
+        logger.warn("Shedding request to {} at a limit of {}: {}", host.key, (int) host.limit, reason);
+        return new LimitExceededException("Too many requests in progress to " + host.key);
+    }
+
+    //a request to the origin ended; latency is its time to the response head, 0 if it never got one
+    private void release(HostLimit host, long latencyNanos, boolean overloaded) {
+        host.lock.lock();
+        try {
+            int inFlight = host.inFlight--;
+            if (overloaded) {
+                host.limit = Math.max(minLimit, host.limit * backoff);
+            } else if (latencyNanos > 0) {
+                if (host.baselineNanos == 0 || latencyNanos < host.baselineNanos) {
+                    host.baselineNanos = latencyNanos;
+                } else {
+                    host.baselineNanos += (latencyNanos - host.baselineNanos) / BASELINE_DRIFT;
+                }
+                if (latencyNanos > host.baselineNanos * tolerance) {
+                    host.limit = Math.max(minLimit, host.limit * backoff);
+                } else if (inFlight * 2 >= host.limit) {
+                    //only grow a limit that is being used, or it runs away while the origin is idle
+                    host.limit = Math.min(maxLimit, host.limit + 1);
+                }
+            }
+            if (host.waiting > 0) {
+                host.released.signalAll();
+            }
+        } finally {
+            host.lock.unlock();
+        }
+    }
+
+    private HostLimit newHost(OriginConnectionPool.OriginKey key) {
+        HostLimit host = new HostLimit(key, initialLimit);
+        MeterRegistry meters = registry;
+        if (meters != null) {
+            String origin = key.toString();
+            host.meters = List.of(
+                    Gauge.builder("offshore.origin.limit", host, HostLimit::getLimit).tag("origin", origin)
+                            .description("Requests an origin may have in progress at once, as adapted").register(meters),
+                    Gauge.builder("offshore.origin.in-flight", host, HostLimit::getInFlight).tag("origin", origin)
+                            .description("Requests in progress to an origin").register(meters),
+                    FunctionCounter.builder("offshore.origin.rejected", host, HostLimit::getRejected)
+                            .tag("origin", origin)
+                            .description("Requests to an origin shed because it was at its limit").register(meters));
+        }
+        return host;
+    }
+
+    private void forgetIdle() {
+        long now = System.nanoTime();
+        for (HostLimit host : hosts.values()) {
+            //checked under the lock, so no request can take a slot between the check and the removal
+            host.lock.lock();
+            try {
+                if (host.isIdle(now) && hosts.remove(host.key, host)) {
+                    host.forgotten = true;
+                    MeterRegistry meters = registry;
+                    if (meters != null) {
+                        host.meters.forEach(meters::remove);
+                    }
+                }
+            } finally {
+                host.lock.unlock();
+            }
+        }
+    }
+
+    //the current limit of an origin, the initial one if it has not been seen
+    int getLimit(OriginConnectionPool.OriginKey key) {
+        HostLimit host = hosts.get(key);
+        return host == null ? initialLimit : (int) host.getLimit();
+    }
+
+    //requests waiting for a slot at an origin
+    int getQueued(OriginConnectionPool.OriginKey key) {
+        HostLimit host = hosts.get(key);
+        if (host == null) {
+            return 0;
+        }
+        host.lock.lock();
+        try {
+            return host.waiting;
+        } finally {
+            host.lock.unlock();
+        }
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        FunctionCounter.builder("offshore.origin.rejected.total", this, OriginLimiter::getRejected)
+                .description("Requests shed because their origin was at its limit").register(registry);
+    }
+
+    /**
+     * A slot at an origin, taken by {@link #acquire}. Report the response head
+     * or the failure, then close it.
+     */
+    static class Permit implements AutoCloseable {
+        //when limiting is off
+        static final Permit NONE = new Permit(null, null);
+
+        private final OriginLimiter limiter;
+        private final HostLimit host;
+        private long latencyNanos;
+        private boolean overloaded;
+        private boolean closed;
+
+        private Permit(OriginLimiter limiter, HostLimit host) {
+            this.limiter = limiter;
+            this.host = host;
+        }
+
+        //the origin answered with a response head this long after the request went out
+        void onResponse(long latencyNanos, int statusCode) {
+            this.latencyNanos = latencyNanos;
+            this.overloaded = statusCode == 429 || statusCode == 503;
+        }
+
+        //the origin could not be reached or failed before a response head
+        void onFailure() {
+            overloaded = true;
+        }
+
+        @Override
+        public void close() {
+            if (host != null && !closed) {
+                closed = true;
+                limiter.release(host, latencyNanos, overloaded);
+            }
+        }
+    }
+
+    /**
+     * A request shed because its origin is at its limit; answered with a 503
+     * so the client can try again later.
+     */
+    static class LimitExceededException extends IOException {
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private static class HostLimit {
+        final OriginConnectionPool.OriginKey key;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition released = lock.newCondition();
+        //guarded by lock; the gauges read them without it
+        volatile double limit;
+        volatile int inFlight;
+        int waiting;
+        //removed from the map; requests that still found it look again
+        boolean forgotten;
+        //the lowest time to a response head seen lately
+        long baselineNanos;
+        volatile long rejected;
+        volatile long lastUsedNanos = System.nanoTime();
+        List<Meter> meters = List.of();
+
+        HostLimit(OriginConnectionPool.OriginKey key, int initialLimit) {
+            this.key = key;
+            this.limit = initialLimit;
+        }
+
+        double getLimit() {
+            return limit;
+        }
+
+        double getInFlight() {
+            return inFlight;
+        }
+
+        double getRejected() {
+            return rejected;
+        }
+
+        boolean isIdle(long now) {
+            return inFlight == 0 && waiting == 0 && now - lastUsedNanos > IDLE_NANOS;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each stage a request passes through on the offshore proxy, bytes
+ * moved to and from origins, and how requests ended. Stage timers publish
+ * percentile histograms for the Prometheus endpoint, and responses are also
+ * timed and counted per traffic class the ship tagged them with. Tunnel
+ * traffic and connection gauges are bound by {@link ProxyServer}.
+ */
+@Component
+public class PipelineMetrics {
+
+    //how a request from the ship ended, for error rates
+    enum Outcome {
+        //a response was sent in full, including the 502s counted as origin errors
+        COMPLETED,
+        //failed here: answered with a 500, or cut off if the response had started
+        FAILED,
+        //the ship reset the stream
+        RESET,
+        //the session already had as many requests in progress as it may
+        REFUSED
+    }
+
+    private final Timer workerWait;
+    private final Timer originFetch;
+    private final Timer response;
+    private final Counter originBytesRead;
+    private final Counter originBytesWritten;
+    private final Counter originErrors;
+    private final Map<Outcome, Counter> outcomes = new EnumMap<>(Outcome.class);
+    private final MeterRegistry registry;
+    //by the class names ships announce
+    private final Map<String, ClassMeters> classes = new ConcurrentHashMap<>();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        workerWait = stage(registry, "worker-wait", "From a request's first frame arriving to a worker picking it up");
+        originFetch = stage(registry, "origin-fetch",
+                "From asking the pool for an origin connection to the response head, per attempt");
+        response = stage(registry, "response", "From a worker picking a request up to the last of its response being queued");
+        originBytesRead = Counter.builder("offshore.origin.bytes.read").baseUnit("bytes")
+                .description("Response bytes read from origins").register(registry);
+        originBytesWritten = Counter.builder("offshore.origin.bytes.written").baseUnit("bytes")
+                .description("Request bytes written to origins").register(registry);
+        originErrors = Counter.builder("offshore.origin.errors")
+                .description("Origin fetches that failed before a response head, answered with a 502").register(registry);
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, Counter.builder("offshore.requests")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .description("Requests from the ship by how they ended").register(registry));
+        }
+    }
+
+    private static Timer stage(MeterRegistry registry, String stage, String description) {
+        return Timer.builder("offshore.stage.duration").tag("stage", stage).description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(60))
+                .register(registry);
+    }
+
+    //each takes the System.nanoTime() the stage started at
+    void workerWait(long startNanos) {
+        record(workerWait, startNanos);
+    }
+
+    void originFetch(long startNanos) {
+        record(originFetch, startNanos);
+    }
+
+    void response(long startNanos) {
+        record(response, startNanos);
+    }
+
+    //a response sent in full, with its body and head bytes
+    void classResponse(String className, long startNanos, long bytes) {
+        ClassMeters meters = classes.computeIfAbsent(className, name -> new ClassMeters(registry, name));
+        record(meters.response, startNanos);
+        meters.bytes.increment(bytes);
+    }
+
+    void originBytesRead(long bytes) {
+        originBytesRead.increment(bytes);
+    }
+
+    void originBytesWritten(long bytes) {
+        originBytesWritten.increment(bytes);
+    }
+
+    void originError() {
+        originErrors.increment();
+    }
+
+    void requestEnded(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    private static void record(Timer timer, long startNanos) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static class ClassMeters {
+        final Timer response;
+        final Counter bytes;
+
+        ClassMeters(MeterRegistry registry, String name) {
+            response = Timer.builder("offshore.class.response.duration").tag("class", name)
+                    .description("The response stage, by traffic class")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(60))
+                    .register(registry);
+            bytes = Counter.builder("offshore.class.bytes").tag("class", name).baseUnit("bytes")
+                    .description("Response bytes sent to ships, by traffic class").register(registry);
+        }
+    }
+}
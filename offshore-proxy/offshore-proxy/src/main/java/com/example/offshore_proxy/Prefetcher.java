@@ -0,0 +1,245 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches what a page is about to ask for before the ship asks. An HTML page
+ * or stylesheet the ship fetched is scanned for its subresources as it is
+ * relayed; once it is sent, each link is fetched from its origin and, if the
+ * response may be stored by a shared cache, pushed to the ship, which puts it
+ * in its response cache. The browser's requests for them a link round trip
+ * later are then answered on board.
+ * <p>
+ * Every page gets a budget of links, and of links per host so one page cannot
+ * point a burst of fetches at a single origin. A session is not pushed the
+ * same URL twice within the recent window, and fetches in progress over all
+ * sessions are capped; links over any of these limits are skipped.
+ */
+@Component
+public class Prefetcher implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(Prefetcher.class);
+    //request headers of the page copied onto the prefetches, as responses may vary on them
+    private static final List<String> COPIED_HEADERS = List.of("user-agent", "accept-language", "accept-encoding");
+
+    private final boolean enabled;
+    private final long maxScanBytes;
+    private final int maxLinks;
+    private final int maxLinksPerHost;
+    private final long recentMillis;
+    //prefetches in progress over all ships
+    private final Semaphore fetches;
+    @Autowired
+    private HTTPClient httpClient;
+
+    private final AtomicLong pagesScanned = new AtomicLong();
+    private final AtomicLong pushed = new AtomicLong();
+    private final AtomicLong pushedBytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param maxScanBytes  how much of a page is searched for links
+     * @param recentSeconds a URL pushed to a ship is not pushed to it again for this long
+     */
+    public Prefetcher(@Value("${offshore.prefetch.enabled:false}") boolean enabled,
+                      @Value("${offshore.prefetch.max-scan-bytes:1048576}") long maxScanBytes,
+                      @Value("${offshore.prefetch.max-links:32}") int maxLinks,
+                      @Value("${offshore.prefetch.max-links-per-host:8}") int maxLinksPerHost,
+                      @Value("${offshore.prefetch.max-concurrent:16}") int maxConcurrent,
+                      @Value("${offshore.prefetch.recent-seconds:300}") int recentSeconds) {
+        this.enabled = enabled;
+        this.maxScanBytes = maxScanBytes;
+        this.maxLinks = maxLinks;
+        this.maxLinksPerHost = maxLinksPerHost;
+        this.fetches = new Semaphore(maxConcurrent);
+        this.recentMillis = recentSeconds * 1000L;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Where a pushed response goes: the ship's connection the page was sent
+     * on.
+     */
+    interface Pusher {
+        //false if the response was not sent, the ship having no room for it
+        boolean push(byte[] request, byte[] response) throws IOException;
+    }
+
+    //watches the response to one request from the ship for links
+    Page newPage() {
+        return new Page();
+    }
+
+    /**
+     * Fetches the links the page had on the executor and pushes those that
+     * can be cached, each at most {@code maxPushBytes} with its head.
+     */
+    void prefetch(Page page, TunnelSession session, int maxPushBytes, Executor executor, Pusher pusher) {
+        if (page.scanner == null) {
+            return;
+        }
+        page.scanner.close();
+        List<URL> links = page.scanner.getLinks();
+        pagesScanned.incrementAndGet();
+        Map<String, Integer> perHost = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (URL link : links) {
+            String host = link.getHost().toLowerCase(Locale.ROOT);
+            if (perHost.merge(host, 1, Integer::sum) > maxLinksPerHost
+                    || !session.markPushed(link.toString(), now, recentMillis)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            if (!fetches.tryAcquire()) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        fetch(page, link, maxPushBytes, pusher);
+                    } finally {
+                        fetches.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fetches.release();
+                return;
+            }
+        }
+    }
+
+    private void fetch(Page page, URL link, int maxPushBytes, Pusher pusher) {
+        StringBuilder head = new StringBuilder("GET ").append(link).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(link.getPort() == -1 ? link.getHost() : link.getHost() + ":" + link.getPort())
+                .append("\r\n");
+        page.headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        byte[] request = head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        BoundedOutputStream response = new BoundedOutputStream(maxPushBytes);
+        boolean[] cacheable = new boolean[1];
+        try {
+            httpClient.executeRequest(new ByteArrayInputStream(request), response, (ignored, url, responseHead) -> {
+                cacheable[0] = responseHead.isCacheable();
+                if (!cacheable[0]) {
+                    //no use reading the rest
+                    throw new IOException("Not cacheable");
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            logger.debug("Not pushing {}: {}", link, e.getMessage());
+            discarded.incrementAndGet();
+            return;
+        }
+        try {
+            if (cacheable[0] && pusher.push(request, response.toByteArray())) {
+                pushed.incrementAndGet();
+                pushedBytes.addAndGet(response.size());
+                logger.debug("Pushed {}, {} bytes", link, response.size());
+            } else {
+                discarded.incrementAndGet();
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to push {}", link, e);
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * The links of one response, if it is a page or stylesheet fetched with
+     * GET.
+     */
+    final class Page implements HTTPClient.ResponseObserver {
+        private final Map<String, String> headers = new HashMap<>();
+        private LinkScanner scanner;
+
+        @Override
+        public OutputStream onResponseHead(RequestHead request, URL url, HTTPClient.ResponseHead head) {
+            String type = head.getContentType() == null ? "" : head.getContentType().toLowerCase(Locale.ROOT);
+            if (!request.isMethod("GET") || head.getStatusCode() != 200
+                    || !(type.startsWith("text/html") || type.startsWith("text/css"))) {
+                return null;
+            }
+            scanner = LinkScanner.forEncoding(url, head.getContentEncoding(), maxScanBytes, maxLinks);
+            //the request head is reused once the response is sent
+            for (String name : COPIED_HEADERS) {
+                String value = request.header(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+            return scanner;
+        }
+    }
+
+    //collects a response, failing once it is longer than the ship stores
+    private static final class BoundedOutputStream extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int maxBytes;
+
+        BoundedOutputStream(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (bytes.size() + len > maxBytes) {
+                throw new IOException("Larger than the " + maxBytes + " bytes the ship stores");
+            }
+            bytes.write(b, off, len);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("offshore.prefetch.pages", pagesScanned, AtomicLong::get)
+                .description("Pages and stylesheets scanned for links to prefetch").register(registry);
+        FunctionCounter.builder("offshore.prefetch.pushed", pushed, AtomicLong::get)
+                .description("Responses pushed to ships ahead of a request").register(registry);
+        FunctionCounter.builder("offshore.prefetch.pushed.bytes", pushedBytes, AtomicLong::get)
+                .baseUnit("bytes").description("Bytes of the responses pushed").register(registry);
+        FunctionCounter.builder("offshore.prefetch.skipped", skipped, AtomicLong::get)
+                .description("Links not fetched, over a budget or pushed recently").register(registry);
+        FunctionCounter.builder("offshore.prefetch.discarded", discarded, AtomicLong::get)
+                .description("Links fetched but not pushed: not cacheable, too large, failed or no room on the tunnel")
+                .register(registry);
+    }
+}
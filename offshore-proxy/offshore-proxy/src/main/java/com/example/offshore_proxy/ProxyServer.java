@@ -1,38 +1,147 @@
 package com.example.offshore_proxy;
 
+import com.example.proxy_common.BufferPool;
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.ExecutionMode;
+import com.example.proxy_common.FlowWindow;
+import com.example.proxy_common.FrameCompressor;
+import com.example.proxy_common.FrameDeduplicator;
+import com.example.proxy_common.FrameReader;
+import com.example.proxy_common.FrameSink;
+import com.example.proxy_common.FrameWriter;
+import com.example.proxy_common.ReceiveCredit;
+import com.example.proxy_common.StreamOutputStream;
+import com.example.proxy_common.TraceId;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
 
 @Component
-public class ProxyServer {
+public class ProxyServer implements MeterBinder {
     private static final Logger logger = LoggerFactory.getLogger(ProxyServer.class);
+    //bytes of frames queued on one connection before responses have to wait for the writer
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+    //how long a closing connection gets to write what it has queued
+    private static final long FINISH_TIMEOUT_MILLIS = 5000;
     @Value("${offshore.proxy.port:9090}")
     private int proxyPort;
+    @Value("${offshore.proxy.execution-mode:platform}")
+    private String executionMode;
+    //largest payload of a response frame sent back to the ship
+    @Value("${offshore.proxy.chunk-size:16384}")
+    private int chunkSize;
+    //codecs a ship may pick from in the handshake; its order of preference wins
+    @Value("${offshore.proxy.compression:deflate-dictionary,deflate}")
+    private String compression;
+    //request bytes we buffer per stream and per ship session before the ship has to wait
+    @Value("${offshore.proxy.stream-window:262144}")
+    private int streamWindow;
+    @Value("${offshore.proxy.connection-window:4194304}")
+    private int connectionWindow;
+    //requests one ship session may have in progress, over all its connections; each holds a worker
+    @Value("${offshore.proxy.max-concurrent-streams:256}")
+    private int maxConcurrentStreams;
+    //how long a response may wait for the ship to grant more credit before it is reset
+    @Value("${offshore.proxy.send-timeout-millis:60000}")
+    private long sendTimeoutMillis;
+    //frames queued on a connection go out in gathering writes of up to this many bytes;
+    //the writer may wait up to the delay for a batch to fill, 0 writes right away
+    @Value("${offshore.proxy.write-batch-bytes:262144}")
+    private int writeBatchBytes;
+    @Value("${offshore.proxy.write-batch-delay-micros:0}")
+    private long writeBatchDelayMicros;
+    //a connection from a ship that sends heartbeats is closed after this long without a frame, or three of
+    //the ship's heartbeat intervals if that is longer; 0 never
+    @Value("${offshore.proxy.heartbeat-timeout-millis:30000}")
+    private long heartbeatTimeoutMillis;
+    //response chunks the ship already holds go out as references to them, see FrameDeduplicator;
+    //the index of what one connection's ship holds covers at most this many bytes per traffic class
+    @Value("${offshore.dedup.enabled:true}")
+    private boolean dedupEnabled;
+    @Value("${offshore.dedup.max-store-bytes:16777216}")
+    private long dedupMaxStoreBytes;
     @Autowired
     private HTTPClient httpClient;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private boolean running = true;
+    @Autowired
+    private PipelineMetrics metrics;
+    @Autowired
+    private Prefetcher prefetcher;
+    //CONNECT requests go to the splicer rather than a worker; without one they fail like any bad request
+    @Autowired
+    private TunnelSplicer splicer;
+    //shares the workers and bandwidth between ships; without it requests go to the workers as they come
+    @Autowired
+    private TenantScheduler tenants;
+    private ExecutorService executorService;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    //ships that opened several tunnel connections, by session ID
+    private final Map<SessionKey, TunnelSession> sessions = new ConcurrentHashMap<>();
+    private final FrameWriter.Stats writeStats = new FrameWriter.Stats();
+    private final FrameReader.Stats readStats = new FrameReader.Stats();
+    private final FrameDeduplicator.Stats dedupStats = new FrameDeduplicator.Stats();
+    private final AtomicInteger tunnelConnections = new AtomicInteger();
+    //requests a worker is processing, over all sessions
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    //ids of pushed streams, unique over all connections as the ship keys pushes by id alone
+    private final AtomicLong pushIds = new AtomicLong();
+    //connections of ships that send heartbeats, watched for going silent
+    private final Map<SocketChannel, Liveness> watched = new ConcurrentHashMap<>();
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(proxyPort)) {
+        ExecutionMode mode = ExecutionMode.fromProperty(executionMode);
+        executorService = mode.newExecutor("offshore-worker-");
+        logger.info("Running ship connections and origin fetches on {} threads", executionMode);
+        if (tenants != null) {
+            tenants.start(executorService);
+        }
+        if (heartbeatTimeoutMillis > 0) {
+            mode.start("tunnel-watchdog", this::closeSilentConnections);
+        }
+        if (splicer != null) {
+            try {
+                splicer.start();
+            } catch (IOException e) {
+                logger.error("Failed to start the CONNECT splice loops", e);
+            }
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(proxyPort));
             logger.info("Offshore proxy server listening on port {}", proxyPort);
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    logger.info("Connection established with ship proxy from: {}", clientSocket.getInetAddress());
-                    handleShipProxyConnection(clientSocket);
+                    SocketChannel channel = serverChannel.accept();
+                    logger.info("Connection established with ship proxy from: {}", channel.getRemoteAddress());
+                    handleShipProxyConnection(channel);
                 } catch (Exception e) {
-                    logger.error("Error accepting client connection", e);
+                    if (running) {
+                        logger.error("Error accepting client connection", e);
+                    }
                 }
             }
         } catch (IOException e) {
@@ -40,36 +149,64 @@ public class ProxyServer {
         }
     }
 
-    private void handleShipProxyConnection(Socket clientSocket) {
-        executorService.submit(() -> {
+    //stops accepting and interrupts the ship connections and requests in progress
+    void stop() {
+        running = false;
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing server socket", e);
+            }
+        }
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+        if (splicer != null) {
+            splicer.stop();
+        }
+    }
+
+    /**
+     * Closes connections whose ship stopped sending, heartbeats included. A
+     * connection the network dropped without a FIN or RST would otherwise hold
+     * its requests, and the workers fetching them, until TCP gives up on it.
+     */
+    private void closeSilentConnections() {
+        while (running) {
             try {
-                DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
-                while (running) {
+                Thread.sleep(Math.min(1000, heartbeatTimeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            watched.forEach((channel, liveness) -> {
+                long silent = now - liveness.lastHeard;
+                if (silent > liveness.timeoutMillis && watched.remove(channel, liveness)) {
+                    logger.warn("Nothing from ship proxy for {} ms, closing tunnel connection", silent);
                     try {
-                        long requestId = inputStream.readLong();
-                        int length = inputStream.readInt();
-                        logger.info("Received request ID: {}, length: {}", requestId, length);
-                        byte[] requestData = new byte[length];
-                        int bytesRead = 0;
-                        while (bytesRead < length) {
-                            int read = inputStream.read(requestData, bytesRead, length - bytesRead);
-                            if (read == -1) {
-                                throw new EOFException("End of stream reached");
-                            }
-                            bytesRead += read;
-                        }
-                        processRequest(requestId, requestData, outputStream);
-                    } catch (EOFException e) {
-                        logger.error("Connection to ship proxy lost", e);
-                        break;
+                        channel.close();
+                    } catch (IOException e) {
+                        logger.error("Error closing silent tunnel connection", e);
                     }
                 }
+            });
+        }
+    }
+
+    private void handleShipProxyConnection(SocketChannel channel) {
+        executorService.submit(() -> {
+            try {
+                serveShipConnection(channel);
             } catch (IOException e) {
-                logger.error("Error handling ship proxy connection", e);
+                if (running) {
+                    logger.error("Error handling ship proxy connection", e);
+                }
             } finally {
                 try {
-                    clientSocket.close();
+                    channel.close();
                 } catch (IOException e) {
                     logger.error("Error closing client socket", e);
                 }
@@ -77,39 +214,477 @@ public class ProxyServer {
         });
     }
 
-    private void processRequest(long requestId, byte[] requestData, DataOutputStream outputStream) {
-        executorService.submit(() -> {
+    private void serveShipConnection(SocketChannel channel) throws IOException {
+        //frames are batched by the writer, so there is nothing for Nagle to coalesce
+        channel.socket().setTcpNoDelay(true);
+        FrameReader reader = new FrameReader(channel, BufferPool.FRAMES, readStats);
+        FrameWriter writer = new FrameWriter(channel, writeBatchBytes, writeBatchDelayMicros, MAX_QUEUED_BYTES, writeStats);
+        executorService.submit(writer);
+        boolean closedByShip = false;
+        tunnelConnections.incrementAndGet();
+        try {
+            serveShipConnection(channel, reader, writer);
+            closedByShip = true;
+        } finally {
+            if (closedByShip) {
+                //window updates and the last responses may still be queued
+                writer.finish(FINISH_TIMEOUT_MILLIS);
+            }
+            writer.close();
+            tunnelConnections.decrementAndGet();
+        }
+    }
+
+    private void serveShipConnection(SocketChannel channel, FrameReader reader, FrameWriter sink) throws IOException {
+        TunnelFrame first = reader.read();
+        Negotiated negotiated = handshake(first, sink);
+        //responses share the connection by the weights of the classes the ship tagged their requests with
+        sink.setClassWeights(negotiated.ship().getClassWeights());
+        FrameCompressor compressor = negotiated.compressor();
+        FrameDeduplicator deduplicator = negotiated.deduplicator();
+        TunnelSession session = joinSession(negotiated.ship());
+        //requests of the ship that are still being received or answered, on any of its connections
+        Map<Long, RequestStream> streams = session.getStreams();
+        FlowWindow connectionSendWindow = session.getSendWindow();
+        ReceiveCredit connectionCredit = session.getReceiveCredit();
+        TunnelHello ship = session.getShip();
+        //pushes need a ship that stores them and a prefetcher that finds them
+        int maxPushBytes = prefetcher != null && prefetcher.isEnabled() ? negotiated.ship().getMaxPushBytes() : 0;
+        Liveness liveness = null;
+        int heartbeatInterval = negotiated.ship().getHeartbeatIntervalMillis();
+        if (heartbeatTimeoutMillis > 0 && heartbeatInterval > 0) {
+            liveness = new Liveness(Math.max(heartbeatTimeoutMillis, 3L * heartbeatInterval));
+            watched.put(channel, liveness);
+        }
+        try {
+            //a ship that predates the handshake starts right away with a request
+            TunnelFrame pending = first.isHello() ? null : first;
+            while (running) {
+                try {
+                    TunnelFrame frame = pending != null ? pending : compressor.decompress(reader.read());
+                    pending = null;
+                    if (liveness != null) {
+                        liveness.lastHeard = System.currentTimeMillis();
+                    }
+                    long requestId = frame.getRequestId();
+                    if (frame.isPing()) {
+                        if (!frame.isAck()) {
+                            sink.send(frame.pingAck());
+                        }
+                        continue;
+                    }
+                    if (frame.isWindowUpdate()) {
+                        if (requestId == 0) {
+                            connectionSendWindow.release(frame.getWindowIncrement());
+                        } else {
+                            RequestStream stream = streams.get(requestId);
+                            if (stream != null) {
+                                stream.getResponseWindow().release(frame.getWindowIncrement());
+                            }
+                        }
+                        continue;
+                    }
+                    //frames are handed straight to their stream, which is bounded by its own window
+                    int increment = connectionCredit.consumed(frame.getLength());
+                    if (increment > 0) {
+                        sink.send(TunnelFrame.windowUpdate(0, increment));
+                    }
+                    if (frame.isReset()) {
+                        frame.release();
+                        RequestStream stream = streams.remove(requestId);
+                        if (stream != null) {
+                            logger.info("Request ID: {} reset by ship proxy, trace {}", requestId,
+                                    TraceId.of(session.getSessionId(), requestId));
+                            metrics.requestEnded(PipelineMetrics.Outcome.RESET);
+                            stream.abort();
+                        }
+                        continue;
+                    }
+                    RequestStream stream = streams.get(requestId);
+                    if (stream != null && frame.getSequence() == 0 && !stream.arrivedOn(sink)) {
+                        //the ship gave up on the connection the request first came on and is replaying it here;
+                        //whatever the first try still sends goes to a connection the ship no longer reads
+                        logger.info("Request ID: {} replayed by ship proxy, trace {}", requestId,
+                                TraceId.of(session.getSessionId(), requestId));
+                        streams.remove(requestId, stream);
+                        stream.abort();
+                        stream = null;
+                    }
+                    if (stream == null) {
+                        if (frame.getSequence() != 0) {
+                            logger.warn("Dropping frame {} of unknown request ID: {}", frame.getSequence(), requestId);
+                            frame.release();
+                            continue;
+                        }
+                        if (streams.size() >= maxConcurrentStreams) {
+                            logger.warn("Refusing request ID: {}, {} requests already in progress, trace {}", requestId,
+                                    streams.size(), TraceId.of(session.getSessionId(), requestId));
+                            metrics.requestEnded(PipelineMetrics.Outcome.REFUSED);
+                            frame.release();
+                            sink.send(TunnelFrame.reset(requestId));
+                            continue;
+                        }
+                        String trace = TraceId.of(session.getSessionId(), requestId);
+                        int trafficClass = frame.getTrafficClass();
+                        logger.info("Received request ID: {}, class {}, trace {}", requestId,
+                                ship.className(trafficClass), trace);
+                        if (splicer != null && TunnelSplicer.isConnect(frame)) {
+                            //a tunnel holds no worker, its bytes are moved by the splicer's loops
+                            stream = splicer.splice(requestId, trace, frame, sink, session, streamWindow, trafficClass,
+                                    sendTimeoutMillis, workers(session));
+                        } else {
+                            stream = new RequestStream(requestId, ship.getStreamWindow(), streamWindow, sink);
+                            streams.put(requestId, stream);
+                            processRequest(requestId, trace, stream, sink, compressor, deduplicator, session,
+                                    maxPushBytes, trafficClass, ship.className(trafficClass));
+                        }
+                    }
+                    //the stream releases the payload once the worker has read it
+                    stream.append(frame);
+                } catch (EOFException e) {
+                    //the ship drains connections it no longer needs by closing its side
+                    logger.info("Ship proxy closed tunnel connection from {}", channel.getRemoteAddress());
+                    break;
+                }
+            }
+        } finally {
+            if (liveness != null) {
+                watched.remove(channel, liveness);
+            }
+            leaveSession(session, sink);
+            if (deduplicator != null) {
+                deduplicator.close();
+            }
+        }
+    }
+
+    //finds the session the ship named in its HELLO, or starts it
+    private TunnelSession joinSession(TunnelHello ship) {
+        long sessionId = ship.getSessionId();
+        TenantScheduler.Tenant tenant = tenants != null ? tenants.tenant(ship.getShipId()) : null;
+        if (sessionId == TunnelHello.NO_SESSION) {
+            TunnelSession session = new TunnelSession(sessionId, ship, connectionWindow, tenant);
+            session.join();
+            return session;
+        }
+        //a ship naming another ship's session id starts a session of its own rather than joining that one
+        TunnelSession session = sessions.compute(new SessionKey(ship.getShipId(), sessionId), (key, existing) -> {
+            TunnelSession joined = existing != null ? existing
+                    : new TunnelSession(sessionId, ship, connectionWindow, tenant);
+            joined.join();
+            return joined;
+        });
+        logger.info("Ship connection joined tunnel session {} of ship {}, {} connections", Long.toHexString(sessionId),
+                tenant != null ? tenant.getName() : ship.getShipId(), session.getConnections());
+        return session;
+    }
+
+    //where the session's requests are worked on: in the ship's turn, if ships are told apart
+    private Executor workers(TunnelSession session) {
+        TenantScheduler.Tenant tenant = session.getTenant();
+        return tenant != null ? tenant : executorService;
+    }
+
+    private void leaveSession(TunnelSession session, FrameSink sink) {
+        //responses go back on the connection a request arrived on, so these can no longer be answered
+        session.getStreams().values().removeIf(stream -> {
+            if (stream.arrivedOn(sink)) {
+                stream.abort();
+                return true;
+            }
+            return false;
+        });
+        if (session.getSessionId() == TunnelHello.NO_SESSION) {
+            session.leave();
+        } else {
+            sessions.computeIfPresent(new SessionKey(session.getShip().getShipId(), session.getSessionId()),
+                    (key, current) -> current.leave() == 0 ? null : current);
+        }
+        if (session.getConnections() == 0) {
+            session.close();
+        }
+    }
+
+    //answers the ship's HELLO with the codec to use on this connection and our own windows
+    private Negotiated handshake(TunnelFrame first, FrameSink sink) throws IOException {
+        if (!first.isHello()) {
+            logger.info("Ship proxy sent no handshake, tunnel frames are not compressed");
+            return new Negotiated(new FrameCompressor(CompressionCodec.NONE), null, new TunnelHello(List.of()));
+        }
+        TunnelHello hello = TunnelHello.fromFrame(first);
+        CompressionCodec codec = TunnelHello.select(hello.getCodecs(), CompressionCodec.parseList(compression));
+        TunnelHello reply = new TunnelHello(List.of(codec), streamWindow, connectionWindow, maxConcurrentStreams);
+        sink.send(reply.toFrame());
+        logger.info("Tunnel compression negotiated: {}", codec.getPropertyName());
+        FrameDeduplicator deduplicator = null;
+        //a ship announcing a store smaller than a chunk can hold nothing worth referring to
+        long storeBytes = Math.min(hello.getChunkStoreBytes(), dedupMaxStoreBytes);
+        if (dedupEnabled && storeBytes >= FrameDeduplicator.MIN_STORE_BYTES) {
+            deduplicator = new FrameDeduplicator(storeBytes, chunkSize, dedupStats);
+            logger.info("Deduplicating responses against {} bytes per traffic class", storeBytes);
+        }
+        return new Negotiated(new FrameCompressor(codec), deduplicator, hello);
+    }
+
+    private record Negotiated(FrameCompressor compressor, FrameDeduplicator deduplicator, TunnelHello ship) {
+    }
+
+    //sessions belong to the ship that started them; the id alone is the ship's to choose
+    private record SessionKey(String shipId, long sessionId) {
+    }
+
+    //when a watched connection last had a frame, in System.currentTimeMillis()
+    private static final class Liveness {
+        final long timeoutMillis;
+        volatile long lastHeard = System.currentTimeMillis();
+
+        Liveness(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    private void processRequest(long requestId, String trace, RequestStream requestStream, FrameSink sink,
+                                FrameCompressor compressor, FrameDeduplicator deduplicator, TunnelSession session,
+                                int maxPushBytes, int trafficClass, String className) {
+        long submittedAt = System.nanoTime();
+        Map<Long, RequestStream> streams = session.getStreams();
+        TenantScheduler.Tenant tenant = session.getTenant();
+        Executor workers = workers(session);
+        workers.execute(() -> {
+            metrics.workerWait(submittedAt);
+            long startedAt = System.nanoTime();
+            activeRequests.incrementAndGet();
+            //the worker serves this one request, so everything it logs carries the trace ID
+            MDC.put("trace", trace);
+            //the slot is freed before the ship can see the end and start another request;
+            //a replay of the request may already have taken it over
+            ResponseSink streamSink = new ResponseSink(requestId, sink, requestStream.getResponseWindow(),
+                    session.getSendWindow(), tenant, sendTimeoutMillis, requestStream::isAborted,
+                    () -> streams.remove(requestId, requestStream), deduplicator, wire(compressor));
+            StreamOutputStream responseStream = new StreamOutputStream(requestId, streamSink, chunkSize);
+            //the response travels in the request's class, interleaved with other classes' by weight
+            responseStream.setTrafficClass(trafficClass);
+            Prefetcher.Page page = maxPushBytes > 0 ? prefetcher.newPage() : null;
             try {
-                byte[] responseData = httpClient.executeRequest(requestData);
-                ByteBuffer header = ByteBuffer.allocate(12);
-                header.putLong(requestId);
-                header.putInt(responseData.length);
-                synchronized (outputStream) {
-                    outputStream.write(header.array());
-                    outputStream.write(responseData);
-                    outputStream.flush();
+                httpClient.executeRequest(requestStream, responseStream, page);
+                responseStream.close();
+                metrics.response(startedAt);
+                metrics.classResponse(className, startedAt, responseStream.getBytesWritten());
+                if (tenant != null) {
+                    tenant.responded(submittedAt);
+                }
+                metrics.requestEnded(PipelineMetrics.Outcome.COMPLETED);
+                logger.info("Sent response for request ID: {}, length: {}", requestId, responseStream.getBytesWritten());
+                if (page != null) {
+                    prefetcher.prefetch(page, session, maxPushBytes, workers, (request, response) ->
+                            push(request, response, sink, compressor, deduplicator, session, trafficClass));
                 }
-                logger.info("Sent response for request ID: {}, length: {}", requestId, responseData.length);
             } catch (Exception e) {
                 logger.error("Error processing request ID: {}", requestId, e);
-                String errorMessage = "Error: " + e.getMessage();
-                byte[] errorData = generateErrorResponse(errorMessage);
                 try {
-                    ByteBuffer header = ByteBuffer.allocate(12);
-                    header.putLong(requestId);
-                    header.putInt(errorData.length);
-                    synchronized (outputStream) {
-                        outputStream.write(header.array());
-                        outputStream.write(errorData);
-                        outputStream.flush();
+                    if (requestStream.isAborted()) {
+                        return;
+                    }
+                    metrics.requestEnded(PipelineMetrics.Outcome.FAILED);
+                    if (responseStream.getBytesWritten() == 0) {
+                        responseStream.write(generateErrorResponse("Error: " + e.getMessage()));
+                        responseStream.close();
+                    } else {
+                        //part of the response is already on its way, all we can do is cut it off
+                        responseStream.abort();
                     }
                 } catch (IOException ioe) {
                     logger.error("Error sending error response", ioe);
                 }
+            } finally {
+                streamSink.discard();
+                streams.remove(requestId, requestStream);
+                requestStream.close();
+                activeRequests.decrementAndGet();
+                MDC.remove("trace");
             }
         });
     }
 
+    /**
+     * Sends a prefetched response to the ship on the connection its page went
+     * out on. It only takes connection credit the ship's own requests leave
+     * spare, and is reset rather than wait for more.
+     *
+     * @return false if there was no spare credit to send it with
+     */
+    private boolean push(byte[] request, byte[] response, FrameSink sink, FrameCompressor compressor,
+                         FrameDeduplicator deduplicator, TunnelSession session, int trafficClass) throws IOException {
+        FlowWindow connectionSendWindow = session.getSendWindow();
+        if (connectionSendWindow.getCredit() - response.length < session.getShip().getConnectionWindow() / 2) {
+            return false;
+        }
+        long pushId = pushIds.incrementAndGet() | TunnelFrame.PUSH_STREAM_BIT;
+        ResponseSink pushSink = new ResponseSink(pushId, sink, null, connectionSendWindow, session.getTenant(), 0,
+                () -> !running, () -> { }, deduplicator, wire(compressor));
+        StreamOutputStream pushStream = new StreamOutputStream(pushId, pushSink, chunkSize);
+        pushStream.setTrafficClass(trafficClass);
+        try {
+            sink.send(TunnelFrame.push(pushId, request, trafficClass));
+            pushStream.write(response);
+            pushStream.close();
+            return true;
+        } catch (IOException e) {
+            if (!pushStream.isClosed()) {
+                try {
+                    pushStream.abort();
+                } catch (IOException ignored) {
+                    //the connection is gone, and the push with it
+                }
+            }
+            throw e;
+        } finally {
+            pushSink.discard();
+        }
+    }
+
+    //compresses frames on the worker, outside the connection's write lock, until the body turns out not to shrink
+    private static UnaryOperator<TunnelFrame> wire(FrameCompressor compressor) {
+        AtomicBoolean incompressible = new AtomicBoolean();
+        return frame -> {
+            if (incompressible.get()) {
+                return frame;
+            }
+            TunnelFrame wireFrame = compressor.compress(frame);
+            if (wireFrame == frame && frame.isCompressible() && frame.getLength() >= FrameCompressor.MIN_COMPRESS_LENGTH) {
+                //this body does not shrink, don't spend more CPU on the rest of it
+                incompressible.set(true);
+            }
+            return wireFrame;
+        };
+    }
+
+    /**
+     * Where one stream's response frames go: paces each to the ship's
+     * bandwidth and takes the ship's credit for it, then deduplicates and
+     * compresses it on the calling worker and queues it on the connection.
+     */
+    private static final class ResponseSink implements FrameSink {
+        private final long streamId;
+        private final FrameSink sink;
+        //null for a push, which the ship stores without granting it a window of its own
+        private final FlowWindow streamWindow;
+        private final FlowWindow connectionWindow;
+        //null if ships are not told apart
+        private final TenantScheduler.Tenant tenant;
+        private final long timeoutMillis;
+        private final BooleanSupplier aborted;
+        //run before the last frame is queued
+        private final Runnable onEnd;
+        private final FrameDeduplicator.Stream chunks;
+        private final UnaryOperator<TunnelFrame> wire;
+
+        ResponseSink(long streamId, FrameSink sink, FlowWindow streamWindow, FlowWindow connectionWindow,
+                     TenantScheduler.Tenant tenant, long timeoutMillis, BooleanSupplier aborted, Runnable onEnd,
+                     FrameDeduplicator deduplicator, UnaryOperator<TunnelFrame> wire) {
+            this.streamId = streamId;
+            this.sink = sink;
+            this.streamWindow = streamWindow;
+            this.connectionWindow = connectionWindow;
+            this.tenant = tenant;
+            this.timeoutMillis = timeoutMillis;
+            this.aborted = aborted;
+            this.onEnd = onEnd;
+            this.chunks = deduplicator != null ? deduplicator.newStream() : null;
+            this.wire = wire;
+        }
+
+        @Override
+        public void send(TunnelFrame frame) throws IOException {
+            boolean chunked = chunks != null && frame.isData();
+            boolean prepared = false;
+            int length = frame.getLength();
+            try {
+                //stop relaying the origin response as soon as the ship gives up on the request
+                if (aborted.getAsBoolean()) {
+                    throw new InterruptedIOException("Request ID " + streamId + " was reset");
+                }
+                if (chunked) {
+                    //the ship's windows count the bytes it restores, not the references
+                    length = chunks.prepare(frame);
+                    prepared = true;
+                }
+                if (length > 0) {
+                    //before taking credit, so a ship over its bandwidth does not hold credit its other responses need
+                    if (tenant != null) {
+                        tenant.pace(length);
+                    }
+                    //blocks until the ship has room; this is what stops us reading the origin ahead of a slow client
+                    if (streamWindow != null) {
+                        streamWindow.acquire(length, timeoutMillis);
+                    }
+                    connectionWindow.acquire(length, timeoutMillis);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!prepared) {
+                    frame.release();
+                }
+                throw e;
+            }
+            if (frame.isEndStream()) {
+                onEnd.run();
+            }
+            if (chunked) {
+                chunks.send(wire, sink);
+            } else {
+                if (frame.isReset()) {
+                    discard();
+                }
+                sink.send(wire.apply(frame));
+            }
+        }
+
+        //drops chunks prepared but not sent
+        void discard() {
+            if (chunks != null) {
+                chunks.discard();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("offshore.tunnel.frames.written", writeStats, FrameWriter.Stats::getFrames)
+                .description("Frames written to ship tunnel connections").register(registry);
+        FunctionCounter.builder("offshore.tunnel.writes", writeStats, FrameWriter.Stats::getWrites)
+                .description("Gathering writes those frames took").register(registry);
+        FunctionCounter.builder("offshore.tunnel.bytes.written", writeStats, FrameWriter.Stats::getBytes)
+                .baseUnit("bytes").description("Bytes written to ship tunnel connections").register(registry);
+        FunctionCounter.builder("offshore.tunnel.bytes.read", readStats, FrameReader.Stats::getBytes)
+                .baseUnit("bytes").description("Bytes read from ship tunnel connections, before decompression")
+                .register(registry);
+        Gauge.builder("offshore.tunnel.queued", writeStats, FrameWriter.Stats::getQueuedBytes)
+                .baseUnit("bytes").description("Frame bytes waiting for the tunnel writers").register(registry);
+        FunctionCounter.builder("offshore.tunnel.dedup.bytes.in", dedupStats, FrameDeduplicator.Stats::getBytesIn)
+                .baseUnit("bytes").description("Response bytes given to deduplication").register(registry);
+        FunctionCounter.builder("offshore.tunnel.dedup.bytes.saved", dedupStats, FrameDeduplicator.Stats::getBytesSaved)
+                .baseUnit("bytes").description("Response bytes sent as references to chunks the ship holds")
+                .register(registry);
+        FunctionCounter.builder("offshore.tunnel.dedup.chunks.referenced", dedupStats,
+                        FrameDeduplicator.Stats::getReferencedChunks)
+                .description("Chunks sent as references").register(registry);
+        Gauge.builder("offshore.tunnel.dedup.index.bytes", dedupStats, FrameDeduplicator.Stats::getIndexBytes)
+                .baseUnit("bytes").description("Heap taken by the indexes of chunks the ships hold, roughly")
+                .register(registry);
+        Gauge.builder("offshore.tunnel.connections", tunnelConnections, AtomicInteger::get)
+                .description("Open tunnel connections from ships").register(registry);
+        Gauge.builder("offshore.tunnel.sessions", sessions, Map::size)
+                .description("Ship tunnel sessions with at least one connection open").register(registry);
+        Gauge.builder("offshore.requests.active", activeRequests, AtomicInteger::get)
+                .description("Requests a worker is processing").register(registry);
+        Gauge.builder("offshore.tunnel.buffers.in.use", BufferPool.FRAMES, BufferPool::getInUse)
+                .description("Pooled frame buffers currently held").register(registry);
+        Gauge.builder("offshore.tunnel.buffers.capacity", BufferPool.FRAMES, BufferPool::getCapacityBytes)
+                .baseUnit("bytes").description("Direct memory carved into frame buffers").register(registry);
+        FunctionCounter.builder("offshore.tunnel.buffers.unpooled", BufferPool.FRAMES, BufferPool::getUnpooled)
+                .description("Frame buffers allocated outside the pool").register(registry);
+    }
+
     private byte[] generateErrorResponse(String errorMessage) {
         String response = "HTTP/1.1 500 Internal Server Error\r\n" + "Content-Type: text/plain\r\n" + "Content-Length: " + errorMessage.length() + "\r\n" + "\r\n" + errorMessage;
         return response.getBytes();
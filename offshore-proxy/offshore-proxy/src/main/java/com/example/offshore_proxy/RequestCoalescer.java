@@ -0,0 +1,411 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collapses concurrent identical GETs into one origin fetch. The first request
+ * for a key leads and fetches; requests arriving while it is in flight follow
+ * and are sent a copy of the leader's response as it arrives. If the response
+ * turns out not to be shareable (private, sets a cookie, or varies on a
+ * header outside the key), followers fetch on their own instead.
+ * <p>
+ * The key is the URL plus the request headers responses commonly vary on.
+ * Requests with credentials, cookies or ranges are never coalesced.
+ */
+@Component
+public class RequestCoalescer implements MeterBinder {
+    //request headers that are part of the key, so a Vary on any of them is still honoured
+    private static final List<String> KEY_HEADERS = List.of("accept", "accept-encoding", "accept-language",
+            "if-none-match", "if-modified-since");
+    private static final Set<String> PERSONAL_HEADERS = Set.of("authorization", "cookie", "range", "if-range");
+
+    private final boolean enabled;
+    private final long maxBufferBytes;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public RequestCoalescer(@Value("${offshore.coalesce.enabled:true}") boolean enabled,
+                            @Value("${offshore.coalesce.max-buffer-bytes:4194304}") long maxBufferBytes) {
+        this.enabled = enabled;
+        this.maxBufferBytes = maxBufferBytes;
+    }
+
+    /**
+     * The coalescing key of a request, or null if it must go to the origin on
+     * its own.
+     */
+    String key(RequestHead request, URL url) {
+        if (!enabled || !request.isMethod("GET") || request.hasBody()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(url.toString());
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            for (String name : PERSONAL_HEADERS) {
+                if (request.nameIs(i, name)) {
+                    return null;
+                }
+            }
+        }
+        for (String name : KEY_HEADERS) {
+            String value = request.header(name);
+            key.append('\n').append(name).append(':').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Joins the fetch in flight for {@code key}, if there is one anyone may
+     * still join.
+     */
+    Follower follow(String key) {
+        Flight flight = flights.get(key);
+        return flight == null ? null : flight.follow();
+    }
+
+    /**
+     * Starts the fetch for {@code key} that later requests may follow.
+     *
+     * @return null if another request started it first
+     */
+    Flight lead(String key) {
+        Flight flight = new Flight(key);
+        if (flights.putIfAbsent(key, flight) != null) {
+            return null;
+        }
+        leaders.incrementAndGet();
+        return flight;
+    }
+
+    /**
+     * Whether followers may be sent a copy of a response with these headers.
+     *
+     * @param vary the Vary header, or null
+     */
+    static boolean isShareable(String cacheControl, String vary, boolean setsCookie) {
+        if (setsCookie) {
+            return false;
+        }
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase(Locale.ROOT);
+            if (directives.contains("private") || directives.contains("no-store")) {
+                return false;
+            }
+        }
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                String header = name.trim().toLowerCase(Locale.ROOT);
+                if (!header.isEmpty() && !KEY_HEADERS.contains(header)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getLeaders() {
+        return leaders.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("offshore.coalesce.requests", this, RequestCoalescer::getLeaders)
+                .tag("result", "leader")
+                .description("Coalescable requests that fetched from the origin").register(registry);
+        FunctionCounter.builder("offshore.coalesce.requests", this, RequestCoalescer::getCoalesced)
+                .tag("result", "coalesced")
+                .description("Requests answered from another request's origin fetch").register(registry);
+        FunctionCounter.builder("offshore.coalesce.requests", this, RequestCoalescer::getFallbacks)
+                .tag("result", "fallback")
+                .description("Followers that fetched on their own because the response was not shareable")
+                .register(registry);
+        Gauge.builder("offshore.coalesce.in.flight", this, RequestCoalescer::getInFlight)
+                .description("Origin fetches other requests can still join").register(registry);
+    }
+
+    /**
+     * One origin fetch and the followers copying it. Holds the response bytes
+     * the slowest follower has not sent yet; once that exceeds the buffer limit
+     * no one else may join and the leader waits for the followers to catch up.
+     */
+    class Flight {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        //body chunks from index base on; earlier ones every follower has sent
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final List<Follower> followers = new ArrayList<>();
+        private long base;
+        private long bufferedBytes;
+        private byte[] head;
+        private boolean headCompressible;
+        private boolean decided;
+        private boolean shared;
+        private boolean open = true;
+        private boolean complete;
+        private boolean failed;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        private Follower follow() {
+            lock.lock();
+            try {
+                if (!open) {
+                    return null;
+                }
+                Follower follower = new Follower(this);
+                followers.add(follower);
+                return follower;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called by the leader with the response head before it relays it.
+         *
+         * @return where the leader should write the body: its own response,
+         * also copied to the followers if the response is shared
+         */
+        OutputStream start(byte[] responseHead, boolean compressible, boolean shareable, OutputStream response) {
+            lock.lock();
+            try {
+                decided = true;
+                shared = shareable;
+                head = responseHead;
+                headCompressible = compressible;
+                if (!shareable) {
+                    close();
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return shareable ? new TeeStream(response) : response;
+        }
+
+        //the leader relayed the whole response
+        void finish() {
+            lock.lock();
+            try {
+                complete = true;
+                close();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //the leader gave up; followers that have not started fetch on their own
+        void fail() {
+            lock.lock();
+            try {
+                if (!complete) {
+                    failed = true;
+                }
+                close();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void append(byte[] chunk) throws IOException {
+            lock.lock();
+            try {
+                if (followers.isEmpty() && !open) {
+                    return;
+                }
+                chunks.add(chunk);
+                bufferedBytes += chunk.length;
+                if (bufferedBytes > maxBufferBytes) {
+                    //from here on the buffer only serves the followers already in
+                    close();
+                    trim();
+                    while (bufferedBytes > maxBufferBytes && !followers.isEmpty()) {
+                        changed.await();
+                    }
+                }
+                changed.signalAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for coalesced requests to catch up");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //drops chunks every follower has sent, once no one else can join; lock held
+        private void trim() {
+            if (open) {
+                return;
+            }
+            long lowest = base + chunks.size();
+            for (Follower follower : followers) {
+                lowest = Math.min(lowest, follower.position);
+            }
+            int drop = (int) (lowest - base);
+            for (int i = 0; i < drop; i++) {
+                bufferedBytes -= chunks.get(i).length;
+            }
+            chunks.subList(0, drop).clear();
+            base = lowest;
+            changed.signalAll();
+        }
+
+        //no one else may join; lock held
+        private void close() {
+            if (open) {
+                open = false;
+                flights.remove(key, this);
+            }
+        }
+
+        //the leader's own response, with every write also handed to the followers
+        private class TeeStream extends OutputStream {
+            private final OutputStream response;
+
+            TeeStream(OutputStream response) {
+                this.response = response;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return;
+                }
+                append(Arrays.copyOfRange(b, off, off + len));
+                response.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                response.flush();
+            }
+        }
+    }
+
+    /**
+     * A request waiting on, then copying, another request's fetch.
+     */
+    class Follower {
+        private final Flight flight;
+        //index of the next body chunk to send; guarded by the flight's lock
+        private long position;
+
+        private Follower(Flight flight) {
+            this.flight = flight;
+        }
+
+        /**
+         * Sends the leader's response to {@code response}, the head through
+         * {@code headWriter}.
+         *
+         * @return false if the response could not be shared and the request
+         * must be fetched on its own; nothing has been written then
+         */
+        boolean relayTo(OutputStream response, HeadWriter headWriter) throws IOException {
+            try {
+                byte[] head;
+                flight.lock.lock();
+                try {
+                    while (!flight.decided && !flight.failed) {
+                        flight.changed.await();
+                    }
+                    if (!flight.decided || !flight.shared) {
+                        fallbacks.incrementAndGet();
+                        return false;
+                    }
+                    head = flight.head;
+                } finally {
+                    flight.lock.unlock();
+                }
+                coalesced.incrementAndGet();
+                headWriter.write(head, flight.headCompressible);
+                while (true) {
+                    byte[] chunk;
+                    boolean caughtUp;
+                    flight.lock.lock();
+                    try {
+                        while (position == flight.base + flight.chunks.size() && !flight.complete && !flight.failed) {
+                            flight.changed.await();
+                        }
+                        if (position == flight.base + flight.chunks.size()) {
+                            if (flight.failed) {
+                                throw new IOException("Coalesced origin fetch failed");
+                            }
+                            return true;
+                        }
+                        chunk = flight.chunks.get((int) (position - flight.base));
+                        position++;
+                        flight.trim();
+                        caughtUp = position == flight.base + flight.chunks.size();
+                    } finally {
+                        flight.lock.unlock();
+                    }
+                    response.write(chunk);
+                    if (caughtUp) {
+                        //nothing more from the origin yet, pass on what we have
+                        response.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a coalesced response");
+            } finally {
+                flight.lock.lock();
+                try {
+                    flight.followers.remove(this);
+                    flight.trim();
+                } finally {
+                    flight.lock.unlock();
+                }
+            }
+        }
+    }
+
+    //writes a response head the way the caller writes heads of its own
+    @FunctionalInterface
+    interface HeadWriter {
+        void write(byte[] head, boolean compressible) throws IOException;
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.TransferCoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The request line and headers of a request from the ship, read and parsed
+ * in a single pass over the raw bytes. Method, target and every header are
+ * kept as offsets into the buffer the head was read into, in order and with
+ * repeated headers kept apart; strings are only made for what is asked for.
+ * The body is left in the stream, its length described by
+ * {@link #getContentLength()} and {@link #isChunked()}; a Transfer-Encoding
+ * that does not end in chunked, or one sent alongside a Content-Length, is
+ * rejected, as on the ship. So are folded header lines, whitespace before a
+ * header's colon and Content-Lengths that disagree, which other parsers could
+ * read differently.
+ * <p>
+ * Any method token is accepted. An instance is reused, request after request,
+ * by calling {@link #read(InputStream)} again.
+ */
+class RequestHead {
+    static final int MAX_HEAD_LENGTH = 64 * 1024;
+    //offsets per header: name start, name end, value start, value end
+    private static final int FIELDS = 4;
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HOST = "Host: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private byte[] bytes = new byte[2048];
+    private int length;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int[] headers = new int[FIELDS * 32];
+    private int headerCount;
+    private long contentLength;
+    private boolean transferEncoded;
+    private boolean chunked;
+
+    /**
+     * Reads the head up to and including the blank line that ends it.
+     *
+     * @throws EOFException if the stream ends before the head does
+     */
+    void read(InputStream in) throws IOException {
+        length = 0;
+        headerCount = 0;
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Request ended inside its header section");
+            }
+            if (length == bytes.length) {
+                if (length >= MAX_HEAD_LENGTH) {
+                    throw new IOException("Request header section too large");
+                }
+                bytes = Arrays.copyOf(bytes, Math.min(length * 2, MAX_HEAD_LENGTH));
+            }
+            bytes[length++] = (byte) b;
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        parse();
+    }
+
+    private void parse() throws IOException {
+        int lineEnd = indexOf('\r', 0, length);
+        methodEnd = indexOf(' ', 0, lineEnd);
+        if (methodEnd <= 0 || methodEnd == lineEnd) {
+            throw malformed();
+        }
+        for (int i = 0; i < methodEnd; i++) {
+            if (!isTokenChar(bytes[i])) {
+                throw malformed();
+            }
+        }
+        targetStart = methodEnd + 1;
+        targetEnd = indexOf(' ', targetStart, lineEnd);
+        if (targetEnd <= targetStart || targetEnd == lineEnd) {
+            throw malformed();
+        }
+        if (!regionMatches(targetEnd + 1, lineEnd, "HTTP/")) {
+            throw malformed();
+        }
+        contentLength = -1;
+        transferEncoded = false;
+        chunked = false;
+        int position = lineEnd + 2;
+        while (true) {
+            lineEnd = indexOf('\r', position, length);
+            if (lineEnd == position || lineEnd == length) {
+                break;
+            }
+            //an origin may or may not unfold it into the header above (RFC 9112, section 5.2)
+            if (bytes[position] == ' ' || bytes[position] == '\t') {
+                throw new MalformedRequestException("Request has a folded header line");
+            }
+            int colon = indexOf(':', position, lineEnd);
+            //lines without a name are dropped, as before
+            if (colon > position && colon < lineEnd) {
+                //the name would be read with or without it, depending on who reads it (RFC 9112, section 5.1)
+                if (bytes[colon - 1] == ' ' || bytes[colon - 1] == '\t') {
+                    throw new MalformedRequestException("Request has whitespace before the colon of a header");
+                }
+                addHeader(position, colon, trimStart(colon + 1, lineEnd), trimEnd(colon + 1, lineEnd));
+            }
+            position = lineEnd + 2;
+        }
+        if (transferEncoded && !chunked) {
+            throw new MalformedRequestException("Transfer-Encoding of request does not end in chunked");
+        }
+        //an origin that went by the length instead would read the rest of the body as another request
+        if (transferEncoded && contentLength != -1) {
+            throw new MalformedRequestException("Request has both Transfer-Encoding and Content-Length");
+        }
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) throws IOException {
+        if ((headerCount + 1) * FIELDS > headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int at = headerCount * FIELDS;
+        headers[at] = nameStart;
+        headers[at + 1] = nameEnd;
+        headers[at + 2] = valueStart;
+        headers[at + 3] = valueEnd;
+        headerCount++;
+        if (nameIs(headerCount - 1, "content-length")) {
+            long length = parseLength(valueStart, valueEnd);
+            if (contentLength != -1 && contentLength != length) {
+                throw new MalformedRequestException("Conflicting Content-Length values in request");
+            }
+            contentLength = length;
+        } else if (nameIs(headerCount - 1, "transfer-encoding")) {
+            //the last header's final coding is the one that counts
+            transferEncoded = true;
+            chunked = TransferCoding.endsInChunked(bytes, valueStart, valueEnd);
+        }
+    }
+
+    String getMethod() {
+        return string(0, methodEnd);
+    }
+
+    boolean isMethod(String method) {
+        return methodEnd == method.length() && regionMatches(0, methodEnd, method);
+    }
+
+    String getTarget() {
+        return string(targetStart, targetEnd);
+    }
+
+    /**
+     * The URL of the request: the target itself if it is absolute, otherwise
+     * the target on the Host header's host over plain HTTP.
+     *
+     * @return null if there is no way to tell where the request goes
+     */
+    URL getUrl() throws MalformedURLException {
+        if (regionMatchesIgnoreCase(targetStart, targetEnd, "http://")
+                || regionMatchesIgnoreCase(targetStart, targetEnd, "https://")) {
+            return new URL(getTarget());
+        }
+        String host = header("host");
+        if (bytes[targetStart] != '/' || host == null) {
+            return null;
+        }
+        return new URL("http://" + host + getTarget());
+    }
+
+    int getHeaderCount() {
+        return headerCount;
+    }
+
+    String getHeaderName(int index) {
+        return string(headers[index * FIELDS], headers[index * FIELDS + 1]);
+    }
+
+    String getHeaderValue(int index) {
+        return string(headers[index * FIELDS + 2], headers[index * FIELDS + 3]);
+    }
+
+    //whether header index has this name, ignoring case; name must be lower case
+    boolean nameIs(int index, String name) {
+        return regionMatchesIgnoreCase(headers[index * FIELDS], headers[index * FIELDS + 1], name)
+                && headers[index * FIELDS + 1] - headers[index * FIELDS] == name.length();
+    }
+
+    /**
+     * The value of a header, repeated ones joined with commas as HTTP allows.
+     *
+     * @param name lower case
+     * @return null if the request does not have it
+     */
+    String header(String name) {
+        String value = null;
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, name)) {
+                value = value == null ? getHeaderValue(i) : value + ", " + getHeaderValue(i);
+            }
+        }
+        return value;
+    }
+
+    //the Content-Length of the body, -1 if there is none
+    long getContentLength() {
+        return contentLength;
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    boolean hasBody() {
+        return chunked || contentLength > 0;
+    }
+
+    /**
+     * Writes the head as sent to the origin: origin-form target, HTTP/1.1,
+     * the Host of {@code url}, then every header except the hop-by-hop ones,
+     * copied as received.
+     *
+     * @return the number of bytes written
+     */
+    int writeOriginRequest(OutputStream out, URL url) throws IOException {
+        out.write(bytes, 0, methodEnd + 1);
+        String file = url.getFile();
+        byte[] target = (file.isEmpty() ? "/" : file).getBytes(StandardCharsets.ISO_8859_1);
+        out.write(target);
+        out.write(HTTP_1_1);
+        out.write(HOST);
+        String host = url.getPort() != -1 && url.getPort() != url.getDefaultPort()
+                ? url.getHost() + ':' + url.getPort() : url.getHost();
+        out.write(host.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        int written = methodEnd + 1 + target.length + HTTP_1_1.length + HOST.length + host.length() + CRLF.length;
+        for (int i = 0; i < headerCount; i++) {
+            if (!isHopByHop(i)) {
+                int start = headers[i * FIELDS];
+                int end = headers[i * FIELDS + 3];
+                out.write(bytes, start, end - start);
+                out.write(CRLF);
+                written += end - start + CRLF.length;
+            }
+        }
+        out.write(CRLF);
+        return written + CRLF.length;
+    }
+
+    private boolean isHopByHop(int index) {
+        return nameIs(index, "host") || nameIs(index, "connection") || nameIs(index, "proxy-connection")
+                || nameIs(index, "keep-alive") || nameIs(index, "te") || nameIs(index, "upgrade")
+                || nameIs(index, "proxy-authorization");
+    }
+
+    private long parseLength(int start, int end) throws IOException {
+        if (start == end || end - start > 18) {
+            throw new MalformedRequestException("Invalid Content-Length in request");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MalformedRequestException("Invalid Content-Length in request");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    //the first c in [from, to), or to
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private boolean regionMatches(int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //prefix must be lower case
+    private boolean regionMatchesIgnoreCase(int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            int b = bytes[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isTokenChar(byte b) {
+        return b > ' ' && b < 127 && "()<>@,;:\\\"/[]?={}".indexOf(b) < 0;
+    }
+
+    private IOException malformed() {
+        int end = Math.min(indexOf('\r', 0, length), 200);
+        return new MalformedRequestException("Malformed request line: " + string(0, end));
+    }
+
+    /**
+     * A request head that is not forwarded to any origin; answered with a 400.
+     */
+    static class MalformedRequestException extends IOException {
+        MalformedRequestException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.FlowWindow;
+import com.example.proxy_common.FrameSink;
+import com.example.proxy_common.ReceiveCredit;
+import com.example.proxy_common.TunnelFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The bytes of one request as they arrive from the ship, exposed as a blocking
+ * InputStream to the worker executing it. Fed by the tunnel reader one frame
+ * at a time; pooled payloads are released as soon as they have been read. The ship never has more than a stream window of bytes in
+ * flight, so the queue stays bounded; consumed bytes are granted back to it
+ * with WINDOW_UPDATE frames. Also holds the credit the ship granted for the
+ * response.
+ */
+class RequestStream extends InputStream {
+    private static final TunnelFrame END = TunnelFrame.reset(0);
+
+    private final long requestId;
+    private final BlockingQueue<TunnelFrame> chunks = new LinkedBlockingQueue<>();
+    private final FlowWindow responseWindow;
+    private final ReceiveCredit requestCredit;
+    private final FrameSink controlSink;
+    private TunnelFrame current;
+    //the current frame's payload, read up to its position
+    private ByteBuffer payload;
+    private volatile boolean aborted;
+    //the worker is done with the request, anything still arriving is dropped
+    private volatile boolean closed;
+
+    RequestStream(long requestId, int responseWindow, int requestWindow, FrameSink controlSink) {
+        this.requestId = requestId;
+        this.responseWindow = new FlowWindow(responseWindow);
+        this.requestCredit = new ReceiveCredit(requestWindow);
+        this.controlSink = controlSink;
+    }
+
+    FlowWindow getResponseWindow() {
+        return responseWindow;
+    }
+
+    //whether the request came in on the tunnel connection behind this sink
+    boolean arrivedOn(FrameSink connectionSink) {
+        return controlSink == connectionSink;
+    }
+
+    void append(TunnelFrame frame) {
+        if (frame.getLength() > 0) {
+            chunks.add(frame);
+        } else {
+            frame.release();
+        }
+        if (frame.isEndStream()) {
+            chunks.add(END);
+        }
+        if (aborted || closed) {
+            //the worker may already be gone and nobody else will read these
+            releaseQueued();
+        }
+    }
+
+    //called when the ship resets the stream or the tunnel drops
+    void abort() {
+        aborted = true;
+        releaseQueued();
+        chunks.add(END);
+        responseWindow.close();
+    }
+
+    private void releaseQueued() {
+        TunnelFrame frame;
+        while ((frame = chunks.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Called by the worker once it is done with the request, which need not
+     * have read all of it, to give back the payloads it still holds.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (current != null && current != END) {
+            current.release();
+        }
+        current = END;
+        releaseQueued();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return payload.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, payload.remaining());
+        payload.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current == END ? 0 : payload.remaining();
+    }
+
+    //the ship may send more of this request once enough of it is consumed
+    void consumed(int length) throws IOException {
+        int increment = requestCredit.consumed(length);
+        if (increment > 0) {
+            controlSink.send(TunnelFrame.windowUpdate(requestId, increment));
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (current == null || (current != END && !payload.hasRemaining())) {
+            if (current != null) {
+                int length = current.getLength();
+                current.release();
+                current = null;
+                if (!aborted) {
+                    consumed(length);
+                }
+            }
+            try {
+                current = chunks.take();
+                payload = current.getPayloadBuffer();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for request ID " + requestId);
+            }
+        }
+        if (aborted) {
+            if (current != END) {
+                current.release();
+                current = END;
+            }
+            throw new IOException("Request ID " + requestId + " was reset");
+        }
+        return current != END;
+    }
+}
@@ -0,0 +1,377 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.BufferPool;
+import com.example.proxy_common.FlowWindow;
+import com.example.proxy_common.FrameSink;
+import com.example.proxy_common.PooledBuffer;
+import com.example.proxy_common.TunnelFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * One CONNECT tunnel: a request stream whose bytes are written to an origin
+ * socket by a {@link TunnelSplicer} loop instead of being read by a worker,
+ * and whose response, after the status line, is whatever the origin sends.
+ * The ship's frames are handed to the loop as they arrive; the worker that
+ * connected sends the status line and hands over the socket. Everything else
+ * happens on the loop.
+ */
+class SplicedStream extends RequestStream {
+    private static final Logger logger = LoggerFactory.getLogger(SplicedStream.class);
+    private static final byte[] ESTABLISHED = "HTTP/1.1 200 Connection established\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private final TunnelSplicer splicer;
+    //null if the splicer was not started, then the stream is only answered
+    private final TunnelSplicer.Loop loop;
+    private final long requestId;
+    private final String trace;
+    private final FrameSink sink;
+    private final FlowWindow connectionWindow;
+    //null if ships are not told apart
+    private final TenantScheduler.Tenant tenant;
+    private final Map<Long, RequestStream> streams;
+    private final int trafficClass;
+    private final long sendTimeoutMillis;
+    //frames from the ship waiting to be written to the origin, oldest first
+    private final ArrayDeque<TunnelFrame> outbound = new ArrayDeque<>();
+    private SocketChannel channel;
+    private SelectionKey key;
+    //the payload of the frame at the head of outbound, kept across partial writes
+    private ByteBuffer writing;
+    //the first frame is the CONNECT itself, which the origin never sees
+    private boolean headSkipped;
+    //the ship will send nothing more; the origin's side is shut once the rest is written
+    private boolean requestEnded;
+    private boolean outputShut;
+    //the status line went out as frame 0
+    private int sequence = 1;
+    //the origin is not read until the ship grants more credit, or its bandwidth allows more
+    private boolean waitingForCredit;
+    private long lastActivity = System.currentTimeMillis();
+    private boolean closed;
+
+    SplicedStream(TunnelSplicer splicer, TunnelSplicer.Loop loop, long requestId, String trace, FrameSink sink,
+                  TunnelSession session, int requestWindow, int trafficClass, long sendTimeoutMillis) {
+        super(requestId, session.getShip().getStreamWindow(), requestWindow, sink);
+        this.splicer = splicer;
+        this.loop = loop;
+        this.requestId = requestId;
+        this.trace = trace;
+        this.sink = sink;
+        this.connectionWindow = session.getSendWindow();
+        this.tenant = session.getTenant();
+        this.streams = session.getStreams();
+        this.trafficClass = trafficClass;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    long getRequestId() {
+        return requestId;
+    }
+
+    String getTrace() {
+        return trace;
+    }
+
+    //on the tunnel reader: the frame goes to the loop, which writes it to the origin
+    @Override
+    void append(TunnelFrame frame) {
+        if (loop == null) {
+            frame.release();
+            return;
+        }
+        loop.execute(() -> onFrame(frame));
+    }
+
+    //the ship reset the stream or its connection dropped
+    @Override
+    void abort() {
+        super.abort();
+        if (loop != null) {
+            loop.execute(this::shutdown);
+        }
+    }
+
+    /**
+     * Called by the worker once the origin is connected: sends the 200 and
+     * hands the socket to the loop.
+     */
+    void open(SocketChannel channel) {
+        if (isAborted() || !sendHead(ESTABLISHED, false)) {
+            TunnelSplicer.closeQuietly(channel);
+            return;
+        }
+        loop.execute(() -> attach(channel));
+    }
+
+    //answers the CONNECT with an error instead of a tunnel, on a worker
+    void answer(String status, String message) {
+        byte[] response = ("HTTP/1.1 " + status + "\r\n" + "Content-Type: text/plain\r\n" + "Content-Length: "
+                + message.length() + "\r\n" + "Connection: close\r\n" + "\r\n" + message)
+                .getBytes(StandardCharsets.ISO_8859_1);
+        streams.remove(requestId, this);
+        if (!isAborted()) {
+            sendHead(response, true);
+        }
+        if (loop != null) {
+            loop.execute(this::shutdown);
+        }
+    }
+
+    //gives up without an answer, when there is no worker to connect
+    void resetStream() {
+        streams.remove(requestId, this);
+        send(TunnelFrame.reset(requestId, trafficClass));
+        if (loop != null) {
+            loop.execute(this::shutdown);
+        }
+    }
+
+    //frame 0 of the response, sent by a worker, which may wait for the ship's credit
+    private boolean sendHead(byte[] head, boolean last) {
+        try {
+            getResponseWindow().acquire(head.length, sendTimeoutMillis);
+            connectionWindow.acquire(head.length, sendTimeoutMillis);
+            sink.send(TunnelFrame.data(requestId, 0, head, head.length, last, true, trafficClass));
+            return true;
+        } catch (IOException e) {
+            logger.debug("Failed to answer CONNECT request ID: {}: {}", requestId, e.getMessage());
+            if (!last && !isAborted()) {
+                streams.remove(requestId, this);
+                send(TunnelFrame.reset(requestId, trafficClass));
+            }
+            return false;
+        }
+    }
+
+    private void attach(SocketChannel channel) {
+        if (closed) {
+            TunnelSplicer.closeQuietly(channel);
+            return;
+        }
+        this.channel = channel;
+        try {
+            key = loop.register(channel, this);
+        } catch (IOException e) {
+            TunnelSplicer.closeQuietly(channel);
+            fail(e);
+            return;
+        }
+        splicer.onOpened();
+        lastActivity = System.currentTimeMillis();
+        flush();
+    }
+
+    private void onFrame(TunnelFrame frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        if (frame.isEndStream()) {
+            requestEnded = true;
+        }
+        if (!headSkipped) {
+            headSkipped = true;
+            grant(frame.getLength());
+            frame.release();
+        } else if (frame.getLength() > 0) {
+            outbound.add(frame);
+        } else {
+            frame.release();
+        }
+        if (key != null) {
+            flush();
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    //writes what the ship sent to the origin, straight from the frames' payloads
+    private void flush() {
+        try {
+            TunnelFrame frame;
+            while ((frame = outbound.peek()) != null) {
+                if (writing == null) {
+                    writing = frame.getPayloadBuffer();
+                }
+                int written = channel.write(writing);
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                    splicer.bytesToOrigin(written);
+                }
+                if (writing.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                writing = null;
+                int length = frame.getLength();
+                frame.release();
+                grant(length);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (requestEnded && !outputShut) {
+                outputShut = true;
+                channel.shutdownOutput();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads what the origin sent into a pooled buffer and sends that buffer
+     * on as a frame. Credit for a whole buffer is taken first and what was not
+     * read given back, so the loop never holds bytes it may not send.
+     */
+    void onReadable() {
+        int slot = BufferPool.FRAMES.getSlotSize();
+        FlowWindow streamWindow = getResponseWindow();
+        if (!streamWindow.tryAcquire(slot)) {
+            awaitCredit(streamWindow);
+            return;
+        }
+        if (!connectionWindow.tryAcquire(slot)) {
+            streamWindow.release(slot);
+            awaitCredit(connectionWindow);
+            return;
+        }
+        PooledBuffer buffer = BufferPool.FRAMES.acquire(slot);
+        int read;
+        try {
+            read = channel.read(buffer.buffer());
+        } catch (IOException e) {
+            buffer.release();
+            giveBack(slot);
+            fail(e);
+            return;
+        }
+        giveBack(slot - Math.max(read, 0));
+        if (read <= 0) {
+            buffer.release();
+            if (read < 0) {
+                end("closed by the origin");
+            }
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        splicer.bytesToShip(read);
+        //TLS records do not compress; a backlogged connection's writer may make the loop wait for room
+        send(new TunnelFrame(TunnelFrame.TYPE_DATA, TunnelFrame.classFlags(trafficClass), requestId, sequence++,
+                buffer, read, false));
+        //a ship over its bandwidth has the origin read no faster than it allows
+        long pauseNanos = tenant != null ? tenant.reserve(read) : 0;
+        if (pauseNanos > 0) {
+            waitingForCredit = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.executeLater(pauseNanos, this::resumeReading);
+        }
+    }
+
+    private void giveBack(int bytes) {
+        if (bytes > 0) {
+            getResponseWindow().release(bytes);
+            connectionWindow.release(bytes);
+        }
+    }
+
+    private void awaitCredit(FlowWindow window) {
+        waitingForCredit = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        window.whenAvailable(() -> loop.execute(this::resumeReading));
+    }
+
+    private void resumeReading() {
+        if (closed || !waitingForCredit) {
+            return;
+        }
+        waitingForCredit = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    //the ship may send more once its bytes reached the origin
+    private void grant(int length) {
+        if (isAborted()) {
+            return;
+        }
+        try {
+            consumed(length);
+        } catch (IOException e) {
+            //the connection is gone, its reader aborts the stream
+        }
+    }
+
+    //closes a tunnel nothing went through for the idle timeout; one waiting for the ship's credit is not idle
+    void closeIfIdle(long now) {
+        if (!waitingForCredit && now - lastActivity >= splicer.getIdleTimeoutMillis()) {
+            end("idle");
+        }
+    }
+
+    //ends the response, which makes the ship close the client's connection
+    private void end(String reason) {
+        if (closed) {
+            return;
+        }
+        logger.info("Tunnel for request ID: {} {}, trace {}", requestId, reason, trace);
+        //the slot is freed before the ship can see the end and start another request
+        streams.remove(requestId, this);
+        if (!isAborted()) {
+            send(TunnelFrame.data(requestId, sequence++, new byte[0], 0, true, false, trafficClass));
+        }
+        shutdown();
+    }
+
+    private void fail(IOException e) {
+        if (closed) {
+            return;
+        }
+        logger.info("Tunnel for request ID: {} failed: {}, trace {}", requestId, e.getMessage(), trace);
+        streams.remove(requestId, this);
+        if (!isAborted()) {
+            send(TunnelFrame.reset(requestId, trafficClass));
+        }
+        shutdown();
+    }
+
+    private void send(TunnelFrame frame) {
+        try {
+            sink.send(frame);
+        } catch (IOException e) {
+            //the connection is gone, its reader aborts the stream
+            logger.debug("Failed to send frame of tunnel request ID: {}: {}", requestId, e.getMessage());
+        }
+    }
+
+    //closes the origin socket and drops what was not written to it, on the loop
+    void shutdown() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+            splicer.onClosed();
+        }
+        if (channel != null) {
+            TunnelSplicer.closeQuietly(channel);
+        }
+        TunnelFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            frame.release();
+        }
+        writing = null;
+        close();
+    }
+}
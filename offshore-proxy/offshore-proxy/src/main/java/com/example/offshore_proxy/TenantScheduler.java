@@ -0,0 +1,412 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares the offshore proxy between the ships it serves. Each ship is a
+ * tenant, named by the ship ID in its HELLO; ships that give none share the
+ * default tenant. The work a tenant's requests need a worker for, fetching
+ * responses, prefetching and connecting tunnels, is queued per tenant and
+ * started on the shared workers by deficit round robin: tenants with a
+ * backlog take turns, each starting up to its weight in tasks per turn, and
+ * none runs more than its own limit at once however many workers the others
+ * leave free. Origin connections are only held by running tasks, so the
+ * origin pools are shared the same way. Response bytes, tunnels' included,
+ * are paced to a tenant's bytes per second if it has a limit. Configured as
+ * <pre>
+ * offshore.tenant.max-concurrent-requests=512
+ * offshore.tenant.weight=1
+ * offshore.tenant.max-concurrent=256
+ * offshore.tenant.bytes-per-second=0
+ * offshore.tenant.ships=aurora
+ * offshore.tenant.ship.aurora.weight=2
+ * offshore.tenant.ship.aurora.bytes-per-second=2000000
+ * </pre>
+ * where the quota without a ship applies to every ship not listed.
+ */
+@Component
+public class TenantScheduler implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(TenantScheduler.class);
+    //the tenant of ships that give no ID
+    static final String DEFAULT_TENANT = "default";
+    //ship IDs come off the network; past this many tenants, new IDs share the default tenant
+    private static final int MAX_TENANTS = 256;
+
+    private final boolean enabled;
+    private final int maxConcurrent;
+    private final Quota defaultQuota;
+    private final Map<String, Quota> quotas;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    //tenants with queued tasks and room under their limit, in the order of their turns; guarded by lock
+    private final ArrayDeque<Tenant> backlogged = new ArrayDeque<>();
+    //tasks on the workers over all tenants, guarded by lock
+    private int running;
+    private volatile Executor workers;
+    private volatile MeterRegistry registry;
+
+    /**
+     * @param maxConcurrent tasks on the workers at once over all tenants
+     */
+    @Autowired
+    public TenantScheduler(@Value("${offshore.tenant.enabled:true}") boolean enabled,
+                           @Value("${offshore.tenant.max-concurrent-requests:512}") int maxConcurrent,
+                           Environment environment) {
+        this(enabled, maxConcurrent, Quota.from(environment, "offshore.tenant.", Quota.DEFAULT),
+                Quota.forShips(environment));
+    }
+
+    TenantScheduler(boolean enabled, int maxConcurrent, Quota defaultQuota, Map<String, Quota> quotas) {
+        this.enabled = enabled;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.defaultQuota = defaultQuota;
+        this.quotas = Map.copyOf(quotas);
+    }
+
+    //starts tenants' tasks on the workers from now on; there are no tenants until then
+    void start(Executor workers) {
+        this.workers = workers;
+        if (enabled) {
+            logger.info("Sharing {} workers between ships, {} with quotas of their own", maxConcurrent,
+                    quotas.keySet());
+        }
+    }
+
+    /**
+     * The tenant of the ship with this ID, or null if tenants are off and
+     * tasks go to the workers as they come.
+     */
+    Tenant tenant(String shipId) {
+        if (!enabled || workers == null) {
+            return null;
+        }
+        String name = shipId == null || shipId.isBlank() ? DEFAULT_TENANT : shipId;
+        Tenant tenant = tenants.get(name);
+        if (tenant != null) {
+            return tenant;
+        }
+        if (tenants.size() >= MAX_TENANTS) {
+            logger.warn("{} tenants already, ship {} shares the default tenant", tenants.size(), name);
+            name = DEFAULT_TENANT;
+        }
+        tenant = tenants.computeIfAbsent(name, id -> new Tenant(id, quotas.getOrDefault(id, defaultQuota)));
+        MeterRegistry current = registry;
+        if (current != null) {
+            tenant.bindTo(current);
+        }
+        return tenant;
+    }
+
+    private void submit(Tenant tenant, Runnable task) {
+        List<Queued> started;
+        lock.lock();
+        try {
+            tenant.queue.add(new Queued(tenant, task, System.nanoTime()));
+            rotate(tenant);
+            started = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        start(started);
+    }
+
+    //gives a tenant with tasks queued and room to run them turns again; under lock
+    private void rotate(Tenant tenant) {
+        if (!tenant.inRotation && !tenant.queue.isEmpty() && tenant.running < tenant.quota.maxConcurrent()) {
+            tenant.inRotation = true;
+            backlogged.add(tenant);
+        }
+    }
+
+    /**
+     * Takes tasks off the tenants' queues while workers are free. The tenant
+     * at the head may start up to its weight in tasks before going to the
+     * back; one whose queue runs dry or that reaches its limit leaves the
+     * rotation, and what is left of its turn with it. Under lock.
+     */
+    private List<Queued> dispatch() {
+        List<Queued> started = List.of();
+        while (running < maxConcurrent && !backlogged.isEmpty()) {
+            Tenant tenant = backlogged.peek();
+            if (tenant.deficit == 0) {
+                tenant.deficit = tenant.quota.weight();
+            }
+            Queued queued = tenant.queue.poll();
+            tenant.deficit--;
+            tenant.running++;
+            running++;
+            if (tenant.queue.isEmpty() || tenant.running >= tenant.quota.maxConcurrent()) {
+                backlogged.poll();
+                tenant.inRotation = false;
+                tenant.deficit = 0;
+            } else if (tenant.deficit == 0) {
+                backlogged.add(backlogged.poll());
+            }
+            if (started.isEmpty()) {
+                started = new ArrayList<>();
+            }
+            started.add(queued);
+        }
+        return started;
+    }
+
+    private void start(List<Queued> started) {
+        for (Queued queued : started) {
+            try {
+                workers.execute(() -> run(queued));
+            } catch (RejectedExecutionException e) {
+                //the workers are shutting down, and what is queued goes with them
+                lock.lock();
+                try {
+                    queued.tenant().running--;
+                    running--;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void run(Queued queued) {
+        Tenant tenant = queued.tenant();
+        tenant.waited(System.nanoTime() - queued.queuedAt());
+        try {
+            queued.task().run();
+        } finally {
+            List<Queued> started;
+            lock.lock();
+            try {
+                tenant.running--;
+                running--;
+                rotate(tenant);
+                started = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            start(started);
+        }
+    }
+
+    int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One ship's share of the proxy. Tasks given to it wait in its queue for
+     * its turn on the workers.
+     */
+    final class Tenant implements Executor {
+        private final String name;
+        private final Quota quota;
+        //guarded by the scheduler's lock
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        private int running;
+        //tasks left of the current turn, 0 between turns
+        private int deficit;
+        private boolean inRotation;
+        //token bucket for the bytes per second, holding up to a second's worth; guarded by pacing
+        private final ReentrantLock pacing = new ReentrantLock();
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong pacedNanos = new AtomicLong();
+        private volatile Timer queueWait;
+        private volatile Timer response;
+
+        Tenant(String name, Quota quota) {
+            this.name = name;
+            this.quota = quota;
+            this.tokens = quota.bytesPerSecond();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Quota getQuota() {
+            return quota;
+        }
+
+        //queues the task for the tenant's turn on the workers
+        @Override
+        public void execute(Runnable task) {
+            submit(this, task);
+        }
+
+        int getQueued() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getRunning() {
+            lock.lock();
+            try {
+                return running;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Counts response bytes against the tenant's bandwidth.
+         *
+         * @return nanoseconds to wait before sending them, 0 if they may go now
+         */
+        long reserve(int length) {
+            bytes.addAndGet(length);
+            long bytesPerSecond = quota.bytesPerSecond();
+            if (bytesPerSecond <= 0) {
+                return 0;
+            }
+            pacing.lock();
+            try {
+                long now = System.nanoTime();
+                tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * (double) bytesPerSecond / 1e9);
+                refilledAt = now;
+                //senders take bytes on credit, so each waits out the debt of those before it
+                tokens -= length;
+                long waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+                pacedNanos.addAndGet(waitNanos);
+                return waitNanos;
+            } finally {
+                pacing.unlock();
+            }
+        }
+
+        //counts response bytes against the bandwidth and waits for it on the calling worker
+        void pace(int length) throws InterruptedIOException {
+            long waitNanos = reserve(length);
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while pacing the responses of ship " + name);
+                }
+            }
+        }
+
+        //a response sent in full, timed from its request's first frame arriving
+        void responded(long arrivedAtNanos) {
+            responses.incrementAndGet();
+            Timer timer = response;
+            if (timer != null) {
+                timer.record(System.nanoTime() - arrivedAtNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void waited(long nanos) {
+            Timer timer = queueWait;
+            if (timer != null) {
+                timer.record(nanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void bindTo(MeterRegistry registry) {
+            Gauge.builder("offshore.tenant.queued", this, Tenant::getQueued).tag("tenant", name)
+                    .description("Tasks of the ship waiting for its turn on the workers").register(registry);
+            Gauge.builder("offshore.tenant.active", this, Tenant::getRunning).tag("tenant", name)
+                    .description("Tasks of the ship on the workers").register(registry);
+            FunctionCounter.builder("offshore.tenant.responses", responses, AtomicLong::get).tag("tenant", name)
+                    .description("Responses sent to the ship in full").register(registry);
+            FunctionCounter.builder("offshore.tenant.bytes", bytes, AtomicLong::get).tag("tenant", name)
+                    .baseUnit("bytes").description("Response and tunnel bytes sent to the ship").register(registry);
+            FunctionCounter.builder("offshore.tenant.paced", pacedNanos, nanos -> nanos.get() / 1e9)
+                    .tag("tenant", name).baseUnit("seconds")
+                    .description("Time the ship's responses were held back to its bytes per second")
+                    .register(registry);
+            queueWait = Timer.builder("offshore.tenant.queue.wait").tag("tenant", name)
+                    .description("From a task of the ship being queued to a worker starting it")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(60))
+                    .register(registry);
+            response = Timer.builder("offshore.tenant.response.duration").tag("tenant", name)
+                    .description("From a request's first frame arriving to the last of its response being queued")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(60))
+                    .register(registry);
+        }
+    }
+
+    private record Queued(Tenant tenant, Runnable task, long queuedAt) {
+    }
+
+    /**
+     * What a tenant may take: its turns relative to other tenants', tasks on
+     * the workers at once, and response bytes per second, 0 for no limit.
+     */
+    record Quota(int weight, int maxConcurrent, long bytesPerSecond) {
+        static final Quota DEFAULT = new Quota(1, 256, 0);
+
+        Quota {
+            if (weight <= 0 || maxConcurrent <= 0 || bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Invalid tenant quota: weight " + weight + ", max concurrent "
+                        + maxConcurrent + ", bytes per second " + bytesPerSecond);
+            }
+        }
+
+        //the quota under the prefix, taking what it does not set from the fallback
+        static Quota from(Environment environment, String prefix, Quota fallback) {
+            return new Quota(environment.getProperty(prefix + "weight", Integer.class, fallback.weight()),
+                    environment.getProperty(prefix + "max-concurrent", Integer.class, fallback.maxConcurrent()),
+                    environment.getProperty(prefix + "bytes-per-second", Long.class, fallback.bytesPerSecond()));
+        }
+
+        static Map<String, Quota> forShips(Environment environment) {
+            Quota fallback = from(environment, "offshore.tenant.", DEFAULT);
+            Map<String, Quota> quotas = new HashMap<>();
+            Arrays.stream(environment.getProperty("offshore.tenant.ships", "").split(",")).map(String::trim)
+                    .filter(ship -> !ship.isEmpty())
+                    .forEach(ship -> quotas.put(ship,
+                            from(environment, "offshore.tenant.ship." + ship + ".", fallback)));
+            return quotas;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("offshore.tenant.workers.active", this, TenantScheduler::getRunning)
+                .description("Tasks of all ships on the workers").register(registry);
+        Gauge.builder("offshore.tenant.tenants", tenants, Map::size)
+                .description("Ships that have been served, by ship ID").register(registry);
+        tenants.values().forEach(tenant -> tenant.bindTo(registry));
+    }
+}
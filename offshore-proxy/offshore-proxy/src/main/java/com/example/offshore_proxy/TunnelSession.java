@@ -0,0 +1,121 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.FlowWindow;
+import com.example.proxy_common.ReceiveCredit;
+import com.example.proxy_common.TunnelHello;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * State shared by the tunnel connections of one ship: its requests in
+ * progress, the connection-level windows and the stream limit. A ship may open
+ * several connections to get past one TCP connection's congestion window;
+ * each request stays on the connection it arrived on.
+ */
+class TunnelSession {
+    //URLs remembered as pushed, oldest dropped first
+    private static final int MAX_RECENT_PUSHES = 4096;
+
+    private final long sessionId;
+    private final TunnelHello ship;
+    //the ship's share of workers and bandwidth, null if ships are not told apart
+    private final TenantScheduler.Tenant tenant;
+    private final Map<Long, RequestStream> streams = new ConcurrentHashMap<>();
+    private final FlowWindow sendWindow;
+    private final ReceiveCredit receiveCredit;
+    //when each URL was last pushed to the ship, guarded by pushLock
+    private final LinkedHashMap<String, Long> recentPushes = new LinkedHashMap<>();
+    private final ReentrantLock pushLock = new ReentrantLock();
+    //changed only inside the session registry's compute, so joins and leaves do not race
+    private volatile int connections;
+
+    TunnelSession(long sessionId, TunnelHello ship, int receiveWindow) {
+        this(sessionId, ship, receiveWindow, null);
+    }
+
+    TunnelSession(long sessionId, TunnelHello ship, int receiveWindow, TenantScheduler.Tenant tenant) {
+        this.sessionId = sessionId;
+        this.ship = ship;
+        this.tenant = tenant;
+        this.sendWindow = new FlowWindow(ship.getConnectionWindow());
+        this.receiveCredit = new ReceiveCredit(receiveWindow);
+    }
+
+    long getSessionId() {
+        return sessionId;
+    }
+
+    //the HELLO of the connection that opened the session
+    TunnelHello getShip() {
+        return ship;
+    }
+
+    TenantScheduler.Tenant getTenant() {
+        return tenant;
+    }
+
+    Map<Long, RequestStream> getStreams() {
+        return streams;
+    }
+
+    //response bytes the ship still accepts across all its connections
+    FlowWindow getSendWindow() {
+        return sendWindow;
+    }
+
+    ReceiveCredit getReceiveCredit() {
+        return receiveCredit;
+    }
+
+    /**
+     * Records that the URL is being pushed to the ship.
+     *
+     * @return false if it was pushed less than {@code recentMillis} ago
+     */
+    boolean markPushed(String url, long now, long recentMillis) {
+        pushLock.lock();
+        try {
+            Long pushedAt = recentPushes.get(url);
+            if (pushedAt != null && now - pushedAt < recentMillis) {
+                return false;
+            }
+            //re-inserted at the end, so the map stays in the order of pushes
+            recentPushes.remove(url);
+            recentPushes.put(url, now);
+            Iterator<Long> oldest = recentPushes.values().iterator();
+            while (oldest.hasNext()) {
+                long at = oldest.next();
+                if (recentPushes.size() <= MAX_RECENT_PUSHES && now - at < recentMillis) {
+                    break;
+                }
+                oldest.remove();
+            }
+            return true;
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    int join() {
+        return ++connections;
+    }
+
+    int leave() {
+        return --connections;
+    }
+
+    int getConnections() {
+        return connections;
+    }
+
+    //the last connection is gone, nothing in progress can be answered
+    void close() {
+        streams.values().forEach(RequestStream::abort);
+        streams.clear();
+        sendWindow.close();
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.FrameSink;
+import com.example.proxy_common.TunnelFrame;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splices CONNECT requests from the ship to raw origin sockets, so HTTPS, and
+ * whatever else a client tunnels, can go through the proxy. A tunnel is one
+ * stream carrying bytes both ways: after the 200, the ship's DATA frames for
+ * the request are written to the origin as they arrive, and what the origin
+ * sends goes back as the response's DATA frames until it closes.
+ * <p>
+ * A worker only resolves and connects. After that a tunnel costs no thread: a
+ * few selector loops move the bytes of all of them. Origin reads land in
+ * pooled frame buffers that go to the tunnel writer as they are, and the
+ * ship's frames are written to the origin from their own payload buffers, so
+ * nothing is copied on the way. The origin is not read while the ship has
+ * granted no credit for the response, nor faster than the bandwidth of the
+ * ship's tenant allows, and the ship's credit for the request is granted back
+ * as its bytes reach the origin.
+ */
+@Component
+public class TunnelSplicer implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(TunnelSplicer.class);
+    private static final byte[] CONNECT = "CONNECT ".getBytes(StandardCharsets.US_ASCII);
+    //how often tunnels are checked for being idle
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final DnsCache dnsCache;
+    private final boolean enabled;
+    private final Set<Integer> allowedPorts = new HashSet<>();
+    private final int connectTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesToOrigin = new AtomicLong();
+    private final AtomicLong bytesToShip = new AtomicLong();
+
+    /**
+     * @param allowedPorts origin ports a tunnel may be opened to, comma separated
+     * @param idleTimeoutSeconds a tunnel nothing went through for this long is closed
+     */
+    public TunnelSplicer(DnsCache dnsCache,
+                         @Value("${offshore.connect.enabled:true}") boolean enabled,
+                         @Value("${offshore.connect.allowed-ports:443}") String allowedPorts,
+                         @Value("${offshore.connect.event-loops:2}") int eventLoops,
+                         @Value("${offshore.connect.connect-timeout-millis:10000}") int connectTimeoutMillis,
+                         @Value("${offshore.connect.idle-timeout-seconds:300}") int idleTimeoutSeconds) {
+        this.dnsCache = dnsCache;
+        this.enabled = enabled;
+        for (String port : allowedPorts.split(",")) {
+            if (!port.isBlank()) {
+                this.allowedPorts.add(Integer.parseInt(port.trim()));
+            }
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutSeconds * 1000L;
+        this.loops = new Loop[Math.max(1, eventLoops)];
+    }
+
+    //starts the selector loops; tunnels are answered with a 503 until then
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Loop loop = new Loop("splice-loop-" + i);
+            Thread thread = new Thread(loop, loop.name);
+            thread.setDaemon(true);
+            thread.start();
+            loops[i] = loop;
+        }
+        logger.info("Splicing CONNECT tunnels to ports {} on {} event loops", allowedPorts, loops.length);
+    }
+
+    void stop() {
+        for (Loop loop : loops) {
+            if (loop != null) {
+                loop.running = false;
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    //whether the first frame of a request from the ship is a CONNECT
+    static boolean isConnect(TunnelFrame first) {
+        ByteBuffer payload = first.getPayloadBuffer();
+        if (payload.remaining() < CONNECT.length) {
+            return false;
+        }
+        for (int i = 0; i < CONNECT.length; i++) {
+            if (payload.get(payload.position() + i) != CONNECT[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a tunnel for the CONNECT request whose first frame this is,
+     * connecting to the origin on the executor. The returned stream is in the
+     * session's streams already, takes the request's frames from the first
+     * on and leaves the streams once the tunnel is done.
+     */
+    RequestStream splice(long requestId, String trace, TunnelFrame first, FrameSink sink, TunnelSession session,
+                         int requestWindow, int trafficClass, long sendTimeoutMillis, Executor executor) {
+        Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        SplicedStream stream = new SplicedStream(this, loop, requestId, trace, sink, session, requestWindow,
+                trafficClass, sendTimeoutMillis);
+        session.getStreams().put(requestId, stream);
+        String target;
+        try {
+            RequestHead head = new RequestHead();
+            head.read(new ByteArrayInputStream(first.getPayload()));
+            target = head.getTarget();
+        } catch (IOException e) {
+            target = null;
+        }
+        String host = host(target);
+        int port = port(target);
+        if (host == null || port <= 0) {
+            refuse(stream, "400 Bad Request", "CONNECT needs a host:port target", executor);
+        } else if (!enabled || !allowedPorts.contains(port)) {
+            refuse(stream, "403 Forbidden", "Tunnels to port " + port + " are not allowed", executor);
+        } else if (loop == null) {
+            refuse(stream, "503 Service Unavailable", "Not accepting tunnels yet", executor);
+        } else {
+            try {
+                executor.execute(() -> connect(stream, host, port));
+            } catch (RejectedExecutionException e) {
+                stream.resetStream();
+            }
+        }
+        return stream;
+    }
+
+    private void refuse(SplicedStream stream, String status, String message, Executor executor) {
+        refused.incrementAndGet();
+        try {
+            executor.execute(() -> stream.answer(status, message));
+        } catch (RejectedExecutionException e) {
+            stream.resetStream();
+        }
+    }
+
+    private void connect(SplicedStream stream, String host, int port) {
+        SocketChannel channel = null;
+        IOException failure = null;
+        try {
+            for (InetAddress address : dnsCache.resolve(host)) {
+                channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                    closeQuietly(channel);
+                    channel = null;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (channel == null) {
+            failed.incrementAndGet();
+            logger.info("Failed to open tunnel to {}:{}: {}", host, port, failure == null ? "no address" : failure.getMessage());
+            stream.answer("502 Bad Gateway", "Failed to connect to " + host + ":" + port);
+            return;
+        }
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            failed.incrementAndGet();
+            stream.answer("502 Bad Gateway", "Failed to connect to " + host + ":" + port);
+            return;
+        }
+        opened.incrementAndGet();
+        logger.info("Opened tunnel for request ID: {} to {}:{}, trace {}", stream.getRequestId(), host, port,
+                stream.getTrace());
+        stream.open(channel);
+    }
+
+    //the host of an authority-form target, without the brackets of an IPv6 literal
+    static String host(String target) {
+        if (target == null) {
+            return null;
+        }
+        int colon = target.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        String host = target.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return host.isEmpty() ? null : host;
+    }
+
+    static int port(String target) {
+        if (target == null) {
+            return -1;
+        }
+        try {
+            int port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+            return port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    void onOpened() {
+        open.incrementAndGet();
+    }
+
+    void onClosed() {
+        open.decrementAndGet();
+    }
+
+    void bytesToOrigin(int bytes) {
+        bytesToOrigin.addAndGet(bytes);
+    }
+
+    void bytesToShip(int bytes) {
+        bytesToShip.addAndGet(bytes);
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.debug("Error closing {}", closeable, e);
+        }
+    }
+
+    /**
+     * A selector loop moving the bytes of the tunnels registered with it. A
+     * tunnel's socket is only touched on its loop; other threads hand work to
+     * it through {@link #execute}.
+     */
+    final class Loop implements Runnable {
+        private final String name;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        //tasks waiting for their time, soonest first; only touched on the loop thread
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>(Comparator.comparingLong(Delayed::runAt));
+        private long lastIdleCheck = System.currentTimeMillis();
+        private volatile boolean running = true;
+
+        Loop(String name) throws IOException {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        //runs the task on the loop thread; safe to call from any thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        //runs the task on the loop once the delay is up; only called on the loop thread
+        void executeLater(long delayNanos, Runnable task) {
+            delayed.add(new Delayed(System.nanoTime() + delayNanos, task));
+        }
+
+        SelectionKey register(SocketChannel channel, SplicedStream stream) throws IOException {
+            return channel.register(selector, SelectionKey.OP_READ, stream);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(selectTimeoutMillis());
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        run(task);
+                    }
+                    long now = System.nanoTime();
+                    while (!delayed.isEmpty() && delayed.peek().runAt() - now <= 0) {
+                        run(delayed.poll().task());
+                    }
+                    closeIdle();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SplicedStream stream = (SplicedStream) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            stream.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            stream.onReadable();
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("Error in splice loop {}", name, e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((SplicedStream) key.attachment()).shutdown();
+            }
+            closeQuietly(selector);
+        }
+
+        private long selectTimeoutMillis() {
+            Delayed next = delayed.peek();
+            if (next == null) {
+                return IDLE_CHECK_MILLIS;
+            }
+            long untilNext = TimeUnit.NANOSECONDS.toMillis(next.runAt() - System.nanoTime()) + 1;
+            return Math.max(1, Math.min(IDLE_CHECK_MILLIS, untilNext));
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Error running task on {}", name, e);
+            }
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_MILLIS) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((SplicedStream) key.attachment()).closeIfIdle(now);
+                }
+            }
+        }
+    }
+
+    //a task for a loop and the System.nanoTime() it is due at
+    private record Delayed(long runAt, Runnable task) {
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("offshore.connect.tunnels", open, AtomicInteger::get)
+                .description("CONNECT tunnels open to origins").register(registry);
+        FunctionCounter.builder("offshore.connect.opened", opened, AtomicLong::get)
+                .description("CONNECT tunnels opened").register(registry);
+        FunctionCounter.builder("offshore.connect.refused", refused, AtomicLong::get)
+                .description("CONNECT requests refused: malformed, disabled or to a port not allowed")
+                .register(registry);
+        FunctionCounter.builder("offshore.connect.failed", failed, AtomicLong::get)
+                .description("CONNECT requests whose origin could not be reached").register(registry);
+        FunctionCounter.builder("offshore.connect.bytes.to.origin", bytesToOrigin, AtomicLong::get)
+                .baseUnit("bytes").description("Bytes from ships written to tunnel origins").register(registry);
+        FunctionCounter.builder("offshore.connect.bytes.to.ship", bytesToShip, AtomicLong::get)
+                .baseUnit("bytes").description("Bytes read from tunnel origins for ships").register(registry);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DnsCacheTests {
+
+	@Test
+	void cachesAnswersForTheirTtl() throws Exception {
+		DnsCache cache = new DnsCache(60, 5);
+		InetAddress[] addresses = cache.resolve("localhost");
+		assertSame(addresses, cache.resolve("localhost"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		DnsCache expired = new DnsCache(0, 5);
+		expired.resolve("localhost");
+		expired.resolve("localhost");
+		assertEquals(2, expired.getMisses());
+		assertEquals(0, expired.getHits());
+	}
+
+	@Test
+	void cachesFailedLookupsForTheNegativeTtl() {
+		DnsCache cache = new DnsCache(60, 5);
+		assertThrows(UnknownHostException.class, () -> cache.resolve("galley.invalid"));
+		assertThrows(UnknownHostException.class, () -> cache.resolve("galley.invalid"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		DnsCache expired = new DnsCache(60, 0);
+		assertThrows(UnknownHostException.class, () -> expired.resolve("galley.invalid"));
+		assertThrows(UnknownHostException.class, () -> expired.resolve("galley.invalid"));
+		assertEquals(2, expired.getMisses());
+	}
+
+	@Test
+	void dropsExpiredAnswersOnceManyHostsWereSeen() throws Exception {
+		DnsCache cache = new DnsCache(0, 0);
+		//address literals, so nothing goes to a resolver
+		for (int i = 0; i < DnsCache.MAX_TRACKED_HOSTS * 2; i++) {
+			cache.resolve("10.0." + (i >> 8) + "." + (i & 0xff));
+		}
+		assertTrue(cache.size() <= DnsCache.MAX_TRACKED_HOSTS + 1, "tracks " + cache.size());
+	}
+}
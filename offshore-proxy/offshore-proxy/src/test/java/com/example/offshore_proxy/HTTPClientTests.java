@@ -0,0 +1,166 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HTTPClientTests {
+
+	private ServerSocket origin;
+	//what the origin answers on each connection it accepts, in turn
+	private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+	private OriginConnectionPool pool;
+	private HTTPClient client;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		origin = new ServerSocket(0);
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try (Socket socket = origin.accept()) {
+					InputStream in = socket.getInputStream();
+					int matched = 0;
+					while (matched < 4) {
+						int c = in.read();
+						if (c == -1) {
+							break;
+						}
+						matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : c == '\r' ? 1 : 0;
+					}
+					socket.getOutputStream().write(responses.take().getBytes(StandardCharsets.ISO_8859_1));
+				} catch (Exception e) {
+					if (origin.isClosed()) {
+						return;
+					}
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		//a single connection per host, so one that leaked would starve the next request
+		pool = new OriginConnectionPool(new DnsCache(60, 5), 1, 1, 30, 2000, 2000, 500);
+		client = new HTTPClient();
+		set(client, "connectionPool", pool);
+		set(client, "metrics", new PipelineMetrics(new SimpleMeterRegistry()));
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		pool.close();
+		origin.close();
+	}
+
+	@Test
+	void answersMalformedResponseHeadsWithBadGatewayAndFreesTheConnection() throws Exception {
+		responses.add("HTTP/1.1 2OO OK\r\nContent-Length: 0\r\n\r\n");
+		assertTrue(get().startsWith("HTTP/1.1 502 "));
+		assertEquals(0, pool.getLeasedConnections());
+
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: lots\r\n\r\n");
+		assertTrue(get().startsWith("HTTP/1.1 502 "));
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: -5\r\n\r\n");
+		assertTrue(get().startsWith("HTTP/1.1 502 "));
+		assertEquals(0, pool.getLeasedConnections());
+
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello");
+		String answer = get();
+		assertTrue(answer.startsWith("HTTP/1.1 200 "), answer);
+		assertTrue(answer.endsWith("\r\n\r\nhello"));
+	}
+
+	@Test
+	void failsMalformedChunkSizesAfterTheHeadAndFreesTheConnection() throws Exception {
+		responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\nzz\r\n");
+		//the head has gone to the ship by then, so the failure is the caller's to handle
+		assertThrows(ProtocolException.class, this::get);
+		assertEquals(0, pool.getLeasedConnections());
+
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok");
+		assertTrue(get().startsWith("HTTP/1.1 200 "));
+	}
+
+	@Test
+	void answersRequestsWithBothTransferEncodingAndContentLengthWithBadRequest() throws Exception {
+		String request = "POST http://127.0.0.1:" + origin.getLocalPort() + "/deck HTTP/1.1\r\n"
+				+ "Host: 127.0.0.1:" + origin.getLocalPort() + "\r\n"
+				+ "Transfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n"
+				+ "0\r\n\r\nGET /admin HTTP/1.1\r\n\r\n";
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		client.executeRequest(new ByteArrayInputStream(request.getBytes(StandardCharsets.ISO_8859_1)), response);
+		assertTrue(response.toString(StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 400 "));
+		//nothing was sent, so the origin's one connection is still free for the next request
+		assertEquals(0, pool.getLeasedConnections());
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		assertTrue(get().startsWith("HTTP/1.1 200 "));
+	}
+
+	@Test
+	void framesResponsesWithBothTransferEncodingAndContentLengthByTheChunks() throws Exception {
+		set(client, "transcoder", new MediaTranscoder(true, 1, 4, 10_000, 1, 1 << 24, List.of(
+				new MediaTranscoder.Policy("png", List.of("image/png"), 800, 800, "jpeg", 0.6f))));
+		responses.add("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: 3\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+		String answer = get();
+		//relayed as it came, rather than its first three bytes taken for an image
+		assertTrue(answer.startsWith("HTTP/1.1 200 "), answer);
+		assertFalse(answer.toLowerCase(Locale.ROOT).contains("content-length"), answer);
+		assertTrue(answer.endsWith("\r\n\r\n5\r\nhello\r\n0\r\n\r\n"), answer);
+		assertEquals(0, pool.getIdleConnections());
+	}
+
+	@Test
+	void retriesOnlyIdempotentRequestsOnAStaleConnection() throws Exception {
+		//kept alive, so pooled; the origin closes its side once it has answered
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		assertTrue(get().startsWith("HTTP/1.1 200 "));
+		Thread.sleep(100);
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		String request = "POST http://127.0.0.1:" + origin.getLocalPort() + "/deck HTTP/1.1\r\n"
+				+ "Host: 127.0.0.1:" + origin.getLocalPort() + "\r\nContent-Length: 0\r\n\r\n";
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		client.executeRequest(new ByteArrayInputStream(request.getBytes(StandardCharsets.ISO_8859_1)), response);
+		//the origin may have acted on it before the connection went, so it is not sent again
+		assertTrue(response.toString(StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 502 "));
+		assertEquals(1, responses.size());
+
+		responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		assertTrue(get().startsWith("HTTP/1.1 200 "));
+		Thread.sleep(100);
+		//a GET on the next stale connection is sent again on a fresh one
+		assertTrue(get().startsWith("HTTP/1.1 200 "));
+		assertTrue(responses.isEmpty());
+	}
+
+	private String get() throws Exception {
+		String request = "GET http://127.0.0.1:" + origin.getLocalPort() + "/deck HTTP/1.1\r\n"
+				+ "Host: 127.0.0.1:" + origin.getLocalPort() + "\r\n\r\n";
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		client.executeRequest(new ByteArrayInputStream(request.getBytes(StandardCharsets.ISO_8859_1)), response);
+		return response.toString(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+}
@@ -0,0 +1,61 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LinkScannerTests {
+
+	private static final String PAGE = "<html><head>\n"
+			+ "<link rel=\"stylesheet\" href=\"/css/site.css\">\n"
+			+ "<link rel=canonical href=\"/elsewhere\">\n"
+			+ "<LINK REL='icon' HREF='favicon.ico'>\n"
+			+ "<script async src=\"https://cdn.example.net/app.js\"></script>\n"
+			+ "<script src=\"//static.example.com/lib.js?v=2&amp;x=1\"></script>\n"
+			+ "<style>body { background: url( 'img/bg.png' ) }</style>\n"
+			+ "</head><body><img alt=\"deck plan\" src=\"img/deck.png#top\"><img src=\"data:image/png;base64,AAAA\">\n"
+			+ "<a href=\"/not-a-subresource\">more</a></body></html>";
+
+	@Test
+	void findsSubresourcesSplitAcrossWrites() throws Exception {
+		LinkScanner scanner = LinkScanner.forEncoding(new URL("http://example.com/news/index.html"), null, 1 << 20, 32);
+		byte[] page = PAGE.getBytes(StandardCharsets.ISO_8859_1);
+		//one byte at a time, so every link is cut somewhere
+		for (byte b : page) {
+			scanner.write(b);
+		}
+		scanner.close();
+		assertEquals(List.of("http://example.com/css/site.css", "http://example.com/news/favicon.ico",
+				"http://static.example.com/lib.js?v=2&x=1", "http://example.com/news/img/bg.png",
+				"http://example.com/news/img/deck.png"), links(scanner));
+	}
+
+	@Test
+	void decodesGzipAndStopsAtItsLimits() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write("@import \"print.css\";\n.logo { background: url(/img/logo.svg) }".getBytes(StandardCharsets.ISO_8859_1));
+		}
+		LinkScanner css = LinkScanner.forEncoding(new URL("http://example.com/css/site.css"), "gzip", 1 << 20, 32);
+		css.write(compressed.toByteArray(), 0, compressed.size());
+		css.close();
+		assertEquals(List.of("http://example.com/css/print.css", "http://example.com/img/logo.svg"), links(css));
+
+		LinkScanner limited = LinkScanner.forEncoding(new URL("http://example.com/"), "identity", 1 << 20, 2);
+		byte[] page = PAGE.getBytes(StandardCharsets.ISO_8859_1);
+		limited.write(page, 0, page.length);
+		assertEquals(2, links(limited).size());
+		assertNull(LinkScanner.forEncoding(new URL("http://example.com/"), "br", 1 << 20, 32));
+	}
+
+	private static List<String> links(LinkScanner scanner) {
+		return scanner.getLinks().stream().map(URL::toString).toList();
+	}
+}
@@ -0,0 +1,98 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MediaTranscoderTests {
+
+	private static final List<MediaTranscoder.Policy> POLICIES = List.of(
+			new MediaTranscoder.Policy("jpeg", List.of("image/jpeg"), 800, 800, "jpeg", 0.6f),
+			new MediaTranscoder.Policy("png", List.of("image/png"), 800, 800, "jpeg", 0.6f));
+
+	@Test
+	void scalesDownAndRecompressesALargePhoto() throws Exception {
+		MediaTranscoder transcoder = new MediaTranscoder(true, 1, 4, 10_000, 1024, 1 << 24, POLICIES);
+		byte[] photo = encode(picture(2000, 1500, false), "png");
+		MediaTranscoder.Policy policy = transcoder.policyFor(get(""), 200, "image/png", null, "max-age=60", photo.length);
+		assertNotNull(policy);
+
+		MediaTranscoder.Result result = transcoder.transcode(new URL("http://example.com/deck.png"), photo, policy);
+		assertNotNull(result);
+		//an opaque PNG is worth sending as a JPEG
+		assertEquals("image/jpeg", result.contentType());
+		assertTrue(result.body().length < photo.length / 4, "transcoded to " + result.body().length);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(result.body()));
+		assertEquals(800, decoded.getWidth());
+		assertEquals(600, decoded.getHeight());
+	}
+
+	@Test
+	void leavesAloneWhatItMayNotOrNeedNotTouch() throws Exception {
+		MediaTranscoder transcoder = new MediaTranscoder(true, 1, 4, 10_000, 1024, 1 << 24, POLICIES);
+		assertNull(transcoder.policyFor(get(""), 200, "image/jpeg", null, "public, no-transform", 50_000));
+		assertNull(transcoder.policyFor(get("Cache-Control: no-transform\r\n"), 200, "image/jpeg", null, null, 50_000));
+		assertNull(transcoder.policyFor(get("Range: bytes=0-99\r\n"), 200, "image/jpeg", null, null, 50_000));
+		assertNull(transcoder.policyFor(get(""), 200, "image/jpeg", "gzip", null, 50_000));
+		assertNull(transcoder.policyFor(get(""), 200, "image/gif", null, null, 50_000));
+		assertNull(transcoder.policyFor(get(""), 200, "image/jpeg", null, null, 512));
+		assertNull(transcoder.policyFor(get(""), 206, "image/jpeg", null, null, 50_000));
+		assertNull(new MediaTranscoder(false, 1, 4, 10_000, 1024, 1 << 24, POLICIES)
+				.policyFor(get(""), 200, "image/jpeg", null, null, 50_000));
+		assertNotNull(transcoder.policyFor(get(""), 200, "image/jpeg; charset=binary", null, null, 50_000));
+
+		//transparency keeps a PNG a PNG
+		MediaTranscoder.Result overlay = MediaTranscoder.transcode(encode(picture(1600, 1200, true), "png"), POLICIES.get(1));
+		assertNotNull(overlay);
+		assertEquals("image/png", overlay.contentType());
+		assertFalse(MediaTranscoder.rotated(encode(picture(64, 64, false), "jpeg")));
+	}
+
+	private static RequestHead get(String headers) throws IOException {
+		RequestHead request = new RequestHead();
+		request.read(new ByteArrayInputStream(("GET http://example.com/deck.png HTTP/1.1\r\nHost: example.com\r\n"
+				+ headers + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+		return request;
+	}
+
+	//smooth gradients with some grain, like a photo
+	private static BufferedImage picture(int width, int height, boolean alpha) {
+		BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(3);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int grain = random.nextInt(24);
+				int rgb = new Color((x * 255 / width + grain) % 256, (y * 255 / height + grain) % 256, (x + y) % 256,
+						alpha ? (x * 255 / width) : 255).getRGB();
+				image.setRGB(x, y, rgb);
+			}
+		}
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillOval(width / 4, height / 4, width / 2, height / 2);
+		graphics.dispose();
+		return image;
+	}
+
+	private static byte[] encode(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, format, out);
+		return out.toByteArray();
+	}
+}
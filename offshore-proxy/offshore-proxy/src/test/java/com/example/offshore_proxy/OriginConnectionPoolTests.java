@@ -0,0 +1,129 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OriginConnectionPoolTests {
+
+	private ServerSocket origin;
+	//connections the origin accepted, left open until the test ends
+	private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+	private OriginConnectionPool pool;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		origin = new ServerSocket(0);
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try {
+					accepted.add(origin.accept());
+				} catch (IOException e) {
+					return;
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		if (pool != null) {
+			pool.close();
+		}
+		origin.close();
+		for (Socket socket : accepted) {
+			socket.close();
+		}
+	}
+
+	@Test
+	void reusesKeepAliveConnections() throws Exception {
+		pool = new OriginConnectionPool(new DnsCache(60, 5), 4, 4, 30, 2000, 2000, 1000);
+		OriginConnection first = pool.acquire(key(origin.getLocalPort()));
+		assertFalse(first.isReused());
+		pool.release(first, true);
+		assertEquals(1, pool.getIdleConnections());
+
+		OriginConnection second = pool.acquire(key(origin.getLocalPort()));
+		assertSame(first, second);
+		assertTrue(second.isReused());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getLeasedConnections());
+
+		//one that can't carry another request is closed instead
+		pool.release(second, false);
+		assertFalse(second.isOpen());
+		assertEquals(0, pool.getIdleConnections());
+		assertNotSame(second, pool.acquire(key(origin.getLocalPort())));
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	void holdsEachHostToItsLimitUntilTheAcquireTimeout() throws Exception {
+		pool = new OriginConnectionPool(new DnsCache(60, 5), 2, 2, 30, 2000, 2000, 200);
+		OriginConnection first = pool.acquire(key(origin.getLocalPort()));
+		pool.acquire(key(origin.getLocalPort()));
+		assertEquals(2, pool.getLeasedConnections());
+
+		long startedAt = System.nanoTime();
+		assertThrows(IOException.class, () -> pool.acquire(key(origin.getLocalPort())));
+		assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(190));
+
+		pool.release(first, true);
+		assertSame(first, pool.acquire(key(origin.getLocalPort())));
+		assertEquals(2, pool.getLeasedConnections());
+	}
+
+	@Test
+	void closesConnectionsIdleForTooLong() throws Exception {
+		pool = new OriginConnectionPool(new DnsCache(60, 5), 4, 4, 0, 2000, 2000, 1000);
+		OriginConnection connection = pool.acquire(key(origin.getLocalPort()));
+		pool.release(connection, true);
+		assertEquals(1, pool.getIdleConnections());
+
+		pool.evictIdle();
+		assertEquals(0, pool.getIdleConnections());
+		assertEquals(1, pool.getEvictions());
+		assertFalse(connection.isOpen());
+	}
+
+	@Test
+	void forgetsHostsWithNothingOpen() throws Exception {
+		pool = new OriginConnectionPool(new DnsCache(60, 5), 4, 4, 30, 2000, 2000, 1000);
+		OriginConnection leased = pool.acquire(key(origin.getLocalPort()));
+		OriginConnectionPool.OriginKey other = new OriginConnectionPool.OriginKey("http", "localhost",
+				origin.getLocalPort());
+		pool.release(pool.acquire(other), false);
+		assertEquals(2, pool.getTrackedOrigins());
+
+		pool.forgetIdle();
+		assertEquals(1, pool.getTrackedOrigins());
+		pool.release(leased, true);
+		pool.forgetIdle();
+		//its idle connection keeps it
+		assertEquals(1, pool.getTrackedOrigins());
+		pool.release(pool.acquire(other), true);
+		assertEquals(2, pool.getTrackedOrigins());
+	}
+
+	private static OriginConnectionPool.OriginKey key(int port) {
+		return new OriginConnectionPool.OriginKey("http", "127.0.0.1", port);
+	}
+}
@@ -0,0 +1,91 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OriginLimiterTests {
+
+	private static final OriginConnectionPool.OriginKey SLOW = new OriginConnectionPool.OriginKey("http", "slow.example.com", 80);
+	private static final OriginConnectionPool.OriginKey FAST = new OriginConnectionPool.OriginKey("http", "fast.example.com", 80);
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void backsOffWhenAnOriginSlowsDownAndGrowsBackWhileItKeepsUp() throws Exception {
+		OriginLimiter limiter = new OriginLimiter(true, 8, 2, 16, 2.0, 0.5, 0, 100);
+		respond(limiter, SLOW, 10 * MILLI, 200);
+		assertEquals(8, limiter.getLimit(SLOW));
+
+		respond(limiter, SLOW, 50 * MILLI, 200);
+		assertEquals(4, limiter.getLimit(SLOW));
+		respond(limiter, SLOW, 10 * MILLI, 503);
+		assertEquals(2, limiter.getLimit(SLOW));
+		try (OriginLimiter.Permit permit = limiter.acquire(SLOW)) {
+			permit.onFailure();
+		}
+		//never below the minimum
+		assertEquals(2, limiter.getLimit(SLOW));
+
+		//responses as fast as before, with the limit in use
+		for (int i = 0; i < 4; i++) {
+			try (OriginLimiter.Permit first = limiter.acquire(SLOW); OriginLimiter.Permit second = limiter.acquire(SLOW)) {
+				first.onResponse(12 * MILLI, 200);
+				second.onResponse(12 * MILLI, 200);
+			}
+		}
+		assertTrue(limiter.getLimit(SLOW) > 4);
+		assertEquals(8, limiter.getLimit(FAST));
+	}
+
+	@Test
+	void shedsRequestsOverTheLimitOnlyAtTheSaturatedOrigin() throws Exception {
+		OriginLimiter limiter = new OriginLimiter(true, 1, 1, 1, 2.0, 0.5, 1, 5000);
+		OriginLimiter.Permit held = limiter.acquire(SLOW);
+		CompletableFuture<OriginLimiter.Permit> queued = CompletableFuture.supplyAsync(() -> {
+			try {
+				return limiter.acquire(SLOW);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		while (limiter.getQueued(SLOW) == 0) {
+			Thread.sleep(5);
+		}
+		//the queue is full
+		assertThrows(OriginLimiter.LimitExceededException.class, () -> limiter.acquire(SLOW));
+		assertEquals(1, limiter.getRejected());
+		assertFalse(queued.isDone());
+		limiter.acquire(FAST).close();
+
+		held.close();
+		queued.get(5, TimeUnit.SECONDS).close();
+		limiter.acquire(SLOW).close();
+	}
+
+	@Test
+	void shedsARequestThatWaitedTooLongAndLetsEverythingThroughWhenDisabled() throws Exception {
+		OriginLimiter limiter = new OriginLimiter(true, 1, 1, 1, 2.0, 0.5, 8, 50);
+		try (OriginLimiter.Permit held = limiter.acquire(SLOW)) {
+			long startedAt = System.nanoTime();
+			assertThrows(OriginLimiter.LimitExceededException.class, () -> limiter.acquire(SLOW));
+			assertTrue(System.nanoTime() - startedAt >= 50 * MILLI);
+		}
+		assertEquals(1, limiter.getRejected());
+
+		OriginLimiter disabled = new OriginLimiter(false, 1, 1, 1, 2.0, 0.5, 0, 0);
+		assertEquals(OriginLimiter.Permit.NONE, disabled.acquire(SLOW));
+		assertEquals(OriginLimiter.Permit.NONE, disabled.acquire(SLOW));
+	}
+
+	private static void respond(OriginLimiter limiter, OriginConnectionPool.OriginKey key, long latencyNanos, int status) throws Exception {
+		try (OriginLimiter.Permit permit = limiter.acquire(key)) {
+			permit.onResponse(latencyNanos, status);
+		}
+	}
+}
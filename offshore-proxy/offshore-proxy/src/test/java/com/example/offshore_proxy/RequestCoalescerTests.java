@@ -0,0 +1,118 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestCoalescerTests {
+
+	private static final byte[] HEAD = "HTTP/1.1 200 OK\r\nContent-Length: 300000\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	@Test
+	void keysOnUrlAndVaryHeadersAndSkipsPersonalRequests() throws Exception {
+		RequestCoalescer coalescer = new RequestCoalescer(true, 1 << 20);
+		URL url = new URL("http://origin.test/logo.png");
+		String plain = coalescer.key(head("GET", "User-Agent: a"), url);
+		assertEquals(plain, coalescer.key(head("GET", "User-Agent: b"), url));
+		assertFalse(plain.equals(coalescer.key(head("GET", "Accept-Encoding: gzip"), url)));
+		assertNull(coalescer.key(head("POST"), url));
+		assertNull(coalescer.key(head("GET", "Content-Length: 3"), url));
+		assertNull(coalescer.key(head("GET", "Cookie: session=1"), url));
+		assertNull(coalescer.key(head("GET", "Range: bytes=0-99"), url));
+		assertNull(new RequestCoalescer(false, 1 << 20).key(head("GET"), url));
+
+		assertTrue(RequestCoalescer.isShareable("max-age=60", "Accept-Encoding", false));
+		assertFalse(RequestCoalescer.isShareable("private, max-age=60", null, false));
+		assertFalse(RequestCoalescer.isShareable(null, "User-Agent", false));
+		assertFalse(RequestCoalescer.isShareable(null, null, true));
+	}
+
+	@Test
+	void followersGetACopyOfTheLeadersFetch() throws Exception {
+		//a small buffer, so the leader has to wait for followers part of the way
+		RequestCoalescer coalescer = new RequestCoalescer(true, 64 * 1024);
+		RequestCoalescer.Flight flight = coalescer.lead("k");
+		assertNotNull(flight);
+		assertNull(coalescer.lead("k"));
+		byte[] body = new byte[300_000];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) (i % 251);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<byte[]>> copies = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				RequestCoalescer.Follower follower = coalescer.follow("k");
+				assertNotNull(follower);
+				copies.add(executor.submit(() -> {
+					ByteArrayOutputStream copy = new ByteArrayOutputStream();
+					assertTrue(follower.relayTo(copy, (head, compressible) -> copy.write(head)));
+					return copy.toByteArray();
+				}));
+			}
+			ByteArrayOutputStream own = new ByteArrayOutputStream();
+			OutputStream out = flight.start(HEAD, true, true, own);
+			own.write(HEAD);
+			for (int offset = 0; offset < body.length; offset += 16 * 1024) {
+				out.write(body, offset, Math.min(16 * 1024, body.length - offset));
+			}
+			flight.finish();
+			assertArrayEquals(own.toByteArray(), copies.get(0).get(10, TimeUnit.SECONDS));
+			assertArrayEquals(own.toByteArray(), copies.get(1).get(10, TimeUnit.SECONDS));
+			assertArrayEquals(own.toByteArray(), copies.get(2).get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertNull(coalescer.follow("k"));
+		assertEquals(1, coalescer.getLeaders());
+		assertEquals(3, coalescer.getCoalesced());
+		assertEquals(0, coalescer.getInFlight());
+	}
+
+	@Test
+	void followersFetchOnTheirOwnWhenTheResponseIsNotShareable() throws Exception {
+		RequestCoalescer coalescer = new RequestCoalescer(true, 1 << 20);
+		RequestCoalescer.Flight flight = coalescer.lead("k");
+		RequestCoalescer.Follower follower = coalescer.follow("k");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			ByteArrayOutputStream copy = new ByteArrayOutputStream();
+			Future<Boolean> shared = executor.submit(() -> follower.relayTo(copy, (head, compressible) -> copy.write(head)));
+			ByteArrayOutputStream own = new ByteArrayOutputStream();
+			assertTrue(flight.start(HEAD, true, false, own) == own);
+			assertFalse(shared.get(10, TimeUnit.SECONDS));
+			assertEquals(0, copy.size());
+			flight.finish();
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, coalescer.getFallbacks());
+	}
+
+	private static RequestHead head(String method, String... headers) throws Exception {
+		StringBuilder head = new StringBuilder(method).append(" http://origin.test/logo.png HTTP/1.1\r\n");
+		for (String header : headers) {
+			head.append(header).append("\r\n");
+		}
+		RequestHead request = new RequestHead();
+		request.read(new ByteArrayInputStream(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1)));
+		return request;
+	}
+}
@@ -0,0 +1,109 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestHeadTests {
+
+	@Test
+	void parsesAnyMethodAndKeepsRepeatedHeadersApart() throws Exception {
+		InputStream in = stream("PATCH http://origin.test:8080/cabins/7?deck=3 HTTP/1.1\r\n"
+				+ "Host: origin.test:8080\r\n"
+				+ "Accept: text/html\r\n"
+				+ "Content-Length:  5 \r\n"
+				+ "Accept: application/json\r\n"
+				+ "\r\n"
+				+ "hello");
+		RequestHead request = new RequestHead();
+		request.read(in);
+
+		assertEquals("PATCH", request.getMethod());
+		assertTrue(request.isMethod("PATCH"));
+		assertFalse(request.isMethod("PAT"));
+		assertEquals(new URL("http://origin.test:8080/cabins/7?deck=3"), request.getUrl());
+		assertEquals(4, request.getHeaderCount());
+		assertEquals("Accept", request.getHeaderName(3));
+		assertEquals("application/json", request.getHeaderValue(3));
+		assertEquals("text/html, application/json", request.header("accept"));
+		assertNull(request.header("cookie"));
+		assertEquals(5, request.getContentLength());
+		assertTrue(request.hasBody());
+		//the body is left for the caller
+		assertEquals("hello", new String(in.readAllBytes(), StandardCharsets.ISO_8859_1));
+
+		request.read(stream("PROPFIND /share/ HTTP/1.1\r\nhost: files.test\r\nTransfer-Encoding: chunked\r\n\r\n"));
+		assertEquals("PROPFIND", request.getMethod());
+		assertEquals(new URL("http://files.test/share/"), request.getUrl());
+		assertEquals(2, request.getHeaderCount());
+		assertTrue(request.isChunked());
+		assertEquals(-1, request.getContentLength());
+		request.read(stream("POST /upload HTTP/1.1\r\nTransfer-Encoding: gzip, CHUNKED\r\n\r\n"));
+		assertTrue(request.isChunked());
+	}
+
+	@Test
+	void writesOriginFormWithoutHopByHopHeaders() throws Exception {
+		RequestHead request = new RequestHead();
+		request.read(stream("GET http://origin.test/menu?day=2 HTTP/1.1\r\n"
+				+ "Host: elsewhere.test\r\n"
+				+ "Proxy-Connection: keep-alive\r\n"
+				+ "Cookie: a=1\r\n"
+				+ "Connection: close\r\n"
+				+ "Cookie: b=2\r\n"
+				+ "\r\n"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int written = request.writeOriginRequest(out, request.getUrl());
+
+		assertEquals("GET /menu?day=2 HTTP/1.1\r\n"
+				+ "Host: origin.test\r\n"
+				+ "Cookie: a=1\r\n"
+				+ "Cookie: b=2\r\n"
+				+ "\r\n", out.toString(StandardCharsets.ISO_8859_1));
+		assertEquals(out.size(), written);
+	}
+
+	@Test
+	void rejectsMalformedAndTruncatedHeads() throws Exception {
+		RequestHead request = new RequestHead();
+		assertThrows(IOException.class, () -> request.read(stream("GET\r\n\r\n")));
+		assertThrows(IOException.class, () -> request.read(stream("G(T / HTTP/1.1\r\n\r\n")));
+		assertThrows(IOException.class, () -> request.read(stream("GET / SMTP\r\n\r\n")));
+		assertThrows(IOException.class, () -> request.read(stream("GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n")));
+		assertThrows(IOException.class, () -> request.read(stream("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n")));
+		assertThrows(IOException.class, () -> request.read(stream("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+				+ "Transfer-Encoding: gzip\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Transfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Content-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Content-Length : 5\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Transfer-Encoding\t: chunked\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Accept: text/html\r\n Content-Length: 5\r\n\r\n")));
+		assertThrows(RequestHead.MalformedRequestException.class, () -> request.read(stream("POST / HTTP/1.1\r\n"
+				+ "Content-Length: 5\r\nContent-Length: 6\r\n\r\n")));
+		//the same length twice says nothing different
+		request.read(stream("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n"));
+		assertEquals(5, request.getContentLength());
+		assertThrows(EOFException.class, () -> request.read(stream("GET / HTTP/1.1\r\nHost: a")));
+	}
+
+	private static InputStream stream(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}
@@ -0,0 +1,115 @@
+package com.example.offshore_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TenantSchedulerTests {
+
+	//tasks handed to the workers, run by the test one at a time
+	private final ArrayDeque<Runnable> workers = new ArrayDeque<>();
+	private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+	@Test
+	void sharesTheWorkersByWeightWhateverTheBacklog() {
+		TenantScheduler scheduler = new TenantScheduler(true, 2, TenantScheduler.Quota.DEFAULT,
+				Map.of("aurora", new TenantScheduler.Quota(3, 256, 0)));
+		scheduler.start(workers::add);
+		TenantScheduler.Tenant busy = scheduler.tenant("borealis");
+		TenantScheduler.Tenant heavy = scheduler.tenant("aurora");
+
+		submit(busy, "borealis", 100);
+		assertEquals(2, workers.size());
+		assertEquals(98, busy.getQueued());
+		//the hundred tasks queued ahead of it hold it back by one turn, not a hundred
+		submit(heavy, "aurora", 8);
+		runNext(3);
+		assertEquals(List.of("borealis", "borealis", "borealis"), started);
+		started.clear();
+
+		//three of the heavier ship's tasks for each of the other's while both have a backlog
+		runNext(8);
+		assertEquals(List.of("aurora", "aurora", "aurora", "borealis", "aurora", "aurora", "aurora", "borealis"),
+				started);
+		assertEquals(2, scheduler.getRunning());
+	}
+
+	@Test
+	void holdsAShipToItsOwnLimitWithWorkersToSpare() {
+		TenantScheduler scheduler = new TenantScheduler(true, 8, new TenantScheduler.Quota(1, 2, 0), Map.of());
+		scheduler.start(workers::add);
+		TenantScheduler.Tenant tenant = scheduler.tenant("aurora");
+
+		submit(tenant, "aurora", 5);
+		assertEquals(2, tenant.getRunning());
+		assertEquals(3, tenant.getQueued());
+		runNext(1);
+		assertEquals(2, tenant.getRunning());
+		assertEquals(2, tenant.getQueued());
+		runNext(4);
+		assertEquals(5, started.size());
+		assertEquals(0, scheduler.getRunning());
+		assertTrue(workers.isEmpty());
+	}
+
+	@Test
+	void pacesResponsesToTheShipsBandwidthAfterABurst() throws Exception {
+		TenantScheduler scheduler = new TenantScheduler(true, 8, TenantScheduler.Quota.DEFAULT,
+				Map.of("aurora", new TenantScheduler.Quota(1, 8, 100_000)));
+		scheduler.start(workers::add);
+		TenantScheduler.Tenant limited = scheduler.tenant("aurora");
+
+		//a second's worth goes right away, the rest waits its turn on the link
+		assertEquals(0, limited.reserve(100_000));
+		long waitNanos = limited.reserve(50_000);
+		assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(400) && waitNanos <= TimeUnit.MILLISECONDS.toNanos(500),
+				"waits " + waitNanos);
+		assertTrue(limited.reserve(50_000) > waitNanos);
+		assertEquals(0, scheduler.tenant("borealis").reserve(10_000_000));
+
+		long startedAt = System.nanoTime();
+		TenantScheduler other = new TenantScheduler(true, 8, new TenantScheduler.Quota(1, 8, 1_000_000), Map.of());
+		other.start(workers::add);
+		TenantScheduler.Tenant paced = other.tenant("aurora");
+		paced.pace(1_000_000);
+		paced.pace(100_000);
+		assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(90));
+	}
+
+	@Test
+	void namesTenantsByShipId() {
+		TenantScheduler scheduler = new TenantScheduler(true, 8, TenantScheduler.Quota.DEFAULT, Map.of());
+		//no tenants before the workers are there
+		assertNull(scheduler.tenant("aurora"));
+		scheduler.start(workers::add);
+		assertSame(scheduler.tenant("aurora"), scheduler.tenant("aurora"));
+		assertEquals(TenantScheduler.DEFAULT_TENANT, scheduler.tenant("").getName());
+		assertSame(scheduler.tenant(null), scheduler.tenant(" "));
+
+		TenantScheduler disabled = new TenantScheduler(false, 8, TenantScheduler.Quota.DEFAULT, Map.of());
+		disabled.start(workers::add);
+		assertNull(disabled.tenant("aurora"));
+	}
+
+	private void submit(TenantScheduler.Tenant tenant, String name, int tasks) {
+		for (int i = 0; i < tasks; i++) {
+			tenant.execute(() -> started.add(name));
+		}
+	}
+
+	private void runNext(int tasks) {
+		for (int i = 0; i < tasks; i++) {
+			workers.poll().run();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.example.offshore_proxy;
+
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.FrameSink;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TunnelSplicerTests {
+
+	private static final int STREAM_WINDOW = 64 * 1024;
+
+	private ServerSocket echo;
+	private TunnelSplicer splicer;
+	private ExecutorService executor;
+	private TunnelSession session;
+	private final BlockingQueue<TunnelFrame> sent = new LinkedBlockingQueue<>();
+	private final AtomicLong granted = new AtomicLong();
+	private final AtomicReference<RequestStream> stream = new AtomicReference<>();
+	private int connectLength;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		echo = new ServerSocket(0);
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try (Socket socket = echo.accept()) {
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					in.transferTo(out);
+					socket.shutdownOutput();
+				} catch (Exception e) {
+					if (echo.isClosed()) {
+						return;
+					}
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		splicer = new TunnelSplicer(new DnsCache(60, 5), true, String.valueOf(echo.getLocalPort()), 1, 2000, 300);
+		splicer.start();
+		executor = Executors.newCachedThreadPool();
+		session = new TunnelSession(1, new TunnelHello(List.of(CompressionCodec.NONE), STREAM_WINDOW, 1 << 20, 16), 1 << 20);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		splicer.stop();
+		executor.shutdownNow();
+		echo.close();
+	}
+
+	@Test
+	void splicesBytesBothWaysWithinTheShipsCredit() throws Exception {
+		splice(7, "CONNECT 127.0.0.1:" + echo.getLocalPort() + " HTTP/1.1\r\n\r\n");
+		assertEquals(stream.get(), session.getStreams().get(7L));
+
+		TunnelFrame head = next();
+		assertEquals(0, head.getSequence());
+		assertTrue(new String(head.getPayload(), StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 200 "));
+		assertFalse(head.isEndStream());
+
+		//far more than the ship's stream window, which it grants back as frames arrive
+		byte[] payload = new byte[1024 * 1024];
+		new Random(24).nextBytes(payload);
+		int sequence = 1;
+		for (int offset = 0; offset < payload.length; offset += 16 * 1024) {
+			byte[] chunk = new byte[16 * 1024];
+			System.arraycopy(payload, offset, chunk, 0, chunk.length);
+			stream.get().append(TunnelFrame.data(7, sequence++, chunk, chunk.length, false));
+		}
+		stream.get().append(TunnelFrame.data(7, sequence, new byte[0], 0, true));
+
+		ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+		int expected = 1;
+		while (true) {
+			TunnelFrame frame = next();
+			assertEquals(expected++, frame.getSequence());
+			if (frame.isEndStream()) {
+				assertEquals(0, frame.getLength());
+				break;
+			}
+			//the origin's bytes go out in the buffer they were read into
+			assertTrue(frame.isPooled());
+			echoed.write(frame.getPayload(), 0, frame.getLength());
+			frame.release();
+		}
+		assertArrayEquals(payload, echoed.toByteArray());
+		//the CONNECT and everything written to the origin was granted back to the ship
+		assertEquals(payload.length + connectLength, granted.get());
+		assertTrue(session.getStreams().isEmpty());
+	}
+
+	@Test
+	void refusesTunnelsToPortsThatAreNotAllowed() throws Exception {
+		splice(9, "CONNECT 127.0.0.1:25 HTTP/1.1\r\n\r\n");
+
+		TunnelFrame answer = next();
+		assertTrue(answer.isEndStream());
+		assertTrue(new String(answer.getPayload(), StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 403 "));
+		assertTrue(session.getStreams().isEmpty());
+	}
+
+	@Test
+	void parsesAuthorityFormTargets() {
+		assertEquals("example.com", TunnelSplicer.host("example.com:443"));
+		assertEquals(443, TunnelSplicer.port("example.com:443"));
+		assertEquals("::1", TunnelSplicer.host("[::1]:8443"));
+		assertEquals(8443, TunnelSplicer.port("[::1]:8443"));
+		assertNull(TunnelSplicer.host("example.com"));
+		assertNull(TunnelSplicer.host(":443"));
+		assertEquals(-1, TunnelSplicer.port("example.com:https"));
+		assertEquals(-1, TunnelSplicer.port("example.com:70000"));
+	}
+
+	private void splice(long requestId, String request) {
+		FrameSink sink = frame -> {
+			if (frame.isWindowUpdate()) {
+				granted.addAndGet(frame.getWindowIncrement());
+				return;
+			}
+			if (frame.getLength() > 0 && frame.getSequence() > 0) {
+				//a ship that reads promptly
+				stream.get().getResponseWindow().release(frame.getLength());
+				session.getSendWindow().release(frame.getLength());
+			}
+			sent.add(frame);
+		};
+		byte[] bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+		connectLength = bytes.length;
+		TunnelFrame first = TunnelFrame.data(requestId, 0, bytes, bytes.length, false);
+		assertTrue(TunnelSplicer.isConnect(first));
+		stream.set(splicer.splice(requestId, "test", first, sink, session, STREAM_WINDOW, 0, 2000, executor));
+		stream.get().append(first);
+	}
+
+	private TunnelFrame next() throws InterruptedException {
+		TunnelFrame frame = sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(frame);
+		return frame;
+	}
+}
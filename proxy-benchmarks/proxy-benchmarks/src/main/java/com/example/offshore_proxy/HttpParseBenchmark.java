@@ -0,0 +1,77 @@
+package com.example.offshore_proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parsing {@link HTTPClient} does for every request from the ship: the
+ * request head read and turned into a URL, a coalescing key and the request
+ * written to the origin, and the origin's response head read and written
+ * back out for the ship.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpParseBenchmark {
+    private static final byte[] REQUEST = ("GET http://www.example.com/deck-plans/index.html?deck=7 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-GB,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-None-Match: \"5e1d-61a3f2c9\"\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n"
+            + "Date: Sat, 17 Oct 2026 09:12:44 GMT\r\n"
+            + "Server: nginx\r\n"
+            + "Content-Type: text/html; charset=utf-8\r\n"
+            + "Content-Length: 48213\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: public, max-age=300\r\n"
+            + "ETag: \"5e1d-61a3f2c9\"\r\n"
+            + "Vary: Accept-Encoding\r\n"
+            + "Last-Modified: Thu, 15 Oct 2026 18:03:10 GMT\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final RequestHead head = new RequestHead();
+    private final RequestCoalescer coalescer = new RequestCoalescer(true, 4L << 20);
+    private final ByteArrayInputStream request = new ByteArrayInputStream(REQUEST);
+    private final ByteArrayInputStream response = new ByteArrayInputStream(RESPONSE);
+    private final OutputStream origin = OutputStream.nullOutputStream();
+
+    @Benchmark
+    public int requestHead(Blackhole blackhole) throws IOException {
+        request.reset();
+        head.read(request);
+        URL url = head.getUrl();
+        blackhole.consume(head.getMethod());
+        blackhole.consume(coalescer.key(head, url));
+        return head.writeOriginRequest(origin, url);
+    }
+
+    @Benchmark
+    public byte[] responseHead() throws IOException {
+        response.reset();
+        return HTTPClient.ResponseHead.read(response).toBytes(false);
+    }
+}
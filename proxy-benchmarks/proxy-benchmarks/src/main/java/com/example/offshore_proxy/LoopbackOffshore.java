@@ -0,0 +1,64 @@
+package com.example.offshore_proxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.reflect.Field;
+
+/**
+ * An offshore proxy wired by hand with its default settings, for benchmarks
+ * that run it in the same JVM without Spring.
+ */
+public class LoopbackOffshore implements AutoCloseable {
+    private final ProxyServer server = new ProxyServer();
+    private final OriginConnectionPool connectionPool = new OriginConnectionPool(new DnsCache(60, 5), 64, 16, 30,
+            10000, 60000, 10000);
+
+    /**
+     * Starts listening for the ship on {@code port}.
+     *
+     * @param executionMode {@code platform} or {@code virtual}, as in {@code offshore.proxy.execution-mode}
+     * @param compression the codecs offered, as in {@code offshore.proxy.compression}
+     */
+    public LoopbackOffshore(int port, String executionMode, String compression) throws ReflectiveOperationException {
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        HTTPClient httpClient = new HTTPClient();
+        set(httpClient, "connectionPool", connectionPool);
+        set(httpClient, "coalescer", new RequestCoalescer(true, 4L << 20));
+        set(httpClient, "metrics", metrics);
+        set(httpClient, "limiter", new OriginLimiter(true, 16, 2, 64, 2.0, 0.9, 64, 5000));
+        set(server, "proxyPort", port);
+        set(server, "executionMode", executionMode);
+        set(server, "chunkSize", 16384);
+        set(server, "compression", compression);
+        set(server, "streamWindow", 256 * 1024);
+        set(server, "connectionWindow", 4 * 1024 * 1024);
+        set(server, "maxConcurrentStreams", 256);
+        set(server, "sendTimeoutMillis", 60000L);
+        set(server, "writeBatchBytes", 256 * 1024);
+        set(server, "writeBatchDelayMicros", 0L);
+        set(server, "heartbeatTimeoutMillis", 30_000L);
+        set(server, "dedupEnabled", true);
+        set(server, "dedupMaxStoreBytes", 16L << 20);
+        set(server, "httpClient", httpClient);
+        //the benchmarks measure requests the ship makes, not ones we guess at
+        Prefetcher prefetcher = new Prefetcher(false, 1L << 20, 32, 8, 16, 300);
+        set(prefetcher, "httpClient", httpClient);
+        set(server, "prefetcher", prefetcher);
+        set(server, "metrics", metrics);
+        Thread acceptor = new Thread(server::start, "offshore-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+        connectionPool.close();
+    }
+
+    private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.proxy_benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A keep-alive HTTP/1.1 connection to a proxy, as a browser on the ship holds
+ * one: requests go out with absolute URLs, one at a time, and each response
+ * is read to the end of its body and dropped. Responses must carry a
+ * Content-Length. Not thread safe.
+ */
+public class HttpConnection implements AutoCloseable {
+    private final byte[] skip = new byte[64 * 1024];
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public HttpConnection(String host, int port, int readTimeoutMillis) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            socket.setSoTimeout(readTimeoutMillis);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a GET, or a POST if {@code body} is not null, and reads the whole
+     * response.
+     *
+     * @return the length of the response body
+     * @throws IOException if the response is not a 200, the connection is then no use
+     */
+    public long request(String url, byte[] body) throws IOException {
+        int hostEnd = url.indexOf('/', 7);
+        StringBuilder request = new StringBuilder(body == null ? "GET " : "POST ").append(url).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(url, 7, hostEnd).append("\r\n")
+                .append("Accept: */*\r\n");
+        if (body != null) {
+            request.append("Content-Type: application/json\r\n").append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        out.write(request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+        String statusLine = readLine();
+        if (!statusLine.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response: " + statusLine);
+        }
+        long contentLength = -1;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                contentLength = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        if (contentLength < 0) {
+            throw new IOException("Response without a Content-Length");
+        }
+        for (long left = contentLength; left > 0; ) {
+            int n = in.read(skip, 0, (int) Math.min(left, skip.length));
+            if (n < 0) {
+                throw new IOException("Response body cut short");
+            }
+            left -= n;
+        }
+        return contentLength;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed by the proxy");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
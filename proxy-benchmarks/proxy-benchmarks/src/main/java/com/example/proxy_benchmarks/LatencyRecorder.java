@@ -0,0 +1,78 @@
+package com.example.proxy_benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every latency of one kind of request, kept exactly so high percentiles of a
+ * run of a few minutes are not smoothed over, with errors and bytes received.
+ */
+class LatencyRecorder {
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long[] nanos = new long[1024];
+    private int count;
+    private long errors;
+    private long bytes;
+
+    LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void record(long startNanos, long responseBytes) {
+        long elapsed = System.nanoTime() - startNanos;
+        lock.lock();
+        try {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+            bytes += responseBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordError() {
+        lock.lock();
+        try {
+            errors++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //what has been recorded so far
+    Summary summarize() {
+        long[] sorted;
+        long errorCount;
+        long byteCount;
+        lock.lock();
+        try {
+            sorted = Arrays.copyOf(nanos, count);
+            errorCount = errors;
+            byteCount = bytes;
+        } finally {
+            lock.unlock();
+        }
+        Arrays.sort(sorted);
+        return new Summary(name, sorted.length, errorCount, byteCount, percentile(sorted, 0.5),
+                percentile(sorted, 0.99), percentile(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    //nearest rank
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.ceil(quantile * sorted.length) - 1];
+    }
+
+    //latencies in nanoseconds
+    record Summary(String name, long count, long errors, long bytes, long p50, long p99, long p999, long max) {
+    }
+}
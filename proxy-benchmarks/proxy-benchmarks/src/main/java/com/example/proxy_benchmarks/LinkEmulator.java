@@ -0,0 +1,313 @@
+package com.example.proxy_benchmarks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A TCP relay that makes a loopback connection behave like a satellite link.
+ * Put it between the ship and the offshore proxy: it listens on a local port
+ * for the ship's tunnel connections and opens one to the offshore proxy for
+ * each.
+ * <p>
+ * Bytes are relayed as TCP would deliver them over the link described by a
+ * {@link LinkProfile}: each read is cut into packets that queue for the
+ * direction's bandwidth, shared by every connection, then arrive half a round
+ * trip later, give or take the jitter. A lost packet is not dropped, since
+ * the proxies speak TCP, but holds its stream up for the round trip a
+ * retransmission takes; data behind it waits too, as it would in a receive
+ * buffer. Outages stop the whole link for a while. How far a connection may
+ * run ahead of its deliveries is capped by a window, so a sender blocks just
+ * as it would on a long fat pipe.
+ */
+public class LinkEmulator implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LinkEmulator.class);
+    private static final int READ_SIZE = 16 * 1024;
+    //Ethernet MTU less IP and TCP headers
+    private static final int PACKET_SIZE = 1448;
+
+    private final LinkProfile profile;
+    private final String targetHost;
+    private final int targetPort;
+    private final ServerSocket server;
+    private final Direction uplink;
+    private final Direction downlink;
+    private final Outages outages;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lostPackets = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LinkEmulator(LinkProfile profile, String targetHost, int targetPort) throws IOException {
+        this.profile = profile;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.uplink = new Direction(profile.uplinkBitsPerSecond());
+        this.downlink = new Direction(profile.downlinkBitsPerSecond());
+        this.outages = new Outages(profile.stallIntervalMillis(), profile.stallMillis());
+        this.server = new ServerSocket(0, 64);
+        Thread acceptor = new Thread(this::accept, "link-emulator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    //the local port to connect to instead of the target
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public long getUplinkBytes() {
+        return uplink.bytes.get();
+    }
+
+    public long getDownlinkBytes() {
+        return downlink.bytes.get();
+    }
+
+    public long getLostPackets() {
+        return lostPackets.get();
+    }
+
+    public long getOutages() {
+        return outages.count.get();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket near = server.accept();
+                Socket far = new Socket();
+                try {
+                    far.connect(new InetSocketAddress(targetHost, targetPort), 5000);
+                } catch (IOException e) {
+                    logger.warn("Link emulator could not reach {}:{}", targetHost, targetPort, e);
+                    near.close();
+                    continue;
+                }
+                near.setTcpNoDelay(true);
+                far.setTcpNoDelay(true);
+                sockets.add(near);
+                sockets.add(far);
+                Runnable closeBoth = () -> {
+                    close(near);
+                    close(far);
+                };
+                new Pipe(near, far, uplink, closeBoth).start("link-up");
+                new Pipe(far, near, downlink, closeBoth).start("link-down");
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Link emulator failed to accept", e);
+                }
+            }
+        }
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //already gone
+        }
+    }
+
+    //drops every connection over the link
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        sockets.forEach(this::close);
+    }
+
+    //one way over the link; its bandwidth is shared by every connection
+    private static class Direction {
+        private final double nanosPerByte;
+        private final ReentrantLock lock = new ReentrantLock();
+        //System.nanoTime() at which the last packet queued finishes going out
+        private long freeAt;
+        private final AtomicLong bytes = new AtomicLong();
+
+        Direction(long bitsPerSecond) {
+            this.nanosPerByte = bitsPerSecond > 0 ? 8e9 / bitsPerSecond : 0;
+        }
+
+        //queues length bytes and returns when the last of them has gone out
+        long transmit(int length) {
+            bytes.addAndGet(length);
+            lock.lock();
+            try {
+                freeAt = Math.max(freeAt, System.nanoTime()) + (long) (length * nanosPerByte);
+                return freeAt;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //outages of the whole link, at exponentially distributed intervals
+    private static class Outages {
+        private final long meanIntervalNanos;
+        private final long durationNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long nextStart;
+        private final AtomicLong count = new AtomicLong();
+
+        Outages(long meanIntervalMillis, long durationMillis) {
+            this.meanIntervalNanos = TimeUnit.MILLISECONDS.toNanos(meanIntervalMillis);
+            this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            this.nextStart = System.nanoTime() + interval();
+        }
+
+        //when the link comes back if it is down at time, otherwise 0
+        long downUntil(long time) {
+            if (meanIntervalNanos <= 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                while (time >= nextStart + durationNanos) {
+                    nextStart += durationNanos + interval();
+                    count.incrementAndGet();
+                }
+                return time >= nextStart ? nextStart + durationNanos : 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long interval() {
+            return meanIntervalNanos <= 0 ? 0 : (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanIntervalNanos);
+        }
+    }
+
+    /**
+     * One direction of one connection: a reader that schedules what it reads
+     * and a writer that delivers it when it is due.
+     */
+    private class Pipe {
+        private final Socket from;
+        private final Socket to;
+        private final Direction direction;
+        private final Runnable closeBoth;
+        private final LinkedBlockingQueue<Segment> segments = new LinkedBlockingQueue<>();
+        private final Semaphore window;
+        private final long oneWayNanos = TimeUnit.MILLISECONDS.toNanos(profile.rttMillis()) / 2;
+        private final long jitterNanos = TimeUnit.MILLISECONDS.toNanos(profile.jitterMillis());
+        private final long retransmitNanos = TimeUnit.MILLISECONDS.toNanos(profile.rttMillis());
+        //TCP hands data over in order, so nothing arrives before what was sent ahead of it
+        private long lastArrival;
+
+        Pipe(Socket from, Socket to, Direction direction, Runnable closeBoth) {
+            this.from = from;
+            this.to = to;
+            this.direction = direction;
+            this.closeBoth = closeBoth;
+            this.window = new Semaphore(Math.max(profile.windowBytes(), READ_SIZE));
+        }
+
+        void start(String name) {
+            Thread reader = new Thread(this::read, name + "-read");
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::write, name + "-write");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void read() {
+            byte[] buffer = new byte[READ_SIZE];
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    int length = in.read(buffer);
+                    if (length < 0) {
+                        segments.put(new Segment(null, -1, Math.max(lastArrival, System.nanoTime() + oneWayNanos)));
+                        return;
+                    }
+                    window.acquire(length);
+                    segments.put(new Segment(Arrays.copyOf(buffer, length), length, arrival(length)));
+                }
+            } catch (IOException e) {
+                closeBoth.run();
+                //lets the writer go
+                segments.add(new Segment(null, -1, 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeBoth.run();
+            }
+        }
+
+        //when a read of length bytes is all there on the far side
+        private long arrival(int length) {
+            long sent = 0;
+            boolean lost = false;
+            for (int offset = 0; offset < length; offset += PACKET_SIZE) {
+                sent = direction.transmit(Math.min(PACKET_SIZE, length - offset));
+                if (profile.lossRate() > 0 && ThreadLocalRandom.current().nextDouble() < profile.lossRate()) {
+                    lostPackets.incrementAndGet();
+                    lost = true;
+                }
+            }
+            long arrival = sent + oneWayNanos;
+            if (jitterNanos > 0) {
+                arrival += ThreadLocalRandom.current().nextLong(-jitterNanos, jitterNanos + 1);
+            }
+            if (lost) {
+                //fast retransmit: the gap is noticed and filled a round trip later
+                arrival += retransmitNanos;
+            }
+            long downUntil = outages.downUntil(sent);
+            if (downUntil > 0) {
+                arrival = Math.max(arrival, downUntil + oneWayNanos);
+            }
+            arrival = Math.max(arrival, Math.max(lastArrival, sent));
+            lastArrival = arrival;
+            return arrival;
+        }
+
+        private void write() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Segment segment = segments.take();
+                    long wait;
+                    while ((wait = segment.arrival - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (segment.length < 0) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    out.write(segment.data, 0, segment.length);
+                    window.release(segment.length);
+                }
+            } catch (IOException e) {
+                closeBoth.run();
+                //lets a reader waiting for window go, to find its socket closed
+                window.release(READ_SIZE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeBoth.run();
+            }
+        }
+    }
+
+    //length -1 marks the end of the stream
+    private record Segment(byte[] data, int length, long arrival) {
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.proxy_benchmarks;
+
+/**
+ * What {@link LinkEmulator} makes a link look like. Uplink is ship to
+ * offshore, downlink offshore to ship.
+ *
+ * @param rttMillis round trip time, half of it added each way
+ * @param jitterMillis the most a segment's one-way delay varies either way
+ * @param lossRate chance of each packet being lost; a loss holds the stream up for a retransmission round trip
+ * @param uplinkBitsPerSecond shared by every connection over the link; 0 for no cap
+ * @param downlinkBitsPerSecond shared by every connection over the link; 0 for no cap
+ * @param stallIntervalMillis mean time between outages of the whole link, 0 for none
+ * @param stallMillis how long each outage lasts
+ * @param windowBytes the most a connection may have in flight each way, as a TCP window would allow
+ */
+public record LinkProfile(long rttMillis, long jitterMillis, double lossRate, long uplinkBitsPerSecond,
+                          long downlinkBitsPerSecond, long stallIntervalMillis, long stallMillis, int windowBytes) {
+
+    //a maritime VSAT link: geostationary round trip, some loss, far less up than down
+    public static final LinkProfile SATELLITE = new LinkProfile(600, 30, 0.015, 4_000_000, 20_000_000, 0, 0,
+            2 * 1024 * 1024);
+}
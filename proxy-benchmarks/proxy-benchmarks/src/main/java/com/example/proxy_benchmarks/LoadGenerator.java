@@ -0,0 +1,249 @@
+package com.example.proxy_benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passengers browsing through the ship proxy. Each one, in a loop with think
+ * time between, does one of:
+ * <ul>
+ *     <li>a page load: the page, then the site's stylesheets and scripts and
+ *     the page's images over up to {@value #LANES} connections, like a browser.
+ *     Popular pages come up far more often, and assets are cacheable, so the
+ *     ship's cache sees realistic hits</li>
+ *     <li>an API call: a small JSON GET, or a POST, never cacheable</li>
+ *     <li>a large download of a few megabytes</li>
+ * </ul>
+ * Latencies are recorded per kind once the warm-up is over: a page load as a
+ * whole and each object in it, API calls and downloads.
+ */
+class LoadGenerator {
+    private static final int LANES = 4;
+    private static final int PAGES = 200;
+    private static final int IMAGES_PER_PAGE = 6;
+    private static final int DOWNLOADS = 8;
+    private static final int READ_TIMEOUT_MILLIS = 120_000;
+    //the stylesheets and scripts every page of the site uses
+    private static final String[][] SITE_ASSETS = {{"css", "40960", "site-1"}, {"js", "122880", "site-2"},
+            {"js", "61440", "site-3"}, {"css", "15360", "site-4"}};
+    static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    private final String proxyHost;
+    private final int proxyPort;
+    private final StubOrigin origin;
+    private final int passengers;
+    private final int[] weights;
+    private final long thinkMillis;
+    private final LatencyRecorder pageLoads = new LatencyRecorder("page-load");
+    private final LatencyRecorder pageObjects = new LatencyRecorder("page-object");
+    private final LatencyRecorder apiCalls = new LatencyRecorder("api-call");
+    private final LatencyRecorder downloads = new LatencyRecorder("download");
+    private final ExecutorService lanes = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "passenger-lane");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<HttpConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requestIds = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    /**
+     * @param weights relative frequency of page loads, API calls and downloads
+     * @param thinkMillis mean pause between a passenger's activities
+     */
+    LoadGenerator(String proxyHost, int proxyPort, StubOrigin origin, int passengers, int[] weights, long thinkMillis) {
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.origin = origin;
+        this.passengers = passengers;
+        this.weights = weights;
+        this.thinkMillis = thinkMillis;
+    }
+
+    /**
+     * Runs the passengers for the warm-up and then the measured period, and
+     * returns how long was measured in nanoseconds.
+     */
+    long run(long warmupMillis, long durationMillis) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < passengers; i++) {
+            Thread thread = new Thread(this::passenger, "passenger-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(warmupMillis);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        measuring = false;
+        long measured = System.nanoTime() - start;
+        running = false;
+        //cuts off transfers in progress
+        connections.forEach(LoadGenerator::closeQuietly);
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        lanes.shutdownNow();
+        return measured;
+    }
+
+    List<LatencyRecorder.Summary> summarize() {
+        return List.of(pageLoads.summarize(), pageObjects.summarize(), apiCalls.summarize(), downloads.summarize());
+    }
+
+    private void passenger() {
+        HttpConnection[] open = new HttpConnection[LANES];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        //passengers do not all start at once
+        think(random);
+        while (running) {
+            int pick = random.nextInt(weights[0] + weights[1] + weights[2]);
+            if (pick < weights[0]) {
+                loadPage(open, random);
+            } else if (pick < weights[0] + weights[1]) {
+                callApi(open, random);
+            } else {
+                download(open, random);
+            }
+            think(random);
+        }
+        for (HttpConnection connection : open) {
+            closeQuietly(connection);
+        }
+    }
+
+    private void loadPage(HttpConnection[] open, ThreadLocalRandom random) {
+        long start = System.nanoTime();
+        //a few pages are far more popular than the rest
+        int page = (int) (PAGES * Math.pow(random.nextDouble(), 3));
+        List<String> objects = new ArrayList<>();
+        for (String[] asset : SITE_ASSETS) {
+            objects.add(origin.url(asset[0], Integer.parseInt(asset[1]), asset[2]));
+        }
+        for (int i = 0; i < IMAGES_PER_PAGE; i++) {
+            objects.add(origin.url("img", 20 * 1024 + (page * 7919 + i * 104729) % (100 * 1024), page + "-" + i));
+        }
+        long bytes = fetch(open, 0, origin.url("html", 30 * 1024 + (page * 7919) % (50 * 1024), "page-" + page),
+                null, pageObjects);
+        if (bytes < 0) {
+            record(pageLoads, -1, 0);
+            return;
+        }
+        List<Future<Long>> lanesInUse = new ArrayList<>();
+        for (int lane = 1; lane < LANES; lane++) {
+            int first = lane;
+            lanesInUse.add(lanes.submit(() -> fetchLane(open, first, objects)));
+        }
+        long ownLane = fetchLane(open, 0, objects);
+        boolean failed = ownLane < 0;
+        long total = bytes + ownLane;
+        for (Future<Long> lane : lanesInUse) {
+            try {
+                long laneBytes = lane.get();
+                failed |= laneBytes < 0;
+                total += laneBytes;
+            } catch (ExecutionException e) {
+                failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        record(pageLoads, failed ? -1 : start, total);
+    }
+
+    //the objects for one connection, every LANES-th from first; -1 if any failed
+    private long fetchLane(HttpConnection[] open, int first, List<String> objects) {
+        long total = 0;
+        for (int i = first; i < objects.size(); i += LANES) {
+            long bytes = fetch(open, first, objects.get(i), null, pageObjects);
+            if (bytes < 0) {
+                return -1;
+            }
+            total += bytes;
+        }
+        return total;
+    }
+
+    private void callApi(HttpConnection[] open, ThreadLocalRandom random) {
+        String id = "call-" + requestIds.incrementAndGet();
+        if (random.nextInt(10) < 3) {
+            byte[] body = ("{\"cabin\":" + random.nextInt(1000, 9999) + ",\"meal\":\"dinner\",\"guests\":"
+                    + random.nextInt(1, 6) + ",\"notes\":\"" + "x".repeat(900) + "\"}").getBytes(StandardCharsets.UTF_8);
+            fetch(open, 0, origin.url("json", 512, id), body, apiCalls);
+        } else {
+            fetch(open, 0, origin.url("json", 2048, id), null, apiCalls);
+        }
+    }
+
+    private void download(HttpConnection[] open, ThreadLocalRandom random) {
+        int file = random.nextInt(DOWNLOADS);
+        fetch(open, 0, origin.url("bin", (4 + file * 12 / DOWNLOADS) * 1024 * 1024, "file-" + file), null, downloads);
+    }
+
+    //one request on lane's connection, opened if need be; the body length, or -1 if it failed
+    private long fetch(HttpConnection[] open, int lane, String url, byte[] body, LatencyRecorder recorder) {
+        long start = System.nanoTime();
+        try {
+            if (open[lane] == null) {
+                open[lane] = new HttpConnection(proxyHost, proxyPort, READ_TIMEOUT_MILLIS);
+                connections.add(open[lane]);
+            }
+            long bytes = open[lane].request(url, body);
+            record(recorder, start, bytes);
+            return bytes;
+        } catch (IOException e) {
+            if (open[lane] != null) {
+                connections.remove(open[lane]);
+                closeQuietly(open[lane]);
+                open[lane] = null;
+            }
+            record(recorder, -1, 0);
+            return -1;
+        }
+    }
+
+    //a start of -1 records an error
+    private void record(LatencyRecorder recorder, long start, long bytes) {
+        if (!measuring) {
+            return;
+        }
+        if (start < 0) {
+            recorder.recordError();
+        } else {
+            recorder.record(start, bytes);
+        }
+    }
+
+    private void think(ThreadLocalRandom random) {
+        try {
+            Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * thinkMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private static void closeQuietly(HttpConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            //already closed
+        }
+    }
+}
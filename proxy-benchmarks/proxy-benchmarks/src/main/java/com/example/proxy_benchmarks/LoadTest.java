@@ -0,0 +1,233 @@
+package com.example.proxy_benchmarks;
+
+import com.example.offshore_proxy.LoopbackOffshore;
+import com.example.proxy_common.BufferPool;
+import com.example.ship_proxy.LoopbackShip;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs both proxies in this JVM with a {@link LinkEmulator} between them, a
+ * {@link StubOrigin} behind the offshore proxy and a {@link LoadGenerator} in
+ * front of the ship, then reports throughput, latency percentiles per kind
+ * of request and memory. Nothing leaves the machine.
+ * <p>
+ * Options are {@code --name=value}; see {@link #DEFAULTS}. The report is
+ * printed and written as JSON to {@code --out}. Memory covers the whole JVM,
+ * load generator and origin included, so compare runs rather than reading
+ * it as the proxies' own footprint.
+ */
+public class LoadTest {
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("passengers", "50"),
+            //relative frequency of page loads, API calls and downloads
+            Map.entry("mix", "60,35,5"),
+            Map.entry("think-millis", "3000"),
+            Map.entry("warmup-seconds", "15"),
+            Map.entry("duration-seconds", "60"),
+            Map.entry("rtt-millis", "600"),
+            Map.entry("jitter-millis", "30"),
+            Map.entry("loss", "0.015"),
+            Map.entry("uplink-kbps", "4000"),
+            Map.entry("downlink-kbps", "20000"),
+            Map.entry("stall-interval-seconds", "0"),
+            Map.entry("stall-millis", "2000"),
+            Map.entry("window-bytes", "2097152"),
+            Map.entry("origin-delay-millis", "20"),
+            Map.entry("compression", "deflate-dictionary,deflate"),
+            Map.entry("cache", "true"),
+            Map.entry("execution-mode", "platform"),
+            Map.entry("out", "load-report.json"));
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+            if (name == null || !DEFAULTS.containsKey(name)) {
+                System.err.println("Unknown option " + arg + ", expected one of --" + String.join(", --", DEFAULTS.keySet()));
+                System.exit(2);
+            }
+            options.put(name, arg.substring(equals + 1));
+        }
+        LinkProfile link = new LinkProfile(
+                Long.parseLong(options.get("rtt-millis")),
+                Long.parseLong(options.get("jitter-millis")),
+                Double.parseDouble(options.get("loss")),
+                Long.parseLong(options.get("uplink-kbps")) * 1000,
+                Long.parseLong(options.get("downlink-kbps")) * 1000,
+                Long.parseLong(options.get("stall-interval-seconds")) * 1000,
+                Long.parseLong(options.get("stall-millis")),
+                Integer.parseInt(options.get("window-bytes")));
+        String[] mix = options.get("mix").split(",");
+        int[] weights = {Integer.parseInt(mix[0].trim()), Integer.parseInt(mix[1].trim()), Integer.parseInt(mix[2].trim())};
+        String compression = options.get("compression");
+        String executionMode = options.get("execution-mode");
+
+        int offshorePort = freePort();
+        int shipPort = freePort();
+        try (StubOrigin origin = new StubOrigin(LoadGenerator.MAX_BODY_BYTES, Long.parseLong(options.get("origin-delay-millis")));
+             LoopbackOffshore offshore = new LoopbackOffshore(offshorePort, executionMode, compression);
+             LinkEmulator emulator = new LinkEmulator(link, "127.0.0.1", offshorePort);
+             LoopbackShip ship = new LoopbackShip(shipPort, "127.0.0.1", emulator.getPort(), executionMode,
+                     compression, Boolean.parseBoolean(options.get("cache")))) {
+            awaitTunnel(shipPort, origin);
+            LoadGenerator generator = new LoadGenerator("127.0.0.1", shipPort, origin,
+                    Integer.parseInt(options.get("passengers")), weights, Long.parseLong(options.get("think-millis")));
+            MemorySampler memory = new MemorySampler();
+            long measuredNanos = generator.run(TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup-seconds"))),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration-seconds"))));
+            memory.stop();
+            String report = report(options, generator.summarize(), measuredNanos, emulator, memory);
+            Files.writeString(Path.of(options.get("out")), report, StandardCharsets.UTF_8);
+            System.out.println("Report written to " + options.get("out"));
+        }
+        System.exit(0);
+    }
+
+    //the ship opens its tunnel connections in the background, a round trip or two away
+    private static void awaitTunnel(int shipPort, StubOrigin origin) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (HttpConnection connection = new HttpConnection("127.0.0.1", shipPort, 30_000)) {
+                connection.request(origin.url("json", 16, "ready-" + System.nanoTime()), null);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    private static String report(Map<String, String> options, List<LatencyRecorder.Summary> summaries,
+                                 long measuredNanos, LinkEmulator emulator, MemorySampler memory) {
+        double seconds = measuredNanos / 1e9;
+        long requests = 0;
+        long bytes = 0;
+        long errors = 0;
+        System.out.printf(Locale.ROOT, "%-12s %8s %7s %10s %10s %10s %10s%n", "", "count", "errors", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        StringBuilder json = new StringBuilder("{\n  \"options\": {");
+        String separator = "";
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            json.append(separator).append("\n    \"").append(option.getKey()).append("\": \"").append(option.getValue()).append('"');
+            separator = ",";
+        }
+        json.append("\n  },\n  \"latency\": {");
+        separator = "";
+        for (LatencyRecorder.Summary summary : summaries) {
+            System.out.printf(Locale.ROOT, "%-12s %8d %7d %10.1f %10.1f %10.1f %10.1f%n", summary.name(), summary.count(),
+                    summary.errors(), millis(summary.p50()), millis(summary.p99()), millis(summary.p999()),
+                    millis(summary.max()));
+            json.append(separator).append(String.format(Locale.ROOT, "\n    \"%s\": {\"count\": %d, \"errors\": %d, "
+                            + "\"p50Millis\": %.3f, \"p99Millis\": %.3f, \"p999Millis\": %.3f, \"maxMillis\": %.3f}",
+                    summary.name(), summary.count(), summary.errors(), millis(summary.p50()), millis(summary.p99()),
+                    millis(summary.p999()), millis(summary.max())));
+            separator = ",";
+            //a page load's bytes are its objects' bytes
+            if (!summary.name().equals("page-load")) {
+                requests += summary.count();
+                bytes += summary.bytes();
+                errors += summary.errors();
+            }
+        }
+        System.out.printf(Locale.ROOT, "throughput: %.1f requests/s, %.2f Mbit/s to clients, %d errors%n",
+                requests / seconds, bytes * 8 / seconds / 1e6, errors);
+        System.out.printf(Locale.ROOT, "link: %.1f MB up, %.1f MB down, %d packets lost, %d outages%n",
+                emulator.getUplinkBytes() / 1e6, emulator.getDownlinkBytes() / 1e6, emulator.getLostPackets(),
+                emulator.getOutages());
+        System.out.printf(Locale.ROOT, "memory: heap peak %.1f MB, direct peak %.1f MB, frame pool %.1f MB, "
+                        + "%d GCs taking %d ms%n", memory.heapPeak.get() / 1e6, memory.directPeak.get() / 1e6,
+                BufferPool.FRAMES.getCapacityBytes() / 1e6, memory.gcCount(), memory.gcMillis());
+        json.append(String.format(Locale.ROOT, "\n  },\n  \"throughput\": {\"seconds\": %.3f, \"requestsPerSecond\": %.3f, "
+                        + "\"bytesPerSecond\": %.1f, \"errors\": %d},", seconds, requests / seconds, bytes / seconds, errors))
+                .append(String.format(Locale.ROOT, "\n  \"link\": {\"uplinkBytes\": %d, \"downlinkBytes\": %d, "
+                                + "\"lostPackets\": %d, \"outages\": %d},", emulator.getUplinkBytes(),
+                        emulator.getDownlinkBytes(), emulator.getLostPackets(), emulator.getOutages()))
+                .append(String.format(Locale.ROOT, "\n  \"memory\": {\"heapPeakBytes\": %d, \"directPeakBytes\": %d, "
+                                + "\"framePoolBytes\": %d, \"gcCount\": %d, \"gcMillis\": %d}\n}\n",
+                        memory.heapPeak.get(), memory.directPeak.get(), BufferPool.FRAMES.getCapacityBytes(),
+                        memory.gcCount(), memory.gcMillis()));
+        return json.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    //peaks of heap and direct memory in use, sampled every 100 ms
+    private static class MemorySampler {
+        private final AtomicLong heapPeak = new AtomicLong();
+        private final AtomicLong directPeak = new AtomicLong();
+        private final long gcCountAtStart = gcCount();
+        private final long gcMillisAtStart = gcMillis();
+        private final Thread thread = new Thread(this::sample, "memory-sampler");
+        private volatile boolean running = true;
+
+        MemorySampler() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void sample() {
+            List<BufferPoolMXBean> pools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+            while (running) {
+                heapPeak.accumulateAndGet(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Math::max);
+                long direct = 0;
+                for (BufferPoolMXBean pool : pools) {
+                    if (pool.getName().equals("direct")) {
+                        direct += pool.getMemoryUsed();
+                    }
+                }
+                directPeak.accumulateAndGet(direct, Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count - gcCountAtStart;
+        }
+
+        long gcMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis - gcMillisAtStart;
+        }
+    }
+}
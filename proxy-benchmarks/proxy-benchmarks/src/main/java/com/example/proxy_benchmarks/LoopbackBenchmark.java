@@ -0,0 +1,142 @@
+package com.example.proxy_benchmarks;
+
+import com.example.offshore_proxy.LoopbackOffshore;
+import com.example.ship_proxy.LoopbackShip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests through both proxies on loopback: a keep-alive client per
+ * thread sends GETs to the ship proxy, which tunnels them to an offshore
+ * proxy in the same JVM, which fetches from a stub origin. Run in sample mode
+ * as well, the results carry latency percentiles. Every request has its own
+ * URL and the ship's cache is off, so each goes all the way to the origin.
+ * With {@code -p link=satellite} the tunnel goes through a
+ * {@link LinkEmulator} with the {@link LinkProfile#SATELLITE} profile. Both
+ * proxies run their blocking work on the threads {@code executionMode} names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class LoopbackBenchmark {
+
+    @Param({"none", "deflate-dictionary,deflate"})
+    public String compression;
+
+    @Param({"1024", "65536", "1048576"})
+    public int responseSize;
+
+    @Param({"loopback"})
+    public String link;
+
+    @Param({"platform", "virtual"})
+    public String executionMode;
+
+    private StubOrigin origin;
+    private LoopbackOffshore offshore;
+    private LinkEmulator emulator;
+    private LoopbackShip ship;
+    private int shipPort;
+
+    @Setup
+    public void setUp() throws Exception {
+        origin = new StubOrigin(responseSize, 0);
+        int offshorePort = freePort();
+        offshore = new LoopbackOffshore(offshorePort, executionMode, compression);
+        int tunnelPort = offshorePort;
+        if (link.equals("satellite")) {
+            emulator = new LinkEmulator(LinkProfile.SATELLITE, "127.0.0.1", offshorePort);
+            tunnelPort = emulator.getPort();
+        }
+        shipPort = freePort();
+        ship = new LoopbackShip(shipPort, "127.0.0.1", tunnelPort, executionMode, compression, false);
+        awaitTunnel();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ship.close();
+        if (emulator != null) {
+            emulator.close();
+        }
+        offshore.close();
+        origin.close();
+    }
+
+    @Benchmark
+    public long fetch(Client client) throws IOException {
+        return client.get();
+    }
+
+    //the ship opens its tunnel connections in the background; requests fail until one is up
+    private void awaitTunnel() throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            Client client = new Client();
+            try {
+                client.open(this);
+                client.get();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * One keep-alive connection to the ship proxy, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private HttpConnection connection;
+        private String target;
+        private long requests;
+
+        @Setup
+        public void open(LoopbackBenchmark loopback) throws IOException {
+            connection = new HttpConnection("127.0.0.1", loopback.shipPort, 30_000);
+            target = loopback.origin.url("html", loopback.responseSize, System.identityHashCode(this) + "-");
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        long get() throws IOException {
+            return connection.request(target + requests++, null);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.proxy_benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A local origin server for benchmarks, so nothing needs the network. The
+ * path says what to send back: {@code /<kind>/<bytes>/<anything>} answers
+ * with a body of that many bytes, kept alive. Kinds:
+ * <ul>
+ *     <li>{@code html}, {@code css}, {@code js}, {@code json}: markup and text that compress well</li>
+ *     <li>{@code img}, {@code bin}: bytes that do not compress, like images and archives</li>
+ * </ul>
+ * Request bodies are read and dropped. Each kind has the cache headers a real
+ * site would send: pages briefly cacheable, static assets for a day, API
+ * answers never.
+ */
+public class StubOrigin implements AutoCloseable {
+    private static final byte[] TEXT = ("<tr><td class=\"cabin\">Deck 7</td><td>available</td></tr>\n"
+            + "{\"cabin\":7142,\"meal\":\"dinner\",\"guests\":4,\"status\":\"confirmed\"}\n"
+            + ".itinerary .port-of-call { margin: 0 auto; font-weight: 600; }\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerSocket server;
+    //bodies are slices of these, so no request allocates one
+    private final byte[] text;
+    private final byte[] random;
+    private final long delayMillis;
+
+    /**
+     * @param maxBodyBytes the largest body any request asks for
+     * @param delayMillis time each response takes to start, standing in for the origin's own work and distance
+     */
+    public StubOrigin(int maxBodyBytes, long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        text = new byte[maxBodyBytes];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = TEXT[i % TEXT.length];
+        }
+        random = new byte[maxBodyBytes];
+        new Random(42).nextBytes(random);
+        server = new ServerSocket(0, 1024);
+        Thread acceptor = new Thread(this::accept, "stub-origin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    //the absolute URL of a body of this kind and size; id tells otherwise equal objects apart
+    public String url(String kind, int bytes, String id) {
+        return "http://127.0.0.1:" + getPort() + "/" + kind + "/" + bytes + "/" + id;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> serve(socket), "stub-origin-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                //closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                long contentLength = 0;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                        contentLength = Long.parseLong(line.substring(15).trim());
+                    }
+                }
+                if (line == null) {
+                    return;
+                }
+                in.skipNBytes(contentLength);
+                respond(requestLine, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            //the offshore proxy closed the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(String requestLine, OutputStream out) throws IOException, InterruptedException {
+        String[] path = requestLine.split(" ")[1].split("/");
+        String kind = path.length > 1 ? path[1] : "";
+        int length = path.length > 2 ? Math.min(Integer.parseInt(path[2]), text.length) : 0;
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        String contentType;
+        String cacheControl;
+        switch (kind) {
+            case "html" -> {
+                contentType = "text/html; charset=utf-8";
+                cacheControl = "max-age=60";
+            }
+            case "css" -> {
+                contentType = "text/css";
+                cacheControl = "max-age=86400";
+            }
+            case "js" -> {
+                contentType = "application/javascript";
+                cacheControl = "max-age=86400";
+            }
+            case "json" -> {
+                contentType = "application/json";
+                cacheControl = "no-store";
+            }
+            case "img" -> {
+                contentType = "image/jpeg";
+                cacheControl = "max-age=86400";
+            }
+            default -> {
+                contentType = "application/octet-stream";
+                cacheControl = "max-age=3600";
+            }
+        }
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Cache-Control: " + cacheControl + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        boolean compressible = !kind.equals("img") && !kind.equals("bin");
+        out.write(compressible ? text : random, 0, length);
+        out.flush();
+    }
+
+    //a line without its CRLF, or null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.proxy_common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tunnel frame path on its own: a 16 KB DATA frame compressed, framed and
+ * handed to a gathering write, and the same frames read back from the wire
+ * and decompressed, as {@link FrameWriter} and {@link FrameReader} do it.
+ * The channels discard and replay bytes in memory, so only the codec is
+ * measured. Run with {@code -prof gc}, {@code gc.alloc.rate.norm} of
+ * {@code decode} is the heap allocated per frame read; the payload should
+ * come from the {@link BufferPool}, leaving well under 1 KB a frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    @Param({"NONE", "DEFLATE", "DEFLATE_DICTIONARY"})
+    public CompressionCodec codec;
+
+    //html compresses well, random bytes stand in for images and archives that do not
+    @Param({"html", "random"})
+    public String payload;
+
+    private final BufferPool pool = new BufferPool(BufferPool.DEFAULT_SLOT_SIZE, 64, 4);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(FrameCodec.HEADER_LENGTH);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final DiscardingChannel out = new DiscardingChannel();
+    private FrameCompressor compressor;
+    private byte[] body;
+    private FrameReader reader;
+    private long requestId;
+
+    @Setup
+    public void setUp() throws IOException {
+        compressor = new FrameCompressor(codec, pool);
+        body = new byte[FrameCodec.DEFAULT_CHUNK_SIZE];
+        if (payload.equals("html")) {
+            byte[] line = "<tr><td class=\"cabin\">Deck 7</td><td>available</td></tr>\n".getBytes(StandardCharsets.ISO_8859_1);
+            for (int i = 0; i < body.length; i++) {
+                body[i] = line[i % line.length];
+            }
+        } else {
+            new Random(42).nextBytes(body);
+        }
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int sequence = 0; sequence < 64; sequence++) {
+            TunnelFrame frame = compressor.compress(TunnelFrame.data(1, sequence, body, body.length, false));
+            FrameCodec.write(wire, frame);
+            frame.release();
+        }
+        reader = new FrameReader(new ReplayingChannel(wire.toByteArray()), pool);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        TunnelFrame frame = compressor.compress(TunnelFrame.data(++requestId, 0, body, body.length, true));
+        try {
+            header.clear();
+            FrameCodec.putHeader(header, frame);
+            gather[0] = header.flip();
+            gather[1] = frame.getPayloadBuffer();
+            return out.write(gather);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        TunnelFrame frame = compressor.decompress(reader.read());
+        blackhole.consume(frame.getPayloadBuffer().get(frame.getLength() - 1));
+        frame.release();
+    }
+
+    //takes whatever it is given and keeps none of it
+    private static class DiscardingChannel implements GatheringByteChannel {
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    //plays the same bytes over and over, without allocating
+    private static class ReplayingChannel implements ReadableByteChannel {
+        private final ByteBuffer bytes;
+
+        ReplayingChannel(byte[] bytes) {
+            this.bytes = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (!bytes.hasRemaining()) {
+                bytes.rewind();
+            }
+            int n = Math.min(target.remaining(), bytes.remaining());
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + n);
+            target.put(bytes);
+            bytes.limit(limit);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
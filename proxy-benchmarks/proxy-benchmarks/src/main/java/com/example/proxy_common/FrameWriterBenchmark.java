@@ -0,0 +1,124 @@
+package com.example.proxy_common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small frames from several senders onto one loopback tunnel connection,
+ * whose far end reads and discards them. {@code batched} goes through a
+ * {@link FrameWriter}; {@code flushPerFrame} is the path it replaced, each
+ * frame written and flushed under a lock. How many write calls each makes is
+ * checked by {@code FrameWriterTests}; this measures what they cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class FrameWriterBenchmark {
+    private static final int PAYLOAD = 512;
+
+    @Param({"batched", "flushPerFrame"})
+    public String sink;
+
+    private final byte[] payload = new byte[PAYLOAD];
+    private final AtomicLong requestIds = new AtomicLong();
+    private ServerSocketChannel server;
+    private SocketChannel sending;
+    private SocketChannel receiving;
+    private ExecutorService executor;
+    private FrameWriter writer;
+    private FrameSink frames;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sending = SocketChannel.open(server.getLocalAddress());
+        sending.socket().setTcpNoDelay(true);
+        receiving = server.accept();
+        executor = Executors.newCachedThreadPool();
+        executor.submit(() -> {
+            InputStream in = receiving.socket().getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                //discarded
+            }
+            return null;
+        });
+        if (sink.equals("batched")) {
+            writer = new FrameWriter(sending, 256 * 1024, 100, 1024 * 1024, new FrameWriter.Stats());
+            executor.submit(writer);
+            frames = writer;
+        } else {
+            OutputStream out = new BufferedOutputStream(sending.socket().getOutputStream());
+            ReentrantLock lock = new ReentrantLock();
+            frames = frame -> {
+                lock.lock();
+                try {
+                    FrameCodec.write(out, frame);
+                    out.flush();
+                } finally {
+                    lock.unlock();
+                }
+            };
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        sending.close();
+        receiving.close();
+        server.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void send(Sender sender) throws IOException {
+        frames.send(TunnelFrame.data(sender.requestId, sender.sequence++, payload, PAYLOAD, false));
+    }
+
+    /**
+     * One sender per benchmark thread, with a request of its own.
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        private long requestId;
+        private int sequence;
+
+        @Setup
+        public void setUp(FrameWriterBenchmark benchmark) {
+            requestId = benchmark.requestIds.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.ship_proxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.reflect.Field;
+
+/**
+ * A ship proxy wired by hand with its default settings, for benchmarks that
+ * run it in the same JVM without Spring. It opens its tunnel connections in
+ * the background, so requests fail until the first one is up.
+ */
+public class LoopbackShip implements AutoCloseable {
+    private final ProxyHandler proxyHandler = new ProxyHandler();
+
+    /**
+     * Starts listening for clients on {@code port}.
+     *
+     * @param executionMode {@code platform} or {@code virtual}, as in {@code ship.proxy.execution-mode}
+     * @param compression the codecs offered, as in {@code ship.proxy.compression}
+     * @param cache whether to answer from a heap-only response cache
+     */
+    public LoopbackShip(int port, String offshoreHost, int offshorePort, String executionMode, String compression,
+                        boolean cache) throws ReflectiveOperationException {
+        set("proxyPort", port);
+        set("offshoreProxyHost", offshoreHost);
+        set("offshoreProxyPort", offshorePort);
+        set("eventLoopCount", 2);
+        set("executionMode", executionMode);
+        set("compression", compression);
+        set("streamWindow", 256 * 1024);
+        set("connectionWindow", 4 * 1024 * 1024);
+        set("maxConcurrentStreams", 256);
+        set("maxConnections", 4096);
+        set("maxPipelinedRequests", 16);
+        set("idleTimeoutSeconds", 30);
+        set("tunnelConnections", 4);
+        set("maxTunnelConnections", 8);
+        set("streamsPerTunnelConnection", 32);
+        set("writeBatchBytes", 256 * 1024);
+        set("writeBatchDelayMicros", 0L);
+        set("heartbeatIntervalMillis", 5000L);
+        set("heartbeatTimeoutMillis", 15_000L);
+        set("reconnectDelayMillis", 250L);
+        set("maxReconnectDelayMillis", 30_000L);
+        set("maxReplays", 2);
+        set("requestDeadlineSeconds", 60);
+        set("dedupStoreBytes", 16L << 20);
+        set("acceptPushes", true);
+        set("responseCache", new ResponseCache(cache, 64L << 20, 8L << 20, "", 0));
+        set("metrics", new PipelineMetrics(new SimpleMeterRegistry()));
+        proxyHandler.start();
+    }
+
+    @Override
+    public void close() {
+        proxyHandler.stop();
+    }
+
+    private void set(String name, Object value) throws ReflectiveOperationException {
+        Field field = ProxyHandler.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(proxyHandler, value);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.ship_proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a client request on the ship, as {@link ClientConnection} does it:
+ * the bytes fed to {@link HttpRequestParser} one socket read at a time, the
+ * head copied out as the first chunk for the tunnel, the body compacted away,
+ * and the lookups made when the exchange starts. {@code withInfo} adds the
+ * {@link RequestInfo} the response cache builds for a GET. {@code stringReader}
+ * is the reader the parser replaced, as a baseline; compare the two with
+ * {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestReadBenchmark {
+    private static final String BROWSER_GET = "GET http://www.example.com/deck-plans/index.html?deck=7 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-GB,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: session=4f1c2a9e7b; cabin=7142\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-None-Match: \"5e1d-61a3f2c9\"\r\n"
+            + "\r\n";
+
+    @Param({"get", "chunked-post"})
+    public String request;
+
+    //bytes per socket read; 0 hands over the whole request at once
+    @Param({"0", "512"})
+    public int readSize;
+
+    private final HttpRequestParser parser = new HttpRequestParser(new byte[4 * 1024]);
+    private ByteBuffer input;
+
+    @Setup
+    public void setUp() {
+        String text = BROWSER_GET;
+        if (request.equals("chunked-post")) {
+            StringBuilder body = new StringBuilder();
+            String line = "{\"cabin\":7142,\"meal\":\"dinner\",\"guests\":4}\n";
+            for (int chunk = 0; chunk < 8; chunk++) {
+                String data = line.repeat(24);
+                body.append(Integer.toHexString(data.length())).append("\r\n").append(data).append("\r\n");
+            }
+            body.append("0\r\n\r\n");
+            text = "POST http://api.example.com/bookings HTTP/1.1\r\n"
+                    + "Host: api.example.com\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "\r\n" + body;
+        }
+        input = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws HttpRequestParser.HttpParseException {
+        readRequest(blackhole, false);
+        parser.reset();
+    }
+
+    @Benchmark
+    public void withInfo(Blackhole blackhole) throws HttpRequestParser.HttpParseException {
+        readRequest(blackhole, true);
+        parser.reset();
+    }
+
+    /**
+     * The accumulated request turned into a String and searched for the end of
+     * the head on every read, as before the parser. It only knew Content-Length
+     * on POST and PUT, so a chunked body counts as complete after its head.
+     */
+    @Benchmark
+    public void stringReader(Blackhole blackhole) {
+        input.clear();
+        ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+        while (true) {
+            if (readSize > 0) {
+                input.limit(Math.min(input.capacity(), input.position() + readSize));
+            }
+            byte[] chunk = new byte[input.remaining()];
+            input.get(chunk);
+            requestBytes.write(chunk, 0, chunk.length);
+            String requestData = requestBytes.toString(StandardCharsets.ISO_8859_1);
+            int headerEnd = requestData.indexOf("\r\n\r\n");
+            if (headerEnd < 0) {
+                continue;
+            }
+            if (requestData.startsWith("POST") || requestData.startsWith("PUT")) {
+                int contentLengthIndex = requestData.indexOf("Content-Length:");
+                if (contentLengthIndex > 0) {
+                    int endOfLine = requestData.indexOf("\r\n", contentLengthIndex);
+                    int contentLength = Integer.parseInt(requestData.substring(contentLengthIndex + 15, endOfLine).trim());
+                    if (requestBytes.size() - (headerEnd + 4) < contentLength) {
+                        continue;
+                    }
+                }
+            }
+            blackhole.consume(requestBytes.toByteArray());
+            return;
+        }
+    }
+
+    private void readRequest(Blackhole blackhole, boolean info) throws HttpRequestParser.HttpParseException {
+        input.clear();
+        int forwarded = 0;
+        boolean started = false;
+        boolean complete = false;
+        while (!complete) {
+            if (readSize > 0) {
+                input.limit(Math.min(input.capacity(), input.position() + readSize));
+            }
+            complete = parser.parse(input);
+            if (parser.headersComplete()) {
+                byte[] chunk = Arrays.copyOfRange(parser.buffer(), forwarded, parser.length());
+                if (!started) {
+                    started = true;
+                    blackhole.consume(parser.header("content-type"));
+                    blackhole.consume(parser.header("content-encoding"));
+                    if (info) {
+                        //made before the head is compacted away, as in ProxyHandler.startRequest
+                        blackhole.consume(RequestInfo.from(parser));
+                    }
+                }
+                blackhole.consume(chunk);
+                forwarded = parser.compact();
+            }
+        }
+        blackhole.consume(parser.isKeepAlive());
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.proxy_common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size direct buffers for frame payloads, carved out of large slabs.
+ * Slabs are allocated as needed up to {@code maxSlabs} and never given back;
+ * released buffers go on a free stack and are handed out again, most recently
+ * used first. Requests larger than a slot, or made while every slot is taken,
+ * get an unpooled heap buffer instead, so the pool bounds memory rather than
+ * throughput.
+ * <p>
+ * Acquiring and releasing allocate nothing once the slabs are in place.
+ */
+public class BufferPool {
+    public static final int DEFAULT_SLOT_SIZE = FrameCodec.DEFAULT_CHUNK_SIZE;
+    private static final int SLOTS_PER_SLAB = 64;
+    //64 MB of 16 KB slots
+    private static final int DEFAULT_MAX_SLABS = 64;
+
+    //shared by the frame codec, compressor and writers of every tunnel connection in the process
+    public static final BufferPool FRAMES = new BufferPool(DEFAULT_SLOT_SIZE, SLOTS_PER_SLAB, DEFAULT_MAX_SLABS);
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final int maxSlabs;
+    //a lock rather than a monitor so virtual threads do not pin their carrier; held only to push or pop
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PooledBuffer[] free;
+    private int freeCount;
+    private int slabs;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+
+    public BufferPool(int slotSize, int slotsPerSlab, int maxSlabs) {
+        this.slotSize = slotSize;
+        this.slotsPerSlab = slotsPerSlab;
+        this.maxSlabs = maxSlabs;
+        this.free = new PooledBuffer[slotsPerSlab * maxSlabs];
+    }
+
+    /**
+     * A buffer of at least {@code length} bytes, with its position at 0 and
+     * its limit at {@code length}. The caller holds the only reference and
+     * must release it.
+     */
+    public PooledBuffer acquire(int length) {
+        if (length <= slotSize) {
+            PooledBuffer pooled = pop();
+            if (pooled != null) {
+                acquired.incrementAndGet();
+                pooled.reuse(length);
+                return pooled;
+            }
+        }
+        unpooled.incrementAndGet();
+        return new PooledBuffer(null, ByteBuffer.allocate(length));
+    }
+
+    void recycle(PooledBuffer buffer) {
+        lock.lock();
+        try {
+            free[freeCount++] = buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PooledBuffer pop() {
+        lock.lock();
+        try {
+            if (freeCount == 0 && !grow()) {
+                return null;
+            }
+            PooledBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //carves a new slab into slots on the free stack; lock held
+    private boolean grow() {
+        if (slabs == maxSlabs) {
+            return false;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(slotSize * slotsPerSlab);
+        for (int i = 0; i < slotsPerSlab; i++) {
+            free[freeCount++] = new PooledBuffer(this, slab.slice(i * slotSize, slotSize));
+        }
+        slabs++;
+        return true;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    //buffers handed out from the slabs
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    //requests served with a heap buffer because they were too large or the pool was exhausted
+    public long getUnpooled() {
+        return unpooled.get();
+    }
+
+    //pooled buffers currently held by someone
+    public int getInUse() {
+        lock.lock();
+        try {
+            return slabs * slotsPerSlab - freeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacityBytes() {
+        lock.lock();
+        try {
+            return (long) slabs * slotsPerSlab * slotSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ship's side of {@link FrameDeduplicator}: keeps the chunks a tunnel
+ * connection sent whole, up to the bytes per traffic class announced in its
+ * HELLO, and turns deduplicated frames back into plain ones. Every
+ * deduplicated frame must pass through here in the order it arrived, those of
+ * streams that are gone included, or the chunk numbers drift apart.
+ */
+public class ChunkStore {
+    private final long storeBytes;
+    private final BufferPool pool;
+    private final Stats stats;
+    private final ReentrantLock lock = new ReentrantLock();
+    //guarded by lock; one per traffic class, created on its first chunk
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ChunkWindow<byte[]>[] windows = new ChunkWindow[TunnelFrame.MAX_TRAFFIC_CLASSES];
+    private boolean closed;
+
+    public ChunkStore(long storeBytes, Stats stats) {
+        this(storeBytes, BufferPool.FRAMES, stats);
+    }
+
+    public ChunkStore(long storeBytes, BufferPool pool, Stats stats) {
+        this.storeBytes = storeBytes;
+        this.pool = pool;
+        this.stats = stats;
+    }
+
+    /**
+     * The frame with its chunks restored, or the frame itself if it was not
+     * deduplicated. Takes over the frame.
+     *
+     * @throws IOException if the frame refers to a chunk the store does not hold
+     */
+    public TunnelFrame restore(TunnelFrame frame) throws IOException {
+        if (!frame.isDeduplicated()) {
+            return frame;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Chunk store closed");
+            }
+            return restore(frame, window(frame.getTrafficClass()));
+        } finally {
+            lock.unlock();
+            frame.release();
+        }
+    }
+
+    private TunnelFrame restore(TunnelFrame frame, ChunkWindow<byte[]> window) throws IOException {
+        ByteBuffer records = frame.getPayloadBuffer();
+        if (records.remaining() < 4) {
+            throw new IOException("Deduplicated frame without a length");
+        }
+        int length = records.getInt();
+        if (length < 0 || length > records.remaining() * (long) FrameDeduplicator.MAX_CHUNK) {
+            throw new IOException("Invalid restored length " + length);
+        }
+        PooledBuffer out = pool.acquire(Math.max(length, 1));
+        try {
+            ByteBuffer target = out.buffer().clear();
+            while (records.hasRemaining()) {
+                byte kind = records.get();
+                byte[] chunk;
+                if (kind == FrameDeduplicator.REFERENCE) {
+                    int distance = records.getInt();
+                    chunk = distance > 0 ? window.get(window.next() - distance) : null;
+                    if (chunk == null) {
+                        throw new IOException("Reference to chunk " + distance + " back, which is not stored");
+                    }
+                    stats.restoredBytes.addAndGet(chunk.length);
+                } else if (kind == FrameDeduplicator.LITERAL || kind == FrameDeduplicator.RAW) {
+                    int chunkLength = records.getShort() & 0xffff;
+                    if (chunkLength > records.remaining()) {
+                        throw new IOException("Chunk of " + chunkLength + " bytes past the end of the frame");
+                    }
+                    chunk = new byte[chunkLength];
+                    records.get(chunk);
+                    if (kind == FrameDeduplicator.LITERAL) {
+                        long before = window.bytes();
+                        window.add(chunk, chunkLength, (evicted, number) -> { });
+                        stats.storedBytes.addAndGet(window.bytes() - before);
+                    }
+                } else {
+                    throw new IOException("Unknown chunk record " + kind);
+                }
+                if (chunk.length > target.remaining() || target.position() + chunk.length > length) {
+                    throw new IOException("Chunks longer than the restored length " + length);
+                }
+                target.put(chunk);
+            }
+            if (target.position() != length) {
+                throw new IOException("Chunks of " + target.position() + " bytes, " + length + " expected");
+            }
+            byte flags = (byte) (frame.getFlags() & ~TunnelFrame.FLAG_DEDUPLICATED);
+            return new TunnelFrame(frame.getType(), flags, frame.getRequestId(), frame.getSequence(), out, length,
+                    frame.isCompressible());
+        } catch (BufferUnderflowException e) {
+            out.release();
+            throw new IOException("Truncated chunk record", e);
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    //lock held
+    private ChunkWindow<byte[]> window(int trafficClass) {
+        ChunkWindow<byte[]> window = windows[trafficClass];
+        if (window == null) {
+            window = new ChunkWindow<>(storeBytes);
+            windows[trafficClass] = window;
+        }
+        return window;
+    }
+
+    //the connection is gone; its chunks are of no further use
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int i = 0; i < windows.length; i++) {
+                if (windows[i] != null) {
+                    stats.storedBytes.addAndGet(-windows[i].bytes());
+                    windows[i] = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counters shared by the chunk stores of the ship's tunnel connections.
+     */
+    public static class Stats {
+        private final AtomicLong restoredBytes = new AtomicLong();
+        private final AtomicLong storedBytes = new AtomicLong();
+
+        //bytes rebuilt from stored chunks rather than received
+        public long getRestoredBytes() {
+            return restoredBytes.get();
+        }
+
+        //chunk bytes held by the open connections
+        public long getStoredBytes() {
+            return storedBytes.get();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.proxy_common;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The chunks one side of a deduplicating connection holds for a traffic
+ * class, oldest first, numbered in the order they were added and bounded in
+ * bytes: adding a chunk first drops the oldest until it fits. The offshore
+ * proxy and the ship add the same chunks in the same order, so the offshore
+ * proxy knows which chunks the ship still has without being told. A smaller
+ * bound on the offshore side only makes it forget sooner, as a smaller window
+ * always holds a suffix of what a larger one holds.
+ * <p>
+ * Not thread safe.
+ */
+final class ChunkWindow<T> {
+    private final long capacity;
+    private Object[] items = new Object[64];
+    private int[] lengths = new int[64];
+    //ring position of the oldest chunk
+    private int head;
+    private int count;
+    //number of the oldest chunk
+    private long first;
+    private long bytes;
+
+    ChunkWindow(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a chunk, dropping the oldest ones it does not fit beside.
+     *
+     * @param evicted told about each chunk dropped, with its number
+     * @return the number of the chunk
+     */
+    long add(T item, int length, ObjLongConsumer<T> evicted) {
+        while (count > 0 && bytes + length > capacity) {
+            evicted.accept(removeOldest(), first - 1);
+        }
+        if (count == items.length) {
+            grow();
+        }
+        int slot = (head + count) % items.length;
+        items[slot] = item;
+        lengths[slot] = length;
+        count++;
+        bytes += length;
+        return first + count - 1;
+    }
+
+    //the chunk with this number, null if it was dropped or not added yet
+    @SuppressWarnings("unchecked")
+    T get(long number) {
+        if (number < first || number >= first + count) {
+            return null;
+        }
+        return (T) items[(int) ((head + number - first) % items.length)];
+    }
+
+    //the number the next chunk gets
+    long next() {
+        return first + count;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    int size() {
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeOldest() {
+        T item = (T) items[head];
+        items[head] = null;
+        bytes -= lengths[head];
+        head = (head + 1) % items.length;
+        count--;
+        first++;
+        return item;
+    }
+
+    private void grow() {
+        Object[] grownItems = new Object[items.length * 2];
+        int[] grownLengths = new int[items.length * 2];
+        for (int i = 0; i < count; i++) {
+            grownItems[i] = items[(head + i) % items.length];
+            grownLengths[i] = lengths[(head + i) % items.length];
+        }
+        items = grownItems;
+        lengths = grownLengths;
+        head = 0;
+    }
+}
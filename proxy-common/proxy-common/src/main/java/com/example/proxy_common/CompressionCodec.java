@@ -0,0 +1,71 @@
+package com.example.proxy_common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-frame payload compression negotiated in the {@link TunnelHello}. Each
+ * compressed frame is a self-contained raw Deflate stream, so frames of
+ * different requests can be interleaved freely. The dictionary variant primes
+ * Deflate with {@link HttpDictionary}, which pays off mostly on request and
+ * response heads.
+ */
+public enum CompressionCodec {
+    NONE(0, "none"),
+    DEFLATE(1, "deflate"),
+    DEFLATE_DICTIONARY(2, "deflate-dictionary");
+
+    private final byte id;
+    private final String propertyName;
+
+    CompressionCodec(int id, String propertyName) {
+        this.id = (byte) id;
+        this.propertyName = propertyName;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public boolean usesDictionary() {
+        return this == DEFLATE_DICTIONARY;
+    }
+
+    public static CompressionCodec fromId(byte id) {
+        for (CompressionCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a comma separated list of codec names, in order of preference.
+     */
+    public static List<CompressionCodec> parseList(String value) {
+        List<CompressionCodec> codecs = new ArrayList<>();
+        for (String name : value.split(",")) {
+            String trimmed = name.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            CompressionCodec match = null;
+            for (CompressionCodec codec : values()) {
+                if (codec.propertyName.equals(trimmed)) {
+                    match = codec;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown compression codec " + name.trim());
+            }
+            codecs.add(match);
+        }
+        return codecs;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.proxy_common;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for one {@link CompressionCodec}, shared by all tunnel
+ * connections using it. The proxies publish them as metrics.
+ */
+public final class CompressionStats {
+    private static final Map<CompressionCodec, CompressionStats> STATS = new EnumMap<>(CompressionCodec.class);
+
+    static {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            STATS.put(codec, new CompressionStats());
+        }
+    }
+
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    private CompressionStats() {
+    }
+
+    public static CompressionStats of(CompressionCodec codec) {
+        return STATS.get(codec);
+    }
+
+    void recordCompressed(int originalLength, int sentLength, long nanos) {
+        compressedFrames.incrementAndGet();
+        bytesIn.addAndGet(originalLength);
+        bytesOut.addAndGet(sentLength);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordSkipped() {
+        skippedFrames.incrementAndGet();
+    }
+
+    void recordDecompressed(long nanos) {
+        decompressNanos.addAndGet(nanos);
+    }
+
+    //frames that went through the compressor, including ones sent raw because they did not shrink
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    //frames not offered to the compressor: too small or marked incompressible
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    //uncompressed over sent bytes of the frames offered to the compressor
+    public double getRatio() {
+        long out = bytesOut.get();
+        return out == 0 ? 1 : (double) bytesIn.get() / out;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.proxy_common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How a proxy runs its blocking work: request and response pumps and tunnel
+ * I/O on the ship, ship connections and origin fetches offshore. Virtual
+ * threads are looked up reflectively so the proxies still build and run on
+ * Java 17; on a runtime without them {@code VIRTUAL} falls back to platform
+ * threads. Sockets served by selector loops stay there in either mode.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Logger logger = LoggerFactory.getLogger(ExecutionMode.class);
+    private static final boolean VIRTUAL_THREADS_AVAILABLE = virtualThreadsAvailable();
+
+    public static ExecutionMode fromProperty(String value) {
+        ExecutionMode mode = valueOf(value.trim().toUpperCase(Locale.ROOT));
+        if (mode == VIRTUAL && !VIRTUAL_THREADS_AVAILABLE) {
+            logger.warn("Virtual threads are not available on this runtime, using platform threads");
+            return PLATFORM;
+        }
+        return mode;
+    }
+
+    public ThreadFactory threadFactory(String namePrefix) {
+        if (this == VIRTUAL) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread factory", e);
+            }
+        }
+        AtomicLong counter = new AtomicLong();
+        return runnable -> new Thread(runnable, namePrefix + counter.getAndIncrement());
+    }
+
+    public ExecutorService newExecutor(String namePrefix) {
+        ThreadFactory factory = threadFactory(namePrefix);
+        if (this == VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    public Thread start(String name, Runnable task) {
+        Thread thread = threadFactory(name).newThread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual").invoke(null);
+            return true;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Send credit granted by the peer, for one stream or a whole connection.
+ * Senders block in {@link #acquire} until there is credit; WINDOW_UPDATE
+ * frames from the peer {@link #release} more. A frame may take the credit
+ * below zero, so a window smaller than a frame never deadlocks; the overshoot
+ * is at most one frame. Uses a lock rather than a monitor so waiting virtual
+ * threads do not pin their carrier. Senders that must not block, such as a
+ * selector loop, use {@link #tryAcquire} and {@link #whenAvailable} instead.
+ */
+public class FlowWindow {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition creditAvailable = lock.newCondition();
+    private long credit;
+    private boolean closed;
+    //run once when credit is next available, guarded by lock
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    public FlowWindow(long initialCredit) {
+        this.credit = initialCredit;
+    }
+
+    /**
+     * Waits until there is credit, then takes {@code bytes} of it.
+     *
+     * @throws IOException if the window is closed while waiting or the timeout
+     *                     passes
+     */
+    public void acquire(int bytes, long timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (credit <= 0 && !closed) {
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting " + timeoutMillis + " ms for flow control credit");
+                }
+                remaining = creditAvailable.awaitNanos(remaining);
+            }
+            if (closed) {
+                throw new IOException("Flow control window closed");
+            }
+            credit -= bytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flow control credit");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes {@code bytes} of credit if there is any, without waiting.
+     *
+     * @return false if there is none or the window is closed
+     */
+    public boolean tryAcquire(int bytes) {
+        lock.lock();
+        try {
+            if (credit <= 0 || closed) {
+                return false;
+            }
+            credit -= bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the listener once, when there is credit or the window is closed:
+     * right away if that is already so, otherwise on the thread that releases
+     * credit or closes the window, so it should only hand work off.
+     */
+    public void whenAvailable(Runnable listener) {
+        lock.lock();
+        try {
+            if (credit <= 0 && !closed) {
+                listeners.add(listener);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        listener.run();
+    }
+
+    public void release(long bytes) {
+        List<Runnable> waiting = null;
+        lock.lock();
+        try {
+            credit += bytes;
+            if (credit > 0) {
+                creditAvailable.signalAll();
+                waiting = takeListeners();
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(waiting);
+    }
+
+    //wakes up blocked senders, which then fail
+    public void close() {
+        List<Runnable> waiting;
+        lock.lock();
+        try {
+            closed = true;
+            creditAvailable.signalAll();
+            waiting = takeListeners();
+        } finally {
+            lock.unlock();
+        }
+        runAll(waiting);
+    }
+
+    //lock held
+    private List<Runnable> takeListeners() {
+        if (listeners.isEmpty()) {
+            return null;
+        }
+        List<Runnable> taken = new ArrayList<>(listeners);
+        listeners.clear();
+        return taken;
+    }
+
+    private static void runAll(List<Runnable> waiting) {
+        if (waiting != null) {
+            waiting.forEach(Runnable::run);
+        }
+    }
+
+    public long getCredit() {
+        lock.lock();
+        try {
+            return credit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
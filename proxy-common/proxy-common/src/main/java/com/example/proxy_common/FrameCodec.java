@@ -0,0 +1,51 @@
+package com.example.proxy_common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of a tunnel frame:
+ * {@code [1 type][1 flags][8 request id][4 sequence][4 length][payload]}.
+ */
+public final class FrameCodec {
+    public static final int HEADER_LENGTH = 18;
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    public static void write(OutputStream out, TunnelFrame frame) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        putHeader(header, frame);
+        out.write(header.array());
+        if (frame.getLength() > 0) {
+            out.write(frame.getPayload(), 0, frame.getLength());
+        }
+    }
+
+    //puts the frame's header, without its payload, at the buffer's position
+    public static void putHeader(ByteBuffer header, TunnelFrame frame) {
+        header.put(frame.getType());
+        header.put(frame.getFlags());
+        header.putLong(frame.getRequestId());
+        header.putInt(frame.getSequence());
+        header.putInt(frame.getLength());
+    }
+
+    public static TunnelFrame read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        long requestId = in.readLong();
+        int sequence = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length " + length + " for request ID " + requestId);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new TunnelFrame(type, flags, requestId, sequence, payload, length);
+    }
+}
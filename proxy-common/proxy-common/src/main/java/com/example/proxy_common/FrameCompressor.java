@@ -0,0 +1,184 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads with the codec negotiated for a
+ * tunnel connection. A compressed payload is {@code [4 original length]}
+ * followed by raw Deflate data. Frames that are small, marked incompressible
+ * or that don't shrink are sent as they are. Safe for concurrent use; the
+ * native Deflate state is pooled rather than held per thread, since workers
+ * may be virtual threads.
+ * <p>
+ * Output payloads come from the {@link BufferPool}. When a call returns a new
+ * frame it has released the one it was given.
+ */
+public class FrameCompressor {
+    //below this a Deflate block costs more than it saves
+    public static final int MIN_COMPRESS_LENGTH = 128;
+
+    private final CompressionCodec codec;
+    private final CompressionStats stats;
+    private final BufferPool pool;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    public FrameCompressor(CompressionCodec codec) {
+        this(codec, BufferPool.FRAMES);
+    }
+
+    public FrameCompressor(CompressionCodec codec, BufferPool pool) {
+        this.codec = codec;
+        this.stats = CompressionStats.of(codec);
+        this.pool = pool;
+    }
+
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the frame to put on the wire: compressed if that makes it
+     * smaller, otherwise the frame itself.
+     */
+    public TunnelFrame compress(TunnelFrame frame) {
+        if (codec == CompressionCodec.NONE || frame.getType() != TunnelFrame.TYPE_DATA) {
+            return frame;
+        }
+        int length = frame.getLength();
+        if (!frame.isCompressible() || length < MIN_COMPRESS_LENGTH) {
+            stats.recordSkipped();
+            return frame;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = acquireDeflater();
+        //only worth it if the result, length prefix included, is smaller
+        PooledBuffer out = pool.acquire(length);
+        try {
+            deflater.setInput(frame.getPayloadBuffer());
+            deflater.finish();
+            ByteBuffer target = out.buffer().position(4);
+            int compressed = deflater.deflate(target);
+            if (!deflater.finished()) {
+                out.release();
+                stats.recordCompressed(length, length, System.nanoTime() - start);
+                return frame;
+            }
+            target.putInt(0, length);
+            stats.recordCompressed(length, compressed + 4, System.nanoTime() - start);
+            frame.release();
+            return new TunnelFrame(frame.getType(), (byte) (frame.getFlags() | TunnelFrame.FLAG_COMPRESSED),
+                    frame.getRequestId(), frame.getSequence(), out, compressed + 4, true);
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * Restores the payload of a received frame if it was compressed.
+     */
+    public TunnelFrame decompress(TunnelFrame frame) throws IOException {
+        if (!frame.isCompressed()) {
+            return frame;
+        }
+        if (codec == CompressionCodec.NONE || frame.getLength() < 4) {
+            throw new IOException("Unexpected compressed frame for request ID " + frame.getRequestId());
+        }
+        ByteBuffer in = frame.getPayloadBuffer();
+        int length = in.getInt(0);
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid uncompressed length " + length + " for request ID " + frame.getRequestId());
+        }
+        long start = System.nanoTime();
+        Inflater inflater = acquireInflater();
+        PooledBuffer out = pool.acquire(length);
+        boolean inflated = false;
+        try {
+            inflater.setInput(in.position(4));
+            ByteBuffer target = out.buffer();
+            while (target.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (target.hasRemaining()) {
+                throw new IOException("Truncated compressed frame for request ID " + frame.getRequestId());
+            }
+            stats.recordDecompressed(System.nanoTime() - start);
+            inflated = true;
+            frame.release();
+            return new TunnelFrame(frame.getType(), (byte) (frame.getFlags() & ~TunnelFrame.FLAG_COMPRESSED),
+                    frame.getRequestId(), frame.getSequence(), out, length, true);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame for request ID " + frame.getRequestId(), e);
+        } finally {
+            if (!inflated) {
+                out.release();
+            }
+            releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Whether an HTTP body with these headers is worth compressing. Bodies that
+     * are already compressed (content-coded, images, media, archives) are not.
+     */
+    public static boolean isCompressible(String contentType, String contentEncoding) {
+        if (contentEncoding != null && !contentEncoding.isBlank()
+                && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return false;
+        }
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/")) {
+            return type.startsWith("image/svg") || type.startsWith("image/bmp");
+        }
+        return !(type.startsWith("video/") || type.startsWith("audio/") || type.startsWith("font/woff")
+                || type.startsWith("application/zip") || type.startsWith("application/gzip")
+                || type.startsWith("application/x-gzip") || type.startsWith("application/x-7z")
+                || type.startsWith("application/x-rar") || type.startsWith("application/pdf"));
+    }
+
+    private Deflater acquireDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        if (codec.usesDictionary()) {
+            deflater.setDictionary(HttpDictionary.BYTES);
+        }
+        return deflater;
+    }
+
+    private void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        deflaters.offer(deflater);
+    }
+
+    private Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        if (codec.usesDictionary()) {
+            inflater.setDictionary(HttpDictionary.BYTES);
+        }
+        return inflater;
+    }
+
+    private void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        inflaters.offer(inflater);
+    }
+}
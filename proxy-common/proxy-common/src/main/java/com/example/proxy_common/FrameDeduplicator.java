@@ -0,0 +1,439 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Sends response bytes the ship already has as references to them. Each
+ * stream is cut into chunks where a gear rolling hash of the last bytes hits
+ * a boundary pattern, so the cuts depend on the content rather than on where
+ * it starts: a body that differs from an earlier one by a few bytes, or sits
+ * behind a longer head, is still cut into the same chunks around the change.
+ * Chunks the ship holds go out as references, the others whole, and the ship
+ * keeps those up to the chunk store size it announced in its HELLO.
+ * <p>
+ * One per tunnel connection, with an index per traffic class: frames of one
+ * class on one connection reach the ship in the order they were queued, which
+ * is what lets both sides number the chunks alike, see {@link ChunkWindow}.
+ * So choosing references and queuing the frames that carry them happen under
+ * the class's lock, compression included.
+ * <p>
+ * A deduplicated DATA frame carries {@link TunnelFrame#FLAG_DEDUPLICATED}
+ * and the payload {@code [4 restored length]} followed by records:
+ * {@code [1 kind][2 length][bytes]} for a chunk the ship keeps as its next one
+ * ({@code LITERAL}) or only passes on ({@code RAW}, pieces too short to be
+ * worth an index entry), and {@code [1 kind][4 distance]} for the chunk that
+ * many before the ship's next one ({@code REFERENCE}). Flow control counts the
+ * restored bytes.
+ */
+public class FrameDeduplicator {
+    static final byte RAW = 0;
+    static final byte LITERAL = 1;
+    static final byte REFERENCE = 2;
+    static final int MIN_CHUNK = 512;
+    static final int MAX_CHUNK = 8 * 1024;
+    //the smallest store that holds a chunk of any length
+    public static final int MIN_STORE_BYTES = MAX_CHUNK;
+    //the top 11 bits, which depend on the most bytes: a boundary about every 2 KB past the minimum
+    private static final long BOUNDARY_MASK = -1L << 53;
+    //restored length, then one literal chunk with its record header
+    private static final int MIN_FRAME_LENGTH = 4 + 3 + MAX_CHUNK;
+    //what an index entry costs the heap, roughly: key, boxed number, map node and window slot
+    static final int INDEX_ENTRY_BYTES = 112;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5350585944454455L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final long storeBytes;
+    private final int fullFrameLength;
+    private final int maxFrameLength;
+    private final BufferPool pool;
+    private final Stats stats;
+    private final AtomicReferenceArray<ClassIndex> indexes = new AtomicReferenceArray<>(TunnelFrame.MAX_TRAFFIC_CLASSES);
+    private final ConcurrentLinkedQueue<MessageDigest> digests = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * @param storeBytes chunk bytes the ship keeps per traffic class
+     * @param fullFrameLength the length of a full frame from the response streams; a shorter one was flushed and
+     *                        goes out without waiting for the rest of its chunk
+     */
+    public FrameDeduplicator(long storeBytes, int fullFrameLength, Stats stats) {
+        this(storeBytes, fullFrameLength, BufferPool.FRAMES, stats);
+    }
+
+    public FrameDeduplicator(long storeBytes, int fullFrameLength, BufferPool pool, Stats stats) {
+        if (storeBytes < MIN_STORE_BYTES) {
+            throw new IllegalArgumentException("A chunk store of " + storeBytes + " bytes holds no chunk");
+        }
+        this.storeBytes = storeBytes;
+        this.fullFrameLength = fullFrameLength;
+        this.maxFrameLength = Math.max(fullFrameLength, MIN_FRAME_LENGTH);
+        this.pool = pool;
+        this.stats = stats;
+    }
+
+    //the state of one response stream, used by the thread writing it
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    //the connection is gone, and with it what the ship stored for it
+    public void close() {
+        closed = true;
+        for (int i = 0; i < indexes.length(); i++) {
+            ClassIndex index = indexes.get(i);
+            if (index != null) {
+                index.lock.lock();
+                try {
+                    stats.indexEntries.addAndGet(-index.window.size());
+                    index.clear();
+                } finally {
+                    index.lock.unlock();
+                }
+            }
+        }
+    }
+
+    private ClassIndex index(int trafficClass) {
+        ClassIndex index = indexes.get(trafficClass);
+        if (index == null) {
+            indexes.compareAndSet(trafficClass, null, new ClassIndex(storeBytes));
+            index = indexes.get(trafficClass);
+        }
+        return index;
+    }
+
+    private MessageDigest acquireDigest() {
+        MessageDigest digest = digests.poll();
+        if (digest != null) {
+            return digest;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The chunks of one response. Between frames it holds the bytes of the
+     * chunk that has not ended yet; only a flushed frame or the end of the
+     * stream sends them without waiting for the boundary.
+     */
+    public final class Stream {
+        private PooledBuffer carry;
+        private int carried;
+        private long gear;
+        private int sequence;
+        //the frame between prepare and send, cut into pieces ending at these offsets past the carried bytes
+        private TunnelFrame frame;
+        private int[] ends = new int[16];
+        private ChunkKey[] keys = new ChunkKey[16];
+        private int pieces;
+        private int cut;
+
+        private Stream() {
+        }
+
+        /**
+         * Cuts the frame's payload, after the bytes earlier frames left, into
+         * chunks; {@link #send} then sends them. The stream owns the frame
+         * from here.
+         *
+         * @return the bytes that go out, as the ship will count them
+         */
+        public int prepare(TunnelFrame frame) {
+            this.frame = frame;
+            pieces = 0;
+            ByteBuffer payload = frame.getPayloadBuffer();
+            int total = carried + frame.getLength();
+            int start = 0;
+            long hash = gear;
+            for (int position = carried; position < total; position++) {
+                hash = (hash << 1) + GEAR[payload.get(position - carried) & 0xff];
+                int length = position + 1 - start;
+                if (length >= MAX_CHUNK || length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) {
+                    addPiece(position + 1);
+                    start = position + 1;
+                    hash = 0;
+                }
+            }
+            //a short frame was flushed: whoever wrote it wants the ship to see it now
+            if ((frame.isEndStream() || frame.getLength() < fullFrameLength) && start < total) {
+                addPiece(total);
+                start = total;
+            }
+            gear = start == total ? 0 : hash;
+            cut = start;
+            int from = 0;
+            for (int i = 0; i < pieces; i++) {
+                keys[i] = ends[i] - from >= MIN_CHUNK ? digest(from, ends[i]) : null;
+                from = ends[i];
+            }
+            return cut;
+        }
+
+        /**
+         * Sends the chunks of the prepared frame as one or more frames, each
+         * passed through {@code encoder} on its way to the sink, and keeps
+         * the unfinished chunk for the next frame.
+         */
+        public void send(UnaryOperator<TunnelFrame> encoder, FrameSink sink) throws IOException {
+            TunnelFrame frame = this.frame;
+            this.frame = null;
+            try {
+                if (pieces > 0 || frame.isEndStream()) {
+                    ClassIndex index = index(frame.getTrafficClass());
+                    index.lock.lock();
+                    try {
+                        if (closed) {
+                            throw new IOException("Tunnel connection closed");
+                        }
+                        emit(frame, index, encoder, sink);
+                    } finally {
+                        index.lock.unlock();
+                    }
+                }
+                keepTail(frame);
+            } finally {
+                frame.release();
+            }
+        }
+
+        //gives back what the stream holds, once it ended or failed
+        public void discard() {
+            if (frame != null) {
+                frame.release();
+                frame = null;
+            }
+            if (carry != null) {
+                carry.release();
+                carry = null;
+            }
+            carried = 0;
+        }
+
+        //index lock held
+        private void emit(TunnelFrame frame, ClassIndex index, UnaryOperator<TunnelFrame> encoder, FrameSink sink)
+                throws IOException {
+            byte flags = TunnelFrame.classFlags(frame.getTrafficClass());
+            if (pieces == 0 || pieces == 1 && keys[0] == null) {
+                //nothing worth an index entry: send the bytes as they are
+                PooledBuffer out = pool.acquire(Math.max(cut, 1));
+                copy(frame, 0, cut, out.buffer().clear());
+                stats.record(cut, cut);
+                sink.send(encoder.apply(new TunnelFrame(TunnelFrame.TYPE_DATA,
+                        (byte) (flags | (frame.isEndStream() ? TunnelFrame.FLAG_END_STREAM : 0)), frame.getRequestId(),
+                        sequence++, out, cut, frame.isCompressible())));
+                return;
+            }
+            PooledBuffer out = null;
+            ByteBuffer target = null;
+            int restored = 0;
+            int from = 0;
+            for (int i = 0; i < pieces; i++) {
+                int length = ends[i] - from;
+                ChunkKey key = keys[i];
+                Long number = key == null ? null : index.numbers.get(key);
+                int recordLength = number != null ? 5 : 3 + length;
+                //the restored frame must fit a frame buffer on the ship too
+                if (out != null && (target.position() + recordLength > maxFrameLength
+                        || restored + length > maxFrameLength)) {
+                    sendFrame(frame, flags, out, restored, false, encoder, sink);
+                    out = null;
+                }
+                if (out == null) {
+                    out = pool.acquire(maxFrameLength);
+                    target = out.buffer().clear().position(4);
+                    restored = 0;
+                }
+                if (number != null) {
+                    target.put(REFERENCE).putInt((int) (index.window.next() - number));
+                    stats.referenced(length);
+                } else {
+                    target.put(key == null ? RAW : LITERAL).putShort((short) length);
+                    copy(frame, from, ends[i], target);
+                    if (key != null) {
+                        index.add(key, length, stats);
+                    }
+                }
+                restored += length;
+                from = ends[i];
+            }
+            sendFrame(frame, flags, out, restored, frame.isEndStream(), encoder, sink);
+        }
+
+        private void sendFrame(TunnelFrame frame, byte flags, PooledBuffer out, int restored, boolean endStream,
+                               UnaryOperator<TunnelFrame> encoder, FrameSink sink) throws IOException {
+            ByteBuffer target = out.buffer();
+            int length = target.position();
+            target.putInt(0, restored);
+            stats.record(restored, length);
+            flags |= TunnelFrame.FLAG_DEDUPLICATED | (endStream ? TunnelFrame.FLAG_END_STREAM : 0);
+            sink.send(encoder.apply(new TunnelFrame(TunnelFrame.TYPE_DATA, flags, frame.getRequestId(), sequence++,
+                    out, length, frame.isCompressible())));
+        }
+
+        //keeps the bytes past the last cut, which start the next frame's first chunk
+        private void keepTail(TunnelFrame frame) {
+            int tail = carried + frame.getLength() - cut;
+            if (tail == 0) {
+                if (carry != null) {
+                    carry.release();
+                    carry = null;
+                }
+                carried = 0;
+                return;
+            }
+            if (carry == null) {
+                carry = pool.acquire(MAX_CHUNK);
+            }
+            ByteBuffer kept = carry.buffer().clear();
+            if (cut >= carried) {
+                kept.put(0, frame.getPayloadBuffer(), cut - carried, tail);
+            } else {
+                //no boundary in this frame, the chunk goes on
+                kept.put(carried, frame.getPayloadBuffer(), 0, frame.getLength());
+            }
+            carried = tail;
+        }
+
+        private void addPiece(int end) {
+            if (pieces == ends.length) {
+                ends = Arrays.copyOf(ends, pieces * 2);
+                keys = Arrays.copyOf(keys, pieces * 2);
+            }
+            ends[pieces++] = end;
+        }
+
+        //copies bytes from..to, counted from the start of the carried ones, to the target's position
+        private void copy(TunnelFrame frame, int from, int to, ByteBuffer target) {
+            if (from < carried) {
+                int length = Math.min(to, carried) - from;
+                target.put(target.position(), carry.buffer().clear(), from, length);
+                target.position(target.position() + length);
+                from += length;
+            }
+            if (from < to) {
+                target.put(target.position(), frame.getPayloadBuffer(), from - carried, to - from);
+                target.position(target.position() + to - from);
+            }
+        }
+
+        private ChunkKey digest(int from, int to) {
+            MessageDigest digest = acquireDigest();
+            try {
+                if (from < carried) {
+                    ByteBuffer kept = carry.buffer().clear();
+                    digest.update(kept.limit(Math.min(to, carried)).position(from));
+                }
+                if (to > carried) {
+                    ByteBuffer payload = frame.getPayloadBuffer();
+                    digest.update(payload.limit(to - carried).position(Math.max(from, carried) - carried));
+                }
+                ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+                return new ChunkKey(hash.getLong(), hash.getLong());
+            } finally {
+                digests.offer(digest);
+            }
+        }
+    }
+
+    //the first 128 bits of a chunk's SHA-256
+    private record ChunkKey(long high, long low) {
+    }
+
+    //what the ship holds of one traffic class on this connection
+    private static final class ClassIndex {
+        final ReentrantLock lock = new ReentrantLock();
+        ChunkWindow<ChunkKey> window;
+        //the newest number each chunk was sent under
+        final Map<ChunkKey, Long> numbers = new HashMap<>();
+
+        ClassIndex(long storeBytes) {
+            window = new ChunkWindow<>(storeBytes);
+        }
+
+        void clear() {
+            window = new ChunkWindow<>(window.capacity());
+            numbers.clear();
+        }
+
+        void add(ChunkKey key, int length, Stats stats) {
+            int before = window.size();
+            long number = window.add(key, length, (evicted, evictedNumber) -> numbers.remove(evicted, evictedNumber));
+            numbers.put(key, number);
+            stats.indexEntries.addAndGet(window.size() - before);
+        }
+    }
+
+    /**
+     * Counters shared by the deduplicators of one side of the tunnel. Bytes
+     * in over bytes out is what deduplication saved, before compression.
+     */
+    public static class Stats {
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong referencedChunks = new AtomicLong();
+        private final AtomicLong referencedBytes = new AtomicLong();
+        private final AtomicLong indexEntries = new AtomicLong();
+
+        void record(int restored, int sent) {
+            bytesIn.addAndGet(restored);
+            bytesOut.addAndGet(sent);
+        }
+
+        void referenced(int length) {
+            referencedChunks.incrementAndGet();
+            referencedBytes.addAndGet(length);
+        }
+
+        //response bytes the deduplicators were given
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        //payload bytes they made of them, record headers included
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getBytesSaved() {
+            return Math.max(0, bytesIn.get() - bytesOut.get());
+        }
+
+        public long getReferencedChunks() {
+            return referencedChunks.get();
+        }
+
+        public long getReferencedBytes() {
+            return referencedBytes.get();
+        }
+
+        //chunks the ships hold as far as the open connections know
+        public long getIndexEntries() {
+            return indexEntries.get();
+        }
+
+        public long getIndexBytes() {
+            return indexEntries.get() * INDEX_ENTRY_BYTES;
+        }
+    }
+}
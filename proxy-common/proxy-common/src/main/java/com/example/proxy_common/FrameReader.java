@@ -0,0 +1,124 @@
+package com.example.proxy_common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the frames of one tunnel connection, see {@link FrameCodec} for the
+ * format. Headers are parsed in place from a direct read buffer and DATA
+ * payloads are copied into buffers from the pool, so a steady stream of frames
+ * allocates nothing but the frame objects. Payloads larger than the read
+ * buffer are read straight into their own buffer. Control frames are small
+ * and keep array payloads. Not thread safe; each connection has one reader.
+ */
+public class FrameReader {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final BufferPool pool;
+    private final Stats stats;
+    //kept flipped: what has been read but not yet parsed is between position and limit
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).flip();
+
+    public FrameReader(ReadableByteChannel channel, BufferPool pool) {
+        this(channel, pool, new Stats());
+    }
+
+    public FrameReader(ReadableByteChannel channel, BufferPool pool, Stats stats) {
+        this.channel = channel;
+        this.pool = pool;
+        this.stats = stats;
+    }
+
+    /**
+     * The next frame. A pooled payload belongs to the caller.
+     *
+     * @throws EOFException if the peer closed the connection
+     */
+    public TunnelFrame read() throws IOException {
+        fill(FrameCodec.HEADER_LENGTH);
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        long requestId = buffer.getLong();
+        int sequence = buffer.getInt();
+        int length = buffer.getInt();
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length " + length + " for request ID " + requestId);
+        }
+        stats.frames.incrementAndGet();
+        stats.bytes.addAndGet(FrameCodec.HEADER_LENGTH + length);
+        if (type != TunnelFrame.TYPE_DATA || length == 0) {
+            byte[] payload = length == 0 ? TunnelFrame.EMPTY : new byte[length];
+            readPayload(ByteBuffer.wrap(payload));
+            return new TunnelFrame(type, flags, requestId, sequence, payload, length);
+        }
+        PooledBuffer payload = pool.acquire(length);
+        try {
+            readPayload(payload.buffer());
+        } catch (IOException | RuntimeException e) {
+            payload.release();
+            throw e;
+        }
+        return new TunnelFrame(type, flags, requestId, sequence, payload, length, true);
+    }
+
+    //fills target up to its limit, first from what is buffered, then from the channel
+    private void readPayload(ByteBuffer target) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + Math.min(buffer.remaining(), target.remaining()));
+        target.put(buffer);
+        buffer.limit(limit);
+        while (target.remaining() >= buffer.capacity()) {
+            //a large payload goes straight where it belongs
+            readSome(target);
+        }
+        if (target.hasRemaining()) {
+            fill(target.remaining());
+            limit = buffer.limit();
+            buffer.limit(buffer.position() + target.remaining());
+            target.put(buffer);
+            buffer.limit(limit);
+        }
+    }
+
+    //makes sure at least count bytes are buffered; count is at most the buffer's capacity
+    private void fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < count) {
+                readSome(buffer);
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private void readSome(ByteBuffer target) throws IOException {
+        if (channel.read(target) < 0) {
+            throw new EOFException("Tunnel connection closed by peer");
+        }
+    }
+
+    /**
+     * Read counters, shared by the readers of one side of the tunnel. Bytes
+     * are as they came off the wire, before decompression.
+     */
+    public static class Stats {
+        private final AtomicLong frames = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        public long getFrames() {
+            return frames.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+
+/**
+ * Destination for outgoing tunnel frames, usually a locked write to the tunnel
+ * socket.
+ */
+public interface FrameSink {
+    void send(TunnelFrame frame) throws IOException;
+}
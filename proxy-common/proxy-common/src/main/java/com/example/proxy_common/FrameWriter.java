@@ -0,0 +1,320 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the frames of one tunnel connection from a dedicated thread, run by
+ * the owner. Senders only enqueue; the writer drains whatever has piled up
+ * into one gathering write of headers and payloads, so a busy connection
+ * makes a few large writes instead of a write and flush per frame under a
+ * lock. It may linger up to {@code maxBatchDelayMicros} for a batch to fill;
+ * 0 writes as soon as there is something to write.
+ * <p>
+ * DATA and RESET frames queue by their traffic class and the writer takes
+ * from the classes by deficit round robin, so a class gets the connection in
+ * proportion to its weight whenever several have frames waiting. Other
+ * control frames go ahead of them, so credit reaches the peer without waiting
+ * behind bulk data. Frames of one class from one thread go out in the order
+ * sent. DATA senders wait while more than {@code maxQueuedBytes} of their
+ * class are queued, so a backlogged class holds up only its own senders;
+ * control frames never wait, so the tunnel reader can always answer. Pooled
+ * payloads are released once written, or when the frame is dropped.
+ */
+public class FrameWriter implements FrameSink, Runnable {
+    private static final int MAX_BATCH_FRAMES = 256;
+    //bytes a class of weight 1 may write per round: a full default chunk
+    private static final int QUANTUM = 16 * 1024 + FrameCodec.HEADER_LENGTH;
+
+    private final GatheringByteChannel channel;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayNanos;
+    private final long maxQueuedBytes;
+    private final Stats stats;
+    private final WeightedFairQueue<TunnelFrame> queue = new WeightedFairQueue<>(TunnelFrame.MAX_TRAFFIC_CLASSES,
+            QUANTUM, frame -> FrameCodec.HEADER_LENGTH + frame.getLength());
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong[] classQueuedBytes = new AtomicLong[TunnelFrame.MAX_TRAFFIC_CLASSES];
+    //a lock rather than a monitor so virtual threads waiting for room do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    //direct, like the pooled payloads, so the channel writes them without a copy
+    private final ByteBuffer headers = ByteBuffer.allocateDirect(MAX_BATCH_FRAMES * FrameCodec.HEADER_LENGTH);
+    private final ByteBuffer[] headerSlices = new ByteBuffer[MAX_BATCH_FRAMES];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH_FRAMES * 2];
+    private final TunnelFrame[] batch = new TunnelFrame[MAX_BATCH_FRAMES];
+    private volatile Thread writer;
+    //set by shutdownOutput: what is queued is written, then the output side is closed
+    private volatile boolean shutdown;
+    private volatile boolean closed;
+    //guarded by lock
+    private boolean writerStopped;
+    private volatile IOException failure;
+
+    public FrameWriter(GatheringByteChannel channel, int maxBatchBytes, long maxBatchDelayMicros, long maxQueuedBytes,
+                       Stats stats) {
+        this.channel = channel;
+        this.maxBatchBytes = Math.max(FrameCodec.HEADER_LENGTH, maxBatchBytes);
+        this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.stats = stats;
+        for (int i = 0; i < MAX_BATCH_FRAMES; i++) {
+            headerSlices[i] = headers.slice(i * FrameCodec.HEADER_LENGTH, FrameCodec.HEADER_LENGTH);
+        }
+        for (int i = 0; i < classQueuedBytes.length; i++) {
+            classQueuedBytes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Shares of the connection per traffic class, in class order, once the
+     * classes are known; until then every class has weight 1.
+     */
+    public void setClassWeights(List<Integer> weights) {
+        queue.setWeights(weights);
+    }
+
+    @Override
+    public void send(TunnelFrame frame) throws IOException {
+        if (closed) {
+            frame.release();
+            checkOpen();
+        }
+        int size = FrameCodec.HEADER_LENGTH + frame.getLength();
+        queuedBytes.addAndGet(size);
+        stats.queued.addAndGet(size);
+        long classQueued = 0;
+        if (frame.isData() || frame.isReset()) {
+            classQueued = classQueuedBytes[frame.getTrafficClass()].addAndGet(size);
+            queue.offer(frame.getTrafficClass(), frame);
+        } else {
+            queue.offerUrgent(frame);
+        }
+        if (closed) {
+            //the writer may have stopped before it could see this frame
+            releaseQueued(false);
+            checkOpen();
+        }
+        if (classQueued > maxQueuedBytes && frame.isData() && frame.getLength() > 0) {
+            awaitRoom(classQueuedBytes[frame.getTrafficClass()]);
+        }
+    }
+
+    //writes what is queued, then half-closes the connection so the peer sees the end
+    public void shutdownOutput() {
+        shutdown = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Shuts down the output after what is queued and waits up to
+     * {@code timeoutMillis} for it to be written.
+     */
+    public void finish(long timeoutMillis) {
+        shutdownOutput();
+        try {
+            finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //stops writing; queued frames are dropped and waiting senders fail
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        signalDrained();
+    }
+
+    @Override
+    public void run() {
+        writer = Thread.currentThread();
+        queue.setConsumer(writer);
+        try {
+            while (!closed) {
+                if (queue.isEmpty()) {
+                    if (shutdown) {
+                        if (channel instanceof SocketChannel socketChannel) {
+                            socketChannel.shutdownOutput();
+                        }
+                        return;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                linger();
+                writeBatch();
+                signalDrained();
+            }
+        } catch (IOException e) {
+            failure = e;
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //the reader sees the closed channel and cleans up
+            }
+        } finally {
+            closed = true;
+            releaseQueued(true);
+            signalDrained();
+            finished.countDown();
+        }
+    }
+
+    //gives senders up to the batch delay to fill the batch
+    private void linger() {
+        if (maxBatchDelayNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        long remaining;
+        while (queuedBytes.get() < maxBatchBytes && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+            //senders unpark us as they queue, so this wakes to re-check the size
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    //writes queued frames, up to the batch limits and in the order the classes' weights give, in one gathering write
+    private void writeBatch() throws IOException {
+        int count = 0;
+        int frames = 0;
+        long bytes = 0;
+        TunnelFrame frame;
+        while (frames < MAX_BATCH_FRAMES && (frames == 0 || bytes < maxBatchBytes) && (frame = queue.poll()) != null) {
+            ByteBuffer header = headerSlices[frames].clear();
+            FrameCodec.putHeader(header, frame);
+            buffers[count++] = header.flip();
+            if (frame.getLength() > 0) {
+                buffers[count++] = frame.getPayloadBuffer();
+            }
+            batch[frames++] = frame;
+            bytes += FrameCodec.HEADER_LENGTH + frame.getLength();
+        }
+        int offset = 0;
+        try {
+            while (offset < count) {
+                channel.write(buffers, offset, count - offset);
+                stats.writes.incrementAndGet();
+                while (offset < count && !buffers[offset].hasRemaining()) {
+                    buffers[offset++] = null;
+                }
+            }
+        } finally {
+            for (int i = 0; i < frames; i++) {
+                dequeued(batch[i]);
+                batch[i].release();
+                batch[i] = null;
+            }
+            for (int i = offset; i < count; i++) {
+                buffers[i] = null;
+            }
+        }
+        stats.frames.addAndGet(frames);
+        stats.bytes.addAndGet(bytes);
+    }
+
+    //takes a frame that was written or dropped off the byte counts
+    private void dequeued(TunnelFrame frame) {
+        int size = FrameCodec.HEADER_LENGTH + frame.getLength();
+        queuedBytes.addAndGet(-size);
+        stats.queued.addAndGet(-size);
+        if (frame.isData() || frame.isReset()) {
+            classQueuedBytes[frame.getTrafficClass()].addAndGet(-size);
+        }
+    }
+
+    /**
+     * Frames a sender queued after the writer stopped would otherwise never
+     * give their buffers back. Called by the writer as it stops and by senders
+     * that find it closed; only the writer may take from the queue while it
+     * runs, so senders drain only once it has stopped.
+     */
+    private void releaseQueued(boolean byWriter) {
+        lock.lock();
+        try {
+            if (byWriter) {
+                writerStopped = true;
+            } else if (!writerStopped) {
+                return;
+            }
+            TunnelFrame frame;
+            while ((frame = queue.poll()) != null) {
+                dequeued(frame);
+                frame.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitRoom(AtomicLong classQueued) throws IOException {
+        lock.lock();
+        try {
+            while (classQueued.get() > maxQueuedBytes) {
+                checkOpen();
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to queue a tunnel frame");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalDrained() {
+        lock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw failure != null ? new IOException("Tunnel write failed", failure) : new IOException("Tunnel connection closed");
+        }
+    }
+
+    /**
+     * Write counters, shared by the writers of one side of the tunnel. Frames
+     * over writes is the batching achieved.
+     */
+    public static class Stats {
+        private final AtomicLong frames = new AtomicLong();
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong queued = new AtomicLong();
+
+        public long getFrames() {
+            return frames.get();
+        }
+
+        //gathering write calls, one system call each
+        public long getWrites() {
+            return writes.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        //bytes handed to the writers and not yet written or dropped
+        public long getQueuedBytes() {
+            return queued.get();
+        }
+    }
+}
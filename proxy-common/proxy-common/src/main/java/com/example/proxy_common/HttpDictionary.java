@@ -0,0 +1,35 @@
+package com.example.proxy_common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Preset Deflate dictionary of strings common in HTTP/1.1 heads. Deflate
+ * matches against the end of the dictionary most cheaply, so the most
+ * frequent strings come last. Both proxies must use the same bytes; changing
+ * them requires a new codec id.
+ */
+final class HttpDictionary {
+    static final byte[] BYTES = (
+            "Sec-Fetch-Dest: documentSec-Fetch-Mode: navigateSec-Fetch-Site: same-originUpgrade-Insecure-Requests: 1"
+            + "Access-Control-Allow-Origin: *Strict-Transport-Security: max-age=31536000; includeSubDomains"
+            + "X-Content-Type-Options: nosniffX-Frame-Options: SAMEORIGINContent-Security-Policy: "
+            + "Referrer-Policy: strict-origin-when-cross-originVia: 1.1 Server: nginxServer: Apache"
+            + "Accept-Ranges: bytesAge: 0Expires: Last-Modified: ETag: W/\"If-None-Match: \"If-Modified-Since: "
+            + "Vary: Accept-EncodingContent-Encoding: gzipTransfer-Encoding: chunked"
+            + "Set-Cookie: ; Path=/; HttpOnly; SecureCookie: "
+            + "Cache-Control: no-cacheCache-Control: private, max-age=0Cache-Control: public, max-age="
+            + "Content-Type: application/jsonContent-Type: application/javascriptContent-Type: text/css"
+            + "Content-Type: image/pngContent-Type: image/jpegContent-Type: text/html; charset=utf-8"
+            + "Accept-Language: en-US,en;q=0.9Accept-Encoding: gzip, deflate, br"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8Accept: */*"
+            + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/120.0.0.0 Safari/537.36Connection: keep-aliveConnection: close"
+            + "Date: Mon, Tue, Wed, Thu, Fri, Sat, Sun,  Jan  Feb  Mar  Apr  May  Jun  Jul  Aug  Sep  Oct  Nov  Dec  GMT"
+            + "HTTP/1.1 404 Not FoundHTTP/1.1 304 Not ModifiedHTTP/1.1 302 FoundHTTP/1.1 301 Moved Permanently"
+            + "Location: https://Referer: https://Host: www.Content-Length: HTTP/1.1 200 OK\r\n"
+            + "GET http:// HTTP/1.1\r\nPOST http:// HTTP/1.1\r\n"
+    ).getBytes(StandardCharsets.ISO_8859_1);
+
+    private HttpDictionary() {
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.proxy_common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer from a {@link BufferPool}, reference counted. It starts with one
+ * reference; every {@link #retain()} must be matched by a {@link #release()},
+ * and the last release returns it to the pool. The bytes must not be touched
+ * after that. Buffers the pool could not serve from a slab are plain heap
+ * buffers and releasing them does nothing beyond the count.
+ */
+public class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        references.set(1);
+    }
+
+    void reuse(int length) {
+        references.set(1);
+        buffer.clear().limit(length);
+    }
+
+    //the buffer itself; its position and limit are the holder's to use
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (count < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Buffer released more often than retained");
+        }
+    }
+
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    int references() {
+        return references.get();
+    }
+}
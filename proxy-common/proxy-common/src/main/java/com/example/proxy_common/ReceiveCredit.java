@@ -0,0 +1,34 @@
+package com.example.proxy_common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receiver side of a flow control window: counts DATA bytes the application
+ * has consumed and says when enough have piled up to be worth a WINDOW_UPDATE.
+ * Announcing at half the window keeps the sender busy without a frame per
+ * chunk.
+ */
+public class ReceiveCredit {
+    private final long threshold;
+    private final AtomicLong unannounced = new AtomicLong();
+
+    public ReceiveCredit(int window) {
+        this.threshold = Math.max(1, window / 2);
+    }
+
+    /**
+     * Records consumed bytes.
+     *
+     * @return the increment to announce now, or 0
+     */
+    public int consumed(int bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        if (unannounced.addAndGet(bytes) < threshold) {
+            return 0;
+        }
+        //a concurrent caller may have claimed it first, then this returns what is left
+        return (int) Math.min(Integer.MAX_VALUE, unannounced.getAndSet(0));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the bytes of one request or response into DATA frames of at most
+ * {@code chunkSize} bytes. Closing the stream sends the END_STREAM frame; a
+ * stream that fails part way should be {@link #abort() aborted} instead.
+ * Bytes are written straight into a pooled buffer that becomes the frame's
+ * payload, so the sink owns each chunk without a copy.
+ */
+public class StreamOutputStream extends OutputStream {
+    private final long requestId;
+    private final FrameSink sink;
+    private final BufferPool pool;
+    private final int chunkSize;
+    //the chunk being filled, taken from the pool on the first byte written to it
+    private PooledBuffer chunk;
+    private int count;
+    private int sequence;
+    private long bytesWritten;
+    private boolean compressible = true;
+    private int trafficClass;
+    private boolean closed;
+
+    public StreamOutputStream(long requestId, FrameSink sink, int chunkSize) {
+        this(requestId, sink, chunkSize, BufferPool.FRAMES);
+    }
+
+    public StreamOutputStream(long requestId, FrameSink sink, int chunkSize, BufferPool pool) {
+        if (chunkSize <= 0 || chunkSize > FrameCodec.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.requestId = requestId;
+        this.sink = sink;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            sendChunk(false);
+        }
+        chunk().put(count++, (byte) b);
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == chunkSize) {
+                sendChunk(false);
+            }
+            int n = Math.min(len, chunkSize - count);
+            chunk().put(count, b, off, n);
+            count += n;
+            off += n;
+            len -= n;
+            bytesWritten += n;
+        }
+    }
+
+    /**
+     * Sends whatever is buffered so the peer sees it without waiting for a full
+     * chunk.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            sendChunk(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        sendChunk(true);
+        closed = true;
+    }
+
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseChunk();
+        sink.send(TunnelFrame.reset(requestId, trafficClass));
+    }
+
+    /**
+     * Marks the frames sent from now on as not worth compressing, e.g. once a
+     * response head announced an image or gzip body. Flush first to keep the
+     * buffered bytes compressible.
+     */
+    public void setCompressible(boolean compressible) {
+        this.compressible = compressible;
+    }
+
+    //the traffic class every frame of the stream is tagged with, see TunnelFrame
+    public void setTrafficClass(int trafficClass) {
+        //rejects a class that does not fit the flags now rather than on the first frame
+        TunnelFrame.classFlags(trafficClass);
+        this.trafficClass = trafficClass;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void sendChunk(boolean endStream) throws IOException {
+        byte flags = (byte) ((endStream ? TunnelFrame.FLAG_END_STREAM : 0) | TunnelFrame.classFlags(trafficClass));
+        TunnelFrame frame = count == 0
+                ? new TunnelFrame(TunnelFrame.TYPE_DATA, flags, requestId, sequence++, TunnelFrame.EMPTY, 0, compressible)
+                : new TunnelFrame(TunnelFrame.TYPE_DATA, flags, requestId, sequence++, chunk, count, compressible);
+        //the sink owns the chunk now, even if it fails
+        chunk = null;
+        count = 0;
+        sink.send(frame);
+    }
+
+    private ByteBuffer chunk() {
+        if (chunk == null) {
+            chunk = pool.acquire(chunkSize);
+        }
+        return chunk.buffer();
+    }
+
+    private void releaseChunk() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream " + requestId + " already closed");
+        }
+    }
+}
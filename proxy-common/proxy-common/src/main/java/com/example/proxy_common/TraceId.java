@@ -0,0 +1,21 @@
+package com.example.proxy_common;
+
+/**
+ * Names a request the same way in the logs of both proxies. Request IDs are
+ * only unique within the tunnel session a ship opened, so the trace ID is the
+ * session ID followed by the request ID, e.g. {@code 3f09c2a4d1e8b7a6-42}.
+ */
+public final class TraceId {
+
+    private TraceId() {
+    }
+
+    public static String of(long sessionId, long requestId) {
+        String session = Long.toHexString(sessionId);
+        StringBuilder trace = new StringBuilder(34);
+        for (int i = session.length(); i < 16; i++) {
+            trace.append('0');
+        }
+        return trace.append(session).append('-').append(requestId).toString();
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.proxy_common;
+
+/**
+ * The framing rule both proxies apply to a request's Transfer-Encoding: the
+ * body is chunked when the final coding listed is {@code chunked}. A request
+ * whose final coding is anything else has no length a proxy can tell, so it
+ * is rejected (RFC 9112, section 6.1). With the header repeated, the final
+ * coding is the last one of the last header.
+ */
+public final class TransferCoding {
+
+    private TransferCoding() {
+    }
+
+    //whether the last comma-separated coding of the value in bytes[start, end) is chunked, ignoring case
+    public static boolean endsInChunked(byte[] bytes, int start, int end) {
+        while (end > start && isWhitespace(bytes[end - 1])) {
+            end--;
+        }
+        int tokenStart = end;
+        while (tokenStart > start && bytes[tokenStart - 1] != ',') {
+            tokenStart--;
+        }
+        while (tokenStart < end && isWhitespace(bytes[tokenStart])) {
+            tokenStart++;
+        }
+        if (end - tokenStart != 7) {
+            return false;
+        }
+        for (int i = 0; i < 7; i++) {
+            if ((bytes[tokenStart + i] | 0x20) != "chunked".charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
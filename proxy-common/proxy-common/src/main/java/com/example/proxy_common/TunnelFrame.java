@@ -0,0 +1,280 @@
+package com.example.proxy_common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One frame on the ship-offshore tunnel. A request or response is carried as a
+ * stream of DATA frames sharing the request id, numbered by sequence and ended
+ * by a frame with {@link #FLAG_END_STREAM}. A RESET frame aborts a stream from
+ * either side. A HELLO frame opens each tunnel connection, see
+ * {@link TunnelHello}. WINDOW_UPDATE frames grant the peer more credit to send
+ * DATA, for one stream or, with request id 0, for the whole connection.
+ * PING frames check that a connection is still alive: the peer answers each
+ * with a PING carrying {@link #FLAG_ACK} and the same payload. A PUSH frame
+ * starts a stream of the offshore proxy's own, with an id that has
+ * {@link #PUSH_STREAM_BIT} set: its payload is a request the offshore proxy
+ * fetched ahead of the ship asking, and the stream's DATA frames carry the
+ * response for the ship to store.
+ * <p>
+ * The upper four flag bits of DATA and RESET frames name the stream's traffic
+ * class, an index into the classes the ship announced in its HELLO. Writers
+ * share the connection between classes by their weights.
+ * <p>
+ * The payload is either a heap array or a {@link PooledBuffer}. Whoever holds
+ * a frame with a pooled payload owns one reference to it: handing the frame to
+ * a {@link FrameSink} passes that on, anyone else must {@link #release()} it.
+ */
+public class TunnelFrame {
+    public static final byte TYPE_DATA = 0;
+    public static final byte TYPE_RESET = 1;
+    public static final byte TYPE_HELLO = 2;
+    public static final byte TYPE_WINDOW_UPDATE = 3;
+    public static final byte TYPE_PING = 4;
+    public static final byte TYPE_PUSH = 5;
+    //set in the ids of streams the offshore proxy pushes, never in those of the ship's requests
+    public static final long PUSH_STREAM_BIT = 1L << 62;
+
+    public static final byte FLAG_END_STREAM = 0x01;
+    //payload is compressed with the codec negotiated for the connection
+    public static final byte FLAG_COMPRESSED = 0x02;
+    //a PING answering the peer's
+    public static final byte FLAG_ACK = 0x04;
+    //payload is chunks and references to chunks sent before, see FrameDeduplicator; applied before compression
+    public static final byte FLAG_DEDUPLICATED = 0x08;
+    //flag bits holding the traffic class, so there can be at most 16 classes
+    private static final int CLASS_SHIFT = 4;
+    public static final int MAX_TRAFFIC_CLASSES = 16;
+
+    private final byte type;
+    private final byte flags;
+    private final long requestId;
+    private final int sequence;
+    static final byte[] EMPTY = new byte[0];
+
+    private final byte[] payload;
+    //the payload instead of the array when it came from a pool
+    private final PooledBuffer buffer;
+    private final int length;
+    //local hint, not sent: false when the payload is known not to compress (images, gzip bodies)
+    private final boolean compressible;
+
+    public TunnelFrame(byte type, byte flags, long requestId, int sequence, byte[] payload, int length) {
+        this(type, flags, requestId, sequence, payload, length, true);
+    }
+
+    public TunnelFrame(byte type, byte flags, long requestId, int sequence, byte[] payload, int length,
+                       boolean compressible) {
+        this.type = type;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.sequence = sequence;
+        this.payload = payload;
+        this.buffer = null;
+        this.length = length;
+        this.compressible = compressible;
+    }
+
+    //a frame whose payload is the first length bytes of a pooled buffer
+    public TunnelFrame(byte type, byte flags, long requestId, int sequence, PooledBuffer buffer, int length,
+                       boolean compressible) {
+        this.type = type;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.sequence = sequence;
+        this.payload = null;
+        this.buffer = buffer;
+        this.length = length;
+        this.compressible = compressible;
+    }
+
+    public static TunnelFrame data(long requestId, int sequence, byte[] payload, int length, boolean endStream) {
+        return data(requestId, sequence, payload, length, endStream, true);
+    }
+
+    public static TunnelFrame data(long requestId, int sequence, byte[] payload, int length, boolean endStream,
+                                   boolean compressible) {
+        return data(requestId, sequence, payload, length, endStream, compressible, 0);
+    }
+
+    public static TunnelFrame data(long requestId, int sequence, byte[] payload, int length, boolean endStream,
+                                   boolean compressible, int trafficClass) {
+        byte flags = (byte) ((endStream ? FLAG_END_STREAM : 0) | classFlags(trafficClass));
+        return new TunnelFrame(TYPE_DATA, flags, requestId, sequence, payload, length, compressible);
+    }
+
+    //the frame takes over the caller's reference to the pooled payload
+    public static TunnelFrame data(long requestId, int sequence, PooledBuffer payload, int length, boolean endStream,
+                                   boolean compressible, int trafficClass) {
+        byte flags = (byte) ((endStream ? FLAG_END_STREAM : 0) | classFlags(trafficClass));
+        return new TunnelFrame(TYPE_DATA, flags, requestId, sequence, payload, length, compressible);
+    }
+
+    public static TunnelFrame reset(long requestId) {
+        return reset(requestId, 0);
+    }
+
+    //a RESET in the stream's class, so it does not overtake the stream's DATA in the writer
+    public static TunnelFrame reset(long requestId, int trafficClass) {
+        return new TunnelFrame(TYPE_RESET, (byte) (FLAG_END_STREAM | classFlags(trafficClass)), requestId, 0, EMPTY, 0);
+    }
+
+    //the flag bits for a traffic class
+    public static byte classFlags(int trafficClass) {
+        if (trafficClass < 0 || trafficClass >= MAX_TRAFFIC_CLASSES) {
+            throw new IllegalArgumentException("Invalid traffic class " + trafficClass);
+        }
+        return (byte) (trafficClass << CLASS_SHIFT);
+    }
+
+    public static TunnelFrame windowUpdate(long requestId, int increment) {
+        byte[] payload = new byte[4];
+        ByteBuffer.wrap(payload).putInt(increment);
+        return new TunnelFrame(TYPE_WINDOW_UPDATE, (byte) 0, requestId, 0, payload, 4);
+    }
+
+    //a PING carrying eight bytes the answer echoes, here when it was sent
+    public static TunnelFrame ping(long data) {
+        byte[] payload = new byte[8];
+        ByteBuffer.wrap(payload).putLong(data);
+        return new TunnelFrame(TYPE_PING, (byte) 0, 0, 0, payload, 8);
+    }
+
+    //announces a pushed stream, carrying the request its response answers
+    public static TunnelFrame push(long pushId, byte[] request, int trafficClass) {
+        if ((pushId & PUSH_STREAM_BIT) == 0) {
+            throw new IllegalArgumentException("Not a push stream id " + pushId);
+        }
+        return new TunnelFrame(TYPE_PUSH, classFlags(trafficClass), pushId, 0, request, request.length);
+    }
+
+    public static boolean isPushStream(long requestId) {
+        return (requestId & PUSH_STREAM_BIT) != 0;
+    }
+
+    //the answer to a PING from the peer
+    public TunnelFrame pingAck() {
+        return new TunnelFrame(TYPE_PING, FLAG_ACK, 0, 0, getPayload(), length);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The payload as an array. A pooled payload is copied, so the hot paths
+     * use {@link #getPayloadBuffer()} instead.
+     */
+    public byte[] getPayload() {
+        if (buffer == null) {
+            return payload;
+        }
+        byte[] copy = new byte[length];
+        buffer.buffer().get(0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * The payload from position 0 to its length. For a pooled payload this is
+     * the pooled buffer itself, rewound on every call; only the frame's
+     * current holder may use it.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (buffer == null) {
+            return ByteBuffer.wrap(payload, 0, length);
+        }
+        return buffer.buffer().clear().limit(length);
+    }
+
+    public boolean isPooled() {
+        return buffer != null;
+    }
+
+    //another reference to a pooled payload, for a second holder of the frame
+    public TunnelFrame retain() {
+        if (buffer != null) {
+            buffer.retain();
+        }
+        return this;
+    }
+
+    //gives up this holder's reference to a pooled payload; does nothing for an array
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isEndStream() {
+        return (flags & FLAG_END_STREAM) != 0;
+    }
+
+    public boolean isData() {
+        return type == TYPE_DATA;
+    }
+
+    public boolean isReset() {
+        return type == TYPE_RESET;
+    }
+
+    public boolean isWindowUpdate() {
+        return type == TYPE_WINDOW_UPDATE;
+    }
+
+    //the credit granted by a WINDOW_UPDATE frame
+    public int getWindowIncrement() {
+        return length >= 4 ? getPayloadBuffer().getInt(0) : 0;
+    }
+
+    public boolean isPing() {
+        return type == TYPE_PING;
+    }
+
+    public boolean isPush() {
+        return type == TYPE_PUSH;
+    }
+
+    public boolean isAck() {
+        return (flags & FLAG_ACK) != 0;
+    }
+
+    //what a PING carries
+    public long getPingData() {
+        return length >= 8 ? getPayloadBuffer().getLong(0) : 0;
+    }
+
+    public boolean isHello() {
+        return type == TYPE_HELLO;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public boolean isDeduplicated() {
+        return (flags & FLAG_DEDUPLICATED) != 0;
+    }
+
+    public int getTrafficClass() {
+        return (flags >> CLASS_SHIFT) & (MAX_TRAFFIC_CLASSES - 1);
+    }
+
+    public boolean isCompressible() {
+        return compressible;
+    }
+}
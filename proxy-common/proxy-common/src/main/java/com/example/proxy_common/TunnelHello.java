@@ -0,0 +1,311 @@
+package com.example.proxy_common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Payload of the HELLO frame each side sends when a tunnel connection opens.
+ * The ship offers its compression codecs in order of preference; the offshore
+ * proxy answers with a HELLO naming the single codec it picked. Each side also
+ * announces its receive windows and how many streams it accepts at once. The
+ * ship names the session the connection belongs to, so the offshore proxy can
+ * treat several tunnel connections as one; windows and stream limits then
+ * apply to the session. Layout:
+ * {@code [4 magic][1 version][1 codec count][codec ids]} then, from version 2,
+ * {@code [4 stream window][4 connection window][4 max streams]}, from
+ * version 3, {@code [8 session id]} and, from version 4, the ship's traffic
+ * classes as {@code [1 class count]} then {@code [4 weight][1 name length][name]}
+ * each, which both sides use to share the connections, from version 5
+ * {@code [4 heartbeat interval]}, how often in milliseconds the sender PINGs
+ * each connection, 0 if it does not, and from version 6
+ * {@code [4 chunk store bytes]}, how many bytes of response chunks the ship
+ * keeps per connection and traffic class so the offshore proxy can send
+ * references to them instead, 0 if none, and from version 7
+ * {@code [4 max push bytes]}, the largest response the ship stores when the
+ * offshore proxy pushes one ahead of a request for it, 0 if it takes no
+ * pushes, and from version 8 {@code [1 ship id length][ship id]}, the name
+ * the offshore proxy shares its workers and bandwidth between ships by,
+ * empty if the ship gives none. A version 5 peer also answers PINGs
+ * and takes a request that starts again on another connection of the session
+ * as the ship replaying it after losing the first. Readers ignore trailing
+ * bytes so later versions can append fields.
+ */
+public class TunnelHello {
+    public static final int MAGIC = 0x53505859;
+    public static final byte VERSION = 8;
+    //session id of a connection that shares nothing with others
+    public static final long NO_SESSION = 0;
+
+    public static final int DEFAULT_STREAM_WINDOW = 256 * 1024;
+    public static final int DEFAULT_CONNECTION_WINDOW = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_STREAMS = 256;
+
+    private final List<CompressionCodec> codecs;
+    private final int streamWindow;
+    private final int connectionWindow;
+    private final int maxStreams;
+    private final long sessionId;
+    private final List<TrafficClass> trafficClasses;
+    private final int heartbeatIntervalMillis;
+    private final int chunkStoreBytes;
+    private final int maxPushBytes;
+    private final String shipId;
+    //the version the sender speaks
+    private final int version;
+
+    public TunnelHello(List<CompressionCodec> codecs) {
+        this(codecs, DEFAULT_STREAM_WINDOW, DEFAULT_CONNECTION_WINDOW, DEFAULT_MAX_STREAMS);
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, NO_SESSION);
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, List.of());
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId, List<TrafficClass> trafficClasses) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses, 0);
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId, List<TrafficClass> trafficClasses, int heartbeatIntervalMillis) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses, heartbeatIntervalMillis, 0);
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId, List<TrafficClass> trafficClasses, int heartbeatIntervalMillis,
+                       int chunkStoreBytes) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses, heartbeatIntervalMillis,
+                chunkStoreBytes, 0);
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId, List<TrafficClass> trafficClasses, int heartbeatIntervalMillis,
+                       int chunkStoreBytes, int maxPushBytes) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses, heartbeatIntervalMillis,
+                chunkStoreBytes, maxPushBytes, "");
+    }
+
+    public TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                       long sessionId, List<TrafficClass> trafficClasses, int heartbeatIntervalMillis,
+                       int chunkStoreBytes, int maxPushBytes, String shipId) {
+        this(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses, heartbeatIntervalMillis,
+                chunkStoreBytes, maxPushBytes, shipId, VERSION);
+    }
+
+    private TunnelHello(List<CompressionCodec> codecs, int streamWindow, int connectionWindow, int maxStreams,
+                        long sessionId, List<TrafficClass> trafficClasses, int heartbeatIntervalMillis,
+                        int chunkStoreBytes, int maxPushBytes, String shipId, int version) {
+        if (trafficClasses.size() > TunnelFrame.MAX_TRAFFIC_CLASSES) {
+            throw new IllegalArgumentException("At most " + TunnelFrame.MAX_TRAFFIC_CLASSES + " traffic classes");
+        }
+        this.codecs = codecs;
+        this.streamWindow = streamWindow;
+        this.connectionWindow = connectionWindow;
+        this.maxStreams = maxStreams;
+        this.sessionId = sessionId;
+        this.trafficClasses = trafficClasses;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        this.chunkStoreBytes = chunkStoreBytes;
+        this.maxPushBytes = maxPushBytes;
+        this.shipId = shipId == null ? "" : shipId;
+        this.version = version;
+    }
+
+    public List<CompressionCodec> getCodecs() {
+        return codecs;
+    }
+
+    //DATA bytes the sender of this HELLO can buffer per stream before it grants more
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    //DATA bytes the sender of this HELLO can buffer across all streams of the session
+    public int getConnectionWindow() {
+        return connectionWindow;
+    }
+
+    //streams the sender of this HELLO accepts at once
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    //whether the sender answers PING frames
+    public boolean answersPings() {
+        return version >= 5;
+    }
+
+    //whether the sender takes a request started again on another connection as a replay
+    public boolean acceptsReplays() {
+        return version >= 5;
+    }
+
+    //how often the sender PINGs each connection, 0 if it does not
+    public int getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    //bytes of response chunks the sender keeps per connection and traffic class, 0 if it does not deduplicate
+    public int getChunkStoreBytes() {
+        return chunkStoreBytes;
+    }
+
+    //the largest pushed response the sender stores, 0 if it takes no pushes
+    public int getMaxPushBytes() {
+        return maxPushBytes;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    //the name the ship goes by, empty if it gives none
+    public String getShipId() {
+        return shipId;
+    }
+
+    //the classes DATA frames are tagged with, by index; empty if everything is one class
+    public List<TrafficClass> getTrafficClasses() {
+        return trafficClasses;
+    }
+
+    public List<Integer> getClassWeights() {
+        return trafficClasses.stream().map(TrafficClass::weight).toList();
+    }
+
+    //the name of a class for metrics, also for classes the HELLO did not name
+    public String className(int trafficClass) {
+        if (trafficClass < trafficClasses.size()) {
+            return trafficClasses.get(trafficClass).name();
+        }
+        return trafficClasses.isEmpty() && trafficClass == 0 ? "default" : "class-" + trafficClass;
+    }
+
+    /**
+     * The first of {@code offered} that is also in {@code accepted}, or
+     * {@link CompressionCodec#NONE}.
+     */
+    public static CompressionCodec select(List<CompressionCodec> offered, List<CompressionCodec> accepted) {
+        for (CompressionCodec codec : offered) {
+            if (accepted.contains(codec)) {
+                return codec;
+            }
+        }
+        return CompressionCodec.NONE;
+    }
+
+    public TunnelFrame toFrame() {
+        int classBytes = 1;
+        for (TrafficClass trafficClass : trafficClasses) {
+            classBytes += 5 + encode(trafficClass.name()).length;
+        }
+        byte[] ship = encode(shipId);
+        ByteBuffer payload = ByteBuffer.allocate(6 + codecs.size() + 12 + 8 + classBytes + 12 + 1 + ship.length);
+        payload.putInt(MAGIC).put(VERSION).put((byte) codecs.size());
+        for (CompressionCodec codec : codecs) {
+            payload.put(codec.getId());
+        }
+        payload.putInt(streamWindow).putInt(connectionWindow).putInt(maxStreams).putLong(sessionId);
+        payload.put((byte) trafficClasses.size());
+        for (TrafficClass trafficClass : trafficClasses) {
+            byte[] name = encode(trafficClass.name());
+            payload.putInt(trafficClass.weight()).put((byte) name.length).put(name);
+        }
+        payload.putInt(heartbeatIntervalMillis).putInt(chunkStoreBytes).putInt(maxPushBytes);
+        payload.put((byte) ship.length).put(ship);
+        return new TunnelFrame(TunnelFrame.TYPE_HELLO, (byte) 0, 0, 0, payload.array(), payload.capacity());
+    }
+
+    public static TunnelHello fromFrame(TunnelFrame frame) throws IOException {
+        if (!frame.isHello()) {
+            throw new IOException("Expected HELLO frame, got type " + frame.getType());
+        }
+        ByteBuffer payload = ByteBuffer.wrap(frame.getPayload(), 0, frame.getLength());
+        if (payload.remaining() < 6 || payload.getInt() != MAGIC) {
+            throw new IOException("Malformed HELLO frame");
+        }
+        byte version = payload.get();
+        int count = payload.get() & 0xff;
+        if (payload.remaining() < count) {
+            throw new IOException("Malformed HELLO frame");
+        }
+        List<CompressionCodec> codecs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            //codecs this side doesn't know are skipped
+            CompressionCodec codec = CompressionCodec.fromId(payload.get());
+            if (codec != null) {
+                codecs.add(codec);
+            }
+        }
+        if (version < 2 || payload.remaining() < 12) {
+            return new TunnelHello(codecs, DEFAULT_STREAM_WINDOW, DEFAULT_CONNECTION_WINDOW, DEFAULT_MAX_STREAMS,
+                    NO_SESSION, List.of(), 0, 0, 0, "", version);
+        }
+        int streamWindow = payload.getInt();
+        int connectionWindow = payload.getInt();
+        int maxStreams = payload.getInt();
+        if (streamWindow <= 0 || connectionWindow <= 0 || maxStreams <= 0) {
+            throw new IOException("Invalid flow control settings in HELLO frame");
+        }
+        long sessionId = version >= 3 && payload.remaining() >= 8 ? payload.getLong() : NO_SESSION;
+        List<TrafficClass> trafficClasses = new ArrayList<>();
+        if (version >= 4 && payload.hasRemaining()) {
+            int classCount = payload.get() & 0xff;
+            if (classCount > TunnelFrame.MAX_TRAFFIC_CLASSES) {
+                throw new IOException("Too many traffic classes in HELLO frame");
+            }
+            for (int i = 0; i < classCount; i++) {
+                if (payload.remaining() < 5) {
+                    throw new IOException("Malformed HELLO frame");
+                }
+                int weight = payload.getInt();
+                byte[] name = new byte[payload.get() & 0xff];
+                if (weight <= 0 || payload.remaining() < name.length) {
+                    throw new IOException("Invalid traffic class in HELLO frame");
+                }
+                payload.get(name);
+                trafficClasses.add(new TrafficClass(new String(name, StandardCharsets.UTF_8), weight));
+            }
+        }
+        int heartbeatIntervalMillis = version >= 5 && payload.remaining() >= 4 ? Math.max(0, payload.getInt()) : 0;
+        int chunkStoreBytes = version >= 6 && payload.remaining() >= 4 ? Math.max(0, payload.getInt()) : 0;
+        int maxPushBytes = version >= 7 && payload.remaining() >= 4 ? Math.max(0, payload.getInt()) : 0;
+        String shipId = "";
+        if (version >= 8 && payload.hasRemaining()) {
+            byte[] ship = new byte[payload.get() & 0xff];
+            if (payload.remaining() < ship.length) {
+                throw new IOException("Malformed HELLO frame");
+            }
+            payload.get(ship);
+            shipId = new String(ship, StandardCharsets.UTF_8);
+        }
+        return new TunnelHello(codecs, streamWindow, connectionWindow, maxStreams, sessionId, trafficClasses,
+                heartbeatIntervalMillis, chunkStoreBytes, maxPushBytes, shipId, version);
+    }
+
+    //at most 255 bytes, as the HELLO has room for
+    private static byte[] encode(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        return encoded.length <= 255 ? encoded : Arrays.copyOf(encoded, 255);
+    }
+
+    /**
+     * A traffic class as the tunnel sees it: its name, for metrics, and its
+     * share of the connections relative to the other classes.
+     */
+    public record TrafficClass(String name, int weight) {
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.proxy_common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+/**
+ * A queue per traffic class, drained by deficit round robin so that classes
+ * with a backlog share the consumer in proportion to their weights, counted
+ * in bytes rather than items: each turn a class may take up to its weight
+ * times {@code quantum} bytes, and what it could not use carries over while
+ * it stays backlogged. Items offered as urgent go before every class.
+ * <p>
+ * Any number of threads may offer; only one may poll or take. Items of one
+ * class come out in the order they were offered.
+ */
+public class WeightedFairQueue<T> {
+    private final ToIntFunction<T> cost;
+    private final int quantum;
+    private final ConcurrentLinkedQueue<T> urgent = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<T>[] queues;
+    //items in the class queues, raised only after an item is added so the consumer never spins on an empty queue
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile int[] quanta;
+    //the consumer's round robin state
+    private final int[] deficits;
+    private int current;
+    private boolean turnStarted;
+    private volatile Thread consumer;
+
+    /**
+     * @param classes number of classes, all of weight 1 until {@link #setWeights} says otherwise
+     * @param quantum bytes a class of weight 1 may take per turn
+     * @param cost the bytes an item counts for
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public WeightedFairQueue(int classes, int quantum, ToIntFunction<T> cost) {
+        if (classes <= 0 || quantum <= 0) {
+            throw new IllegalArgumentException("Need at least one class and a positive quantum");
+        }
+        this.cost = cost;
+        this.quantum = quantum;
+        this.queues = new ConcurrentLinkedQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.deficits = new int[classes];
+        int[] initial = new int[classes];
+        Arrays.fill(initial, quantum);
+        this.quanta = initial;
+    }
+
+    /**
+     * Weights of the first classes, in order; the rest keep weight 1. May be
+     * called while items are queued.
+     */
+    public void setWeights(List<Integer> weights) {
+        int[] updated = new int[queues.length];
+        Arrays.fill(updated, quantum);
+        for (int i = 0; i < Math.min(weights.size(), queues.length); i++) {
+            int weight = weights.get(i);
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight + " for traffic class " + i);
+            }
+            updated[i] = (int) Math.min(Integer.MAX_VALUE / 2, (long) weight * quantum);
+        }
+        quanta = updated;
+    }
+
+    //classes outside the range fall into the last one
+    public void offer(int trafficClass, T item) {
+        queues[Math.max(0, Math.min(trafficClass, queues.length - 1))].add(item);
+        queued.incrementAndGet();
+        LockSupport.unpark(consumer);
+    }
+
+    public void offerUrgent(T item) {
+        urgent.add(item);
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * The next item: an urgent one if there is any, otherwise the head of the
+     * class whose turn it is. Null if nothing is queued.
+     */
+    public T poll() {
+        T item = urgent.poll();
+        if (item != null || queued.get() == 0) {
+            return item;
+        }
+        //terminates: some class is backlogged and every turn adds to its deficit
+        while (true) {
+            ConcurrentLinkedQueue<T> queue = queues[current];
+            T head = queue.peek();
+            if (head == null) {
+                //an idle class does not save up credit
+                deficits[current] = 0;
+                nextTurn();
+                continue;
+            }
+            if (!turnStarted) {
+                deficits[current] = (int) Math.min(Integer.MAX_VALUE, (long) deficits[current] + quanta[current]);
+                turnStarted = true;
+            }
+            int size = cost.applyAsInt(head);
+            if (size <= deficits[current]) {
+                queue.poll();
+                queued.decrementAndGet();
+                deficits[current] -= size;
+                return head;
+            }
+            nextTurn();
+        }
+    }
+
+    //waits for the next item; for the single consumer
+    public T take() throws InterruptedException {
+        consumer = Thread.currentThread();
+        T item;
+        while ((item = poll()) == null) {
+            //offers unpark us, so this wakes to look again
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return item;
+    }
+
+    //the thread to wake when something is offered, for a consumer that parks itself between polls
+    public void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    public boolean isEmpty() {
+        return urgent.isEmpty() && queued.get() == 0;
+    }
+
+    public int size() {
+        return urgent.size() + queued.get();
+    }
+
+    private void nextTurn() {
+        turnStarted = false;
+        current = current + 1 == queues.length ? 0 : current + 1;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.proxy_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTests {
+
+	@Test
+	void recyclesBuffersOnceEveryReferenceIsReleased() {
+		BufferPool pool = new BufferPool(1024, 2, 1);
+		PooledBuffer first = pool.acquire(100);
+		PooledBuffer second = pool.acquire(1024);
+		assertTrue(first.isPooled());
+		assertEquals(100, first.buffer().limit());
+		assertEquals(2, pool.getInUse());
+		//the slab is used up, and larger requests never fit a slot
+		assertFalse(pool.acquire(10).isPooled());
+		assertFalse(pool.acquire(2048).isPooled());
+		assertEquals(2, pool.getUnpooled());
+
+		first.retain();
+		first.release();
+		assertEquals(2, pool.getInUse());
+		first.release();
+		assertEquals(1, pool.getInUse());
+		assertThrows(IllegalStateException.class, first::release);
+		assertThrows(IllegalStateException.class, first::retain);
+		assertSame(first, pool.acquire(10));
+		second.release();
+		assertEquals(1, pool.getInUse());
+		assertEquals(2048, pool.getCapacityBytes());
+	}
+
+	@Test
+	void readsAndDecompressesFramesIntoPooledBuffers() throws Exception {
+		BufferPool pool = new BufferPool(BufferPool.DEFAULT_SLOT_SIZE, 16, 4);
+		FrameCompressor compressor = new FrameCompressor(CompressionCodec.DEFLATE, pool);
+		byte[] body = new byte[BufferPool.DEFAULT_SLOT_SIZE];
+		byte[] line = "<tr><td class=\"cabin\">Deck 7</td><td>available</td></tr>\n".getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < body.length; i++) {
+			body[i] = line[i % line.length];
+		}
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		for (int sequence = 0; sequence < 8; sequence++) {
+			TunnelFrame compressed = compressor.compress(TunnelFrame.data(1, sequence, body, body.length, false));
+			assertTrue(compressed.isCompressed());
+			FrameCodec.write(wire, compressed);
+			compressed.release();
+		}
+		FrameReader reader = new FrameReader(new ReplayingChannel(wire.toByteArray()), pool);
+
+		TunnelFrame first = compressor.decompress(reader.read());
+		assertTrue(first.isPooled());
+		assertArrayEquals(body, first.getPayload());
+		first.release();
+
+		//many times the slab, so every slot has to come back to be reused
+		for (int i = 0; i < 200; i++) {
+			TunnelFrame frame = compressor.decompress(reader.read());
+			assertTrue(frame.isPooled());
+			assertEquals(body.length, frame.getLength());
+			frame.release();
+		}
+		assertEquals(0, pool.getInUse());
+		assertEquals(0, pool.getUnpooled());
+	}
+
+	//plays the same bytes over and over, without allocating
+	private static class ReplayingChannel implements ReadableByteChannel {
+		private final ByteBuffer bytes;
+
+		ReplayingChannel(byte[] bytes) {
+			this.bytes = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+		}
+
+		@Override
+		public int read(ByteBuffer target) {
+			if (!bytes.hasRemaining()) {
+				bytes.rewind();
+			}
+			int n = Math.min(target.remaining(), bytes.remaining());
+			int limit = bytes.limit();
+			bytes.limit(bytes.position() + n);
+			target.put(bytes);
+			bytes.limit(limit);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.example.proxy_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCodecTests {
+
+	@Test
+	void roundTripsFrames() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCodec.write(out, TunnelFrame.data(42, 7, new byte[] { 1, 2, 3, 4 }, 3, true));
+		FrameCodec.write(out, TunnelFrame.reset(43));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		TunnelFrame data = FrameCodec.read(in);
+		assertEquals(42, data.getRequestId());
+		assertEquals(7, data.getSequence());
+		assertTrue(data.isEndStream());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, data.getPayload());
+
+		TunnelFrame reset = FrameCodec.read(in);
+		assertTrue(reset.isReset());
+		assertEquals(43, reset.getRequestId());
+	}
+
+	@Test
+	void splitsStreamIntoBoundedChunks() throws Exception {
+		List<TunnelFrame> frames = new ArrayList<>();
+		try (StreamOutputStream stream = new StreamOutputStream(1, frames::add, 4)) {
+			stream.write(new byte[10]);
+		}
+		assertEquals(3, frames.size());
+		assertEquals(4, frames.get(0).getLength());
+		assertEquals(4, frames.get(1).getLength());
+		assertEquals(2, frames.get(2).getLength());
+		assertFalse(frames.get(1).isEndStream());
+		assertTrue(frames.get(2).isEndStream());
+		assertEquals(2, frames.get(2).getSequence());
+	}
+
+	@Test
+	void compressesHeadsAndSkipsIncompressiblePayloads() throws Exception {
+		FrameCompressor compressor = new FrameCompressor(CompressionCodec.DEFLATE_DICTIONARY);
+		byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nCache-Control: public, max-age=600\r\n"
+				+ "Vary: Accept-Encoding\r\nContent-Length: 1024\r\nConnection: keep-alive\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		TunnelFrame compressed = compressor.compress(TunnelFrame.data(5, 0, head, head.length, false));
+		assertTrue(compressed.isCompressed());
+		assertTrue(compressed.getLength() < head.length / 2);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCodec.write(out, compressed);
+		TunnelFrame received = FrameCodec.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+		TunnelFrame restored = compressor.decompress(received);
+		assertFalse(restored.isCompressed());
+		assertArrayEquals(head, restored.getPayload());
+
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		TunnelFrame noise = TunnelFrame.data(5, 1, random, random.length, false);
+		assertSame(noise, compressor.compress(noise));
+		TunnelFrame image = TunnelFrame.data(5, 2, head, head.length, false, false);
+		assertSame(image, compressor.compress(image));
+		assertFalse(FrameCompressor.isCompressible("image/jpeg", null));
+		assertFalse(FrameCompressor.isCompressible("text/css", "gzip"));
+	}
+
+	@Test
+	void handshakePicksFirstOfferedCodecBothSidesSupport() throws Exception {
+		TunnelFrame offer = new TunnelHello(List.of(CompressionCodec.DEFLATE_DICTIONARY, CompressionCodec.DEFLATE)).toFrame();
+		TunnelHello received = TunnelHello.fromFrame(offer);
+		assertEquals(CompressionCodec.DEFLATE,
+				TunnelHello.select(received.getCodecs(), CompressionCodec.parseList("deflate, none")));
+		assertEquals(CompressionCodec.NONE, TunnelHello.select(received.getCodecs(), CompressionCodec.parseList("none")));
+	}
+
+	@Test
+	void carriesFlowControlSettingsAndWindowUpdates() throws Exception {
+		TunnelHello hello = TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3).toFrame());
+		assertEquals(1024, hello.getStreamWindow());
+		assertEquals(8192, hello.getConnectionWindow());
+		assertEquals(3, hello.getMaxStreams());
+		assertEquals(TunnelHello.NO_SESSION, hello.getSessionId());
+		TunnelHello joining = TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL).toFrame());
+		assertEquals(0x5eedL, joining.getSessionId());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCodec.write(out, TunnelFrame.windowUpdate(9, 4096));
+		TunnelFrame update = FrameCodec.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+		assertTrue(update.isWindowUpdate());
+		assertEquals(9, update.getRequestId());
+		assertEquals(4096, update.getWindowIncrement());
+
+		//announced once half the window has been consumed
+		ReceiveCredit credit = new ReceiveCredit(1024);
+		assertEquals(0, credit.consumed(300));
+		assertEquals(600, credit.consumed(300));
+		assertEquals(0, credit.consumed(100));
+
+		//a frame may overdraw the window, the next sender then waits for an update
+		FlowWindow window = new FlowWindow(100);
+		window.acquire(150, 0);
+		assertEquals(-50, window.getCredit());
+		window.release(60);
+		window.acquire(10, 0);
+		assertEquals(0, window.getCredit());
+		window.close();
+		assertThrows(IOException.class, () -> window.acquire(1, 1000));
+	}
+
+	@Test
+	void carriesTrafficClassesInHelloAndFrameFlags() throws Exception {
+		List<TunnelHello.TrafficClass> classes = List.of(new TunnelHello.TrafficClass("interactive", 8),
+				new TunnelHello.TrafficClass("bulk", 1));
+		TunnelHello hello = TunnelHello.fromFrame(
+				new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL, classes).toFrame());
+		assertEquals(classes, hello.getTrafficClasses());
+		assertEquals(List.of(8, 1), hello.getClassWeights());
+		assertEquals("bulk", hello.className(1));
+		assertEquals("default", new TunnelHello(List.of()).className(0));
+
+		//the class survives the wire and compression, next to the other flags
+		FrameCompressor compressor = new FrameCompressor(CompressionCodec.DEFLATE);
+		byte[] head = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".repeat(4).getBytes(StandardCharsets.US_ASCII);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCodec.write(out, compressor.compress(TunnelFrame.data(5, 0, head, head.length, true, true, 13)));
+		FrameCodec.write(out, TunnelFrame.reset(5, 13));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		TunnelFrame data = compressor.decompress(FrameCodec.read(in));
+		assertEquals(13, data.getTrafficClass());
+		assertTrue(data.isEndStream());
+		assertArrayEquals(head, data.getPayload());
+		assertEquals(13, FrameCodec.read(in).getTrafficClass());
+		assertThrows(IllegalArgumentException.class, () -> TunnelFrame.classFlags(TunnelFrame.MAX_TRAFFIC_CLASSES));
+	}
+
+	@Test
+	void carriesTheShipIdInHello() throws Exception {
+		TunnelHello hello = TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL,
+				List.of(), 5000, 65536, 1024, "aurora").toFrame());
+		assertEquals("aurora", hello.getShipId());
+		assertEquals(1024, hello.getMaxPushBytes());
+		assertEquals("", TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE)).toFrame()).getShipId());
+	}
+
+	@Test
+	void answersPingsAndTellsOlderPeersApart() throws Exception {
+		TunnelHello hello = TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL,
+				List.of(), 5000).toFrame());
+		assertEquals(5000, hello.getHeartbeatIntervalMillis());
+		assertTrue(hello.answersPings());
+		assertTrue(hello.acceptsReplays());
+		//a version 4 peer neither answers PINGs nor knows replays
+		TunnelFrame frame = new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL, List.of()).toFrame();
+		byte[] payload = frame.getPayload();
+		payload[4] = 4;
+		TunnelHello older = TunnelHello.fromFrame(new TunnelFrame(TunnelFrame.TYPE_HELLO, (byte) 0, 0, 0, payload,
+				frame.getLength()));
+		assertEquals(4, older.getVersion());
+		assertFalse(older.answersPings());
+		assertFalse(older.acceptsReplays());
+		assertEquals(0x5eedL, older.getSessionId());
+		assertEquals("", older.getShipId());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TunnelFrame ping = TunnelFrame.ping(123456789L);
+		FrameCodec.write(out, ping);
+		FrameCodec.write(out, ping.pingAck());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		TunnelFrame received = FrameCodec.read(in);
+		assertTrue(received.isPing());
+		assertFalse(received.isAck());
+		TunnelFrame ack = FrameCodec.read(in);
+		assertTrue(ack.isPing() && ack.isAck());
+		assertEquals(123456789L, ack.getPingData());
+	}
+}
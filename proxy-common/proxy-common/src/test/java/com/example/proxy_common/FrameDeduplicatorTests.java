@@ -0,0 +1,190 @@
+package com.example.proxy_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDeduplicatorTests {
+
+	private static final int FRAME_LENGTH = 16384;
+
+	@Test
+	void sendsABodyTheShipHoldsAsReferencesBehindADifferentHead() throws Exception {
+		FrameDeduplicator.Stats stats = new FrameDeduplicator.Stats();
+		FrameDeduplicator deduplicator = new FrameDeduplicator(1 << 20, FRAME_LENGTH, stats);
+		ChunkStore.Stats storeStats = new ChunkStore.Stats();
+		ChunkStore store = new ChunkStore(1 << 20, storeStats);
+		byte[] body = random(1, 100_000);
+
+		byte[] first = concat("HTTP/1.1 200 OK\r\nDate: Mon, 12 Oct 2026 08:00:00 GMT\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), body);
+		assertArrayEquals(first, roundTrip(deduplicator, store, 1, first, 0, new ArrayList<>()));
+		long sentBefore = stats.getBytesOut();
+
+		byte[] second = concat("HTTP/1.1 200 OK\r\nAge: 3\r\nDate: Mon, 12 Oct 2026 08:00:03 GMT\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), body);
+		List<TunnelFrame> wire = new ArrayList<>();
+		assertArrayEquals(second, roundTrip(deduplicator, store, 3, second, 0, wire));
+		//all but the chunks around the head went as references
+		assertTrue(stats.getBytesOut() - sentBefore < second.length / 10, "sent " + (stats.getBytesOut() - sentBefore));
+		assertTrue(stats.getReferencedBytes() > body.length * 9L / 10);
+		assertEquals(stats.getReferencedBytes(), storeStats.getRestoredBytes());
+		assertTrue(wire.stream().allMatch(frame -> frame.getRequestId() == 3 && frame.isDeduplicated()));
+		for (int i = 0; i < wire.size(); i++) {
+			assertEquals(i, wire.get(i).getSequence());
+		}
+
+		deduplicator.close();
+		assertEquals(0, stats.getIndexEntries());
+		store.close();
+		assertEquals(0, storeStats.getStoredBytes());
+	}
+
+	@Test
+	void keepsBothSidesInStepWhenTheStoreOverflows() throws Exception {
+		FrameDeduplicator.Stats stats = new FrameDeduplicator.Stats();
+		//the offshore proxy may track less than the ship keeps, never more
+		FrameDeduplicator deduplicator = new FrameDeduplicator(64 * 1024, FRAME_LENGTH, stats);
+		ChunkStore store = new ChunkStore(96 * 1024, new ChunkStore.Stats());
+		byte[][] blocks = new byte[24][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = random(100 + i, 3000 + 700 * i);
+		}
+		Random random = new Random(7);
+		for (int request = 1; request <= 60; request++) {
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			for (int i = 0; i < 8; i++) {
+				response.write(blocks[random.nextInt(blocks.length)]);
+			}
+			byte[] bytes = response.toByteArray();
+			//two classes share the connection, each with its own chunks
+			int trafficClass = request % 2;
+			assertArrayEquals(bytes, roundTrip(deduplicator, store, request, bytes, trafficClass, new ArrayList<>()));
+		}
+		assertTrue(stats.getReferencedChunks() > 0);
+		assertTrue(stats.getIndexEntries() * FrameDeduplicator.MIN_CHUNK <= 2 * 64 * 1024);
+	}
+
+	@Test
+	void sendsAFlushedFrameWholeAndCarriesTheTailOfAFullOne() throws Exception {
+		FrameDeduplicator deduplicator = new FrameDeduplicator(1 << 20, FRAME_LENGTH, new FrameDeduplicator.Stats());
+		ChunkStore store = new ChunkStore(1 << 20, new ChunkStore.Stats());
+		FrameDeduplicator.Stream stream = deduplicator.newStream();
+		List<TunnelFrame> wire = new ArrayList<>();
+		FrameSink sink = wire::add;
+
+		byte[] head = random(2, 1000);
+		assertEquals(head.length, stream.prepare(TunnelFrame.data(5, 0, head, head.length, false)));
+		stream.send(UnaryOperator.identity(), sink);
+		assertArrayEquals(head, restore(store, wire));
+
+		byte[] full = random(3, FRAME_LENGTH);
+		int sent = stream.prepare(TunnelFrame.data(5, 1, full, full.length, false));
+		assertTrue(sent < full.length, "sent " + sent);
+		stream.send(UnaryOperator.identity(), sink);
+		byte[] restored = restore(store, wire);
+		assertEquals(sent, restored.length);
+
+		assertEquals(full.length - sent, stream.prepare(TunnelFrame.data(5, 2, new byte[0], 0, true)));
+		stream.send(UnaryOperator.identity(), sink);
+		assertArrayEquals(full, concat(restored, restore(store, wire)));
+		stream.discard();
+	}
+
+	@Test
+	void survivesCompressionAndRefusesChunksTheShipDoesNotHold() throws Exception {
+		FrameDeduplicator deduplicator = new FrameDeduplicator(1 << 20, FRAME_LENGTH, new FrameDeduplicator.Stats());
+		ChunkStore store = new ChunkStore(1 << 20, new ChunkStore.Stats());
+		FrameCompressor compressor = new FrameCompressor(CompressionCodec.DEFLATE);
+		byte[] text = "The ship's daily programme: breakfast on deck 9, shore excursions at 10:00. ".repeat(400)
+				.getBytes(StandardCharsets.ISO_8859_1);
+		FrameDeduplicator.Stream stream = deduplicator.newStream();
+		List<TunnelFrame> wire = new ArrayList<>();
+		stream.prepare(TunnelFrame.data(9, 0, text, text.length, true));
+		stream.send(compressor::compress, wire::add);
+		assertTrue(wire.stream().allMatch(TunnelFrame::isCompressed));
+		List<TunnelFrame> received = new ArrayList<>();
+		for (TunnelFrame frame : wire) {
+			received.add(compressor.decompress(frame));
+		}
+		assertArrayEquals(text, restore(store, received));
+
+		//a store that missed the first chunks cannot follow references to them
+		ChunkStore fresh = new ChunkStore(1 << 20, new ChunkStore.Stats());
+		byte[] again = text.clone();
+		wire.clear();
+		stream = deduplicator.newStream();
+		stream.prepare(TunnelFrame.data(10, 0, again, again.length, true));
+		stream.send(UnaryOperator.identity(), wire::add);
+		assertTrue(wire.get(0).isDeduplicated());
+		assertThrows(IOException.class, () -> fresh.restore(wire.get(0)));
+		assertFalse(TunnelFrame.data(1, 0, text, 10, false).isDeduplicated());
+	}
+
+	@Test
+	void announcesTheChunkStoreInTheHello() throws Exception {
+		TunnelHello hello = TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL,
+				List.of(), 5000, 4 << 20).toFrame());
+		assertEquals(4 << 20, hello.getChunkStoreBytes());
+		assertEquals(5000, hello.getHeartbeatIntervalMillis());
+		assertEquals(0, TunnelHello.fromFrame(new TunnelHello(List.of(CompressionCodec.NONE), 1024, 8192, 3, 0x5eedL,
+				List.of(), 5000).toFrame()).getChunkStoreBytes());
+		assertThrows(IllegalArgumentException.class, () -> new FrameDeduplicator(1024, FRAME_LENGTH, new FrameDeduplicator.Stats()));
+	}
+
+	//sends a response in full frames, the last one ending it, and restores what went over the wire
+	private static byte[] roundTrip(FrameDeduplicator deduplicator, ChunkStore store, long requestId, byte[] response,
+									int trafficClass, List<TunnelFrame> wire) throws IOException {
+		FrameDeduplicator.Stream stream = deduplicator.newStream();
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		List<TunnelFrame> frames = new ArrayList<>();
+		int sequence = 0;
+		for (int offset = 0; offset < response.length; offset += FRAME_LENGTH) {
+			int length = Math.min(FRAME_LENGTH, response.length - offset);
+			byte[] payload = new byte[length];
+			System.arraycopy(response, offset, payload, 0, length);
+			stream.prepare(TunnelFrame.data(requestId, sequence++, payload, length, offset + length == response.length,
+					true, trafficClass));
+			stream.send(UnaryOperator.identity(), frames::add);
+			wire.addAll(frames);
+			restored.write(restore(store, frames));
+		}
+		stream.discard();
+		return restored.toByteArray();
+	}
+
+	private static byte[] restore(ChunkStore store, List<TunnelFrame> frames) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (TunnelFrame frame : frames) {
+			TunnelFrame restored = store.restore(frame.retain());
+			assertFalse(restored.isDeduplicated());
+			out.write(restored.getPayload());
+			restored.release();
+		}
+		frames.clear();
+		return out.toByteArray();
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] joined = new byte[first.length + second.length];
+		System.arraycopy(first, 0, joined, 0, first.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+}
@@ -0,0 +1,190 @@
+package com.example.proxy_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameWriterTests {
+
+	private static final int PRODUCERS = 8;
+	private static final int FRAMES_PER_PRODUCER = 4000;
+	private static final int PAYLOAD = 512;
+
+	@Test
+	void keepsEachSendersFramesInOrder() throws Exception {
+		for (long delayMicros : new long[] { 0, 200 }) {
+			FrameWriter.Stats stats = new FrameWriter.Stats();
+			long frames = run((channel, executor) -> {
+				FrameWriter writer = new FrameWriter(channel, 64 * 1024, delayMicros, 256 * 1024, stats);
+				executor.submit(writer);
+				return writer;
+			});
+			assertEquals(PRODUCERS * FRAMES_PER_PRODUCER, frames);
+			assertEquals(PRODUCERS * FRAMES_PER_PRODUCER, stats.getFrames());
+			assertEquals((long) PRODUCERS * FRAMES_PER_PRODUCER * (FrameCodec.HEADER_LENGTH + PAYLOAD), stats.getBytes());
+		}
+	}
+
+	@Test
+	void batchesQueuedFramesIntoOneWritePerBatch() throws Exception {
+		CountingChannel channel = new CountingChannel();
+		FrameWriter.Stats stats = new FrameWriter.Stats();
+		//sixteen frames fill a batch
+		FrameWriter writer = new FrameWriter(channel, 16 * (FrameCodec.HEADER_LENGTH + PAYLOAD), 0, 1024 * 1024, stats);
+		byte[] payload = new byte[PAYLOAD];
+		for (int seq = 0; seq < 1000; seq++) {
+			writer.send(TunnelFrame.data(1, seq, payload, PAYLOAD, false));
+		}
+		//everything is queued before the writer starts, so each batch is full but the last
+		writer.shutdownOutput();
+		writer.run();
+		assertEquals(1000, stats.getFrames());
+		assertEquals(63, stats.getWrites());
+		assertEquals(63, channel.writes);
+		assertEquals(1000L * (FrameCodec.HEADER_LENGTH + PAYLOAD), channel.bytes);
+	}
+
+	@Test
+	void sharesTheConnectionByClassWeight() throws Exception {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			try (SocketChannel sending = SocketChannel.open(server.getLocalAddress());
+				 SocketChannel receiving = server.accept()) {
+				FrameWriter writer = new FrameWriter(sending, 64 * 1024, 0, 4 * 1024 * 1024, new FrameWriter.Stats());
+				writer.setClassWeights(List.of(4, 1));
+				//both classes are backlogged before the writer starts, and a window update goes ahead of them
+				byte[] payload = new byte[16 * 1024];
+				for (int seq = 0; seq < 100; seq++) {
+					writer.send(TunnelFrame.data(1, seq, payload, payload.length, false, false, 1));
+					writer.send(TunnelFrame.data(2, seq, payload, payload.length, false, false, 0));
+				}
+				writer.send(TunnelFrame.windowUpdate(0, 4096));
+				ExecutorService executor = Executors.newSingleThreadExecutor();
+				try {
+					executor.submit(writer);
+					DataInputStream in = new DataInputStream(new BufferedInputStream(receiving.socket().getInputStream()));
+					assertTrue(FrameCodec.read(in).isWindowUpdate());
+					int[] next = new int[3];
+					int[] firstHundred = new int[2];
+					for (int i = 0; i < 200; i++) {
+						TunnelFrame frame = FrameCodec.read(in);
+						assertEquals(next[(int) frame.getRequestId()]++, frame.getSequence());
+						if (i < 100) {
+							firstHundred[frame.getTrafficClass()]++;
+						}
+					}
+					assertEquals(80, firstHundred[0], "frames of the heavier class in the first hundred");
+				} finally {
+					writer.close();
+					executor.shutdownNow();
+				}
+			}
+		}
+	}
+
+	//sends from several threads through the sink the factory makes and reads everything back in order
+	private static long run(SinkFactory factory) throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			try (SocketChannel sending = SocketChannel.open(server.getLocalAddress());
+				 SocketChannel receiving = server.accept()) {
+				sending.socket().setTcpNoDelay(true);
+				FrameSink sink = factory.open(sending, executor);
+				Future<Long> received = executor.submit(() -> {
+					DataInputStream in = new DataInputStream(new BufferedInputStream(receiving.socket().getInputStream()));
+					int[] next = new int[PRODUCERS];
+					long frames = 0;
+					while (frames < (long) PRODUCERS * FRAMES_PER_PRODUCER) {
+						TunnelFrame frame = FrameCodec.read(in);
+						int producer = (int) frame.getRequestId();
+						assertEquals(next[producer]++, frame.getSequence());
+						assertEquals(PAYLOAD, frame.getLength());
+						frames++;
+					}
+					return frames;
+				});
+				List<Future<?>> producers = new ArrayList<>();
+				for (int p = 0; p < PRODUCERS; p++) {
+					long requestId = p;
+					producers.add(executor.submit(() -> {
+						byte[] payload = new byte[PAYLOAD];
+						for (int seq = 0; seq < FRAMES_PER_PRODUCER; seq++) {
+							sink.send(TunnelFrame.data(requestId, seq, payload, PAYLOAD, false));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> producer : producers) {
+					producer.get(60, TimeUnit.SECONDS);
+				}
+				long frames = received.get(60, TimeUnit.SECONDS);
+				if (sink instanceof FrameWriter writer) {
+					writer.close();
+				}
+				return frames;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@FunctionalInterface
+	private interface SinkFactory {
+		FrameSink open(SocketChannel channel, ExecutorService executor) throws IOException;
+	}
+
+	//takes everything it is given in one call, counting the calls
+	private static class CountingChannel implements GatheringByteChannel {
+		private long writes;
+		private long bytes;
+
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) {
+			writes++;
+			long written = 0;
+			for (int i = offset; i < offset + length; i++) {
+				written += sources[i].remaining();
+				sources[i].position(sources[i].limit());
+			}
+			bytes += written;
+			return written;
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources) {
+			return write(sources, 0, sources.length);
+		}
+
+		@Override
+		public int write(ByteBuffer source) {
+			return (int) write(new ByteBuffer[] { source }, 0, 1);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
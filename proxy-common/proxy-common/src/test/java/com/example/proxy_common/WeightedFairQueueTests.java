@@ -0,0 +1,69 @@
+package com.example.proxy_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WeightedFairQueueTests {
+
+	@Test
+	void sharesByWeightInBytes() {
+		WeightedFairQueue<int[]> queue = new WeightedFairQueue<>(3, 1000, item -> item[1]);
+		queue.setWeights(List.of(3, 1, 1));
+		//class 1 sends items twice the size of class 0's, class 2 has nothing queued
+		for (int i = 0; i < 300; i++) {
+			queue.offer(0, new int[] {0, 500});
+			queue.offer(1, new int[] {1, 1000});
+		}
+		long[] bytes = new long[3];
+		for (int i = 0; i < 200; i++) {
+			int[] item = queue.poll();
+			bytes[item[0]] += item[1];
+		}
+		assertEquals(3.0, (double) bytes[0] / bytes[1], 0.1);
+		assertEquals(0, bytes[2]);
+	}
+
+	@Test
+	void keepsOrderWithinAClassAndServesUrgentFirst() {
+		WeightedFairQueue<String> queue = new WeightedFairQueue<>(2, 10, item -> 25);
+		queue.offer(1, "b1");
+		queue.offer(1, "b2");
+		queue.offer(0, "a1");
+		queue.offerUrgent("now");
+		assertEquals(4, queue.size());
+		assertEquals("now", queue.poll());
+		//items larger than a turn's quantum go out once the class has saved up enough turns
+		List<String> rest = List.of(queue.poll(), queue.poll(), queue.poll());
+		assertTrue(rest.indexOf("b1") < rest.indexOf("b2"), rest.toString());
+		assertTrue(rest.contains("a1"));
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		//classes out of range fall into the last one
+		queue.offer(7, "c");
+		assertEquals("c", queue.poll());
+	}
+
+	@Test
+	void takeWaitsForAnOffer() throws Exception {
+		WeightedFairQueue<String> queue = new WeightedFairQueue<>(1, 10, item -> 1);
+		AtomicReference<String> taken = new AtomicReference<>();
+		Thread consumer = new Thread(() -> {
+			try {
+				taken.set(queue.take());
+			} catch (InterruptedException e) {
+				taken.set("interrupted");
+			}
+		});
+		consumer.start();
+		Thread.sleep(50);
+		queue.offer(0, "x");
+		consumer.join(5000);
+		assertEquals("x", taken.get());
+	}
+}
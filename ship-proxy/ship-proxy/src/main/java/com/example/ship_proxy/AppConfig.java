@@ -3,6 +3,7 @@ package com.example.ship_proxy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 @Configuration
 public class AppConfig {
@@ -16,4 +17,10 @@ public class AppConfig {
     public int offshorePort(@Value("${offshore.proxy.port}") int port) {
         return port;
     }
+
+    //ship.traffic.classes and the ship.traffic.class.<name>.* rules
+    @Bean
+    TrafficClasses trafficClasses(Environment environment) {
+        return TrafficClasses.from(environment);
+    }
 }
@@ -0,0 +1,282 @@
+package com.example.ship_proxy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A stored response and the HTTP caching rules (RFC 9111, shared cache) that
+ * decide whether it may be stored and for how long it can be served without
+ * asking the origin.
+ */
+class CacheEntry {
+    //heuristic freshness for responses with only Last-Modified is capped at a day
+    private static final long MAX_HEURISTIC_FRESHNESS_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final List<String> SERVED_WITHOUT = List.of("Age", "Connection", "Keep-Alive");
+
+    private final String key;
+    private final Map<String, String> varyValues;
+    private final long storedAt;
+    private final ResponseHead head;
+    private final byte[] headBytes;
+    private final ByteBuffer body;
+    private final long freshnessLifetimeMillis;
+    private final long initialAgeMillis;
+    private final boolean noCache;
+    //set while the entry was pushed by the offshore proxy and no request has used it yet
+    private final AtomicBoolean unclaimedPush = new AtomicBoolean();
+
+    CacheEntry(String key, Map<String, String> varyValues, long storedAt, byte[] headBytes, ByteBuffer body) {
+        this.key = key;
+        this.varyValues = varyValues;
+        this.storedAt = storedAt;
+        this.headBytes = headBytes;
+        this.head = ResponseHead.parse(headBytes, headBytes.length);
+        this.body = body;
+        Map<String, String> cacheControl = directives(head.headerList("Cache-Control"));
+        //stale entries are never served, so must-revalidate needs no special handling
+        this.noCache = cacheControl.containsKey("no-cache");
+        this.freshnessLifetimeMillis = freshnessLifetime(head, cacheControl);
+        long dateMillis = parseDate(head.header("Date"));
+        long ageHeader = parseSeconds(head.header("Age")) * 1000;
+        this.initialAgeMillis = Math.max(ageHeader, dateMillis > 0 ? Math.max(0, storedAt - dateMillis) : 0);
+    }
+
+    /**
+     * Whether a shared cache may store this response to this request at all.
+     */
+    static boolean isStorable(RequestInfo request, ResponseHead response) {
+        if (!request.isGet() || request.header("authorization") != null) {
+            return false;
+        }
+        Map<String, String> requestCacheControl = directives(request.header("cache-control"));
+        if (requestCacheControl.containsKey("no-store")) {
+            return false;
+        }
+        switch (response.getStatusCode()) {
+            case 200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501 -> {
+            }
+            default -> {
+                return false;
+            }
+        }
+        Map<String, String> cacheControl = directives(response.headerList("Cache-Control"));
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+            return false;
+        }
+        String vary = response.headerList("Vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+        //cookies are per passenger, never share them
+        if (response.header("Set-Cookie") != null) {
+            return false;
+        }
+        boolean explicitFreshness = cacheControl.containsKey("max-age") || cacheControl.containsKey("s-maxage")
+                || response.header("Expires") != null;
+        boolean validators = response.header("ETag") != null || response.header("Last-Modified") != null;
+        return explicitFreshness || validators;
+    }
+
+    /**
+     * Request header values the response varies on, so a later request can be
+     * matched against them.
+     */
+    static Map<String, String> varyValues(RequestInfo request, ResponseHead response) {
+        Map<String, String> values = new HashMap<>();
+        String vary = response.headerList("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                String header = name.trim().toLowerCase(Locale.ROOT);
+                if (!header.isEmpty()) {
+                    String value = request.header(header);
+                    values.put(header, value == null ? "" : value);
+                }
+            }
+        }
+        return values;
+    }
+
+    boolean matchesVary(RequestInfo request) {
+        for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+            String value = request.header(vary.getKey());
+            if (!vary.getValue().equals(value == null ? "" : value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the entry can answer the request without revalidation.
+     */
+    boolean isFresh(RequestInfo request, long now) {
+        if (noCache) {
+            return false;
+        }
+        Map<String, String> requestCacheControl = directives(request.header("cache-control"));
+        if (requestCacheControl.containsKey("no-cache") || "no-cache".equalsIgnoreCase(request.header("pragma"))) {
+            return false;
+        }
+        long age = ageMillis(now);
+        long lifetime = freshnessLifetimeMillis;
+        if (requestCacheControl.containsKey("max-age")) {
+            lifetime = Math.min(lifetime, parseSeconds(requestCacheControl.get("max-age")) * 1000);
+        }
+        return age < lifetime;
+    }
+
+    boolean hasValidators() {
+        return head.header("ETag") != null || head.header("Last-Modified") != null;
+    }
+
+    long ageMillis(long now) {
+        return initialAgeMillis + Math.max(0, now - storedAt);
+    }
+
+    /**
+     * Conditional headers to revalidate this entry with the origin.
+     */
+    String conditionalHeaders() {
+        StringBuilder headers = new StringBuilder();
+        if (head.header("ETag") != null) {
+            headers.append("If-None-Match: ").append(head.header("ETag")).append("\r\n");
+        }
+        if (head.header("Last-Modified") != null) {
+            headers.append("If-Modified-Since: ").append(head.header("Last-Modified")).append("\r\n");
+        }
+        return headers.toString();
+    }
+
+    /**
+     * The entry after a 304: same body, headers updated from the 304 response.
+     */
+    CacheEntry refresh(ResponseHead notModified, long now) {
+        StringBuilder merged = new StringBuilder(head.getStatusLine()).append("\r\n");
+        for (String[] header : head.getHeaders()) {
+            if (notModified.header(header[0]) == null || header[0].equalsIgnoreCase("Content-Length")) {
+                merged.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+        }
+        for (String[] header : notModified.getHeaders()) {
+            if (!header[0].equalsIgnoreCase("Content-Length") && !header[0].equalsIgnoreCase("Transfer-Encoding")
+                    && !header[0].equalsIgnoreCase("Connection")) {
+                merged.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+        }
+        byte[] mergedHead = merged.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        return new CacheEntry(key, varyValues, now, mergedHead, body);
+    }
+
+    /**
+     * Head to send to the client, with the current Age. A body that was
+     * delimited by the origin closing the connection gets a Content-Length so
+     * the client connection can stay open.
+     */
+    byte[] servedHead(long now) {
+        String age = Long.toString(ageMillis(now) / 1000);
+        if (head.header("Content-Length") == null && head.header("Transfer-Encoding") == null) {
+            return head.toBytes(SERVED_WITHOUT, "Age", age, "Content-Length", Integer.toString(body.remaining()));
+        }
+        return head.toBytes(SERVED_WITHOUT, "Age", age);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Map<String, String> getVaryValues() {
+        return varyValues;
+    }
+
+    long getStoredAt() {
+        return storedAt;
+    }
+
+    byte[] getHeadBytes() {
+        return headBytes;
+    }
+
+    void markPushed() {
+        unclaimedPush.set(true);
+    }
+
+    //true for the first request served a pushed entry, false otherwise
+    boolean claimPush() {
+        return unclaimedPush.get() && unclaimedPush.compareAndSet(true, false);
+    }
+
+    //a private view, callers may move its position freely
+    ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    int size() {
+        return headBytes.length + body.remaining();
+    }
+
+    private static long freshnessLifetime(ResponseHead head, Map<String, String> cacheControl) {
+        if (cacheControl.containsKey("s-maxage")) {
+            return parseSeconds(cacheControl.get("s-maxage")) * 1000;
+        }
+        if (cacheControl.containsKey("max-age")) {
+            return parseSeconds(cacheControl.get("max-age")) * 1000;
+        }
+        long date = parseDate(head.header("Date"));
+        long expires = parseDate(head.header("Expires"));
+        if (head.header("Expires") != null) {
+            //an invalid Expires means already expired
+            return expires > 0 && date > 0 ? Math.max(0, expires - date) : 0;
+        }
+        long lastModified = parseDate(head.header("Last-Modified"));
+        if (lastModified > 0 && date > lastModified) {
+            return Math.min((date - lastModified) / 10, MAX_HEURISTIC_FRESHNESS_MILLIS);
+        }
+        return 0;
+    }
+
+    static Map<String, String> directives(String cacheControl) {
+        Map<String, String> directives = new HashMap<>();
+        if (cacheControl == null) {
+            return directives;
+        }
+        for (String directive : cacheControl.split(",")) {
+            int equals = directive.indexOf('=');
+            String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase(Locale.ROOT);
+            String value = equals < 0 ? "" : directive.substring(equals + 1).trim().replace("\"", "");
+            if (!name.isEmpty()) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
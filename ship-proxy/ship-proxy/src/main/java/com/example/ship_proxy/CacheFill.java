@@ -0,0 +1,98 @@
+package com.example.ship_proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copies a response on its way to the client so it can be stored once it is
+ * complete. When revalidating a stale entry the response head is held back
+ * until it is known whether the origin answered 304.
+ */
+class CacheFill {
+    private final RequestInfo request;
+    private final CacheEntry stale;
+    private final long maxBytes;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private ResponseHead head;
+    private boolean storing = true;
+
+    CacheFill(RequestInfo request, CacheEntry stale, long maxBytes) {
+        this.request = request;
+        this.stale = stale;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Records a response chunk.
+     *
+     * @return the bytes to pass on to the client now, or null while the head of
+     *         a revalidation response is still incomplete
+     */
+    byte[] onData(byte[] data, boolean last) {
+        boolean headPending = head == null;
+        if (storing) {
+            received.write(data, 0, data.length);
+            if (headPending) {
+                head = ResponseHead.parse(received.toByteArray(), received.size());
+                if (head != null) {
+                    storing = CacheEntry.isStorable(request, head) || isNotModified();
+                } else if (last || received.size() > HttpRequestParser.MAX_HEADER_BYTES) {
+                    storing = false;
+                }
+            }
+            if (received.size() > maxBytes) {
+                storing = false;
+            }
+        }
+        if (stale != null && headPending) {
+            if (head == null && storing) {
+                return null;
+            }
+            //release what was held back along with this chunk
+            byte[] held = received.toByteArray();
+            if (!storing) {
+                received.reset();
+            }
+            return held;
+        }
+        if (!storing) {
+            received.reset();
+        }
+        return data;
+    }
+
+    boolean isRevalidation() {
+        return stale != null;
+    }
+
+    boolean isNotModified() {
+        return stale != null && head != null && head.getStatusCode() == 304;
+    }
+
+    RequestInfo getRequest() {
+        return request;
+    }
+
+    CacheEntry getStale() {
+        return stale;
+    }
+
+    /**
+     * The entry to store once the last chunk has been seen, or null if the
+     * response can't be stored.
+     */
+    CacheEntry toEntry(long now) {
+        if (!storing || head == null || isNotModified()) {
+            return null;
+        }
+        byte[] bytes = received.toByteArray();
+        byte[] headBytes = Arrays.copyOf(bytes, head.getLength());
+        ByteBuffer body = ByteBuffer.wrap(bytes, head.getLength(), bytes.length - head.getLength()).slice();
+        return new CacheEntry(request.getUrl(), CacheEntry.varyValues(request, head), now, headBytes, body);
+    }
+
+    ResponseHead getHead() {
+        return head;
+    }
+}
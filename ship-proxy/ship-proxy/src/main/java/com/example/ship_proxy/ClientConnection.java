@@ -0,0 +1,581 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.FrameCompressor;
+import com.example.proxy_common.TunnelFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-socket state of a persistent client connection. All methods except
+ * {@link #write} and the ones documented otherwise must be called on the owning
+ * {@link ClientEventLoop}. Requests may be pipelined: each one becomes an
+ * {@link Exchange} in arrival order and responses are written strictly in that
+ * order, later ones waiting in their exchange until the earlier ones are done.
+ * Reading stops while the tunnel has no credit for the request body, and
+ * response bytes are only granted back to the offshore proxy once written to
+ * the socket, so a slow client holds at most a stream window per request.
+ * <p>
+ * A CONNECT turns the rest of the connection into a tunnel: once its head is
+ * read, whatever the client sends is the request's body, sent on as it comes
+ * under the same credit, and the response is the offshore proxy's status line
+ * followed by whatever the origin sends, until either side closes.
+ */
+class ClientConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ClientConnection.class);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    //stands in for the frame behind a queued buffer that nothing needs to release
+    private static final TunnelFrame UNOWNED = TunnelFrame.reset(0);
+    //the response head is inspected for Connection: close, a longer head closes the connection
+    private static final int MAX_RESPONSE_HEAD_BYTES = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ClientEventLoop loop;
+    private final ProxyHandler proxyHandler;
+    private final PipelineMetrics metrics;
+    //for traffic classes by subnet; null if the socket no longer knows
+    private final InetAddress clientAddress;
+    //requests whose responses are not fully written yet, oldest first
+    private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+    private HttpRequestParser parser;
+    //bytes at the start of the parser buffer that were already sent to the tunnel
+    private int forwarded;
+    //System.nanoTime() the parser got the first byte of the request it is reading
+    private long readStartedAt;
+    //request currently being read from the client, null between requests
+    private Exchange current;
+    private int sequence;
+    //false when the request body is already compressed, e.g. an image upload
+    private boolean compressibleBody;
+    //taken from the head when it is read, as compacting the body over it leaves the parser's offsets stale
+    private boolean keepAlive;
+    //request bytes the offshore proxy still accepts for the current stream
+    private long sendCredit;
+    //pipelined bytes read ahead of a request that could not start yet
+    private ByteBuffer heldInput;
+    //reading stopped until there is credit, a free stream or room in the pipeline
+    private boolean paused;
+    //the client will send no more requests on this connection
+    private boolean readShutdown;
+    private long lastActivity = System.currentTimeMillis();
+    private boolean closed;
+
+    ClientConnection(SocketChannel channel, SelectionKey key, ClientEventLoop loop, ProxyHandler proxyHandler) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.proxyHandler = proxyHandler;
+        this.metrics = proxyHandler.getMetrics();
+        this.clientAddress = channel.socket().getInetAddress();
+    }
+
+    void onReadable() throws IOException {
+        if (current != null && current.tunneled) {
+            if (sendCredit <= 0) {
+                //resumed by addSendCredit
+                pauseReading();
+                return;
+            }
+            if (!proxyHandler.hasConnectionSendCredit()) {
+                pauseReading();
+                proxyHandler.awaitCapacity(this);
+                return;
+            }
+        }
+        ByteBuffer buffer = loop.readBuffer();
+        buffer.clear();
+        int bytesRead = channel.read(buffer);
+        if (bytesRead == -1) {
+            onEndOfInput();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        metrics.clientBytesRead(bytesRead);
+        buffer.flip();
+        process(buffer);
+    }
+
+    private void process(ByteBuffer input) {
+        try {
+            while (!closed && !readShutdown) {
+                if (current != null && current.connect) {
+                    forwardTunnelBytes(input);
+                    return;
+                }
+                if (current == null && exchanges.size() >= proxyHandler.getMaxPipelinedRequests()) {
+                    //resumed when a response completes
+                    holdBack(input);
+                    pauseReading();
+                    return;
+                }
+                if (parser == null) {
+                    if (!input.hasRemaining()) {
+                        return;
+                    }
+                    parser = new HttpRequestParser(loop.acquireRequestBuffer());
+                    forwarded = 0;
+                    readStartedAt = System.nanoTime();
+                }
+                boolean complete = parser.parse(input);
+                if (parser.headersComplete()) {
+                    //stream what has been read so far; the body is never held in full on the ship
+                    int length = parser.length() - forwarded;
+                    if (current == null) {
+                        //the head stays an array, as a cache revalidation or a replay of the request needs it whole
+                        byte[] chunk = Arrays.copyOfRange(parser.buffer(), forwarded, parser.length());
+                        if (!startExchange(chunk, complete)) {
+                            holdBack(input);
+                            return;
+                        }
+                    } else if (length > 0 || complete) {
+                        proxyHandler.sendRequestChunk(current.requestId, sequence++, parser.buffer(), forwarded, length,
+                                complete, compressibleBody, current.trafficClass);
+                        sendCredit -= length;
+                    }
+                    forwarded = parser.compact();
+                }
+                if (!complete) {
+                    return;
+                }
+                metrics.clientRead(readStartedAt);
+                if (current.connect) {
+                    //anything left in the input is already the tunnel's
+                    releaseParser();
+                    continue;
+                }
+                //anything left in the input is the next pipelined request
+                releaseParser();
+                if (!keepAlive) {
+                    current.closeAfter = true;
+                    shutdownInput();
+                    if (exchanges.isEmpty()) {
+                        //the response went out before the client finished sending the body
+                        close();
+                        return;
+                    }
+                }
+                current = null;
+            }
+        } catch (HttpRequestParser.HttpParseException e) {
+            logger.warn("Rejecting malformed client request: {}", e.getMessage());
+            metrics.requestEnded(PipelineMetrics.Outcome.REJECTED);
+            reject(e.getStatusCode(), e.getMessage());
+        }
+    }
+
+    //sends what the client wrote into a CONNECT tunnel as it is; TLS records do not compress
+    private void forwardTunnelBytes(ByteBuffer input) {
+        if (!input.hasRemaining()) {
+            return;
+        }
+        byte[] chunk = new byte[input.remaining()];
+        input.get(chunk);
+        proxyHandler.sendRequestChunk(current.requestId, sequence++, chunk, false, false, current.trafficClass);
+        sendCredit -= chunk.length;
+    }
+
+    //registers the request whose head was just read; false if it has to wait for a free stream
+    private boolean startExchange(byte[] chunk, boolean complete) {
+        Exchange exchange = new Exchange(proxyHandler.nextRequestId());
+        exchanges.add(exchange);
+        exchange.trafficClass = proxyHandler.classify(parser, clientAddress);
+        //a tunnel's request only ends when the client stops sending
+        exchange.connect = parser.methodIs("CONNECT");
+        exchange.closeAfter = exchange.connect;
+        ProxyHandler.RequestStart start = proxyHandler.startRequest(this, exchange.requestId, parser, chunk,
+                complete && !exchange.connect, exchange.trafficClass);
+        if (start == ProxyHandler.RequestStart.NO_STREAM) {
+            //keep what was read in the parser and try again when a stream frees up
+            exchanges.removeLast();
+            pauseReading();
+            proxyHandler.awaitCapacity(this);
+            return false;
+        }
+        exchange.tunneled = start == ProxyHandler.RequestStart.TUNNELED;
+        current = exchange;
+        sequence = 1;
+        compressibleBody = FrameCompressor.isCompressible(parser.header("content-type"),
+                parser.header("content-encoding"));
+        keepAlive = parser.isKeepAlive();
+        sendCredit = proxyHandler.getStreamSendWindow() - chunk.length;
+        return true;
+    }
+
+    //answers a malformed request with an error and stops reading; earlier responses still go out first
+    private void reject(int statusCode, String message) {
+        Exchange exchange = current;
+        current = null;
+        releaseParser();
+        shutdownInput();
+        if (exchange == null) {
+            exchange = new Exchange(proxyHandler.nextRequestId());
+            exchanges.add(exchange);
+        } else if (exchange.tunneled && !exchange.complete) {
+            //part of the request has already gone through the tunnel
+            proxyHandler.onClientClosed(exchange.requestId, exchange.trafficClass);
+            exchange.tunneled = false;
+        }
+        if (exchange.responseStarted || exchange.complete) {
+            exchange.complete = true;
+            exchange.closeAfter = true;
+            flushQuietly();
+            return;
+        }
+        enqueue(exchange, ByteBuffer.wrap(errorResponse(statusCode, message)), true);
+    }
+
+    private void onEndOfInput() {
+        if (current != null && current.connect && current.tunneled) {
+            //the origin gets the end of the client's side; its own may still come back
+            proxyHandler.sendRequestChunk(current.requestId, sequence++, new byte[0], true, false, current.trafficClass);
+            current = null;
+            shutdownInput();
+            return;
+        }
+        if (current != null || exchanges.isEmpty()) {
+            //nothing left to answer, or a request that can never be completed
+            close();
+            return;
+        }
+        //the client half-closed after its last request: finish the responses first
+        exchanges.peekLast().closeAfter = true;
+        shutdownInput();
+    }
+
+    private void shutdownInput() {
+        readShutdown = true;
+        heldInput = null;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void holdBack(ByteBuffer input) {
+        if (!input.hasRemaining() || input == heldInput) {
+            return;
+        }
+        //the loop's read buffer is reused for the next connection
+        heldInput = ByteBuffer.allocate(input.remaining()).put(input).flip();
+    }
+
+    private void pauseReading() {
+        paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Starts reading again after {@link ProxyHandler#awaitCapacity}. Safe to
+     * call from any thread.
+     */
+    void resume() {
+        loop.execute(this::resumeReading);
+    }
+
+    private void resumeReading() {
+        if (closed || !paused || readShutdown) {
+            return;
+        }
+        paused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        ByteBuffer held = heldInput;
+        heldInput = null;
+        if (held != null || (current == null && parser != null && parser.headersComplete())) {
+            //a request that was waiting for a free stream or a pipeline slot
+            process(held != null ? held : EMPTY);
+        }
+    }
+
+    /**
+     * A WINDOW_UPDATE for the request being streamed. Safe to call from any
+     * thread.
+     */
+    void addSendCredit(long streamId, int increment) {
+        loop.execute(() -> {
+            if (current == null || current.requestId != streamId) {
+                return;
+            }
+            sendCredit += increment;
+            if (sendCredit > 0) {
+                resumeReading();
+            }
+        });
+    }
+
+    private void releaseParser() {
+        if (parser != null) {
+            loop.releaseRequestBuffer(parser.buffer());
+            parser = null;
+        }
+    }
+
+    private static byte[] errorResponse(int statusCode, String message) {
+        String reason = switch (statusCode) {
+            case 431 -> "Request Header Fields Too Large";
+            case 502 -> "Bad Gateway";
+            case 504 -> "Gateway Timeout";
+            default -> "Bad Request";
+        };
+        String response = "HTTP/1.1 " + statusCode + " " + reason + "\r\n" + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + message.length() + "\r\n" + "Connection: close\r\n" + "\r\n" + message;
+        return response.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Queues response bytes of a request for the client. Safe to call from any
+     * thread.
+     */
+    void write(long requestId, byte[] data, boolean last) {
+        write(requestId, ByteBuffer.wrap(data), last);
+    }
+
+    /**
+     * Queues response bytes of a request for the client without copying them;
+     * the buffer must not be modified afterwards. Safe to call from any thread.
+     */
+    void write(long requestId, ByteBuffer data, boolean last) {
+        write(requestId, data, UNOWNED, last);
+    }
+
+    /**
+     * Queues the payload of a response frame for the client without copying
+     * it; the frame is released once the payload is written or dropped. Safe to
+     * call from any thread.
+     */
+    void write(long requestId, TunnelFrame frame, boolean last) {
+        write(requestId, null, frame, last);
+    }
+
+    private void write(long requestId, ByteBuffer data, TunnelFrame owner, boolean last) {
+        loop.execute(() -> {
+            Exchange exchange = find(requestId);
+            if (exchange != null && !exchange.complete) {
+                enqueue(exchange, data != null ? data : owner.getPayloadBuffer(), owner, last);
+            } else {
+                owner.release();
+            }
+        });
+    }
+
+    private void enqueue(Exchange exchange, ByteBuffer data, boolean last) {
+        enqueue(exchange, data, UNOWNED, last);
+    }
+
+    private void enqueue(Exchange exchange, ByteBuffer data, TunnelFrame owner, boolean last) {
+        if (closed) {
+            owner.release();
+            return;
+        }
+        exchange.onResponseData(data);
+        exchange.buffers.add(data);
+        exchange.owners.add(owner);
+        exchange.responseStarted = true;
+        if (last) {
+            exchange.complete = true;
+            exchange.completedAt = System.nanoTime();
+        }
+        if (exchange == exchanges.peek()) {
+            flushQuietly();
+        }
+    }
+
+    private Exchange find(long requestId) {
+        for (Exchange exchange : exchanges) {
+            if (exchange.requestId == requestId) {
+                return exchange;
+            }
+        }
+        return null;
+    }
+
+    private void flushQuietly() {
+        try {
+            onWritable();
+        } catch (IOException e) {
+            logger.debug("Error writing to client: {}", e.getMessage());
+            close();
+        }
+    }
+
+    void onWritable() throws IOException {
+        Exchange exchange;
+        while ((exchange = exchanges.peek()) != null) {
+            ByteBuffer head;
+            while ((head = exchange.buffers.peek()) != null) {
+                int written = channel.write(head);
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                    metrics.clientBytesWritten(written);
+                    if (exchange.tunneled && !exchange.complete) {
+                        acknowledge(exchange, written);
+                    }
+                }
+                if (head.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                exchange.buffers.poll();
+                exchange.owners.poll().release();
+            }
+            if (!exchange.complete) {
+                break;
+            }
+            exchanges.poll();
+            if (exchange.completedAt != 0) {
+                metrics.clientWrite(exchange.completedAt);
+            }
+            if (exchange.closeAfter) {
+                close();
+                return;
+            }
+            if (paused) {
+                //a pipelined request may have been waiting for this slot
+                resumeReading();
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    //grants the offshore proxy room for more of the response once half the window has drained
+    private void acknowledge(Exchange exchange, int written) {
+        exchange.unacknowledged += written;
+        if (exchange.unacknowledged >= proxyHandler.getStreamWindow() / 2) {
+            proxyHandler.sendWindowUpdate(exchange.requestId, exchange.unacknowledged);
+            exchange.unacknowledged = 0;
+        }
+    }
+
+    /**
+     * Called after the offshore proxy gave up on a response. If nothing was
+     * received yet the client gets a 502, otherwise the truncated response is
+     * cut off once the responses before it are written. Safe to call from any
+     * thread.
+     */
+    void abortResponse(long requestId) {
+        abortResponse(requestId, 502, "Offshore proxy aborted the request");
+    }
+
+    //no response started within the request deadline
+    void timeoutResponse(long requestId) {
+        abortResponse(requestId, 504, "Offshore proxy did not answer in time");
+    }
+
+    private void abortResponse(long requestId, int statusCode, String message) {
+        loop.execute(() -> {
+            Exchange exchange = find(requestId);
+            if (exchange == null || exchange.complete) {
+                return;
+            }
+            exchange.tunneled = false;
+            if (!exchange.responseStarted) {
+                enqueue(exchange, ByteBuffer.wrap(errorResponse(statusCode, message)), true);
+            } else {
+                exchange.complete = true;
+                exchange.closeAfter = true;
+                if (exchange == exchanges.peek()) {
+                    flushQuietly();
+                }
+            }
+        });
+    }
+
+    //closes a connection that has been waiting for a request for longer than the idle timeout
+    void closeIfIdle(long now, long idleTimeoutMillis) {
+        if (exchanges.isEmpty() && !paused && now - lastActivity >= idleTimeoutMillis) {
+            logger.debug("Closing idle client connection");
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        proxyHandler.onClientConnectionClosed();
+        for (Exchange exchange : exchanges) {
+            if (exchange.tunneled && !exchange.complete) {
+                proxyHandler.onClientClosed(exchange.requestId, exchange.trafficClass);
+            }
+            exchange.releaseBuffers();
+        }
+        exchanges.clear();
+        current = null;
+        heldInput = null;
+        releaseParser();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing client socket", e);
+        }
+    }
+
+    /**
+     * One request on the connection and its response as it arrives.
+     */
+    private static class Exchange {
+        final long requestId;
+        //index of its traffic class, which tags its frames on the tunnel
+        int trafficClass;
+        final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+        //the frame each of the buffers belongs to, in the same order
+        final ArrayDeque<TunnelFrame> owners = new ArrayDeque<>();
+        //the response comes through the tunnel rather than the cache
+        boolean tunneled;
+        //a CONNECT: the client's bytes after its head are the request body, and the connection ends with it
+        boolean connect;
+        boolean responseStarted;
+        //all of the response has been received
+        boolean complete;
+        //System.nanoTime() the last of the response was queued, 0 if it was cut off instead
+        long completedAt;
+        boolean closeAfter;
+        //response bytes written to the client but not yet granted back to the offshore proxy
+        int unacknowledged;
+        //start of the response until its head has been seen, null afterwards
+        private byte[] headProbe = new byte[0];
+
+        Exchange(long requestId) {
+            this.requestId = requestId;
+        }
+
+        void releaseBuffers() {
+            TunnelFrame owner;
+            while ((owner = owners.poll()) != null) {
+                owner.release();
+            }
+            buffers.clear();
+        }
+
+        //looks for Connection: close in the response head
+        void onResponseData(ByteBuffer data) {
+            if (headProbe == null) {
+                return;
+            }
+            int n = Math.min(data.remaining(), MAX_RESPONSE_HEAD_BYTES - headProbe.length);
+            byte[] probe = Arrays.copyOf(headProbe, headProbe.length + n);
+            data.duplicate().get(probe, headProbe.length, n);
+            ResponseHead head = ResponseHead.parse(probe, probe.length);
+            if (head != null) {
+                String connection = head.headerList("connection");
+                if (connection != null && connection.toLowerCase(Locale.ROOT).contains("close")) {
+                    closeAfter = true;
+                }
+                headProbe = null;
+            } else if (probe.length >= MAX_RESPONSE_HEAD_BYTES) {
+                closeAfter = true;
+                headProbe = null;
+            } else {
+                headProbe = probe;
+            }
+        }
+    }
+}
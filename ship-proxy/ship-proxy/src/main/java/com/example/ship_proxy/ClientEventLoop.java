@@ -0,0 +1,215 @@
+package com.example.ship_proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded selector loop serving many client connections. Reads,
+ * request framing and response writes for a connection all happen on the loop
+ * that owns it; other threads hand work to the loop through {@link #execute}.
+ */
+class ClientEventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ClientEventLoop.class);
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int REQUEST_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_POOLED_REQUEST_BUFFERS = 1024;
+    //how often idle connections are looked for
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final String name;
+    private final ProxyHandler proxyHandler;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    //request buffers are only touched on the loop thread, so the pool needs no locking
+    private final ArrayDeque<byte[]> requestBufferPool = new ArrayDeque<>();
+    private ClientEventLoop[] acceptTargets;
+    private SelectionKey serverKey;
+    private int nextAcceptTarget;
+    private long lastIdleCheck = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    ClientEventLoop(String name, ProxyHandler proxyHandler) throws IOException {
+        this.name = name;
+        this.proxyHandler = proxyHandler;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Makes this loop accept connections on the given server channel and spread
+     * them round-robin over {@code targets}.
+     */
+    void listen(ServerSocketChannel serverChannel, ClientEventLoop[] targets) {
+        this.acceptTargets = targets;
+        execute(() -> {
+            try {
+                serverChannel.configureBlocking(false);
+                serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                logger.error("Failed to register server channel on {}", name, e);
+            }
+        });
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new ClientConnection(channel, key, this, proxyHandler));
+            } catch (IOException e) {
+                logger.error("Failed to register client channel on {}", name, e);
+                closeQuietly(channel);
+                proxyHandler.onClientConnectionClosed();
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loop thread. Safe to call from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    String name() {
+        return name;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    byte[] acquireRequestBuffer() {
+        byte[] buffer = requestBufferPool.poll();
+        return buffer != null ? buffer : new byte[REQUEST_BUFFER_SIZE];
+    }
+
+    void releaseRequestBuffer(byte[] buffer) {
+        //buffers that grew for a large request are left to the GC
+        if (buffer.length == REQUEST_BUFFER_SIZE && requestBufferPool.size() < MAX_POOLED_REQUEST_BUFFERS) {
+            requestBufferPool.push(buffer);
+        }
+    }
+
+    //called once a connection closes after accepting was paused
+    void resumeAccepting() {
+        execute(() -> {
+            if (serverKey != null && serverKey.isValid()) {
+                serverKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        logger.info("Client event loop {} started", name);
+        while (running) {
+            try {
+                selector.select(IDLE_CHECK_MILLIS);
+                runTasks();
+                closeIdleConnections();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Client connection error on {}: {}", name, e.getMessage());
+                        connection.close();
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Error in client event loop {}", name, e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        closeQuietly(selector);
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < IDLE_CHECK_MILLIS) {
+            return;
+        }
+        lastIdleCheck = now;
+        long idleTimeoutMillis = proxyHandler.getIdleTimeoutMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof ClientConnection connection) {
+                connection.closeIfIdle(now, idleTimeoutMillis);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Error running task on {}", name, e);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                ClientEventLoop target = acceptTargets[nextAcceptTarget];
+                nextAcceptTarget = (nextAcceptTarget + 1) % acceptTargets.length;
+                target.register(channel);
+                if (!proxyHandler.onClientAccepted()) {
+                    //the rest wait in the listen backlog until a connection closes
+                    logger.warn("Client connection limit reached, pausing accepts");
+                    serverKey.interestOps(0);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error accepting client connection", e);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.debug("Error closing {}", closeable, e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.ship_proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache tier of one file per entry in a directory. A hit is read back through
+ * memory mapping, its body a slice of the mapped file; {@link ResponseCache}
+ * copies that body onto the heap once and promotes the entry, so the mapping
+ * is not held and repeat hits are served from memory. The index is rebuilt
+ * from the directory on startup, so entries survive restarts. When the byte
+ * budget is exceeded the least recently used files are deleted.
+ */
+class DiskCacheTier {
+    private static final Logger logger = LoggerFactory.getLogger(DiskCacheTier.class);
+    private static final int MAGIC = 0x53485043;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".entry";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, IndexEntry> index = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    DiskCacheTier(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try (InputStream in = Files.newInputStream(file);
+                     DataInputStream data = new DataInputStream(in)) {
+                    if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                        Files.deleteIfExists(file);
+                        continue;
+                    }
+                    data.readLong();
+                    long size = Files.size(file);
+                    String key = readString(data, size);
+                    index.put(key, new IndexEntry(file, size, Files.getLastModifiedTime(file).toMillis()));
+                    totalBytes.addAndGet(size);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Dropping unreadable cache file {}", file);
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        //clean up writes interrupted by a crash
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tmp")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        logger.info("Loaded {} cached responses ({} bytes) from {}", index.size(), totalBytes.get(), directory);
+    }
+
+    CacheEntry get(String key) {
+        IndexEntry indexEntry = index.get(key);
+        if (indexEntry == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(indexEntry.file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("Bad cache file header");
+            }
+            long storedAt = mapped.getLong();
+            String storedKey = readString(mapped);
+            if (!storedKey.equals(key)) {
+                return null;
+            }
+            int varyCount = mapped.getInt();
+            Map<String, String> varyValues = new HashMap<>();
+            for (int i = 0; i < varyCount; i++) {
+                varyValues.put(readString(mapped), readString(mapped));
+            }
+            byte[] head = new byte[readLength(mapped)];
+            mapped.get(head);
+            int bodyLength = readLength(mapped);
+            ByteBuffer body = mapped.slice(mapped.position(), bodyLength);
+            indexEntry.lastAccess = System.currentTimeMillis();
+            return new CacheEntry(key, varyValues, storedAt, head, body);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Dropping unreadable cache file {}", indexEntry.file, e);
+            remove(key);
+            return null;
+        }
+    }
+
+    void put(CacheEntry entry) {
+        String key = entry.getKey();
+        Path file = directory.resolve(fileName(key));
+        Path temp = directory.resolve(fileName(key) + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(entry.getStoredAt());
+                writeString(out, key);
+                out.writeInt(entry.getVaryValues().size());
+                for (Map.Entry<String, String> vary : entry.getVaryValues().entrySet()) {
+                    writeString(out, vary.getKey());
+                    writeString(out, vary.getValue());
+                }
+                out.writeInt(entry.getHeadBytes().length);
+                out.write(entry.getHeadBytes());
+                ByteBuffer body = entry.getBody();
+                out.writeInt(body.remaining());
+                byte[] copy = new byte[Math.min(body.remaining(), 64 * 1024)];
+                while (body.hasRemaining()) {
+                    int n = Math.min(copy.length, body.remaining());
+                    body.get(copy, 0, n);
+                    out.write(copy, 0, n);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long size = Files.size(file);
+            IndexEntry previous = index.put(key, new IndexEntry(file, size, System.currentTimeMillis()));
+            totalBytes.addAndGet(size - (previous != null ? previous.size : 0));
+            evictIfNeeded();
+        } catch (IOException e) {
+            logger.warn("Failed to write cache entry for {}", key, e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                //the next startup removes leftover temp files
+            }
+        }
+    }
+
+    void remove(String key) {
+        IndexEntry removed = index.remove(key);
+        if (removed != null) {
+            totalBytes.addAndGet(-removed.size);
+            try {
+                Files.deleteIfExists(removed.file);
+            } catch (IOException e) {
+                logger.warn("Failed to delete cache file {}", removed.file, e);
+            }
+        }
+    }
+
+    private synchronized void evictIfNeeded() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, IndexEntry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+        for (Map.Entry<String, IndexEntry> entry : entries) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            remove(entry.getKey());
+        }
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //a string no longer than the file it is read from; a corrupt length is not allocated
+    private static String readString(DataInputStream in, long fileSize) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > fileSize) {
+            throw new IOException("Bad string length in cache file");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //a length that fits in what is left of the file
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Bad length in cache file");
+        }
+        return length;
+    }
+
+    private static class IndexEntry {
+        final Path file;
+        final long size;
+        volatile long lastAccess;
+
+        IndexEntry(Path file, long size, long lastAccess) {
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.BufferPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes how much of the tunnel's flow control budget is in use, how deep
+ * the queues between client connections and the tunnel are, and the traffic
+ * on the tunnel.
+ */
+@Component
+public class FlowControlMetrics implements MeterBinder {
+
+    @Autowired
+    private ProxyHandler proxyHandler;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ship.tunnel.streams.active", proxyHandler, ProxyHandler::getActiveStreams)
+                .description("Requests in progress on the tunnel").register(registry);
+        Gauge.builder("ship.tunnel.send.credit", proxyHandler, ProxyHandler::getConnectionSendCredit)
+                .baseUnit("bytes")
+                .description("Request bytes the offshore proxy still accepts").register(registry);
+        Gauge.builder("ship.tunnel.connections", proxyHandler, ProxyHandler::getTunnelConnections)
+                .description("Open tunnel connections to the offshore proxy").register(registry);
+        FunctionCounter.builder("ship.tunnel.frames.written", proxyHandler, ProxyHandler::getTunnelFramesWritten)
+                .description("Frames written to the tunnel").register(registry);
+        FunctionCounter.builder("ship.tunnel.writes", proxyHandler, ProxyHandler::getTunnelWrites)
+                .description("Gathering socket writes carrying those frames").register(registry);
+        FunctionCounter.builder("ship.tunnel.bytes.written", proxyHandler, ProxyHandler::getTunnelBytesWritten)
+                .baseUnit("bytes").description("Bytes written to the tunnel").register(registry);
+        FunctionCounter.builder("ship.tunnel.bytes.read", proxyHandler, ProxyHandler::getTunnelBytesRead)
+                .baseUnit("bytes").description("Bytes read from the tunnel, before decompression").register(registry);
+        FunctionCounter.builder("ship.tunnel.dedup.bytes.restored", proxyHandler, ProxyHandler::getDedupRestoredBytes)
+                .baseUnit("bytes").description("Response bytes rebuilt from stored chunks instead of received")
+                .register(registry);
+        Gauge.builder("ship.tunnel.dedup.store.bytes", proxyHandler, ProxyHandler::getDedupStoredBytes)
+                .baseUnit("bytes").description("Response chunks kept for the offshore proxy to refer to")
+                .register(registry);
+        Gauge.builder("ship.tunnel.queued", proxyHandler, ProxyHandler::getTunnelQueuedBytes)
+                .baseUnit("bytes").description("Frame bytes waiting for the tunnel writers").register(registry);
+        Gauge.builder("ship.queue.requests", proxyHandler, ProxyHandler::getRequestQueueDepth)
+                .description("Request frames waiting for the request pump").register(registry);
+        Gauge.builder("ship.queue.responses", proxyHandler, ProxyHandler::getResponseQueueDepth)
+                .description("Response frames waiting for the response pump").register(registry);
+        Gauge.builder("ship.requests.pending", proxyHandler, ProxyHandler::getPendingRequests)
+                .description("Requests sent to the tunnel still waiting for the end of their response").register(registry);
+        Gauge.builder("ship.tunnel.buffers.in.use", BufferPool.FRAMES, BufferPool::getInUse)
+                .description("Pooled frame buffers currently held").register(registry);
+        Gauge.builder("ship.tunnel.buffers.capacity", BufferPool.FRAMES, BufferPool::getCapacityBytes)
+                .baseUnit("bytes").description("Direct memory carved into frame buffers").register(registry);
+        FunctionCounter.builder("ship.tunnel.buffers.unpooled", BufferPool.FRAMES, BufferPool::getUnpooled)
+                .description("Frame buffers allocated outside the pool").register(registry);
+        Gauge.builder("ship.client.connections", proxyHandler, ProxyHandler::getClientConnections)
+                .description("Open client connections").register(registry);
+        Gauge.builder("ship.client.connections.waiting", proxyHandler, ProxyHandler::getWaitingConnections)
+                .description("Client connections paused for tunnel credit or a free stream").register(registry);
+    }
+}
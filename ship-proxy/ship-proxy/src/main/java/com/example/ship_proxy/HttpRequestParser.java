@@ -0,0 +1,458 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.TransferCoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Incremental HTTP/1.1 request parser. Bytes are fed as they arrive and copied
+ * once into a reusable buffer; the request line and headers are recorded as
+ * offsets into that buffer rather than Strings. Parsing stops exactly at the
+ * end of the request (Content-Length or chunked framing), leaving any following
+ * bytes in the input buffer. Once the headers are complete the caller may
+ * forward body bytes as they arrive and {@link #compact()} them away.
+ * <p>
+ * Lines must end in CRLF, as the offshore proxy, which reads the head again,
+ * only takes those. Heads other parsers could frame differently are rejected
+ * with a 400: folded header lines, whitespace before a header's colon, and
+ * Transfer-Encoding together with Content-Length.
+ */
+class HttpRequestParser {
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    enum State {
+        REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, COMPLETE
+    }
+
+    private byte[] buffer;
+    private int length;
+    private State state = State.REQUEST_LINE;
+    private int lineStart;
+
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private boolean http10;
+    private int headerEnd;
+    //four offsets per header: name start, name end, value start, value end
+    private int[] headers = new int[4 * 32];
+    private int headerCount;
+
+    private long contentLength = -1;
+    private boolean transferEncoded;
+    private boolean chunked;
+    private long remaining;
+
+    HttpRequestParser(byte[] initialBuffer) {
+        this.buffer = initialBuffer;
+    }
+
+    /**
+     * Consumes bytes from {@code in} until the request is complete or the input
+     * is exhausted.
+     *
+     * @return true once a complete request has been read
+     */
+    boolean parse(ByteBuffer in) throws HttpParseException {
+        while (in.hasRemaining() && state != State.COMPLETE) {
+            switch (state) {
+                case REQUEST_LINE, HEADERS, CHUNK_SIZE, CHUNK_DATA_END, TRAILERS -> {
+                    int lineEnd = readLine(in);
+                    if (lineEnd < 0) {
+                        return false;
+                    }
+                    onLine(lineStart, lineEnd);
+                    lineStart = length;
+                }
+                case BODY, CHUNK_DATA -> {
+                    int n = (int) Math.min(remaining, in.remaining());
+                    append(in, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.COMPLETE : State.CHUNK_DATA_END;
+                    }
+                    lineStart = length;
+                }
+                default -> throw new IllegalStateException(state.name());
+            }
+        }
+        return state == State.COMPLETE;
+    }
+
+    //copies bytes up to and including the next LF; returns the line end (excluding CRLF) or -1
+    private int readLine(ByteBuffer in) throws HttpParseException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            ensureCapacity(length + 1);
+            buffer[length++] = b;
+            if (b == LF) {
+                int end = length - 1;
+                if (end == lineStart || buffer[end - 1] != CR) {
+                    throw new HttpParseException(400, "Line not ended by CRLF");
+                }
+                return end - 1;
+            }
+            if (state == State.REQUEST_LINE || state == State.HEADERS) {
+                if (length > MAX_HEADER_BYTES) {
+                    throw new HttpParseException(431, "Request header section too large");
+                }
+            } else if (length - lineStart > 1024) {
+                throw new HttpParseException(400, "Chunk framing line too long");
+            }
+        }
+        return -1;
+    }
+
+    private void onLine(int start, int end) throws HttpParseException {
+        switch (state) {
+            case REQUEST_LINE -> {
+                if (indexOf(CR, start, end) >= 0) {
+                    throw new HttpParseException(400, "Bare CR in request line");
+                }
+                if (start == end) {
+                    //tolerate empty lines before the request line
+                    length = 0;
+                    return;
+                }
+                parseRequestLine(start, end);
+                state = State.HEADERS;
+            }
+            case HEADERS -> {
+                if (indexOf(CR, start, end) >= 0) {
+                    throw new HttpParseException(400, "Bare CR in header line");
+                }
+                if (start == end) {
+                    headerEnd = length;
+                    startBody();
+                } else {
+                    parseHeader(start, end);
+                }
+            }
+            case CHUNK_SIZE -> {
+                long size = parseChunkSize(start, end);
+                if (size == 0) {
+                    state = State.TRAILERS;
+                } else {
+                    remaining = size;
+                    state = State.CHUNK_DATA;
+                }
+            }
+            case CHUNK_DATA_END -> {
+                if (start != end) {
+                    throw new HttpParseException(400, "Missing CRLF after chunk data");
+                }
+                state = State.CHUNK_SIZE;
+            }
+            case TRAILERS -> {
+                if (start == end) {
+                    state = State.COMPLETE;
+                }
+            }
+            default -> throw new IllegalStateException(state.name());
+        }
+    }
+
+    private void parseRequestLine(int start, int end) throws HttpParseException {
+        int firstSpace = indexOf((byte) ' ', start, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, end);
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || end - secondSpace < 9
+                || buffer[secondSpace + 1] != 'H' || buffer[secondSpace + 5] != '/') {
+            throw new HttpParseException(400, "Malformed request line");
+        }
+        methodEnd = firstSpace;
+        targetStart = firstSpace + 1;
+        targetEnd = secondSpace;
+        http10 = buffer[secondSpace + 6] == '1' && buffer[secondSpace + 8] == '0';
+    }
+
+    private void parseHeader(int start, int end) throws HttpParseException {
+        //an obs-fold line continues the header above, which the offshore proxy would not do (RFC 9112, section 5.2)
+        if (buffer[start] == ' ' || buffer[start] == '\t') {
+            throw new HttpParseException(400, "Folded header line");
+        }
+        int colon = indexOf((byte) ':', start, end);
+        if (colon <= start) {
+            throw new HttpParseException(400, "Malformed header line");
+        }
+        //"Content-Length : 5" would be a different header to a reader that trims the name (RFC 9112, section 5.1)
+        if (buffer[colon - 1] == ' ' || buffer[colon - 1] == '\t') {
+            throw new HttpParseException(400, "Whitespace before the colon of a header");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        if (headerCount * 4 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = headerCount++ * 4;
+        headers[i] = start;
+        headers[i + 1] = colon;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+
+        if (equalsIgnoreCase(start, colon, CONTENT_LENGTH)) {
+            long value = parseDecimal(valueStart, valueEnd);
+            if (contentLength >= 0 && contentLength != value) {
+                throw new HttpParseException(400, "Conflicting Content-Length headers");
+            }
+            contentLength = value;
+        } else if (equalsIgnoreCase(start, colon, TRANSFER_ENCODING)) {
+            //the last header's final coding is the one that counts
+            transferEncoded = true;
+            chunked = TransferCoding.endsInChunked(buffer, valueStart, valueEnd);
+        }
+    }
+
+    private void startBody() throws HttpParseException {
+        if (transferEncoded && !chunked) {
+            throw new HttpParseException(400, "Transfer-Encoding does not end in chunked");
+        }
+        //forwarded together, an origin going by the length would take the rest of the body as another request
+        if (transferEncoded && contentLength >= 0) {
+            throw new HttpParseException(400, "Both Transfer-Encoding and Content-Length");
+        }
+        if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            remaining = contentLength;
+            state = State.BODY;
+        } else {
+            state = State.COMPLETE;
+        }
+    }
+
+    private long parseDecimal(int start, int end) throws HttpParseException {
+        if (start == end || end - start > 18) {
+            throw new HttpParseException(400, "Invalid Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new HttpParseException(400, "Invalid Content-Length");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private long parseChunkSize(int start, int end) throws HttpParseException {
+        long size = 0;
+        int i = start;
+        for (; i < end; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            if (i - start == 15) {
+                throw new HttpParseException(400, "Chunk size too large");
+            }
+            size = (size << 4) | digit;
+        }
+        if (i == start || (i < end && buffer[i] != ';' && buffer[i] != ' ' && buffer[i] != '\t')) {
+            throw new HttpParseException(400, "Invalid chunk size");
+        }
+        return size;
+    }
+
+    private void append(ByteBuffer in, int n) {
+        ensureCapacity(length + n);
+        in.get(buffer, length, n);
+        length += n;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //compares against an already lower-case ASCII token
+    private boolean equalsIgnoreCase(int start, int end, byte[] lowerCase) {
+        if (end - start != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prepares for the next request on the same connection, keeping the buffer.
+     */
+    void reset() {
+        length = 0;
+        lineStart = 0;
+        state = State.REQUEST_LINE;
+        headerCount = 0;
+        headerEnd = 0;
+        http10 = false;
+        contentLength = -1;
+        transferEncoded = false;
+        chunked = false;
+        remaining = 0;
+    }
+
+    /**
+     * Drops body bytes the caller has already forwarded, keeping only a
+     * partially read chunk framing line.
+     *
+     * @return the number of bytes kept, all of which have been forwarded
+     */
+    int compact() {
+        if (!headersComplete()) {
+            return length;
+        }
+        int kept = length - lineStart;
+        System.arraycopy(buffer, lineStart, buffer, 0, kept);
+        length = kept;
+        lineStart = 0;
+        return kept;
+    }
+
+    State state() {
+        return state;
+    }
+
+    boolean headersComplete() {
+        return state.compareTo(State.HEADERS) > 0;
+    }
+
+    boolean isStarted() {
+        return length > 0;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    boolean methodIs(String method) {
+        if (methodEnd != method.length()) {
+            return false;
+        }
+        for (int i = 0; i < methodEnd; i++) {
+            if (buffer[i] != method.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String method() {
+        return new String(buffer, 0, methodEnd, StandardCharsets.US_ASCII);
+    }
+
+    String target() {
+        return new String(buffer, targetStart, targetEnd - targetStart, StandardCharsets.US_ASCII);
+    }
+
+    int headerEnd() {
+        return headerEnd;
+    }
+
+    int headerCount() {
+        return headerCount;
+    }
+
+    String headerName(int index) {
+        return new String(buffer, headers[index * 4], headers[index * 4 + 1] - headers[index * 4], StandardCharsets.US_ASCII);
+    }
+
+    String headerValue(int index) {
+        return new String(buffer, headers[index * 4 + 2], headers[index * 4 + 3] - headers[index * 4 + 2], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the first value of the named header, or null.
+     */
+    String header(String name) {
+        byte[] lowerCase = name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], lowerCase)) {
+                return headerValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the connection may stay open after this request: HTTP/1.1 unless
+     * the client sent {@code Connection: close}. HTTP/1.0 clients get one
+     * request per connection, since their responses may not be delimited.
+     */
+    boolean isKeepAlive() {
+        if (http10) {
+            return false;
+        }
+        for (int i = 0; i < headerCount; i++) {
+            String name = headerName(i);
+            if (name.equalsIgnoreCase("connection") || name.equalsIgnoreCase("proxy-connection")) {
+                for (String token : headerValue(i).split(",")) {
+                    if (token.trim().equalsIgnoreCase("close")) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    long contentLength() {
+        return contentLength;
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    static class HttpParseException extends IOException {
+        private final int statusCode;
+
+        HttpParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.ship_proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each stage a request passes through on the ship, bytes moved to
+ * and from clients, and how requests ended. Stage timers publish percentile
+ * histograms, so the Prometheus endpoint can answer quantile queries across
+ * instances. Per traffic class there are the time request frames wait for the
+ * tunnel, the time to the first response frame, and bytes each way, so the
+ * share each class gets can be watched. Heartbeat round trips time each
+ * tunnel connection's PINGs, and requests replayed after losing their
+ * connection are counted. Gauges of queue depths and connections are in
+ * {@link FlowControlMetrics}.
+ */
+@Component
+public class PipelineMetrics {
+
+    //how a request ended, for error rates
+    enum Outcome {
+        //answered from the response cache
+        CACHED,
+        //the whole response came back through the tunnel
+        COMPLETED,
+        //the offshore proxy reset the stream
+        RESET,
+        //the tunnel connection carrying it dropped and it could not be replayed
+        LOST,
+        //no response started within the request deadline, answered with a 504
+        TIMED_OUT,
+        //the client went away first
+        CLIENT_CLOSED,
+        //malformed, answered with an error by the ship itself
+        REJECTED
+    }
+
+    private final Timer clientRead;
+    private final Timer queueWait;
+    private final Timer tunnelRoundTrip;
+    private final Timer clientWrite;
+    private final Timer heartbeatRoundTrip;
+    private final Counter replayed;
+    private final Counter clientBytesRead;
+    private final Counter clientBytesWritten;
+    private final Map<Outcome, Counter> outcomes = new EnumMap<>(Outcome.class);
+    private final MeterRegistry registry;
+    //by class index, replaced once the classes are configured
+    private volatile ClassMeters[] classes;
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        clientRead = stage(registry, "client-read", "From the first byte of a request to the last, read from the client");
+        queueWait = stage(registry, "queue-wait", "Time a frame waits in the request queue for the tunnel");
+        tunnelRoundTrip = stage(registry, "tunnel-rtt",
+                "From a request's first frame going to the tunnel to the first frame of its response, offshore fetch included");
+        clientWrite = stage(registry, "client-write", "From the last of a response being queued to it being written to the client");
+        heartbeatRoundTrip = stage(registry, "heartbeat-rtt", "From a PING going to a tunnel connection to its answer");
+        replayed = Counter.builder("ship.requests.replayed")
+                .description("Requests sent again after the tunnel connection carrying them dropped").register(registry);
+        clientBytesRead = Counter.builder("ship.client.bytes.read").baseUnit("bytes")
+                .description("Bytes read from client connections").register(registry);
+        clientBytesWritten = Counter.builder("ship.client.bytes.written").baseUnit("bytes")
+                .description("Bytes written to client connections").register(registry);
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, Counter.builder("ship.requests")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .description("Client requests by how they ended").register(registry));
+        }
+        trafficClasses(List.of("default"));
+    }
+
+    //registers the meters of each traffic class, in class order
+    void trafficClasses(List<String> names) {
+        ClassMeters[] meters = new ClassMeters[names.size()];
+        for (int i = 0; i < meters.length; i++) {
+            meters[i] = new ClassMeters(registry, names.get(i));
+        }
+        classes = meters;
+    }
+
+    private static Timer stage(MeterRegistry registry, String stage, String description) {
+        return Timer.builder("ship.stage.duration").tag("stage", stage).description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(60))
+                .register(registry);
+    }
+
+    //each takes the System.nanoTime() the stage started at
+    void clientRead(long startNanos) {
+        record(clientRead, startNanos);
+    }
+
+    void queueWait(long startNanos) {
+        record(queueWait, startNanos);
+    }
+
+    void tunnelRoundTrip(long startNanos) {
+        record(tunnelRoundTrip, startNanos);
+    }
+
+    void clientWrite(long startNanos) {
+        record(clientWrite, startNanos);
+    }
+
+    void heartbeatRoundTrip(long startNanos) {
+        record(heartbeatRoundTrip, startNanos);
+    }
+
+    void requestReplayed() {
+        replayed.increment();
+    }
+
+    void clientBytesRead(int bytes) {
+        clientBytesRead.increment(bytes);
+    }
+
+    void clientBytesWritten(int bytes) {
+        clientBytesWritten.increment(bytes);
+    }
+
+    void classQueueWait(int trafficClass, long startNanos) {
+        record(meters(trafficClass).queueWait, startNanos);
+    }
+
+    void classTunnelRoundTrip(int trafficClass, long startNanos) {
+        record(meters(trafficClass).tunnelRoundTrip, startNanos);
+    }
+
+    void classBytesSent(int trafficClass, int bytes) {
+        meters(trafficClass).bytesSent.increment(bytes);
+    }
+
+    void classBytesReceived(int trafficClass, int bytes) {
+        meters(trafficClass).bytesReceived.increment(bytes);
+    }
+
+    //frames of a class the ship does not know, from a confused peer, count against the last one
+    private ClassMeters meters(int trafficClass) {
+        ClassMeters[] meters = classes;
+        return meters[Math.min(trafficClass, meters.length - 1)];
+    }
+
+    void requestEnded(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    private static void record(Timer timer, long startNanos) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static class ClassMeters {
+        final Timer queueWait;
+        final Timer tunnelRoundTrip;
+        final Counter bytesSent;
+        final Counter bytesReceived;
+
+        ClassMeters(MeterRegistry registry, String name) {
+            queueWait = classTimer(registry, name, "queue-wait");
+            tunnelRoundTrip = classTimer(registry, name, "tunnel-rtt");
+            bytesSent = Counter.builder("ship.class.bytes").tag("class", name).tag("direction", "sent").baseUnit("bytes")
+                    .description("Request bytes sent to the tunnel, by traffic class").register(registry);
+            bytesReceived = Counter.builder("ship.class.bytes").tag("class", name).tag("direction", "received")
+                    .baseUnit("bytes").description("Response bytes received from the tunnel, by traffic class")
+                    .register(registry);
+        }
+
+        private static Timer classTimer(MeterRegistry registry, String name, String stage) {
+            return Timer.builder("ship.class.stage.duration").tag("class", name).tag("stage", stage)
+                    .description("The queue-wait and tunnel-rtt stages, by traffic class")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(60))
+                    .register(registry);
+        }
+    }
+}
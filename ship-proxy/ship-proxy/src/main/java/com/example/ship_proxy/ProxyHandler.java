@@ -1,119 +1,684 @@
 package com.example.ship_proxy;
 
+import com.example.proxy_common.BufferPool;
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.ExecutionMode;
+import com.example.proxy_common.PooledBuffer;
+import com.example.proxy_common.ReceiveCredit;
+import com.example.proxy_common.TraceId;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+import com.example.proxy_common.WeightedFairQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class ProxyHandler {
    private static final Logger logger = LoggerFactory.getLogger(ProxyHandler.class);
+   //request bytes a class of weight 1 may send per round
+   private static final int REQUEST_QUANTUM = 16 * 1024;
+   private static final long DEADLINE_CHECK_MILLIS = 500;
+   //methods that may be sent twice without changing the outcome, RFC 9110 section 9.2.2
+   private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+   //pushed responses being received at once; a push cut off with its tunnel connection is dropped with the oldest
+   private static final int MAX_PUSHES_IN_PROGRESS = 64;
 
+   //how startRequest dealt with a request
+   enum RequestStart {
+       //answered from the response cache
+       CACHED,
+       //sent to the offshore proxy
+       TUNNELED,
+       //every tunnel stream is in use, try again when awaitCapacity resumes the connection
+       NO_STREAM
+   }
+
+   @Value("${ship.proxy.port:8080}")
    private int proxyPort;
 
+   @Value("${offshore.proxy.host}")
    private String offshoreProxyHost;
 
+   @Value("${offshore.proxy.port}")
    private int offshoreProxyPort;
 
+   //number of selector loops serving client sockets, 0 means one per core
+   @Value("${ship.proxy.event-loops:0}")
+   private int eventLoopCount;
+
+   //platform or virtual threads for the queue pumps and the tunnel connection
+   @Value("${ship.proxy.execution-mode:platform}")
+   private String executionMode;
+
+   //tunnel compression codecs to offer, most preferred first
+   @Value("${ship.proxy.compression:deflate-dictionary,deflate}")
+   private String compression;
+
+   //response bytes the offshore proxy may send per request and in total before we grant more
+   @Value("${ship.proxy.stream-window:262144}")
+   private int streamWindow;
+
+   @Value("${ship.proxy.connection-window:4194304}")
+   private int connectionWindow;
+
+   //requests in progress on the tunnel at once, the offshore proxy may lower it
+   @Value("${ship.proxy.max-concurrent-streams:256}")
+   private int maxConcurrentStreams;
+
+   //client sockets open at once, further clients wait in the listen backlog
+   @Value("${ship.proxy.max-connections:4096}")
+   private int maxConnections;
+
+   //requests a client may send ahead of its responses on one connection
+   @Value("${ship.proxy.max-pipelined-requests:16}")
+   private int maxPipelinedRequests;
+
+   //idle client connections are closed after this long without a request
+   @Value("${ship.proxy.idle-timeout-seconds:30}")
+   private int idleTimeoutSeconds;
+
+   //tunnel connections kept open, and how many more may be added while each carries more than
+   //streams-per-tunnel-connection requests
+   @Value("${ship.proxy.tunnel-connections:4}")
+   private int tunnelConnections;
+
+   @Value("${ship.proxy.max-tunnel-connections:8}")
+   private int maxTunnelConnections;
+
+   @Value("${ship.proxy.streams-per-tunnel-connection:32}")
+   private int streamsPerTunnelConnection;
+
+   //frames a tunnel writer gathers into one write, and how long it may wait for more
+   @Value("${ship.proxy.write-batch-bytes:262144}")
+   private int writeBatchBytes;
+
+   @Value("${ship.proxy.write-batch-delay-micros:0}")
+   private long writeBatchDelayMicros;
+
+   //tunnel connections are PINGed this often and closed after the timeout without a frame, 0 no heartbeats
+   @Value("${ship.proxy.heartbeat-interval-millis:5000}")
+   private long heartbeatIntervalMillis;
+
+   @Value("${ship.proxy.heartbeat-timeout-millis:15000}")
+   private long heartbeatTimeoutMillis;
+
+   //failed tunnel connects are retried after a delay doubling from the first up to the maximum
+   @Value("${ship.proxy.reconnect-delay-millis:250}")
+   private long reconnectDelayMillis;
+
+   @Value("${ship.proxy.max-reconnect-delay-millis:30000}")
+   private long maxReconnectDelayMillis;
+
+   //times a request is sent again after losing its tunnel connection before its response started
+   @Value("${ship.proxy.max-replays:2}")
+   private int maxReplays;
+
+   //a client whose response has not started this long after its request gets a 504, 0 waits forever
+   @Value("${ship.proxy.request-deadline-seconds:60}")
+   private int requestDeadlineSeconds;
+
+   //the name the offshore proxy shares its workers and bandwidth between ships by; empty for its default share
+   @Value("${ship.proxy.ship-id:}")
+   private String shipId;
+
+   //response chunks kept per tunnel connection for the offshore proxy to refer to, shared by the traffic
+   //classes; 0 turns deduplication off
+   @Value("${ship.dedup.store-bytes:16777216}")
+   private long dedupStoreBytes;
+
+   //whether the offshore proxy may push responses it expects to be asked for into the response cache
+   @Value("${ship.prefetch.accept-pushes:true}")
+   private boolean acceptPushes;
+
+   @Autowired
+   private ResponseCache responseCache;
+
+   @Autowired
+   private PipelineMetrics metrics;
+
+   //everything is one class unless configured
+   @Autowired
+   private TrafficClasses trafficClasses = TrafficClasses.SINGLE;
+
    private final AtomicLong requestIdGenerator = new AtomicLong(1);
-   private final ConcurrentHashMap<Long, Clientconnection> pendingRequests = new ConcurrentHashMap<Long, Clientconnection>();
-   private final BlockingQueue<ProxyRequest> requestQueue = new LinkedBlockingQueue<>();
+   private final ConcurrentHashMap<Long, ClientConnection> pendingRequests = new ConcurrentHashMap<Long, ClientConnection>();
+   //request frames by traffic class, taken by weight so a bulk upload cannot hold up interactive requests;
+   //window updates go first
+   private final WeightedFairQueue<ProxyRequest> requestQueue = new WeightedFairQueue<>(TunnelFrame.MAX_TRAFFIC_CLASSES,
+           REQUEST_QUANTUM, ProxyRequest::getLength);
+   //responses being copied into the cache, by request ID
+   private final ConcurrentHashMap<Long, CacheFill> cacheFills = new ConcurrentHashMap<>();
+   //tunneled requests whose response has not started, by request ID
+   private final ConcurrentHashMap<Long, InFlight> inFlight = new ConcurrentHashMap<>();
+   //pushed responses being copied into the cache, by push ID; only the response pump touches it
+   private final LinkedHashMap<Long, CacheFill> pushFills = new LinkedHashMap<>();
+
+   //request bytes the offshore proxy still accepts; may go negative by up to a chunk per stream
+   private final AtomicLong connectionSendCredit = new AtomicLong(TunnelHello.DEFAULT_CONNECTION_WINDOW);
+   private volatile int streamSendWindow = TunnelHello.DEFAULT_STREAM_WINDOW;
+   private volatile int streamLimit = TunnelHello.DEFAULT_MAX_STREAMS;
+   private final AtomicInteger activeStreams = new AtomicInteger();
+   private volatile ReceiveCredit connectionReceiveCredit = new ReceiveCredit(TunnelHello.DEFAULT_CONNECTION_WINDOW);
+   //client connections that stopped reading until there is tunnel credit or a free stream
+   private final ConcurrentLinkedQueue<ClientConnection> waitingConnections = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger clientConnections = new AtomicInteger();
+   //the tunnel session request IDs currently belong to, for trace IDs
+   private volatile long sessionId;
+   //whether the offshore proxy takes a request sent again on another connection
+   private volatile boolean replaysAccepted;
 
    private com.example.ship_proxy.TCPClient tcpClient;
-   private boolean running = true;
+   private ClientEventLoop[] eventLoops;
+   private Thread requestPump;
+   private Thread responsePump;
+   private volatile boolean running = true;
 
 
     public void start() {
         //start the client connection to offshore proxy
-        tcpClient = new com.example.ship_proxy.TCPClient(offshoreProxyHost, offshoreProxyPort, this);
+        ExecutionMode mode = ExecutionMode.fromProperty(executionMode);
+        requestQueue.setWeights(trafficClasses.weights());
+        metrics.trafficClasses(trafficClasses.names());
+        logger.info("Traffic classes by weight: {}", trafficClasses.toHello());
+        tcpClient = new com.example.ship_proxy.TCPClient(offshoreProxyHost, offshoreProxyPort, this, executionMode,
+                compression, tunnelConnections, maxTunnelConnections, streamsPerTunnelConnection, writeBatchBytes,
+                writeBatchDelayMicros, heartbeatIntervalMillis, heartbeatTimeoutMillis, reconnectDelayMillis,
+                maxReconnectDelayMillis, metrics);
         tcpClient.connect();
-        new Thread(this::processRequestsFromQueue).start();
-        new Thread(this::handleResponses).start();
-        try (ServerSocket serverSocket = new ServerSocket(proxyPort)) {
-            logger.info("Ship proxy listening on port {}", proxyPort);
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    handleClientRequest(clientSocket);
-                } catch (Exception e) {
-                    logger.error("Error accepting client connection", e);
-                }
+        requestPump = mode.start("request-pump", this::processRequestsFromQueue);
+        responsePump = mode.start("response-pump", this::handleResponses);
+        if (requestDeadlineSeconds > 0) {
+            mode.start("request-deadlines", this::expireRequests);
+        }
+        try {
+            int loopCount = eventLoopCount > 0 ? eventLoopCount : Runtime.getRuntime().availableProcessors();
+            eventLoops = new ClientEventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                eventLoops[i] = new ClientEventLoop("client-loop-" + i, this);
             }
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(proxyPort), 1024);
+            eventLoops[0].listen(serverChannel, eventLoops);
+            for (ClientEventLoop eventLoop : eventLoops) {
+                new Thread(eventLoop, eventLoop.name()).start();
+            }
+            logger.info("Ship proxy listening on port {} with {} event loops", proxyPort, loopCount);
         } catch (IOException e) {
-            logger.info("Failed to start ship proxy");
+            logger.error("Failed to start ship proxy", e);
         }
     }
 
-    private void handleClientRequest(Socket clientSocket) {
-        new Thread(() -> {
-            try {
-                long requestId = requestIdGenerator.getAndIncrement();
-                logger.info("Handling client request with ID: {}", requestId);
-                InputStream clientIn = clientSocket.getInputStream();
-                ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = clientIn.read(buffer)) != -1) {
-                    requestBytes.write(buffer, 0, bytesRead);
-                    String requestData = requestBytes.toString();
-                    if (requestData.contains("\r\n\r\n")) {
-                        if (requestData.startsWith("POST") || requestData.startsWith("PUT")) {
-                            int contentLengthIndex = requestData.indexOf("Content-Length:");
-                            if (contentLengthIndex > 0) {
-                                int endOfLine = requestData.indexOf("\r\n", contentLengthIndex);
-                                String contentLengthValue = requestData.substring(contentLengthIndex + 15, endOfLine).trim();
-                                int contentLength = Integer.parseInt(contentLengthValue);
-                                int headerEndIndex = requestData.indexOf("\r\n\r\n") + 4;
-                                int bytesAlreadyRead = requestBytes.size() - headerEndIndex;
-                                int bytesStillNeeded = contentLength - bytesAlreadyRead;
-                                while (bytesStillNeeded > 0 && (bytesRead = clientIn.read(buffer)) != -1) {
-                                    requestBytes.write(buffer, 0, bytesRead);
-                                    bytesStillNeeded -= bytesRead;
-                                }
-                            }
-                        }
-                        break;
-                    }
+    //stops accepting and closes the client connections and the tunnel
+    void stop() {
+        running = false;
+        if (eventLoops != null) {
+            for (ClientEventLoop eventLoop : eventLoops) {
+                eventLoop.shutdown();
+            }
+        }
+        if (tcpClient != null) {
+            tcpClient.close();
+        }
+        //the pumps wait on their queues
+        if (requestPump != null) {
+            requestPump.interrupt();
+            responsePump.interrupt();
+        }
+    }
+
+    /**
+     * Called on the client's event loop once the request line and headers have
+     * been read, with the first chunk of the request and its traffic class.
+     * Answers from the response cache when it can, otherwise sends the chunk to
+     * the tunnel.
+     */
+    RequestStart startRequest(ClientConnection clientConnection, long requestId, HttpRequestParser parser,
+                              byte[] firstChunk, boolean complete, int trafficClass) {
+        CacheFill fill = null;
+        if (responseCache.isEnabled()) {
+            RequestInfo request = RequestInfo.from(parser);
+            //only whole GETs are cached, so the first chunk is the entire request
+            if (request.isGet() && complete) {
+                long now = System.currentTimeMillis();
+                CacheEntry entry = responseCache.lookup(request);
+                if (entry != null && entry.isFresh(request, now)) {
+                    logger.debug("Serving {} from the response cache", request.getUrl());
+                    responseCache.recordHit(entry);
+                    metrics.requestEnded(PipelineMetrics.Outcome.CACHED);
+                    clientConnection.write(requestId, entry.servedHead(now), false);
+                    clientConnection.write(requestId, entry.getBody(), true);
+                    return RequestStart.CACHED;
                 }
-                //store the client connection for later response
-                Clientconnection clientconnection = new Clientconnection(clientSocket, requestId);
-                pendingRequests.put(requestId, clientconnection);
+                //a client's own conditional request goes through untouched
+                if (entry != null && entry.hasValidators()
+                        && request.header("if-none-match") == null && request.header("if-modified-since") == null) {
+                    firstChunk = insertHeaders(firstChunk, parser.headerEnd(), entry.conditionalHeaders());
+                } else {
+                    entry = null;
+                }
+                fill = new CacheFill(request, entry, responseCache.getMaxEntryBytes());
+            } else if (!request.isGet() && !"HEAD".equals(request.getMethod())
+                    && !"CONNECT".equals(request.getMethod())) {
+                responseCache.invalidate(request.getUrl());
+            }
+        }
+        if (!tryAcquireStream()) {
+            return RequestStart.NO_STREAM;
+        }
+        logger.info("Handling client request with ID: {}, class {}, trace {}", requestId,
+                trafficClasses.name(trafficClass), trace(requestId));
+        //store the client connection for later response
+        pendingRequests.put(requestId, clientConnection);
+        long deadline = requestDeadlineSeconds > 0
+                ? System.currentTimeMillis() + requestDeadlineSeconds * 1000L : Long.MAX_VALUE;
+        //a whole request that is safe to repeat is kept until its response starts, in case the tunnel drops it
+        byte[] replay = complete && IDEMPOTENT_METHODS.contains(parser.method()) ? firstChunk : null;
+        inFlight.put(requestId, new InFlight(deadline, replay, trafficClass));
+        if (fill != null) {
+            cacheFills.put(requestId, fill);
+        }
+        //the first chunk carries the request head, which always compresses well
+        sendRequestChunk(requestId, 0, firstChunk, complete, true, trafficClass);
+        return RequestStart.TUNNELED;
+    }
 
-                //Queue the request for processing
-                ProxyRequest proxyRequest = new ProxyRequest(requestId, requestBytes.toByteArray());
-                requestQueue.put(proxyRequest);
-            } catch (Exception e) {
-                logger.error("Error handling client request", e);
-                try {
-                    clientSocket.close();
-                } catch (IOException ex) {
-                    logger.error("Error closing client socket", ex);
+    //the index of the traffic class a request whose head has been read belongs to
+    int classify(HttpRequestParser parser, InetAddress client) {
+        return trafficClasses.classify(parser, client);
+    }
+
+    long nextRequestId() {
+        return requestIdGenerator.getAndIncrement();
+    }
+
+    //inserts header lines before the blank line ending the request head
+    private static byte[] insertHeaders(byte[] request, int headerEnd, String headers) {
+        int at = headerEnd >= 2 && request[headerEnd - 2] == '\r' ? headerEnd - 2 : headerEnd - 1;
+        byte[] extra = headers.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] result = new byte[request.length + extra.length];
+        System.arraycopy(request, 0, result, 0, at);
+        System.arraycopy(extra, 0, result, at, extra.length);
+        System.arraycopy(request, at, result, at + extra.length, request.length - at);
+        return result;
+    }
+
+    //queues the next piece of a request's bytes for the tunnel, in the order they were read
+    void sendRequestChunk(long requestId, int sequence, byte[] data, boolean last, boolean compressible,
+                          int trafficClass) {
+        connectionSendCredit.addAndGet(-data.length);
+        requestQueue.offer(trafficClass, new ProxyRequest(requestId, sequence, data, last, false, compressible,
+                trafficClass));
+    }
+
+    //as above for a slice of an array the caller reuses, copied once, straight into the frame's pooled buffer
+    void sendRequestChunk(long requestId, int sequence, byte[] data, int offset, int length, boolean last,
+                          boolean compressible, int trafficClass) {
+        if (length == 0) {
+            sendRequestChunk(requestId, sequence, new byte[0], last, compressible, trafficClass);
+            return;
+        }
+        PooledBuffer buffer = BufferPool.FRAMES.acquire(length);
+        buffer.buffer().put(0, data, offset, length);
+        connectionSendCredit.addAndGet(-length);
+        requestQueue.offer(trafficClass, new ProxyRequest(requestId, sequence, buffer, length, last, compressible,
+                trafficClass));
+    }
+
+    //the client went away before its response was complete: tell the offshore proxy to stop
+    void onClientClosed(long requestId, int trafficClass) {
+        cacheFills.remove(requestId);
+        inFlight.remove(requestId);
+        if (pendingRequests.remove(requestId) != null) {
+            logger.info("Client for request ID: {} disconnected, resetting stream, trace {}", requestId, trace(requestId));
+            metrics.requestEnded(PipelineMetrics.Outcome.CLIENT_CLOSED);
+            //behind the request's own frames, so the reset does not overtake them
+            requestQueue.offer(trafficClass, new ProxyRequest(requestId, 0, new byte[0], true, true, false,
+                    trafficClass));
+            releaseStream();
+        }
+    }
+
+    /**
+     * The HELLO we send: how much response data we buffer, how many requests
+     * we run at once, the traffic classes our frames are tagged with and the
+     * name of the ship.
+     */
+    TunnelHello localSettings(List<CompressionCodec> codecs, long sessionId) {
+        return new TunnelHello(codecs, streamWindow, connectionWindow, maxConcurrentStreams, sessionId,
+                trafficClasses.toHello(), (int) Math.min(Integer.MAX_VALUE, heartbeatIntervalMillis),
+                (int) Math.min(Integer.MAX_VALUE, dedupStoreBytes / trafficClasses.size()),
+                acceptPushes && responseCache.isEnabled()
+                        ? (int) Math.min(Integer.MAX_VALUE, responseCache.getMaxEntryBytes()) : 0, shipId);
+    }
+
+    //how the tunnel writers share each connection between classes
+    List<Integer> getClassWeights() {
+        return trafficClasses.weights();
+    }
+
+    /**
+     * Called by the tunnel client once the first connection of a new tunnel
+     * session has done its handshake, with the offshore proxy's HELLO.
+     */
+    void onTunnelOpened(TunnelHello offshore, long sessionId) {
+        this.sessionId = sessionId;
+        replaysAccepted = offshore.acceptsReplays();
+        streamSendWindow = offshore.getStreamWindow();
+        streamLimit = Math.min(maxConcurrentStreams, offshore.getMaxStreams());
+        connectionReceiveCredit = new ReceiveCredit(connectionWindow);
+        connectionSendCredit.set(offshore.getConnectionWindow());
+        int carriedOver = 0;
+        for (Long requestId : pendingRequests.keySet()) {
+            InFlight request = inFlight.get(requestId);
+            //waiting for a connection since before the session started, it goes out in this one
+            if (request != null && request.sentInSession.get() == 0 || replay(requestId)) {
+                carriedOver++;
+                continue;
+            }
+            //sent in an earlier session, it will never be answered
+            ClientConnection clientConnection = pendingRequests.remove(requestId);
+            if (clientConnection != null) {
+                inFlight.remove(requestId);
+                cacheFills.remove(requestId);
+                metrics.requestEnded(PipelineMetrics.Outcome.LOST);
+                clientConnection.abortResponse(requestId);
+            }
+        }
+        activeStreams.set(carriedOver);
+        wakeWaiting();
+    }
+
+    //the first frame of a request is going out on a connection of the given session
+    void onRequestSent(long requestId, long sessionId) {
+        InFlight request = inFlight.get(requestId);
+        if (request != null) {
+            request.sentInSession.set(sessionId);
+        }
+    }
+
+    //the tunnel connection carrying these requests dropped: their responses will never come unless sent again
+    void onStreamsLost(List<Long> requestIds) {
+        for (Long requestId : requestIds) {
+            if (replay(requestId)) {
+                continue;
+            }
+            ClientConnection clientConnection = pendingRequests.remove(requestId);
+            if (clientConnection != null) {
+                logger.warn("Tunnel connection lost, aborting request ID: {}, trace {}", requestId, trace(requestId));
+                metrics.requestEnded(PipelineMetrics.Outcome.LOST);
+                inFlight.remove(requestId);
+                cacheFills.remove(requestId);
+                clientConnection.abortResponse(requestId);
+                releaseStream();
+            }
+        }
+    }
+
+    /**
+     * Queues a request that lost its tunnel connection to be sent again, under
+     * the same ID, if that is safe: it is idempotent, was read whole, its
+     * response has not started and it has replays and time left.
+     *
+     * @return true if it is queued to be sent again, now or by an earlier
+     *         call; false if the request has to be given up instead
+     */
+    private boolean replay(long requestId) {
+        InFlight request = inFlight.get(requestId);
+        if (request == null || request.replay == null || !replaysAccepted
+                || System.currentTimeMillis() >= request.deadline || !pendingRequests.containsKey(requestId)) {
+            return false;
+        }
+        long sentIn = request.sentInSession.get();
+        //the connection and the session can be lost at once, only one of them sends it again
+        if (sentIn == 0 || !request.sentInSession.compareAndSet(sentIn, 0)) {
+            return true;
+        }
+        int replays = request.replays.incrementAndGet();
+        if (replays > maxReplays) {
+            return false;
+        }
+        logger.info("Tunnel connection lost, replaying request ID: {}, replay {}, trace {}", requestId, replays,
+                trace(requestId));
+        metrics.requestReplayed();
+        sendRequestChunk(requestId, 0, request.replay, true, true, request.trafficClass);
+        return true;
+    }
+
+    //answers requests whose response has not started by their deadline with a 504, and resets their streams
+    private void expireRequests() {
+        while (running) {
+            try {
+                Thread.sleep(DEADLINE_CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            inFlight.forEach((requestId, request) -> {
+                if (now < request.deadline || !inFlight.remove(requestId, request)) {
+                    return;
+                }
+                ClientConnection clientConnection = pendingRequests.remove(requestId);
+                if (clientConnection != null) {
+                    logger.warn("No response for request ID: {} within {} seconds, trace {}", requestId,
+                            requestDeadlineSeconds, trace(requestId));
+                    metrics.requestEnded(PipelineMetrics.Outcome.TIMED_OUT);
+                    cacheFills.remove(requestId);
+                    requestQueue.offer(request.trafficClass, new ProxyRequest(requestId, 0, new byte[0], true, true,
+                            false, request.trafficClass));
+                    releaseStream();
+                    clientConnection.timeoutResponse(requestId);
                 }
+            });
+        }
+    }
+
+    //a WINDOW_UPDATE from the offshore proxy, on the tunnel receiver thread
+    void onWindowUpdate(long requestId, int increment) {
+        if (requestId == 0) {
+            connectionSendCredit.addAndGet(increment);
+            wakeWaiting();
+            return;
+        }
+        ClientConnection clientConnection = pendingRequests.get(requestId);
+        if (clientConnection != null) {
+            clientConnection.addSendCredit(requestId, increment);
+        }
+    }
+
+    //grants the offshore proxy more response bytes for a request once they reached the client
+    void sendWindowUpdate(long requestId, int increment) {
+        requestQueue.offerUrgent(ProxyRequest.windowUpdate(requestId, increment));
+    }
+
+    int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    long getIdleTimeoutMillis() {
+        return idleTimeoutSeconds * 1000L;
+    }
+
+    int getStreamWindow() {
+        return streamWindow;
+    }
+
+    //initial credit for the body of a new request
+    int getStreamSendWindow() {
+        return streamSendWindow;
+    }
+
+    boolean hasConnectionSendCredit() {
+        return connectionSendCredit.get() > 0;
+    }
+
+    /**
+     * Parks a client connection that stopped reading for lack of connection
+     * credit or a free stream; it is resumed when either changes.
+     */
+    void awaitCapacity(ClientConnection clientConnection) {
+        waitingConnections.add(clientConnection);
+        //credit may have arrived between the caller's check and now
+        if (hasConnectionSendCredit() && activeStreams.get() < streamLimit) {
+            wakeWaiting();
+        }
+    }
+
+    private void wakeWaiting() {
+        ClientConnection clientConnection;
+        while ((clientConnection = waitingConnections.poll()) != null) {
+            clientConnection.resume();
+        }
+    }
+
+    private boolean tryAcquireStream() {
+        while (true) {
+            int active = activeStreams.get();
+            if (active >= streamLimit) {
+                return false;
             }
-        }).start();
+            if (activeStreams.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseStream() {
+        activeStreams.decrementAndGet();
+        wakeWaiting();
+    }
+
+    /**
+     * Counts a newly accepted client socket.
+     *
+     * @return false if the limit is reached and accepting should pause
+     */
+    boolean onClientAccepted() {
+        return clientConnections.incrementAndGet() < maxConnections;
+    }
+
+    void onClientConnectionClosed() {
+        if (clientConnections.getAndDecrement() == maxConnections) {
+            eventLoops[0].resumeAccepting();
+        }
+    }
+
+    int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    int getClientConnections() {
+        return clientConnections.get();
+    }
+
+    long getConnectionSendCredit() {
+        return connectionSendCredit.get();
+    }
+
+    int getWaitingConnections() {
+        return waitingConnections.size();
+    }
+
+    int getTunnelConnections() {
+        return tcpClient == null ? 0 : tcpClient.getConnectionCount();
+    }
+
+    long getTunnelFramesWritten() {
+        return tcpClient == null ? 0 : tcpClient.getWriteStats().getFrames();
+    }
+
+    long getTunnelWrites() {
+        return tcpClient == null ? 0 : tcpClient.getWriteStats().getWrites();
+    }
+
+    long getTunnelBytesWritten() {
+        return tcpClient == null ? 0 : tcpClient.getWriteStats().getBytes();
+    }
+
+    long getTunnelBytesRead() {
+        return tcpClient == null ? 0 : tcpClient.getReadStats().getBytes();
+    }
+
+    long getDedupRestoredBytes() {
+        return tcpClient == null ? 0 : tcpClient.getStoreStats().getRestoredBytes();
+    }
+
+    long getDedupStoredBytes() {
+        return tcpClient == null ? 0 : tcpClient.getStoreStats().getStoredBytes();
+    }
+
+    //request bytes waiting for the tunnel writers
+    long getTunnelQueuedBytes() {
+        return tcpClient == null ? 0 : tcpClient.getWriteStats().getQueuedBytes();
+    }
+
+    int getRequestQueueDepth() {
+        return requestQueue.size();
+    }
+
+    int getResponseQueueDepth() {
+        return tcpClient == null ? 0 : tcpClient.getResponseQueueDepth();
+    }
+
+    //requests sent to the tunnel that have not had all of their response
+    int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    String trace(long requestId) {
+        return TraceId.of(sessionId, requestId);
     }
 
     private void processRequestsFromQueue() {
         while (running) {
             try {
                 ProxyRequest request = requestQueue.take();
-                logger.info("Processing request ID: {}", request.getRequestId());
+                if (!request.isReset() && !request.isWindowUpdate() && !pendingRequests.containsKey(request.getRequestId())) {
+                    //the request ended before this left, timed out or its client went away: the offshore proxy
+                    //would only drop it, or start a request nobody waits for
+                    connectionSendCredit.addAndGet(request.getLength());
+                    request.release();
+                    continue;
+                }
+                metrics.queueWait(request.getQueuedAt());
+                if (!request.isWindowUpdate()) {
+                    metrics.classQueueWait(request.getTrafficClass(), request.getQueuedAt());
+                    metrics.classBytesSent(request.getTrafficClass(), request.getLength());
+                }
+                if (request.getSequence() == 0 && !request.isReset() && !request.isWindowUpdate()) {
+                    logger.info("Processing request ID: {}", request.getRequestId());
+                }
 
                 //send request to offshore proxy
                 tcpClient.sendRequest(request);
             } catch (InterruptedException e) {
-                logger.error("Request processing interrupted", e);
+                if (running) {
+                    logger.error("Request processing interrupted", e);
+                }
                 Thread.currentThread().interrupt();
+                return;
             } catch (Exception e) {
                 logger.error("Error processing request", e);
             }
@@ -124,77 +689,326 @@ public class ProxyHandler {
         while (running) {
             try {
                 ProxyResponse response = tcpClient.getNextResponse();
-                if (response != null) {
-                    Clientconnection clientConnection = pendingRequests.remove(response.getRequestId());
-                    if (clientConnection != null) {
-                        logger.info("Sending response for request ID: {}", response.getRequestId());
-
-                        //send response back to client
-                        OutputStream clientOut = clientConnection.getClientSocket().getOutputStream();
-                        clientOut.write(response.getResponseData());
-                        clientOut.flush();
-                        clientConnection.getClientSocket().close();
+                if (response != null && TunnelFrame.isPushStream(response.getRequestId())) {
+                    receivePush(response);
+                } else if (response != null) {
+                    long requestId = response.getRequestId();
+                    if (response.getSequence() == 0) {
+                        //the response started, there is no deadline to meet and nothing to replay any more
+                        inFlight.remove(requestId);
+                    }
+                    //once here the data is the client connection's to buffer, within the stream window
+                    int increment = connectionReceiveCredit.consumed(response.getLength());
+                    //the offshore proxy tags response frames with the request's class
+                    metrics.classBytesReceived(response.getFrame().getTrafficClass(), response.getLength());
+                    if (increment > 0) {
+                        sendWindowUpdate(0, increment);
+                    }
+                    ClientConnection clientConnection = response.isLast() ? pendingRequests.remove(requestId) : pendingRequests.get(requestId);
+                    if (clientConnection != null && response.isLast()) {
+                        tcpClient.streamFinished(requestId);
+                        releaseStream();
+                    }
+                    if (clientConnection == null) {
+                        logger.warn("No pending request found for response ID: {}", requestId);
+                        response.release();
+                    } else if (response.isReset()) {
+                        logger.warn("Offshore proxy reset response for request ID: {}, trace {}", requestId,
+                                trace(requestId));
+                        metrics.requestEnded(PipelineMetrics.Outcome.RESET);
+                        response.release();
+                        cacheFills.remove(requestId);
+                        clientConnection.abortResponse(requestId);
                     } else {
-                        logger.warn("No pending request found for response ID: {}", response.getRequestId());
+                        if (response.getSequence() == 0) {
+                            logger.info("Sending response for request ID: {}", requestId);
+                        }
+                        if (response.isLast()) {
+                            metrics.requestEnded(PipelineMetrics.Outcome.COMPLETED);
+                        }
+                        CacheFill fill = cacheFills.get(requestId);
+                        if (fill == null) {
+                            //hand the chunk to the client's event loop, which releases it once written
+                            clientConnection.write(requestId, response.getFrame(), response.isLast());
+                        } else {
+                            relayThroughCache(clientConnection, response, fill);
+                        }
                     }
                 }
+            } catch (InterruptedException e) {
+                if (running) {
+                    logger.error("Response handling interrupted", e);
+                }
+                Thread.currentThread().interrupt();
+                return;
             } catch (Exception e) {
                 logger.error("Error handling response", e);
             }
         }
     }
 
-    static class Clientconnection {
-        private final Socket clientSocket;
-        private final long requestId;
-
-        public Clientconnection(Socket clientSocket, long requestId) {
-            this.clientSocket = clientSocket;
-            this.requestId = requestId;
+    /**
+     * A frame of a response the offshore proxy pushed ahead of a request for
+     * it. The PUSH frame carries the request, which takes no credit; the data
+     * that follows counts against the connection window like any response and
+     * is stored in the response cache once complete.
+     */
+    private void receivePush(ProxyResponse response) {
+        long pushId = response.getRequestId();
+        TunnelFrame frame = response.getFrame();
+        if (frame.isPush()) {
+            RequestInfo request = null;
+            try {
+                HttpRequestParser parser = new HttpRequestParser(new byte[frame.getLength()]);
+                if (parser.parse(ByteBuffer.wrap(response.copyResponseData()))) {
+                    request = RequestInfo.from(parser);
+                }
+            } catch (HttpRequestParser.HttpParseException e) {
+                logger.warn("Ignoring push {} with an unreadable request", pushId, e);
+            }
+            response.release();
+            if (request != null && request.isGet() && responseCache.isEnabled()) {
+                pushFills.put(pushId, new CacheFill(request, null, responseCache.getMaxEntryBytes()));
+                Iterator<CacheFill> oldest = pushFills.values().iterator();
+                while (pushFills.size() > MAX_PUSHES_IN_PROGRESS) {
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+            return;
+        }
+        int increment = connectionReceiveCredit.consumed(response.getLength());
+        if (increment > 0) {
+            sendWindowUpdate(0, increment);
         }
+        CacheFill fill = response.isLast() || response.isReset() ? pushFills.remove(pushId) : pushFills.get(pushId);
+        if (fill != null && !response.isReset()) {
+            fill.onData(response.copyResponseData(), response.isLast());
+            if (response.isLast()) {
+                CacheEntry entry = fill.toEntry(System.currentTimeMillis());
+                if (entry != null) {
+                    logger.debug("Storing pushed response for {}", entry.getKey());
+                    responseCache.storePushed(entry);
+                }
+            }
+        }
+        response.release();
+    }
 
-        public Socket getClientSocket() {
-            return clientSocket;
+    private void relayThroughCache(ClientConnection clientConnection, ProxyResponse response, CacheFill fill) {
+        boolean answered = fill.isNotModified();
+        boolean headPending = fill.getHead() == null;
+        //the cache keeps its own copy of the body
+        byte[] data = fill.onData(response.copyResponseData(), response.isLast());
+        response.release();
+        if (response.isLast()) {
+            cacheFills.remove(response.getRequestId());
         }
+        long now = System.currentTimeMillis();
+        if (fill.isNotModified()) {
+            if (!answered) {
+                //the origin confirmed the stored copy: serve it with the refreshed headers
+                CacheEntry refreshed = fill.getStale().refresh(fill.getHead(), now);
+                responseCache.recordRevalidation(true, refreshed);
+                responseCache.store(refreshed);
+                clientConnection.write(response.getRequestId(), refreshed.servedHead(now), false);
+                clientConnection.write(response.getRequestId(), refreshed.getBody(), true);
+            }
+            return;
+        }
+        if (fill.isRevalidation() && headPending && fill.getHead() != null) {
+            responseCache.recordRevalidation(false, fill.getStale());
+        }
+        if (response.isLast()) {
+            CacheEntry entry = fill.toEntry(now);
+            if (entry != null) {
+                responseCache.store(entry);
+            } else if (fill.isRevalidation()) {
+                //the stored copy was replaced by something we may not keep
+                responseCache.invalidate(fill.getRequest().getUrl());
+            }
+        }
+        if (data != null) {
+            clientConnection.write(response.getRequestId(), data, response.isLast());
+        }
+    }
 
-        public long getRequestId() {
-            return requestId;
+    //a tunneled request waiting for the start of its response
+    private static final class InFlight {
+        //System.currentTimeMillis() by which the response has to start
+        final long deadline;
+        //the whole request if it may be sent again, otherwise null
+        final byte[] replay;
+        final int trafficClass;
+        final AtomicInteger replays = new AtomicInteger();
+        //the session its first frame went out in, 0 while it waits in the queue
+        final AtomicLong sentInSession = new AtomicLong();
+
+        InFlight(long deadline, byte[] replay, int trafficClass) {
+            this.deadline = deadline;
+            this.replay = replay;
+            this.trafficClass = trafficClass;
         }
     }
 
+    /**
+     * A frame waiting on the request queue. Its data is an array or, for body
+     * chunks, a pooled buffer that goes on with the frame it is sent as, or is
+     * released if it is dropped instead.
+     */
     static class ProxyRequest {
         private final long requestId;
+        private final int sequence;
         private final byte[] requestData;
+        private final PooledBuffer pooledData;
+        private final int length;
+        private final boolean last;
+        private final boolean reset;
+        private final boolean compressible;
+        private final int trafficClass;
+        private final int windowIncrement;
+        private final long queuedAt = System.nanoTime();
+
+        public ProxyRequest(long requestId, int sequence, byte[] requestData, boolean last, boolean reset,
+                            boolean compressible) {
+            this(requestId, sequence, requestData, last, reset, compressible, 0);
+        }
+
+        public ProxyRequest(long requestId, int sequence, byte[] requestData, boolean last, boolean reset,
+                            boolean compressible, int trafficClass) {
+            this(requestId, sequence, requestData, last, reset, compressible, trafficClass, 0);
+        }
 
-        public ProxyRequest(long requestId, byte[] requestData) {
+        private ProxyRequest(long requestId, int sequence, byte[] requestData, boolean last, boolean reset,
+                             boolean compressible, int trafficClass, int windowIncrement) {
             this.requestId = requestId;
+            this.sequence = sequence;
             this.requestData = requestData;
+            this.pooledData = null;
+            this.length = requestData.length;
+            this.last = last;
+            this.reset = reset;
+            this.compressible = compressible;
+            this.trafficClass = trafficClass;
+            this.windowIncrement = windowIncrement;
+        }
+
+        ProxyRequest(long requestId, int sequence, PooledBuffer pooledData, int length, boolean last,
+                     boolean compressible, int trafficClass) {
+            this.requestId = requestId;
+            this.sequence = sequence;
+            this.requestData = null;
+            this.pooledData = pooledData;
+            this.length = length;
+            this.last = last;
+            this.reset = false;
+            this.compressible = compressible;
+            this.trafficClass = trafficClass;
+            this.windowIncrement = 0;
+        }
+
+        static ProxyRequest windowUpdate(long requestId, int increment) {
+            return new ProxyRequest(requestId, 0, new byte[0], false, false, false, 0, increment);
+        }
+
+        public boolean isWindowUpdate() {
+            return windowIncrement > 0;
+        }
+
+        //System.nanoTime() when it was put on the request queue
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+
+        public int getWindowIncrement() {
+            return windowIncrement;
         }
 
         public long getRequestId() {
             return requestId;
         }
 
-        public byte[] getRequestData() {
-            return requestData;
+        public int getSequence() {
+            return sequence;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        //the DATA frame to send, which takes over a pooled buffer
+        TunnelFrame toDataFrame() {
+            return pooledData != null
+                    ? TunnelFrame.data(requestId, sequence, pooledData, length, last, compressible, trafficClass)
+                    : TunnelFrame.data(requestId, sequence, requestData, length, last, compressible, trafficClass);
+        }
+
+        //for a request dropped without being sent
+        void release() {
+            if (pooledData != null) {
+                pooledData.release();
+            }
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public boolean isCompressible() {
+            return compressible;
+        }
+
+        public int getTrafficClass() {
+            return trafficClass;
         }
     }
 
+    /**
+     * A response frame from the tunnel. Its payload may be pooled; whoever
+     * ends up with it writes it to the client, which releases it, or
+     * releases it right away.
+     */
     static class ProxyResponse {
-        private final long requestId;
-        private final byte[] responseData;
+        private final TunnelFrame frame;
 
-        public ProxyResponse(long requestId, byte[] responseData) {
-            this.requestId = requestId;
-            this.responseData = responseData;
+        public ProxyResponse(TunnelFrame frame) {
+            this.frame = frame;
         }
 
         public long getRequestId() {
-            return requestId;
+            return frame.getRequestId();
+        }
+
+        public int getSequence() {
+            return frame.getSequence();
+        }
+
+        public TunnelFrame getFrame() {
+            return frame;
+        }
+
+        public byte[] copyResponseData() {
+            return frame.getPayload();
+        }
+
+        public int getLength() {
+            return frame.getLength();
+        }
+
+        public boolean isLast() {
+            return frame.isEndStream();
+        }
+
+        public boolean isReset() {
+            return frame.isReset();
         }
 
-        public byte[] getResponseData() {
-            return responseData;
+        public void release() {
+            frame.release();
         }
     }
 }
@@ -0,0 +1,51 @@
+package com.example.ship_proxy;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What the ship needs to remember about a client request after its bytes have
+ * gone to the tunnel: method, absolute URL and headers by lower-case name.
+ */
+class RequestInfo {
+    private final String method;
+    private final String url;
+    private final Map<String, String> headers;
+
+    RequestInfo(String method, String url, Map<String, String> headers) {
+        this.method = method;
+        this.url = url;
+        this.headers = headers;
+    }
+
+    static RequestInfo from(HttpRequestParser parser) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < parser.headerCount(); i++) {
+            //repeated headers are combined into one comma separated value
+            headers.merge(parser.headerName(i).toLowerCase(Locale.ROOT), parser.headerValue(i), (a, b) -> a + ", " + b);
+        }
+        String target = parser.target();
+        String url = target;
+        if (target.startsWith("/") && headers.containsKey("host")) {
+            url = "http://" + headers.get("host") + target;
+        }
+        return new RequestInfo(parser.method(), url, headers);
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    boolean isGet() {
+        return "GET".equals(method);
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String header(String lowerCaseName) {
+        return headers.get(lowerCaseName);
+    }
+}
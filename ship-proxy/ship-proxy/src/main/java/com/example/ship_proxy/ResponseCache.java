@@ -0,0 +1,254 @@
+package com.example.ship_proxy;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared HTTP cache in front of the tunnel. Entries live in a heap LRU tier
+ * under a byte budget and are written through to a {@link DiskCacheTier} in
+ * the background, so they survive restarts and larger working sets can be
+ * served from page cache. A disk hit is copied out of the mapped file once
+ * and promoted back into the heap tier.
+ */
+@Component
+public class ResponseCache implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    private final boolean enabled;
+    private final long heapMaxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, CacheEntry> heap = new LinkedHashMap<>(256, 0.75f, true);
+    private long heapBytes;
+    private final DiskCacheTier disk;
+    private final ExecutorService diskWriter;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskReads = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong revalidatedHits = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong pushesStored = new AtomicLong();
+    private final AtomicLong pushedBytes = new AtomicLong();
+    private final AtomicLong pushHits = new AtomicLong();
+    private final AtomicLong pushHitBytes = new AtomicLong();
+
+    public ResponseCache(@Value("${ship.cache.enabled:true}") boolean enabled,
+                         @Value("${ship.cache.heap-max-bytes:67108864}") long heapMaxBytes,
+                         @Value("${ship.cache.max-entry-bytes:8388608}") long maxEntryBytes,
+                         @Value("${ship.cache.disk-dir:}") String diskDir,
+                         @Value("${ship.cache.disk-max-bytes:1073741824}") long diskMaxBytes) {
+        this.enabled = enabled;
+        this.heapMaxBytes = heapMaxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        DiskCacheTier diskTier = null;
+        if (enabled && !diskDir.isBlank()) {
+            try {
+                diskTier = new DiskCacheTier(Path.of(diskDir), diskMaxBytes);
+            } catch (IOException e) {
+                logger.error("Failed to open disk cache in {}, caching in memory only", diskDir, e);
+            }
+        }
+        this.disk = diskTier;
+        this.diskWriter = diskTier == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-disk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Finds a stored response for the request, fresh or not; the caller decides
+     * whether to serve or revalidate it.
+     */
+    CacheEntry lookup(RequestInfo request) {
+        lookups.incrementAndGet();
+        String key = request.getUrl();
+        CacheEntry entry;
+        synchronized (heap) {
+            entry = heap.get(key);
+        }
+        if (entry != null) {
+            return entry.matchesVary(request) ? entry : null;
+        }
+        if (disk == null) {
+            return null;
+        }
+        entry = disk.get(key);
+        if (entry == null || !entry.matchesVary(request)) {
+            return null;
+        }
+        diskReads.incrementAndGet();
+        //copy onto the heap so the mapping can be released and later hits stay in memory
+        ByteBuffer mapped = entry.getBody();
+        ByteBuffer body = ByteBuffer.allocate(mapped.remaining());
+        body.put(mapped).flip();
+        CacheEntry promoted = new CacheEntry(key, entry.getVaryValues(), entry.getStoredAt(), entry.getHeadBytes(), body);
+        putInHeap(promoted);
+        return promoted;
+    }
+
+    void store(CacheEntry entry) {
+        if (entry.size() > maxEntryBytes) {
+            return;
+        }
+        stores.incrementAndGet();
+        putInHeap(entry);
+        if (disk != null) {
+            diskWriter.execute(() -> disk.put(entry));
+        }
+    }
+
+    //a response the offshore proxy pushed before anyone asked for it
+    void storePushed(CacheEntry entry) {
+        if (entry.size() > maxEntryBytes) {
+            return;
+        }
+        entry.markPushed();
+        pushesStored.incrementAndGet();
+        pushedBytes.addAndGet(entry.size());
+        store(entry);
+    }
+
+    //unsafe methods invalidate what is stored for their target (RFC 9111, section 4.4)
+    void invalidate(String url) {
+        synchronized (heap) {
+            CacheEntry removed = heap.remove(url);
+            if (removed != null) {
+                heapBytes -= removed.size();
+            }
+        }
+        if (disk != null) {
+            diskWriter.execute(() -> disk.remove(url));
+        }
+    }
+
+    void recordHit(CacheEntry entry) {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(entry.size());
+        if (entry.claimPush()) {
+            pushHits.incrementAndGet();
+            pushHitBytes.addAndGet(entry.size());
+        }
+    }
+
+    void recordRevalidation(boolean notModified, CacheEntry entry) {
+        revalidations.incrementAndGet();
+        if (notModified) {
+            revalidatedHits.incrementAndGet();
+            bytesSaved.addAndGet(entry.getBody().remaining());
+        }
+    }
+
+    private void putInHeap(CacheEntry entry) {
+        synchronized (heap) {
+            CacheEntry previous = heap.put(entry.getKey(), entry);
+            heapBytes += entry.size() - (previous != null ? previous.size() : 0);
+            Iterator<Map.Entry<String, CacheEntry>> eldest = heap.entrySet().iterator();
+            while (heapBytes > heapMaxBytes && eldest.hasNext()) {
+                heapBytes -= eldest.next().getValue().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getRevalidatedHits() {
+        return revalidatedHits.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public double getHitRatio() {
+        long total = lookups.get();
+        return total == 0 ? 0 : (double) (getHits() + revalidatedHits.get()) / total;
+    }
+
+    //share of pushed responses a request was later answered with
+    public double getPushHitRatio() {
+        long pushes = pushesStored.get();
+        return pushes == 0 ? 0 : (double) pushHits.get() / pushes;
+    }
+
+    //share of pushed bytes no request has used, so far
+    public double getPushWasteRatio() {
+        long bytes = pushedBytes.get();
+        return bytes == 0 ? 0 : (double) (bytes - pushHitBytes.get()) / bytes;
+    }
+
+    long getHeapBytes() {
+        synchronized (heap) {
+            return heapBytes;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ship.cache.lookups", lookups, AtomicLong::get)
+                .description("Cacheable requests looked up in the response cache").register(registry);
+        FunctionCounter.builder("ship.cache.hits", hits, AtomicLong::get)
+                .description("Requests answered from the cache without the tunnel").register(registry);
+        FunctionCounter.builder("ship.cache.disk.reads", diskReads, AtomicLong::get)
+                .description("Lookups found in the disk tier and promoted to the heap tier").register(registry);
+        FunctionCounter.builder("ship.cache.revalidations", revalidations, AtomicLong::get)
+                .description("Stale entries revalidated with the origin").register(registry);
+        FunctionCounter.builder("ship.cache.revalidated.hits", revalidatedHits, AtomicLong::get)
+                .description("Revalidations answered 304, body served from the cache").register(registry);
+        FunctionCounter.builder("ship.cache.stores", stores, AtomicLong::get)
+                .description("Responses stored in the cache").register(registry);
+        FunctionCounter.builder("ship.cache.bytes.saved", bytesSaved, AtomicLong::get)
+                .description("Response bytes served from the cache instead of the tunnel").baseUnit("bytes").register(registry);
+        Gauge.builder("ship.cache.hit.ratio", this, ResponseCache::getHitRatio)
+                .description("Share of lookups answered from the cache, including 304 revalidations").register(registry);
+        FunctionCounter.builder("ship.prefetch.pushes", pushesStored, AtomicLong::get)
+                .description("Responses pushed by the offshore proxy and stored").register(registry);
+        FunctionCounter.builder("ship.prefetch.pushed.bytes", pushedBytes, AtomicLong::get)
+                .description("Bytes of the pushed responses stored").baseUnit("bytes").register(registry);
+        FunctionCounter.builder("ship.prefetch.hits", pushHits, AtomicLong::get)
+                .description("Pushed responses a request was answered with").register(registry);
+        Gauge.builder("ship.prefetch.hit.ratio", this, ResponseCache::getPushHitRatio)
+                .description("Share of pushed responses a request was answered with").register(registry);
+        Gauge.builder("ship.prefetch.waste.ratio", this, ResponseCache::getPushWasteRatio)
+                .description("Share of pushed bytes no request has used").register(registry);
+        Gauge.builder("ship.cache.heap.bytes", this, ResponseCache::getHeapBytes)
+                .description("Bytes held by the heap tier").baseUnit("bytes").register(registry);
+        if (disk != null) {
+            Gauge.builder("ship.cache.disk.bytes", disk, DiskCacheTier::getTotalBytes)
+                    .description("Bytes held by the disk tier").baseUnit("bytes").register(registry);
+        }
+    }
+}
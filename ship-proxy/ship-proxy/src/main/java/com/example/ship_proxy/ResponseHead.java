@@ -0,0 +1,120 @@
+package com.example.ship_proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Status line and headers of an HTTP response, parsed from the first bytes
+ * relayed by the offshore proxy.
+ */
+class ResponseHead {
+    private final String statusLine;
+    private final int statusCode;
+    private final List<String[]> headers;
+    private final int length;
+
+    ResponseHead(String statusLine, int statusCode, List<String[]> headers, int length) {
+        this.statusLine = statusLine;
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.length = length;
+    }
+
+    /**
+     * Parses the head at the start of {@code data}.
+     *
+     * @return the head, or null if {@code data} does not yet hold all of it
+     */
+    static ResponseHead parse(byte[] data, int dataLength) {
+        int end = -1;
+        for (int i = 3; i < dataLength; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        String[] lines = new String(data, 0, end - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = status.length > 1 ? Integer.parseInt(status[1]) : 0;
+        } catch (NumberFormatException e) {
+            statusCode = 0;
+        }
+        List<String[]> headers = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.add(new String[] { lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim() });
+            }
+        }
+        return new ResponseHead(lines[0], statusCode, headers, end);
+    }
+
+    String getStatusLine() {
+        return statusLine;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    List<String[]> getHeaders() {
+        return headers;
+    }
+
+    //length of the head in bytes, including the blank line
+    int getLength() {
+        return length;
+    }
+
+    String header(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    //all values of a header, joined as a comma separated list
+    String headerList(String name) {
+        StringBuilder values = null;
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                values = values == null ? new StringBuilder(header[1]) : values.append(", ").append(header[1]);
+            }
+        }
+        return values == null ? null : values.toString();
+    }
+
+    /**
+     * Serializes the head, dropping the named headers and appending the extra
+     * ones.
+     */
+    byte[] toBytes(List<String> removed, String... extra) {
+        StringBuilder head = new StringBuilder(statusLine).append("\r\n");
+        for (String[] header : headers) {
+            if (!containsIgnoreCase(removed, header[0])) {
+                head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+        }
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            head.append(extra[i]).append(": ").append(extra[i + 1]).append("\r\n");
+        }
+        return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String candidate : names) {
+            if (candidate.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
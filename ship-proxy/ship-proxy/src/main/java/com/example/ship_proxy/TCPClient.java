@@ -1,133 +1,536 @@
 package com.example.ship_proxy;
 
-import com.example.ship_proxy.ProxyHandler;
+import com.example.proxy_common.ChunkStore;
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.ExecutionMode;
+import com.example.proxy_common.FrameReader;
+import com.example.proxy_common.FrameWriter;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The tunnel to the offshore proxy: a session of one or more TCP connections
+ * that the offshore proxy treats as one, so a lossy link is not limited to
+ * what a single congestion window carries. Each request stream is pinned to
+ * the least loaded connection when it starts; responses come back on the same
+ * connection and are matched by request ID. Connections are added while
+ * every one carries more than {@code streamsPerConnection} streams, drained
+ * when load stays low, and replaced when they drop. Each connection has a
+ * writer thread that batches queued frames into gathering writes.
+ * <p>
+ * A connection is PINGed every heartbeat interval and closed once nothing has
+ * come back for the heartbeat timeout, so a link that died without a FIN is
+ * noticed in seconds rather than when TCP gives up. Failed connects are
+ * retried after a delay that doubles with each failure, jittered so ships
+ * do not all come back at once after an outage.
+ */
 @Component
 public class TCPClient {
     private static final Logger logger = LoggerFactory.getLogger(TCPClient.class);
+    private static final long BALANCE_INTERVAL_MILLIS = 1000;
+    //load must stay low this long before a connection is drained
+    private static final long SHRINK_DELAY_MILLIS = 30_000;
+    //request bytes queued for a connection's writer before senders wait
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+    //session ids must not be guessable, as they are what lets a connection join a ship's session
+    private static final SecureRandom SESSION_IDS = new SecureRandom();
     private final String offshoreHost;
     private final int offshorePort;
     private final ProxyHandler proxyHandler;
-    private Socket connection;
-    private DataOutputStream outputStream;
-    private DataInputStream inputStream;
+    private final ExecutionMode executionMode;
+    //codecs offered in the handshake, most preferred first
+    private final List<CompressionCodec> compressionCodecs;
+    private final int minConnections;
+    private final int maxConnections;
+    private final int streamsPerConnection;
+    private final int writeBatchBytes;
+    private final long writeBatchDelayMicros;
+    private final long heartbeatIntervalMillis;
+    private final long heartbeatTimeoutMillis;
+    private final long reconnectDelayMillis;
+    private final long maxReconnectDelayMillis;
+    private final PipelineMetrics metrics;
+    private final FrameWriter.Stats writeStats = new FrameWriter.Stats();
+    private final FrameReader.Stats readStats = new FrameReader.Stats();
+    private final ChunkStore.Stats storeStats = new ChunkStore.Stats();
+    private final List<TunnelConnection> connections = new CopyOnWriteArrayList<>();
+    //the connection each request stream was pinned to
+    private final Map<Long, TunnelConnection> streamConnections = new ConcurrentHashMap<>();
+    //System.nanoTime() each request's first frame was sent, until its response starts
+    private final Map<Long, Long> firstFrameSentAt = new ConcurrentHashMap<>();
     private final BlockingQueue<ProxyHandler.ProxyResponse> responseQueue = new LinkedBlockingQueue<>();
-    private boolean connected = false;
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    //a lock rather than a monitor so virtual threads do not pin their carrier
+    private final Lock stateLock = new ReentrantLock();
+    //signalled when a connection is added
+    private final Condition connected = stateLock.newCondition();
+    //guarded by stateLock
+    private long sessionId = newSessionId();
+    private boolean sessionOpen;
+    private int connecting;
+    private long nextAttemptAt;
+    //connect attempts that failed in a row
+    private int failedAttempts;
+    private long lowLoadSince;
+    private volatile boolean running = true;
 
     //TODO:
     //If Websocket is not connecting you can temporarily hardcode the connection here for testing
 
     public TCPClient(@Value("${offshore.proxy.host}") String offshoreHost,
-                     @Value("${offshore.proxy.port}") int offshorePort, ProxyHandler proxyHandler) {
+                     @Value("${offshore.proxy.port}") int offshorePort, ProxyHandler proxyHandler,
+                     @Value("${ship.proxy.execution-mode:platform}") String executionMode,
+                     @Value("${ship.proxy.compression:deflate-dictionary,deflate}") String compression,
+                     @Value("${ship.proxy.tunnel-connections:4}") int minConnections,
+                     @Value("${ship.proxy.max-tunnel-connections:8}") int maxConnections,
+                     @Value("${ship.proxy.streams-per-tunnel-connection:32}") int streamsPerConnection,
+                     @Value("${ship.proxy.write-batch-bytes:262144}") int writeBatchBytes,
+                     @Value("${ship.proxy.write-batch-delay-micros:0}") long writeBatchDelayMicros,
+                     @Value("${ship.proxy.heartbeat-interval-millis:5000}") long heartbeatIntervalMillis,
+                     @Value("${ship.proxy.heartbeat-timeout-millis:15000}") long heartbeatTimeoutMillis,
+                     @Value("${ship.proxy.reconnect-delay-millis:250}") long reconnectDelayMillis,
+                     @Value("${ship.proxy.max-reconnect-delay-millis:30000}") long maxReconnectDelayMillis,
+                     PipelineMetrics metrics) {
         this.offshoreHost = offshoreHost;
         this.offshorePort = offshorePort;
         this.proxyHandler = proxyHandler;
+        this.executionMode = ExecutionMode.fromProperty(executionMode);
+        this.compressionCodecs = CompressionCodec.parseList(compression);
+        this.minConnections = Math.max(1, minConnections);
+        this.maxConnections = Math.max(this.minConnections, maxConnections);
+        this.streamsPerConnection = Math.max(1, streamsPerConnection);
+        this.writeBatchBytes = writeBatchBytes;
+        this.writeBatchDelayMicros = writeBatchDelayMicros;
+        this.heartbeatIntervalMillis = Math.max(0, heartbeatIntervalMillis);
+        //a timeout shorter than the interval would close every idle connection
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis <= 0 ? 0
+                : Math.max(heartbeatTimeoutMillis, 2 * this.heartbeatIntervalMillis);
+        this.reconnectDelayMillis = Math.max(1, reconnectDelayMillis);
+        this.maxReconnectDelayMillis = Math.max(this.reconnectDelayMillis, maxReconnectDelayMillis);
+        this.metrics = metrics;
 
-        logger.info("TCPClient created with offshoreHost={}, offshorePort={}",
-                this.offshoreHost, this.offshorePort);
+        logger.info("TCPClient created with offshoreHost={}, offshorePort={}, tunnel connections {}-{}",
+                this.offshoreHost, this.offshorePort, this.minConnections, this.maxConnections);
     }
 
     public void connect() {
-        new Thread(() -> {
-            while (!connected) {
+        executionMode.start("tunnel-balancer", () -> {
+            while (running) {
+                checkHeartbeats();
+                rebalance();
                 try {
-                    logger.info("Connecting to offshore proxy at {}:{}", offshoreHost, offshorePort);
-                    connection = new Socket(offshoreHost, offshorePort);
-                    outputStream = new DataOutputStream(connection.getOutputStream());
-                    inputStream = new DataInputStream(connection.getInputStream());
-                    connected = true;
-                    logger.info("Connected to offshore proxy");
-                    startResponseReceiver();
+                    Thread.sleep(BALANCE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+    }
+
+    //closes every tunnel connection and stops reconnecting
+    void close() {
+        running = false;
+        connections.forEach(TunnelConnection::close);
+        stateLock.lock();
+        try {
+            connected.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    //PINGs connections that are due one and closes those the offshore proxy has gone silent on
+    private void checkHeartbeats() {
+        if (heartbeatIntervalMillis == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (TunnelConnection connection : connections) {
+            if (!connection.answersPings() || connection.isClosed()) {
+                continue;
+            }
+            long silent = now - connection.getLastReceivedAt();
+            if (heartbeatTimeoutMillis > 0 && silent > heartbeatTimeoutMillis) {
+                //the receiver sees the closed socket and gives up the streams pinned to it
+                logger.warn("Nothing from offshore proxy on tunnel connection {} for {} ms, closing it",
+                        connection.getId(), silent);
+                connection.close();
+            } else if (now - connection.getLastPingAt() >= heartbeatIntervalMillis) {
+                try {
+                    connection.ping(now);
                 } catch (IOException e) {
-                    logger.error("Failed to connect to offshore proxy. Retrying in 5 seconds...", e);
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens connections until there are enough for the current load, and
+     * drains one when fewer would do.
+     */
+    private void rebalance() {
+        long now = System.currentTimeMillis();
+        int opening = 0;
+        long session;
+        stateLock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            int serving = 0;
+            int load = 0;
+            for (TunnelConnection connection : connections) {
+                if (!connection.isDraining()) {
+                    serving++;
+                    load += connection.getStreams();
+                } else if (connection.getStreams() == 0) {
+                    //marked on an earlier pass, so nothing is still being routed to it
+                    connection.finishDraining();
+                }
+            }
+            int wanted = Math.max(minConnections, Math.min(maxConnections,
+                    (load + streamsPerConnection - 1) / streamsPerConnection));
+            if (serving + connecting < wanted) {
+                lowLoadSince = 0;
+                if (now >= nextAttemptAt) {
+                    opening = wanted - serving - connecting;
+                    connecting += opening;
+                }
+            } else if (serving > wanted && connecting == 0) {
+                if (lowLoadSince == 0) {
+                    lowLoadSince = now;
+                } else if (now - lowLoadSince >= SHRINK_DELAY_MILLIS) {
+                    lowLoadSince = 0;
+                    TunnelConnection idlest = leastLoaded();
+                    if (idlest != null) {
+                        logger.info("Draining tunnel connection {}, {} streams on {} connections",
+                                idlest.getId(), load, serving);
+                        idlest.startDraining();
                     }
                 }
+            } else {
+                lowLoadSince = 0;
             }
-        }).start();
+            session = sessionId;
+        } finally {
+            stateLock.unlock();
+        }
+        for (int i = 0; i < opening; i++) {
+            executionMode.start("tunnel-connection", () -> openConnection(session));
+        }
     }
 
-    public void sendRequest(ProxyHandler.ProxyRequest request) {
-        if (!connected) {
-            logger.error("Not connected to offshore proxy");
+    //connects, joins the session and then receives on the connection until it closes
+    private void openConnection(long session) {
+        int id = connectionIds.incrementAndGet();
+        TunnelConnection connection = null;
+        try {
+            logger.info("Connecting tunnel connection {} to offshore proxy at {}:{}", id, offshoreHost, offshorePort);
+            connection = open(id, session);
+            TunnelHello reply = connection.handshake(proxyHandler.localSettings(compressionCodecs, session));
+            stateLock.lock();
+            try {
+                connecting--;
+                if (!running || session != sessionId) {
+                    //every connection dropped while this one was connecting, the session is gone
+                    connection.close();
+                    return;
+                }
+                if (!sessionOpen) {
+                    sessionOpen = true;
+                    proxyHandler.onTunnelOpened(reply, session);
+                }
+                failedAttempts = 0;
+                connections.add(connection);
+                connected.signalAll();
+            } finally {
+                stateLock.unlock();
+            }
+            logger.info("Connected tunnel connection {} to offshore proxy, {} open, compression: {}", id,
+                    connections.size(), connection.getCodecName());
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            long delay = 0;
+            stateLock.lock();
+            try {
+                connecting--;
+                long now = System.currentTimeMillis();
+                //connections opened together count as one attempt
+                if (now >= nextAttemptAt) {
+                    failedAttempts++;
+                    delay = reconnectDelay(failedAttempts, reconnectDelayMillis, maxReconnectDelayMillis);
+                    nextAttemptAt = now + delay;
+                }
+            } finally {
+                stateLock.unlock();
+            }
+            if (delay > 0) {
+                logger.error("Failed to connect to offshore proxy. Retrying in {} ms...", delay, e);
+            }
             return;
         }
+        receive(connection);
+    }
+
+    private TunnelConnection open(int id, long session) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(offshoreHost, offshorePort));
+        FrameWriter writer = new FrameWriter(channel, writeBatchBytes, writeBatchDelayMicros, MAX_QUEUED_BYTES, writeStats);
+        writer.setClassWeights(proxyHandler.getClassWeights());
         try {
-            ByteBuffer header = ByteBuffer.allocate(12);
-            header.putLong(request.getRequestId());
-            header.putInt(request.getRequestData().length);
-            synchronized (this) {
-                outputStream.write(header.array());
-                outputStream.write(request.getRequestData());
-                outputStream.flush();
-            }
-            logger.info("Sent request ID: {} to offshore proxy", request.getRequestId());
-        } catch (IOException e) {
-            logger.error("Error sending request to offshore proxy", e);
-            handleDisconnection();
+            //frames are batched by the writer, so small ones should not wait for acknowledgements
+            channel.socket().setTcpNoDelay(true);
+            executionMode.start("tunnel-writer-" + id, writer);
+            return new TunnelConnection(id, session, channel, writer, readStats, storeStats);
+        } catch (IOException | RuntimeException e) {
+            writer.close();
+            channel.close();
+            throw e;
         }
     }
 
-    private void startResponseReceiver() {
-        new Thread(() -> {
-            while (connected) {
-                try {
-                    long requestId = inputStream.readLong();
-                    int length = inputStream.readInt();
-                    logger.info("Receiving response for request ID: {}, length: {}", requestId, length);
-                    byte[] responseData = new byte[length];
-                    int bytesRead = 0;
-                    while (bytesRead < length) {
-                        int read = inputStream.read(responseData, bytesRead, length - bytesRead);
-                        if (read == -1) {
-                            throw new EOFException("End of stream reached");
-                        }
-                        bytesRead += read;
+    private void receive(TunnelConnection connection) {
+        try {
+            while (running) {
+                TunnelFrame frame = connection.receive();
+                if (frame.isPing()) {
+                    if (frame.isAck()) {
+                        metrics.heartbeatRoundTrip(frame.getPingData());
+                    } else {
+                        connection.send(frame.pingAck());
                     }
-                    ProxyHandler.ProxyResponse response = new ProxyHandler.ProxyResponse(requestId, responseData);
-                    responseQueue.put(response);
-                } catch (EOFException | InterruptedException e) {
-                    logger.error("Connection to offshore proxy lost", e);
-                    handleDisconnection();
-                    if (e instanceof InterruptedException) {
-                        Thread.currentThread().interrupt();
+                    continue;
+                }
+                if (frame.isWindowUpdate()) {
+                    proxyHandler.onWindowUpdate(frame.getRequestId(), frame.getWindowIncrement());
+                    continue;
+                }
+                logger.debug("Receiving frame {} of response for request ID: {}, length: {}",
+                        frame.getSequence(), frame.getRequestId(), frame.getLength());
+                if (frame.getSequence() == 0) {
+                    Long sentAt = firstFrameSentAt.remove(frame.getRequestId());
+                    if (sentAt != null) {
+                        metrics.tunnelRoundTrip(sentAt);
+                        metrics.classTunnelRoundTrip(frame.getTrafficClass(), sentAt);
                     }
-                    break;
-                } catch (IOException e) {
-                    logger.error("Error receiving response from offshore proxy", e);
-                    handleDisconnection();
-                    break;
                 }
+                responseQueue.put(new ProxyHandler.ProxyResponse(frame));
+            }
+        } catch (EOFException e) {
+            if (connection.isDraining()) {
+                logger.info("Tunnel connection {} drained and closed", connection.getId());
+            } else {
+                logger.error("Connection to offshore proxy lost", e);
             }
-        }).start();
+        } catch (IOException e) {
+            if (running && !connection.isClosed()) {
+                logger.error("Error receiving response from offshore proxy", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            onConnectionLost(connection);
+        }
     }
 
-    private void handleDisconnection() {
-        connected = false;
+    private void onConnectionLost(TunnelConnection connection) {
+        connection.close();
+        stateLock.lock();
         try {
-            if (connection != null) {
-                connection.close();
+            connections.remove(connection);
+            if (connections.isEmpty() && connection.getSessionId() == sessionId) {
+                //nothing holds the session open any more, the next connection starts a fresh one
+                sessionId = newSessionId();
+                sessionOpen = false;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        //requests on this connection will never be answered
+        List<Long> lost = new ArrayList<>();
+        streamConnections.forEach((requestId, pinned) -> {
+            if (pinned == connection && streamConnections.remove(requestId, connection)) {
+                firstFrameSentAt.remove(requestId);
+                lost.add(requestId);
+            }
+        });
+        if (!lost.isEmpty()) {
+            proxyHandler.onStreamsLost(lost);
+        }
+        if (running) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Sends a frame on the connection its stream is pinned to. While there is
+     * no connection at all this waits for one, except for WINDOW_UPDATEs: the
+     * credit they grant belongs to a session that is gone.
+     */
+    public void sendRequest(ProxyHandler.ProxyRequest request) throws InterruptedException {
+        TunnelConnection connection = route(request);
+        while (connection == null) {
+            if (request.isWindowUpdate() || !running) {
+                request.release();
+                return;
+            }
+            awaitConnection();
+            connection = route(request);
+        }
+        TunnelFrame frame = request.isReset()
+                ? TunnelFrame.reset(request.getRequestId(), request.getTrafficClass())
+                : request.isWindowUpdate()
+                ? TunnelFrame.windowUpdate(request.getRequestId(), request.getWindowIncrement())
+                : request.toDataFrame();
+        try {
+            if (frame.isData() && request.getSequence() == 0 && request.getRequestId() != 0) {
+                firstFrameSentAt.put(request.getRequestId(), System.nanoTime());
             }
+            connection.send(frame);
+            logger.debug("Sent frame {} of request ID: {} to offshore proxy on connection {}",
+                    request.getSequence(), request.getRequestId(), connection.getId());
         } catch (IOException e) {
-            logger.error("Error closing connection", e);
+            logger.error("Error sending request to offshore proxy", e);
+            //the receiver sees the closed socket and gives up the streams pinned to it
+            connection.close();
+        }
+        if (request.isReset()) {
+            streamFinished(request.getRequestId());
+        }
+    }
+
+    /**
+     * Picks the connection for a frame: the one its stream is pinned to, or
+     * the least loaded one, pinning the stream there if the frame starts it.
+     * Frames of finished streams and connection-wide WINDOW_UPDATEs may go on
+     * any connection.
+     */
+    private TunnelConnection route(ProxyHandler.ProxyRequest request) {
+        long requestId = request.getRequestId();
+        TunnelConnection pinned = requestId == 0 ? null : streamConnections.get(requestId);
+        if (pinned != null) {
+            return pinned;
+        }
+        while (true) {
+            TunnelConnection connection = leastLoaded();
+            if (connection == null || requestId == 0 || request.getSequence() != 0 || request.isReset()
+                    || request.isWindowUpdate()) {
+                return connection;
+            }
+            streamConnections.put(requestId, connection);
+            connection.streamStarted();
+            //from here on a lost connection loses the request
+            proxyHandler.onRequestSent(requestId, connection.getSessionId());
+            if (!connection.isClosed() || !streamConnections.remove(requestId, connection)) {
+                //if onConnectionLost took the stream it is already counted as lost and the send fails
+                return connection;
+            }
+            //closed before onConnectionLost could see the stream, nothing was sent yet: try another
+        }
+    }
+
+    //waits until a connection may have opened, or a second has passed
+    private void awaitConnection() throws InterruptedException {
+        stateLock.lock();
+        try {
+            if (running && leastLoaded() == null) {
+                connected.await(BALANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private TunnelConnection leastLoaded() {
+        TunnelConnection best = null;
+        for (TunnelConnection connection : connections) {
+            if (connection.isClosed() || connection.isDraining()) {
+                continue;
+            }
+            if (best == null || connection.getStreams() < best.getStreams()) {
+                best = connection;
+            }
         }
-        connect();
+        return best;
+    }
+
+    //the stream is done with: its response ended or we reset it
+    void streamFinished(long requestId) {
+        firstFrameSentAt.remove(requestId);
+        TunnelConnection connection = streamConnections.remove(requestId);
+        if (connection != null) {
+            connection.streamEnded();
+        }
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    FrameWriter.Stats getWriteStats() {
+        return writeStats;
+    }
+
+    FrameReader.Stats getReadStats() {
+        return readStats;
+    }
+
+    ChunkStore.Stats getStoreStats() {
+        return storeStats;
+    }
+
+    int getResponseQueueDepth() {
+        return responseQueue.size();
     }
 
     public ProxyHandler.ProxyResponse getNextResponse() throws InterruptedException {
         return responseQueue.take();
     }
-}
\ No newline at end of file
+
+    /**
+     * How long to wait after the given number of failed attempts in a row:
+     * the first delay doubled for each earlier failure, up to the maximum, of
+     * which a random half is taken off.
+     */
+    static long reconnectDelay(int failedAttempts, long firstDelayMillis, long maxDelayMillis) {
+        long ceiling = firstDelayMillis;
+        for (int i = 1; i < failedAttempts && ceiling < maxDelayMillis; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelayMillis);
+        return ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private static long newSessionId() {
+        long id;
+        do {
+            id = SESSION_IDS.nextLong();
+        } while (id == TunnelHello.NO_SESSION);
+        return id;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.ship_proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A class of requests that shares the tunnel with the others by its weight.
+ * A request belongs to it if any of its rules match: a host, a path, a method
+ * or the client's subnet. A class without rules matches every request.
+ * <p>
+ * Hosts match exactly or, written {@code *.example.com}, the domain and its
+ * subdomains. Paths, without the query, match exactly, by prefix when written
+ * {@code /updates/*} or by suffix when written {@code *.iso}. Subnets are in
+ * CIDR notation.
+ */
+record TrafficClass(String name, int weight, List<String> hosts, List<String> paths, Set<String> methods,
+                    List<Subnet> subnets) {
+
+    TrafficClass {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Traffic class " + name + " needs a positive weight, not " + weight);
+        }
+        hosts = hosts.stream().map(host -> host.toLowerCase(Locale.ROOT)).toList();
+        methods = Set.copyOf(methods);
+    }
+
+    boolean isCatchAll() {
+        return hosts.isEmpty() && paths.isEmpty() && methods.isEmpty() && subnets.isEmpty();
+    }
+
+    //host is lower case without a port, path has no query; client may be null if unknown
+    boolean matches(String method, String host, String path, InetAddress client) {
+        if (isCatchAll() || methods.contains(method)) {
+            return true;
+        }
+        for (String pattern : hosts) {
+            if (host.equals(pattern) || pattern.startsWith("*.")
+                    && (host.endsWith(pattern.substring(1)) || host.equals(pattern.substring(2)))) {
+                return true;
+            }
+        }
+        for (String pattern : paths) {
+            if (pattern.endsWith("*") ? path.startsWith(pattern.substring(0, pattern.length() - 1))
+                    : pattern.startsWith("*") ? path.endsWith(pattern.substring(1)) : path.equals(pattern)) {
+                return true;
+            }
+        }
+        if (client != null) {
+            for (Subnet subnet : subnets) {
+                if (subnet.contains(client)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //an address block such as 10.20.0.0/16
+    record Subnet(byte[] network, int prefixLength) {
+
+        static Subnet parse(String cidr) {
+            int slash = cidr.indexOf('/');
+            String address = slash < 0 ? cidr : cidr.substring(0, slash);
+            //a literal, so this never goes to DNS
+            if (!address.matches("[0-9.]+") && !address.contains(":")) {
+                throw new IllegalArgumentException("Invalid subnet " + cidr);
+            }
+            byte[] network;
+            try {
+                network = InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid subnet " + cidr, e);
+            }
+            int prefixLength = slash < 0 ? network.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in subnet " + cidr);
+            }
+            return new Subnet(network, prefixLength);
+        }
+
+        boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length != network.length) {
+                return false;
+            }
+            int full = prefixLength / 8;
+            for (int i = 0; i < full; i++) {
+                if (bytes[i] != network[i]) {
+                    return false;
+                }
+            }
+            int rest = prefixLength % 8;
+            if (rest == 0) {
+                return true;
+            }
+            int mask = 0xff << (8 - rest) & 0xff;
+            return (bytes[full] & mask) == (network[full] & mask);
+        }
+    }
+}
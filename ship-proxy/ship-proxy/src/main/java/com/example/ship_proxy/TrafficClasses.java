@@ -0,0 +1,140 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+import org.springframework.core.env.Environment;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The configured traffic classes in order of matching: a request takes the
+ * first class it matches, or the last class if it matches none. Its index is
+ * what tags the request's frames on the tunnel. Configured as
+ * <pre>
+ * ship.traffic.classes=crew,interactive,bulk,default
+ * ship.traffic.class.crew.weight=8
+ * ship.traffic.class.crew.subnets=10.20.0.0/16
+ * ship.traffic.class.bulk.hosts=*.windowsupdate.com
+ * ship.traffic.class.bulk.paths=*.iso,/updates/*
+ * ship.traffic.class.bulk.methods=PUT
+ * </pre>
+ * Without {@code ship.traffic.classes} everything is one class.
+ */
+class TrafficClasses {
+    static final TrafficClasses SINGLE = new TrafficClasses(
+            List.of(new TrafficClass("default", 1, List.of(), List.of(), Set.of(), List.of())));
+
+    private final List<TrafficClass> classes;
+    //whether classifying needs the request at all
+    private final boolean single;
+
+    TrafficClasses(List<TrafficClass> classes) {
+        if (classes.isEmpty() || classes.size() > TunnelFrame.MAX_TRAFFIC_CLASSES) {
+            throw new IllegalArgumentException("Need between 1 and " + TunnelFrame.MAX_TRAFFIC_CLASSES + " traffic classes");
+        }
+        this.classes = List.copyOf(classes);
+        this.single = classes.size() == 1;
+    }
+
+    static TrafficClasses from(Environment environment) {
+        String names = environment.getProperty("ship.traffic.classes", "");
+        if (names.isBlank()) {
+            return SINGLE;
+        }
+        List<TrafficClass> classes = new ArrayList<>();
+        for (String name : split(names)) {
+            String prefix = "ship.traffic.class." + name + ".";
+            List<TrafficClass.Subnet> subnets = new ArrayList<>();
+            for (String subnet : split(environment.getProperty(prefix + "subnets", ""))) {
+                subnets.add(TrafficClass.Subnet.parse(subnet));
+            }
+            List<String> methods = split(environment.getProperty(prefix + "methods", "")).stream()
+                    .map(method -> method.toUpperCase(Locale.ROOT)).toList();
+            classes.add(new TrafficClass(name, environment.getProperty(prefix + "weight", Integer.class, 1),
+                    split(environment.getProperty(prefix + "hosts", "")),
+                    split(environment.getProperty(prefix + "paths", "")), new LinkedHashSet<>(methods), subnets));
+        }
+        return new TrafficClasses(classes);
+    }
+
+    private static List<String> split(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toList();
+    }
+
+    /**
+     * The index of the class a request belongs to.
+     *
+     * @param client the client's address, null if unknown
+     */
+    int classify(HttpRequestParser parser, InetAddress client) {
+        if (single) {
+            return 0;
+        }
+        String target = parser.target();
+        String host;
+        String path;
+        int scheme = target.indexOf("://");
+        if (scheme > 0) {
+            //absolute form, as clients of a proxy send
+            int pathStart = target.indexOf('/', scheme + 3);
+            host = pathStart < 0 ? target.substring(scheme + 3) : target.substring(scheme + 3, pathStart);
+            path = pathStart < 0 ? "/" : target.substring(pathStart);
+        } else {
+            String hostHeader = parser.header("host");
+            host = hostHeader == null ? "" : hostHeader.trim();
+            path = target;
+        }
+        host = stripPort(host).toLowerCase(Locale.ROOT);
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        String method = parser.method();
+        for (int i = 0; i < classes.size() - 1; i++) {
+            if (classes.get(i).matches(method, host, path, client)) {
+                return i;
+            }
+        }
+        return classes.size() - 1;
+    }
+
+    private static String stripPort(String host) {
+        int at = host.lastIndexOf('@');
+        if (at >= 0) {
+            host = host.substring(at + 1);
+        }
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            return end < 0 ? host : host.substring(0, end + 1);
+        }
+        int colon = host.indexOf(':');
+        return colon < 0 ? host : host.substring(0, colon);
+    }
+
+    int size() {
+        return classes.size();
+    }
+
+    String name(int trafficClass) {
+        return classes.get(Math.min(trafficClass, classes.size() - 1)).name();
+    }
+
+    List<String> names() {
+        return classes.stream().map(TrafficClass::name).toList();
+    }
+
+    //as announced in the HELLO, so the offshore proxy shares responses the same way
+    List<TunnelHello.TrafficClass> toHello() {
+        return classes.stream().map(c -> new TunnelHello.TrafficClass(c.name(), c.weight())).toList();
+    }
+
+    List<Integer> weights() {
+        return classes.stream().map(TrafficClass::weight).toList();
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.BufferPool;
+import com.example.proxy_common.ChunkStore;
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.FrameCompressor;
+import com.example.proxy_common.FrameReader;
+import com.example.proxy_common.FrameWriter;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One TCP connection of the tunnel session, with the codec negotiated on it.
+ * Every frame of a request stream travels on the connection the stream was
+ * pinned to, so the offshore proxy sees them in order; this counts how many
+ * streams are pinned here. Frames are written by the connection's own
+ * {@link FrameWriter} thread. It also keeps what the heartbeat needs: when a
+ * frame last arrived and when we last sent a PING.
+ */
+class TunnelConnection {
+    private final int id;
+    private final long sessionId;
+    private final SocketChannel channel;
+    private final FrameWriter writer;
+    private final FrameReader reader;
+    private final ChunkStore.Stats storeStats;
+    private final AtomicInteger streams = new AtomicInteger();
+    private volatile FrameCompressor compressor = new FrameCompressor(CompressionCodec.NONE);
+    //chunks the offshore proxy may refer to, when we offered to keep them
+    private volatile ChunkStore store;
+    //no new streams go here, it closes once the pinned ones are done
+    private volatile boolean draining;
+    private boolean outputShutdown;
+    private volatile boolean closed;
+    //whether the offshore proxy answers PINGs
+    private volatile boolean answersPings;
+    //System.currentTimeMillis() of the last frame received and PING sent
+    private volatile long lastReceivedAt = System.currentTimeMillis();
+    private volatile long lastPingAt;
+
+    //the writer must already be running
+    TunnelConnection(int id, long sessionId, SocketChannel channel, FrameWriter writer, FrameReader.Stats readStats,
+                     ChunkStore.Stats storeStats) {
+        this.id = id;
+        this.sessionId = sessionId;
+        this.channel = channel;
+        this.writer = writer;
+        this.reader = new FrameReader(channel, BufferPool.FRAMES, readStats);
+        this.storeStats = storeStats;
+    }
+
+    /**
+     * Offers our codecs and settings and waits for the offshore proxy's
+     * choice before any request is sent.
+     *
+     * @return the offshore proxy's HELLO
+     */
+    TunnelHello handshake(TunnelHello local) throws IOException {
+        writer.send(local.toFrame());
+        TunnelHello reply = TunnelHello.fromFrame(reader.read());
+        CompressionCodec codec = reply.getCodecs().isEmpty() ? CompressionCodec.NONE : reply.getCodecs().get(0);
+        List<CompressionCodec> offered = local.getCodecs();
+        if (codec != CompressionCodec.NONE && !offered.contains(codec)) {
+            throw new IOException("Offshore proxy picked codec " + codec.getPropertyName() + " that was not offered");
+        }
+        compressor = new FrameCompressor(codec);
+        if (local.getChunkStoreBytes() > 0) {
+            store = new ChunkStore(local.getChunkStoreBytes(), storeStats);
+        }
+        answersPings = reply.answersPings();
+        lastReceivedAt = System.currentTimeMillis();
+        return reply;
+    }
+
+    void send(TunnelFrame frame) throws IOException {
+        //compress on the sending thread, the writer only copies bytes
+        writer.send(compressor.compress(frame));
+    }
+
+    TunnelFrame receive() throws IOException {
+        //a pooled payload is the caller's to release
+        TunnelFrame frame = compressor.decompress(reader.read());
+        ChunkStore store = this.store;
+        if (store != null) {
+            //every frame, those of streams we no longer follow too, or the chunk numbers drift
+            frame = store.restore(frame);
+        }
+        lastReceivedAt = System.currentTimeMillis();
+        return frame;
+    }
+
+    //sends a PING the offshore proxy echoes, carrying System.nanoTime() so the answer gives the round trip
+    void ping(long now) throws IOException {
+        lastPingAt = now;
+        writer.send(TunnelFrame.ping(System.nanoTime()));
+    }
+
+    /**
+     * Stops sending on this connection. The offshore proxy answers the end of
+     * input by closing its side once everything it owes us is written, which
+     * ends the receiver.
+     */
+    void finishDraining() {
+        if (!outputShutdown) {
+            outputShutdown = true;
+            writer.shutdownOutput();
+        }
+    }
+
+    void close() {
+        closed = true;
+        writer.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //nothing left to do with it
+        }
+        ChunkStore store = this.store;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    void streamStarted() {
+        streams.incrementAndGet();
+    }
+
+    void streamEnded() {
+        streams.decrementAndGet();
+    }
+
+    int getStreams() {
+        return streams.get();
+    }
+
+    void startDraining() {
+        draining = true;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    boolean answersPings() {
+        return answersPings;
+    }
+
+    long getLastReceivedAt() {
+        return lastReceivedAt;
+    }
+
+    long getLastPingAt() {
+        return lastPingAt;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getSessionId() {
+        return sessionId;
+    }
+
+    String getCodecName() {
+        return compressor.getCodec().getPropertyName();
+    }
+}
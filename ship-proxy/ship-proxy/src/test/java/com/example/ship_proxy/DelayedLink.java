@@ -0,0 +1,112 @@
+package com.example.ship_proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A TCP relay that delays every byte by a one-way latency and caps each
+ * connection's throughput in each direction, like a long link on which one
+ * TCP connection is held back by its congestion window.
+ */
+class DelayedLink {
+	private static final byte[] END = new byte[0];
+
+	final ServerSocket server = new ServerSocket(0);
+	private final int targetPort;
+	private final long delayMillis;
+	private final long bytesPerSecond;
+
+	DelayedLink(int targetPort, long delayMillis, long bytesPerSecond) throws IOException {
+		this.targetPort = targetPort;
+		this.delayMillis = delayMillis;
+		this.bytesPerSecond = bytesPerSecond;
+		start(this::accept);
+	}
+
+	int port() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				Socket near = server.accept();
+				Socket far = new Socket("127.0.0.1", targetPort);
+				relay(near, far);
+				relay(far, near);
+			}
+		} catch (IOException e) {
+			//the test is over
+		}
+	}
+
+	//copies one direction: a reader stamps each chunk, a writer releases it when due and within the rate
+	private void relay(Socket from, Socket to) {
+		BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+		start(() -> {
+			byte[] buffer = new byte[16 * 1024];
+			try {
+				InputStream in = from.getInputStream();
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					queue.add(new Chunk(System.nanoTime() + delayMillis * 1_000_000, Arrays.copyOf(buffer, n)));
+				}
+			} catch (IOException e) {
+				//closed by the other direction
+			}
+			queue.add(new Chunk(System.nanoTime() + delayMillis * 1_000_000, END));
+		});
+		start(() -> {
+			long started = 0;
+			long written = 0;
+			try {
+				OutputStream out = to.getOutputStream();
+				while (true) {
+					Chunk chunk = queue.take();
+					sleepUntil(chunk.due());
+					if (chunk.data() == END) {
+						to.shutdownOutput();
+						return;
+					}
+					if (started == 0) {
+						started = System.nanoTime();
+					}
+					//hold the chunk back until the rate allows it
+					sleepUntil(started + written * 1_000_000_000 / bytesPerSecond);
+					out.write(chunk.data());
+					out.flush();
+					written += chunk.data().length;
+				}
+			} catch (IOException | InterruptedException e) {
+				try {
+					from.close();
+					to.close();
+				} catch (IOException ignored) {
+					//already closed
+				}
+			}
+		});
+	}
+
+	private static void sleepUntil(long nanoTime) throws InterruptedException {
+		long wait = nanoTime - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+		}
+	}
+
+	private static void start(Runnable task) {
+		Thread thread = new Thread(task, "delayed-link");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private record Chunk(long due, byte[] data) {
+	}
+}
@@ -0,0 +1,276 @@
+package com.example.ship_proxy;
+
+import com.example.proxy_common.CompressionCodec;
+import com.example.proxy_common.FrameCodec;
+import com.example.proxy_common.TunnelFrame;
+import com.example.proxy_common.TunnelHello;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Answers every request with a generated body of the requested length,
+ * sending only while it has credit from the ship. Accepts any number of
+ * tunnel connections and treats them as one session, answering each request
+ * on the connection it came in on. Answers PINGs unless told to play a dead
+ * link.
+ */
+class FakeOffshoreProxy {
+	private static final int FRAME_LENGTH = 16 * 1024;
+
+	final ServerSocket server = new ServerSocket(0);
+	final CountDownLatch connected = new CountDownLatch(1);
+	final AtomicInteger connections = new AtomicInteger();
+	final Set<Long> sessionIds = ConcurrentHashMap.newKeySet();
+	//requests started on each tunnel connection, in the order the connections were accepted
+	final Map<Integer, AtomicInteger> startedOn = new ConcurrentHashMap<>();
+	final AtomicInteger started = new AtomicInteger();
+	final AtomicInteger peakActive = new AtomicInteger();
+	//this many requests make the fake close the connection they came on instead of answering
+	final AtomicInteger dropRequests = new AtomicInteger();
+	//stops answering PINGs and requests without closing anything, as a link that died would
+	volatile boolean silent;
+	private final AtomicInteger active = new AtomicInteger();
+	private final Map<Long, AtomicLong> sent = new ConcurrentHashMap<>();
+	private final Map<Long, Long> streamCredit = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition creditAvailable = lock.newCondition();
+	private long connectionCredit;
+	private int streamWindow;
+	private final int maxStreams;
+
+	FakeOffshoreProxy(int maxStreams) throws IOException {
+		this.maxStreams = maxStreams;
+		Thread thread = new Thread(this::accept, "fake-offshore");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	AtomicLong sent(long requestId) {
+		return sent.computeIfAbsent(requestId, id -> new AtomicLong());
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				Socket socket = server.accept();
+				int index = connections.getAndIncrement();
+				Thread thread = new Thread(() -> run(socket, index), "fake-offshore-" + index);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException e) {
+			//the test is over
+		}
+	}
+
+	private void run(Socket socket, int index) {
+		try (socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			TunnelHello ship = TunnelHello.fromFrame(FrameCodec.read(in));
+			lock.lock();
+			try {
+				//the window is the session's, only the first connection sets it
+				if (sessionIds.add(ship.getSessionId())) {
+					connectionCredit = ship.getConnectionWindow();
+					streamWindow = ship.getStreamWindow();
+				}
+				FrameCodec.write(out, new TunnelHello(List.of(CompressionCodec.NONE), 1 << 20, 1 << 22, maxStreams).toFrame());
+				out.flush();
+			} finally {
+				lock.unlock();
+			}
+			connected.countDown();
+			while (true) {
+				TunnelFrame frame = FrameCodec.read(in);
+				if (silent) {
+					continue;
+				}
+				if (frame.isPing()) {
+					if (!frame.isAck()) {
+						synchronized (out) {
+							FrameCodec.write(out, frame.pingAck());
+							out.flush();
+						}
+					}
+				} else if (frame.isWindowUpdate()) {
+					grant(frame.getRequestId(), frame.getWindowIncrement());
+				} else if (!frame.isReset() && frame.getSequence() == 0) {
+					if (dropRequests.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+						return;
+					}
+					String request = new String(frame.getPayload(), 0, frame.getLength(), StandardCharsets.ISO_8859_1);
+					String path = request.substring(request.indexOf("test/") + 5, request.indexOf(" HTTP"));
+					int query = path.indexOf("?delay=");
+					int length = Integer.parseInt(query < 0 ? path : path.substring(0, query));
+					long delay = query < 0 ? 0 : Long.parseLong(path.substring(query + 7));
+					started.incrementAndGet();
+					startedOn.computeIfAbsent(index, i -> new AtomicInteger()).incrementAndGet();
+					peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+					Thread responder = new Thread(() -> respond(out, frame.getRequestId(), length, delay));
+					responder.setDaemon(true);
+					responder.start();
+				}
+			}
+		} catch (IOException e) {
+			//the test is over or the ship closed this connection
+		}
+	}
+
+	private void grant(long requestId, int increment) {
+		lock.lock();
+		try {
+			if (requestId == 0) {
+				connectionCredit += increment;
+			} else {
+				streamCredit.merge(requestId, (long) increment, Long::sum);
+			}
+			creditAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void respond(OutputStream out, long requestId, int length, long delay) {
+		byte[] head = head(length).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = bodyByte(i);
+		}
+		try {
+			Thread.sleep(delay);
+			send(out, requestId, 0, head, head.length, length == 0);
+			int sequence = 1;
+			for (int offset = 0; offset < length; offset += FRAME_LENGTH) {
+				int n = Math.min(FRAME_LENGTH, length - offset);
+				byte[] payload = new byte[n];
+				System.arraycopy(body, offset, payload, 0, n);
+				send(out, requestId, sequence++, payload, n, offset + n == length);
+			}
+		} catch (IOException | InterruptedException e) {
+			//the ship went away
+		}
+	}
+
+	private void send(OutputStream out, long requestId, int sequence, byte[] payload, int length, boolean last)
+			throws IOException, InterruptedException {
+		lock.lock();
+		try {
+			streamCredit.putIfAbsent(requestId, (long) streamWindow);
+			while (streamCredit.get(requestId) <= 0 || connectionCredit <= 0) {
+				creditAvailable.await();
+			}
+			streamCredit.merge(requestId, (long) -length, Long::sum);
+			connectionCredit -= length;
+			if (last) {
+				active.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+		//outside the credit lock, so a slow connection does not hold up the others
+		synchronized (out) {
+			FrameCodec.write(out, TunnelFrame.data(requestId, sequence, payload, length, last));
+			out.flush();
+		}
+		sent(requestId).addAndGet(length);
+	}
+
+	static String head(int length) {
+		return "HTTP/1.1 200 OK\r\nContent-Length: " + length + "\r\n\r\n";
+	}
+
+	static byte bodyByte(int i) {
+		return (byte) (i % 251);
+	}
+
+	static void sendRequest(Socket client, String path) throws IOException {
+		String request = "GET http://origin.test/" + path + " HTTP/1.1\r\nHost: origin.test\r\n\r\n";
+		client.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+		client.getOutputStream().flush();
+	}
+
+	static void readResponse(InputStream in, int length) throws IOException {
+		String head = new String(in.readNBytes(head(length).length()), StandardCharsets.ISO_8859_1);
+		assertTrue(head.startsWith("HTTP/1.1 200 OK"), head);
+		byte[] body = in.readNBytes(length);
+		assertEquals(length, body.length);
+		for (int i = 0; i < length; i++) {
+			if (body[i] != bodyByte(i)) {
+				throw new AssertionError("Body differs at byte " + i);
+			}
+		}
+	}
+
+	/**
+	 * Starts a ship proxy on {@code port} connected to this fake, with the
+	 * cache off and the given field overrides, and waits for the handshake.
+	 */
+	ProxyHandler startShipProxy(int port, Object... overrides) throws Exception {
+		ProxyHandler proxyHandler = new ProxyHandler();
+		set(proxyHandler, "proxyPort", port);
+		set(proxyHandler, "offshoreProxyHost", "127.0.0.1");
+		set(proxyHandler, "offshoreProxyPort", server.getLocalPort());
+		set(proxyHandler, "eventLoopCount", 2);
+		set(proxyHandler, "executionMode", "platform");
+		set(proxyHandler, "compression", "none");
+		set(proxyHandler, "streamWindow", 256 * 1024);
+		set(proxyHandler, "connectionWindow", 4 * 1024 * 1024);
+		set(proxyHandler, "maxConcurrentStreams", 256);
+		set(proxyHandler, "maxConnections", 4096);
+		set(proxyHandler, "maxPipelinedRequests", 16);
+		set(proxyHandler, "idleTimeoutSeconds", 30);
+		set(proxyHandler, "tunnelConnections", 1);
+		set(proxyHandler, "maxTunnelConnections", 1);
+		set(proxyHandler, "streamsPerTunnelConnection", 32);
+		set(proxyHandler, "writeBatchBytes", 256 * 1024);
+		set(proxyHandler, "writeBatchDelayMicros", 0L);
+		set(proxyHandler, "reconnectDelayMillis", 250L);
+		set(proxyHandler, "maxReconnectDelayMillis", 30_000L);
+		set(proxyHandler, "responseCache", new ResponseCache(false, 0, 0, "", 0));
+		set(proxyHandler, "metrics", new PipelineMetrics(new SimpleMeterRegistry()));
+		for (int i = 0; i + 1 < overrides.length; i += 2) {
+			set(proxyHandler, (String) overrides[i], overrides[i + 1]);
+		}
+		proxyHandler.start();
+		assertTrue(connected.await(10, TimeUnit.SECONDS));
+		//the ship marks the tunnel usable just after the handshake completes
+		Thread.sleep(200);
+		return proxyHandler;
+	}
+
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+}
@@ -0,0 +1,139 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.ship_proxy.FakeOffshoreProxy.head;
+import static com.example.ship_proxy.FakeOffshoreProxy.readResponse;
+import static com.example.ship_proxy.FakeOffshoreProxy.sendRequest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the ship proxy against a fake offshore proxy that sends responses as
+ * fast as the ship's flow control credit allows, with slow and stalled clients.
+ */
+class FlowControlSoakTests {
+
+	private static final int STREAM_WINDOW = 64 * 1024;
+	private static final int CONNECTION_WINDOW = 256 * 1024;
+	private static final int MAX_STREAMS = 4;
+
+	private FakeOffshoreProxy offshore;
+	private ProxyHandler proxyHandler;
+	private int proxyPort;
+
+	@BeforeEach
+	void start() throws Exception {
+		offshore = new FakeOffshoreProxy(MAX_STREAMS);
+		proxyPort = FakeOffshoreProxy.freePort();
+		proxyHandler = offshore.startShipProxy(proxyPort, "streamWindow", STREAM_WINDOW,
+				"connectionWindow", CONNECTION_WINDOW);
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		proxyHandler.stop();
+		offshore.server.close();
+	}
+
+	@Test
+	void stalledClientHoldsBackItsResponse() throws Exception {
+		int length = 16 * 1024 * 1024;
+		try (Socket client = new Socket()) {
+			client.setReceiveBufferSize(16 * 1024);
+			client.connect(new InetSocketAddress("127.0.0.1", proxyPort));
+			sendRequest(client, Integer.toString(length));
+			//without reading, only a window plus the socket buffers can leave the offshore proxy
+			long sent = awaitSteady(offshore.sent(1));
+			assertTrue(sent < length, "offshore proxy sent " + sent + " of " + length + " bytes to a stalled client");
+			readResponse(client.getInputStream(), length);
+		}
+		assertEquals(length + head(length).length(), offshore.sent(1).get());
+	}
+
+	@Test
+	void manySlowClientsShareBoundedStreams() throws Exception {
+		int clients = 24;
+		int length = 1024 * 1024;
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < clients; i++) {
+				results.add(executor.submit(() -> {
+					try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+						sendRequest(client, Integer.toString(length));
+						readResponse(new SlowInputStream(client.getInputStream()), length);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(offshore.peakActive.get() <= MAX_STREAMS, "peak streams " + offshore.peakActive.get());
+		assertEquals(clients, offshore.started.get());
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((proxyHandler.getActiveStreams() != 0 || proxyHandler.getClientConnections() != 0)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, proxyHandler.getActiveStreams());
+		assertEquals(0, proxyHandler.getClientConnections());
+	}
+
+	//waits until the counter stops moving and returns its value
+	private static long awaitSteady(AtomicLong counter) throws InterruptedException {
+		long previous = -1;
+		long current = counter.get();
+		while (current != previous || current == 0) {
+			Thread.sleep(300);
+			previous = current;
+			current = counter.get();
+		}
+		return current;
+	}
+
+	//reads in small pieces with pauses, like a client on a slow link
+	private static class SlowInputStream extends InputStream {
+		private final InputStream in;
+		private int count;
+
+		SlowInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (++count % 16 == 0) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return in.read(b, off, Math.min(len, 4096));
+		}
+	}
+}
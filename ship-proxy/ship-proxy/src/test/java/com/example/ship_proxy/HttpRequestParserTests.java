@@ -0,0 +1,113 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestParserTests {
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	void parsesRequestFedOneByteAtATime() throws Exception {
+		byte[] request = bytes("POST /upload HTTP/1.1\r\nHost: example.com\r\nContent-Length: 5\r\n\r\nhello");
+		HttpRequestParser parser = new HttpRequestParser(new byte[8]);
+		for (int i = 0; i < request.length - 1; i++) {
+			assertFalse(parser.parse(ByteBuffer.wrap(request, i, 1)));
+		}
+		assertTrue(parser.parse(ByteBuffer.wrap(request, request.length - 1, 1)));
+		assertEquals("POST", parser.method());
+		assertEquals("/upload", parser.target());
+		assertEquals("example.com", parser.header("HOST"));
+		assertEquals(5, parser.contentLength());
+		assertArrayEquals(request, parser.toByteArray());
+		assertTrue(parser.isKeepAlive());
+	}
+
+	@Test
+	void keepsAliveOnlyHttp11WithoutConnectionClose() throws Exception {
+		assertFalse(parse("GET / HTTP/1.1\r\nConnection: TE, close\r\n\r\n").isKeepAlive());
+		assertFalse(parse("GET / HTTP/1.1\r\nProxy-Connection: close\r\n\r\n").isKeepAlive());
+		assertFalse(parse("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n").isKeepAlive());
+		assertTrue(parse("GET / HTTP/1.1\r\nConnection: keep-alive\r\n\r\n").isKeepAlive());
+	}
+
+	private static HttpRequestParser parse(String request) throws Exception {
+		HttpRequestParser parser = new HttpRequestParser(new byte[64]);
+		assertTrue(parser.parse(ByteBuffer.wrap(bytes(request))));
+		return parser;
+	}
+
+	@Test
+	void framesChunkedBodyAndStopsAtRequestBoundary() throws Exception {
+		String chunked = "PUT http://example.com/a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "5;ext=1\r\nhello\r\n0\r\nTrailer: x\r\n\r\n";
+		ByteBuffer in = ByteBuffer.wrap(bytes(chunked + "GET / HTTP/1.1\r\n\r\n"));
+		HttpRequestParser parser = new HttpRequestParser(new byte[64]);
+
+		assertTrue(parser.parse(in));
+		assertTrue(parser.isChunked());
+		assertArrayEquals(bytes(chunked), parser.toByteArray());
+
+		parser.reset();
+		assertTrue(parser.parse(in));
+		assertTrue(parser.methodIs("GET"));
+		assertFalse(in.hasRemaining());
+	}
+
+	@Test
+	void rejectsMalformedInput() {
+		HttpRequestParser parser = new HttpRequestParser(new byte[64]);
+		HttpRequestParser.HttpParseException e = assertThrows(HttpRequestParser.HttpParseException.class,
+				() -> parser.parse(ByteBuffer.wrap(bytes("NOT-HTTP\r\n"))));
+		assertEquals(400, e.getStatusCode());
+
+		HttpRequestParser conflicting = new HttpRequestParser(new byte[64]);
+		assertThrows(HttpRequestParser.HttpParseException.class, () -> conflicting.parse(ByteBuffer.wrap(
+				bytes("POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n"))));
+	}
+
+	@Test
+	void takesOnlyChunkedAsTheFinalTransferCoding() throws Exception {
+		assertTrue(parse("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, Chunked \r\n\r\n0\r\n\r\n").isChunked());
+		//no length the origin could tell, so no way to know where the next request starts
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n");
+	}
+
+	@Test
+	void takesOnlyCrlfLineEndsAsTheOffshoreProxyDoes() {
+		assertRejected("GET / HTTP/1.1\nHost: example.com\n\n");
+		assertRejected("GET / HTTP/1.1\r\nHost: example.com\n\r\n");
+		assertRejected("GET / HTTP/1.1\r\nX-Cabin: 7\r142\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\nhello\r\n0\r\n\r\n");
+	}
+
+	@Test
+	void rejectsHeadsTheOffshoreProxyCouldFrameDifferently() {
+		assertRejected("POST / HTTP/1.1\r\nContent-Length : 5\r\n\r\nhello");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding\t: chunked\r\n\r\n0\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nAccept: text/html\r\n Content-Length: 5\r\n\r\nhello");
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n0\r\n\r\n");
+		assertRejected("POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+	}
+
+	private static void assertRejected(String request) {
+		HttpRequestParser parser = new HttpRequestParser(new byte[64]);
+		HttpRequestParser.HttpParseException e = assertThrows(HttpRequestParser.HttpParseException.class,
+				() -> parser.parse(ByteBuffer.wrap(bytes(request))));
+		assertEquals(400, e.getStatusCode());
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static com.example.ship_proxy.FakeOffshoreProxy.readResponse;
+import static com.example.ship_proxy.FakeOffshoreProxy.sendRequest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PersistentConnectionTests {
+
+	private FakeOffshoreProxy offshore;
+	private ProxyHandler proxyHandler;
+	private int proxyPort;
+
+	@BeforeEach
+	void start() throws Exception {
+		offshore = new FakeOffshoreProxy(256);
+		proxyPort = FakeOffshoreProxy.freePort();
+		proxyHandler = offshore.startShipProxy(proxyPort, "idleTimeoutSeconds", 1);
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		proxyHandler.stop();
+		offshore.server.close();
+	}
+
+	@Test
+	void answersPipelinedRequestsInOrder() throws Exception {
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			//the first response is the slowest to arrive from the tunnel
+			String pipeline = request("300000?delay=300") + request("10") + request("5000?delay=100");
+			client.getOutputStream().write(pipeline.getBytes(StandardCharsets.ISO_8859_1));
+			InputStream in = client.getInputStream();
+			readResponse(in, 300000);
+			readResponse(in, 10);
+			readResponse(in, 5000);
+			//and the connection is still usable
+			sendRequest(client, "42");
+			readResponse(in, 42);
+		}
+		assertEquals(4, offshore.started.get());
+	}
+
+	@Test
+	void closesWhenTheClientAsksAndWhenIdle() throws Exception {
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			String request = "GET http://origin.test/7 HTTP/1.1\r\nHost: origin.test\r\nConnection: close\r\n\r\n";
+			client.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			readResponse(client.getInputStream(), 7);
+			assertEquals(-1, client.getInputStream().read());
+		}
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			sendRequest(client, "7");
+			readResponse(client.getInputStream(), 7);
+			client.setSoTimeout(5000);
+			assertEquals(-1, client.getInputStream().read());
+		}
+	}
+
+	@Test
+	void closesAfterARequestWhoseBodyCameAfterItsHead() throws Exception {
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			String head = "POST http://origin.test/7 HTTP/1.1\r\nConnection: close\r\nHost: origin.test\r\n"
+					+ "Content-Length: 100\r\n\r\n";
+			client.getOutputStream().write(head.getBytes(StandardCharsets.ISO_8859_1));
+			client.getOutputStream().flush();
+			//read separately, so the body is compacted over the head before the request completes
+			Thread.sleep(100);
+			client.getOutputStream().write("x".repeat(100).getBytes(StandardCharsets.ISO_8859_1));
+			readResponse(client.getInputStream(), 7);
+			//well before the idle timeout would close it
+			client.setSoTimeout(500);
+			assertEquals(-1, client.getInputStream().read());
+		}
+	}
+
+	private static String request(String path) {
+		return "GET http://origin.test/" + path + " HTTP/1.1\r\nHost: origin.test\r\n\r\n";
+	}
+}
@@ -0,0 +1,49 @@
+package com.example.ship_proxy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+
+import static com.example.ship_proxy.FakeOffshoreProxy.readResponse;
+import static com.example.ship_proxy.FakeOffshoreProxy.sendRequest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineMetricsTests {
+
+	@Test
+	void timesEveryStageAndCountsOutcomes() throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(256);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		MeterRegistry registry = new SimpleMeterRegistry();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "metrics", new PipelineMetrics(registry));
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			InputStream in = client.getInputStream();
+			sendRequest(client, "100000");
+			readResponse(in, 100000);
+			sendRequest(client, "10");
+			readResponse(in, 10);
+			//the client write is timed once the response is fully written, after the client may have read it
+			Thread.sleep(100);
+		} finally {
+			proxyHandler.stop();
+			offshore.server.close();
+		}
+
+		for (String stage : new String[] {"client-read", "queue-wait", "tunnel-rtt", "client-write"}) {
+			long count = registry.get("ship.stage.duration").tag("stage", stage).timer().count();
+			assertTrue(count >= 2, stage + " timed " + count + " times");
+		}
+		assertEquals(2.0, registry.get("ship.requests").tag("outcome", "completed").counter().count());
+		assertEquals(0.0, registry.get("ship.requests").tag("outcome", "lost").counter().count());
+		assertTrue(registry.get("ship.client.bytes.written").counter().count() > 100010);
+		assertTrue(registry.get("ship.client.bytes.read").counter().count() > 0);
+
+		//the offshore proxy can find the request by the session it was sent in
+		String session = String.format("%016x", offshore.sessionIds.iterator().next());
+		assertEquals(session + "-42", proxyHandler.trace(42));
+	}
+}
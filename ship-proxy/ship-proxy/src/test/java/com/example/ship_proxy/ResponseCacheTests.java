@@ -0,0 +1,123 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTests {
+
+	private static final String URL = "http://example.com/logo.png";
+
+	private static RequestInfo get(String... headers) {
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i + 1 < headers.length; i += 2) {
+			map.put(headers[i], headers[i + 1]);
+		}
+		return new RequestInfo("GET", URL, map);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static CacheEntry entry(String head, long storedAt) {
+		byte[] headBytes = bytes(head + "\r\n");
+		return new CacheEntry(URL, Map.of(), storedAt, headBytes, ByteBuffer.wrap(bytes("body")));
+	}
+
+	@Test
+	void honoursFreshnessAndStorabilityRules() {
+		byte[] head = bytes("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 4\r\n\r\n");
+		ResponseHead response = ResponseHead.parse(head, head.length);
+		assertTrue(CacheEntry.isStorable(get(), response));
+		assertFalse(CacheEntry.isStorable(get("authorization", "Basic x"), response));
+		byte[] noStore = bytes("HTTP/1.1 200 OK\r\nCache-Control: private, max-age=60\r\n\r\n");
+		assertFalse(CacheEntry.isStorable(get(), ResponseHead.parse(noStore, noStore.length)));
+
+		CacheEntry entry = entry("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 4\r\n", 0);
+		assertTrue(entry.isFresh(get(), 59_000));
+		assertFalse(entry.isFresh(get(), 60_000));
+		assertFalse(entry.isFresh(get("cache-control", "no-cache"), 1_000));
+	}
+
+	@Test
+	void matchesVaryAndRefreshesAfterNotModified() {
+		byte[] head = bytes("HTTP/1.1 200 OK\r\nETag: \"v1\"\r\nVary: Accept-Encoding\r\n\r\n");
+		ResponseHead response = ResponseHead.parse(head, head.length);
+		Map<String, String> vary = CacheEntry.varyValues(get("accept-encoding", "gzip"), response);
+		CacheEntry entry = new CacheEntry(URL, vary, 0, head, ByteBuffer.wrap(bytes("body")));
+		assertTrue(entry.matchesVary(get("accept-encoding", "gzip")));
+		assertFalse(entry.matchesVary(get()));
+		assertTrue(entry.hasValidators());
+		assertEquals("If-None-Match: \"v1\"\r\n", entry.conditionalHeaders());
+
+		byte[] notModified = bytes("HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=30\r\n\r\n");
+		CacheEntry refreshed = entry.refresh(ResponseHead.parse(notModified, notModified.length), 1_000);
+		assertTrue(refreshed.isFresh(get("accept-encoding", "gzip"), 20_000));
+		assertEquals(4, refreshed.getBody().remaining());
+	}
+
+	@Test
+	void countsPushedEntriesOnceWhenARequestUsesThem() {
+		ResponseCache cache = new ResponseCache(true, 1 << 20, 1 << 20, "", 0);
+		CacheEntry pushed = entry("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 4\r\n", 0);
+		cache.storePushed(pushed);
+		cache.storePushed(new CacheEntry("http://example.com/unused.js", Map.of(), 0,
+				bytes("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 4\r\n\r\n"),
+				ByteBuffer.wrap(bytes("body"))));
+		assertEquals(1.0, cache.getPushWasteRatio());
+
+		CacheEntry found = cache.lookup(get());
+		assertTrue(found.isFresh(get(), 1_000));
+		cache.recordHit(found);
+		cache.recordHit(found);
+		assertEquals(0.5, cache.getPushHitRatio());
+		assertEquals(0.5, cache.getPushWasteRatio());
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	void diskTierSurvivesRestart() throws Exception {
+		Path dir = Files.createTempDirectory("ship-cache");
+		CacheEntry entry = entry("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Length: 4\r\n", 1_000);
+		new DiskCacheTier(dir, 1 << 20).put(entry);
+
+		DiskCacheTier reopened = new DiskCacheTier(dir, 1 << 20);
+		assertEquals(1, reopened.size());
+		CacheEntry loaded = reopened.get(URL);
+		assertNotNull(loaded);
+		assertEquals(1_000, loaded.getStoredAt());
+		assertEquals(ByteBuffer.wrap(bytes("body")), loaded.getBody());
+		assertNull(reopened.get("http://example.com/other"));
+	}
+
+	@Test
+	void diskTierDropsFilesWithCorruptLengths() throws Exception {
+		Path dir = Files.createTempDirectory("ship-cache");
+		for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+			ByteBuffer file = ByteBuffer.allocate(20).putInt(0x53485043).putInt(1).putLong(1_000).putInt(length);
+			Files.write(dir.resolve(length + ".entry"), file.array());
+		}
+		new DiskCacheTier(dir, 1 << 20).put(entry("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n", 1_000));
+
+		DiskCacheTier reopened = new DiskCacheTier(dir, 1 << 20);
+		assertEquals(1, reopened.size());
+		assertNotNull(reopened.get(URL));
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(1, files.count());
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TrafficClassesTests {
+
+	private static final TrafficClasses CLASSES = TrafficClasses.from(new MockEnvironment()
+			.withProperty("ship.traffic.classes", "crew, interactive, bulk, default")
+			.withProperty("ship.traffic.class.crew.weight", "8")
+			.withProperty("ship.traffic.class.crew.subnets", "10.20.0.0/16, fd00:20::/32")
+			.withProperty("ship.traffic.class.interactive.weight", "4")
+			.withProperty("ship.traffic.class.interactive.hosts", "*.whatsapp.net, chat.example.com")
+			.withProperty("ship.traffic.class.bulk.hosts", "*.windowsupdate.com")
+			.withProperty("ship.traffic.class.bulk.paths", "*.iso, /updates/*")
+			.withProperty("ship.traffic.class.bulk.methods", "put")
+			.withProperty("ship.traffic.class.default.weight", "2"));
+
+	@Test
+	void takesTheFirstClassARequestMatches() throws Exception {
+		InetAddress passenger = InetAddress.getByName("192.168.4.7");
+		assertEquals(0, classify("GET http://www.windowsupdate.com/x.iso HTTP/1.1\r\n\r\n", InetAddress.getByName("10.20.3.4")));
+		assertEquals(0, classify("GET / HTTP/1.1\r\nHost: a.com\r\n\r\n", InetAddress.getByName("fd00:20::9")));
+		assertEquals(1, classify("GET http://media.whatsapp.net:443/v HTTP/1.1\r\n\r\n", passenger));
+		assertEquals(1, classify("POST /send HTTP/1.1\r\nHost: Chat.Example.com:8080\r\n\r\n", passenger));
+		assertEquals(1, classify("GET http://whatsapp.net/ HTTP/1.1\r\n\r\n", passenger));
+		assertEquals(2, classify("GET http://dl.windowsupdate.com/kb1 HTTP/1.1\r\n\r\n", passenger));
+		assertEquals(2, classify("GET /images/ubuntu.iso?mirror=2 HTTP/1.1\r\nHost: a.com\r\n\r\n", passenger));
+		assertEquals(2, classify("GET http://a.com/updates/app.bin HTTP/1.1\r\n\r\n", passenger));
+		assertEquals(2, classify("PUT /photo HTTP/1.1\r\nHost: a.com\r\n\r\n", passenger));
+		//nothing matched: the last class
+		assertEquals(3, classify("GET http://news.example.org/ HTTP/1.1\r\n\r\n", passenger));
+		assertEquals(3, classify("GET http://notwhatsapp.net/ HTTP/1.1\r\n\r\n", InetAddress.getByName("10.21.0.1")));
+		assertEquals(3, classify("GET /isos HTTP/1.1\r\nHost: a.com\r\n\r\n", null));
+
+		assertEquals(List.of(8, 4, 1, 2), CLASSES.weights());
+		assertEquals("bulk", CLASSES.name(2));
+	}
+
+	@Test
+	void isOneClassUnlessConfiguredAndRejectsBadRules() throws Exception {
+		TrafficClasses single = TrafficClasses.from(new MockEnvironment());
+		assertEquals(1, single.size());
+		assertEquals(0, single.classify(parse("PUT /x.iso HTTP/1.1\r\nHost: a.com\r\n\r\n"), null));
+
+		assertThrows(IllegalArgumentException.class, () -> TrafficClasses.from(new MockEnvironment()
+				.withProperty("ship.traffic.classes", "a")
+				.withProperty("ship.traffic.class.a.weight", "0")));
+		//a subnet must be an address, never a name to look up
+		assertThrows(IllegalArgumentException.class, () -> TrafficClasses.from(new MockEnvironment()
+				.withProperty("ship.traffic.classes", "a")
+				.withProperty("ship.traffic.class.a.subnets", "crew.example.com/24")));
+		assertThrows(IllegalArgumentException.class, () -> TrafficClass.Subnet.parse("10.0.0.0/33"));
+	}
+
+	private static int classify(String request, InetAddress client) throws Exception {
+		return CLASSES.classify(parse(request), client);
+	}
+
+	private static HttpRequestParser parse(String request) throws Exception {
+		HttpRequestParser parser = new HttpRequestParser(new byte[256]);
+		parser.parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+		return parser;
+	}
+}
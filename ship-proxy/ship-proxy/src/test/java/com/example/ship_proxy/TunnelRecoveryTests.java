@@ -0,0 +1,112 @@
+package com.example.ship_proxy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static com.example.ship_proxy.FakeOffshoreProxy.readResponse;
+import static com.example.ship_proxy.FakeOffshoreProxy.sendRequest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * What happens to requests when the tunnel goes away under them: idempotent
+ * ones are replayed on the next connection, the rest fail fast, and a link
+ * that dies silently is caught by the heartbeat.
+ */
+class TunnelRecoveryTests {
+
+	@Test
+	void replaysIdempotentRequestsWhenTheirConnectionDrops() throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(64);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		MeterRegistry registry = new SimpleMeterRegistry();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "maxReplays", 2, "requestDeadlineSeconds", 10,
+				"metrics", new PipelineMetrics(registry));
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			offshore.dropRequests.set(1);
+			sendRequest(client, "1000");
+			readResponse(client.getInputStream(), 1000);
+			assertEquals(2, offshore.connections.get());
+			assertEquals(1.0, registry.get("ship.requests.replayed").counter().count());
+
+			//a POST may already have had its effect, so the client hears about it instead
+			offshore.dropRequests.set(1);
+			try (Socket poster = new Socket("127.0.0.1", proxyPort)) {
+				poster.getOutputStream().write(("POST http://origin.test/10 HTTP/1.1\r\nHost: origin.test\r\n"
+						+ "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				assertTrue(statusLine(poster.getInputStream()).startsWith("HTTP/1.1 502"));
+			}
+			assertEquals(1.0, registry.get("ship.requests").tag("outcome", "lost").counter().count());
+		} finally {
+			proxyHandler.stop();
+			offshore.server.close();
+		}
+	}
+
+	@Test
+	void answersWithGatewayTimeoutWhenNoResponseStartsInTime() throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(64);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "requestDeadlineSeconds", 1);
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			long start = System.currentTimeMillis();
+			sendRequest(client, "10?delay=5000");
+			assertTrue(statusLine(client.getInputStream()).startsWith("HTTP/1.1 504"));
+			long took = System.currentTimeMillis() - start;
+			assertTrue(took < 3000, "504 after " + took + " ms");
+		} finally {
+			proxyHandler.stop();
+			offshore.server.close();
+		}
+	}
+
+	@Test
+	void replacesAConnectionThatStopsAnsweringHeartbeats() throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(64);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "heartbeatIntervalMillis", 100L,
+				"heartbeatTimeoutMillis", 300L, "reconnectDelayMillis", 50L, "maxReconnectDelayMillis", 1000L);
+		try {
+			offshore.silent = true;
+			long deadline = System.currentTimeMillis() + 5000;
+			while (offshore.connections.get() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(2, offshore.connections.get());
+			offshore.silent = false;
+			try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+				sendRequest(client, "100");
+				readResponse(client.getInputStream(), 100);
+			}
+		} finally {
+			proxyHandler.stop();
+			offshore.server.close();
+		}
+	}
+
+	@Test
+	void backsOffExponentiallyWithJitter() {
+		for (int i = 0; i < 100; i++) {
+			long first = TCPClient.reconnectDelay(1, 250, 30_000);
+			assertTrue(first >= 125 && first <= 250, "first delay " + first);
+			long third = TCPClient.reconnectDelay(3, 250, 30_000);
+			assertTrue(third >= 500 && third <= 1000, "third delay " + third);
+			long capped = TCPClient.reconnectDelay(1000, 250, 30_000);
+			assertTrue(capped >= 15_000 && capped <= 30_000, "capped delay " + capped);
+		}
+	}
+
+	private static String statusLine(InputStream in) throws Exception {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.append((char) b);
+		}
+		return line.toString();
+	}
+}
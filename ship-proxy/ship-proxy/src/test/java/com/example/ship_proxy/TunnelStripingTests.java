@@ -0,0 +1,119 @@
+package com.example.ship_proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.ship_proxy.FakeOffshoreProxy.readResponse;
+import static com.example.ship_proxy.FakeOffshoreProxy.sendRequest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the ship proxy through a relay with injected latency and a
+ * per-connection throughput cap, with one tunnel connection and with several.
+ */
+class TunnelStripingTests {
+
+	private static final long ONE_WAY_DELAY_MILLIS = 25;
+	private static final long BYTES_PER_SECOND_PER_CONNECTION = 1024 * 1024;
+
+	@Test
+	void stripedTunnelOutrunsASingleConnection() throws Exception {
+		int clients = 8;
+		int length = 384 * 1024;
+		long single = download(1, clients, length);
+		long striped = download(4, clients, length);
+		//the relay caps each connection, so four of them should carry close to four times as much
+		assertTrue(striped * 2 < single, "1 connection took " + single + " ms, 4 connections took " + striped + " ms");
+	}
+
+	@Test
+	void addsConnectionsWhileEveryOneIsBusy() throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(64);
+		DelayedLink link = new DelayedLink(offshore.server.getLocalPort(), ONE_WAY_DELAY_MILLIS, BYTES_PER_SECOND_PER_CONNECTION);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "offshoreProxyPort", link.port(),
+				"maxTunnelConnections", 3, "streamsPerTunnelConnection", 2);
+		try {
+			assertEquals(1, offshore.connections.get());
+			//six slow requests need three connections at two streams each
+			ExecutorService executor = Executors.newFixedThreadPool(6);
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				results.add(executor.submit(() -> {
+					try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+						sendRequest(client, "1024?delay=4000");
+						readResponse(client.getInputStream(), 1024);
+					}
+					return null;
+				}));
+			}
+			long deadline = System.currentTimeMillis() + 4000;
+			while (proxyHandler.getTunnelConnections() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(3, proxyHandler.getTunnelConnections());
+			for (Future<?> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+			executor.shutdown();
+			assertEquals(1, offshore.sessionIds.size());
+		} finally {
+			proxyHandler.stop();
+			offshore.server.close();
+			link.server.close();
+		}
+	}
+
+	//downloads concurrently over the given number of tunnel connections and returns how long it took
+	private static long download(int connections, int clients, int length) throws Exception {
+		FakeOffshoreProxy offshore = new FakeOffshoreProxy(64);
+		DelayedLink link = new DelayedLink(offshore.server.getLocalPort(), ONE_WAY_DELAY_MILLIS, BYTES_PER_SECOND_PER_CONNECTION);
+		int proxyPort = FakeOffshoreProxy.freePort();
+		ProxyHandler proxyHandler = offshore.startShipProxy(proxyPort, "offshoreProxyPort", link.port(),
+				"tunnelConnections", connections, "maxTunnelConnections", connections);
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (proxyHandler.getTunnelConnections() < connections && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(connections, proxyHandler.getTunnelConnections());
+			long start = System.nanoTime();
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < clients; i++) {
+				results.add(executor.submit(() -> {
+					try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+						sendRequest(client, Integer.toString(length));
+						readResponse(client.getInputStream(), length);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			//one session, and every connection carried its share
+			assertEquals(1, offshore.sessionIds.size());
+			assertEquals(connections, offshore.startedOn.size());
+			for (AtomicInteger started : offshore.startedOn.values()) {
+				assertTrue(started.get() >= clients / connections / 2, "requests per connection " + offshore.startedOn);
+			}
+			return elapsed;
+		} finally {
+			executor.shutdownNow();
+			proxyHandler.stop();
+			offshore.server.close();
+			link.server.close();
+		}
+	}
+}